@@ -0,0 +1,87 @@
+package com.example;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.nio.charset.StandardCharsets;
+import java.time.LocalDate;
+import java.time.LocalTime;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Rendering a channel post from the precompiled template, against the String
+ * concatenation and {@code getBytes} round trip the bot used before templates. Run with
+ * {@code -prof gc} to compare allocation per post.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ChannelPostBenchmark {
+    private static final String BOT_USERNAME = "@TakeWithBot";
+
+    @Param({"DRIVER", "PASSENGER"})
+    RideType type;
+
+    private final Messages messages = Messages.getDefault();
+    private RideDetails ride;
+    private MessageKey post;
+
+    @Setup
+    public void setUp() {
+        ride = new RideDetails();
+        ride.setType(type);
+        ride.setCityA("Berlin");
+        ride.setCityB("Hamburg");
+        ride.setDepartureDate(LocalDate.of(2027, 3, 14));
+        ride.setDepartureTime(LocalTime.of(7, 30));
+        ride.setNumberOfPersons(3);
+        ride.setPriceCents(1950);
+        ride.setCarModel("VW Golf");
+        ride.setContactInfo("@driver");
+        post = type == RideType.DRIVER ? MessageKey.POST_DRIVER : MessageKey.POST_PASSENGER;
+    }
+
+    @Benchmark
+    public String template() {
+        return messages.render(post, new RideFields(ride, BOT_USERNAME));
+    }
+
+    @Benchmark
+    public String legacyConcatenation() {
+        String text;
+        if (ride.getType() == RideType.DRIVER) {
+            text = "🕵🏼 I am a #Driver" + "\n" +
+                    "🏢 From: #" + ride.getCityAName() + "\n" +
+                    "🏠 To: #" + ride.getCityBName() + "\n" +
+                    "📅 Departure Date: " + ride.formatDate() + "\n" +
+                    "⏰ Departure Time: " + ride.formatTime() + "\n" +
+                    "🙋🏻‍♂️ Number of Persons: " + ride.getNumberOfPersons() + "\n" +
+                    "💵 Price: " + ride.formatPrice() + " euro\n" +
+                    "🚙 Car Model: " + ride.getCarModel() + "\n" +
+                    "📱 Contact Info: " + ride.getContactInfo() + "\n" +
+                    BOT_USERNAME;
+        } else {
+            text = "🙋🏻‍♂️ I am a #Passenger" + "\n" +
+                    "🏢 From: #" + ride.getCityAName() + "\n" +
+                    "🏠 To: #" + ride.getCityBName() + "\n" +
+                    "📅 Departure Date: " + ride.formatDate() + "\n" +
+                    "⏰ Departure Time: " + ride.formatTime() + "\n" +
+                    "🙋🏻‍♂️ Number of Persons: " + ride.getNumberOfPersons() + "\n" +
+                    "📱 Contact Info: " + ride.getContactInfo() + "\n" +
+                    BOT_USERNAME;
+        }
+        return new String(text.getBytes(StandardCharsets.UTF_8), StandardCharsets.UTF_8);
+    }
+}
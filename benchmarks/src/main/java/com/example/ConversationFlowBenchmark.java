@@ -0,0 +1,89 @@
+package com.example;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The form state transitions behind {@code RideShareBot.handleUserResponse}: one step
+ * accepting valid input, one step rejecting invalid input, and a whole form from the
+ * first question to the completed ride.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ConversationFlowBenchmark {
+    private static final ConversationFlow flow = ConversationFlow.standard();
+    private static final Messages messages = Messages.getDefault();
+
+    @State(Scope.Thread)
+    public static class Step {
+        @Param({"FROM_CITY", "DEPARTURE_DATE", "DEPARTURE_TIME", "PERSONS", "PRICE", "CONTACT_INFO"})
+        ConversationState state;
+
+        Conversation conversation;
+        String valid;
+        String invalid;
+
+        @Setup
+        public void setUp() {
+            conversation = new Conversation(1);
+            flow.start(conversation, RideType.DRIVER);
+            valid = SyntheticUpdates.answer(state, 1, new Random(42));
+            invalid = SyntheticUpdates.invalidAnswer(state);
+        }
+    }
+
+    @State(Scope.Thread)
+    public static class Form {
+        List<String> answers;
+
+        @Setup
+        public void setUp() {
+            Random random = new Random(42);
+            answers = new ArrayList<>();
+            for (ConversationState s = flow.firstState(RideType.DRIVER); s != null; s = flow.nextState(RideType.DRIVER, s)) {
+                answers.add(SyntheticUpdates.answer(s, 1, random));
+            }
+        }
+    }
+
+    // Each call rewinds the conversation to the measured step first; setting a field is
+    // far cheaper than the per-invocation setup JMH would need instead.
+    @Benchmark
+    public MessageKey acceptStep(Step step) {
+        step.conversation.setState(step.state);
+        return flow.advance(step.conversation, step.valid, messages);
+    }
+
+    @Benchmark
+    public MessageKey rejectStep(Step step) {
+        step.conversation.setState(step.state);
+        return flow.advance(step.conversation, step.invalid, messages);
+    }
+
+    @Benchmark
+    public RideDetails completeDriverForm(Form form) {
+        Conversation conversation = new Conversation(2);
+        flow.start(conversation, RideType.DRIVER);
+        for (int i = 0; i < form.answers.size(); i++) {
+            flow.advance(conversation, form.answers.get(i), messages);
+        }
+        return conversation.getDetails();
+    }
+}
@@ -0,0 +1,64 @@
+package com.example;
+
+import org.telegram.telegrambots.meta.api.methods.BotApiMethod;
+import org.telegram.telegrambots.meta.api.methods.send.SendMessage;
+import org.telegram.telegrambots.meta.api.objects.Chat;
+import org.telegram.telegrambots.meta.api.objects.Message;
+
+import java.io.File;
+import java.io.Serializable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
+
+/**
+ * The real bot with the Bot API replaced: every call succeeds after a fixed simulated
+ * round trip, and sent messages are handed to a listener instead of Telegram.
+ */
+class FakeTelegramBot extends RideShareBot {
+    private static final AtomicInteger messageIds = new AtomicInteger();
+
+    private final ScheduledExecutorService network;
+    private final long roundTripMillis;
+    private final Consumer<SendMessage> sent;
+
+    FakeTelegramBot(File dataDir, ScheduledExecutorService network, long roundTripMillis, Consumer<SendMessage> sent) {
+        super(dataDir);
+        this.network = network;
+        this.roundTripMillis = roundTripMillis;
+        this.sent = sent;
+    }
+
+    @Override
+    @SuppressWarnings("unchecked")
+    public <T extends Serializable, Method extends BotApiMethod<T>> CompletableFuture<T> executeAsync(Method method) {
+        CompletableFuture<T> result = new CompletableFuture<>();
+        Runnable reply = () -> {
+            if (method instanceof SendMessage) {
+                SendMessage message = (SendMessage) method;
+                sent.accept(message);
+                result.complete((T) response(message));
+            } else {
+                result.complete(null);
+            }
+        };
+        if (roundTripMillis > 0) {
+            network.schedule(reply, roundTripMillis, TimeUnit.MILLISECONDS);
+        } else {
+            network.execute(reply);
+        }
+        return result;
+    }
+
+    private static Message response(SendMessage sent) {
+        Chat chat = new Chat();
+        chat.setType(sent.getChatId().startsWith("@") ? "channel" : "private");
+        Message message = new Message();
+        message.setMessageId(messageIds.incrementAndGet());
+        message.setChat(chat);
+        message.setText(sent.getText());
+        return message;
+    }
+}
@@ -0,0 +1,134 @@
+package com.example;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.time.LocalDate;
+import java.time.LocalTime;
+import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeParseException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Validating form answers with {@link InputParser} against the regular expression and
+ * exception based checks it replaced, which are kept here as the baseline. The malformed
+ * inputs are what a spammer or a confused user sends; each invocation takes the next one
+ * of a few, so neither path is measured on a single input.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class InputParsingBenchmark {
+    private static final DateTimeFormatter[] DATE_FORMATS = {
+            DateTimeFormatter.ofPattern("d.M.uuuu"),
+            DateTimeFormatter.ofPattern("d/M/uuuu"),
+            DateTimeFormatter.ofPattern("uuuu-M-d"),
+            DateTimeFormatter.ofPattern("d-M-uuuu")
+    };
+    private static final DateTimeFormatter[] TIME_FORMATS = {
+            DateTimeFormatter.ofPattern("H:mm"),
+            DateTimeFormatter.ofPattern("H.mm"),
+            DateTimeFormatter.ofPattern("H")
+    };
+
+    @Param({"persons", "price", "date", "time", "contact"})
+    String field;
+
+    @Param({"malformed", "valid"})
+    String input;
+
+    private String[] inputs;
+    private int next;
+
+    @Setup
+    public void setUp() {
+        boolean valid = input.equals("valid");
+        switch (field) {
+            case "persons":
+                inputs = valid ? new String[]{"1", "3", " 4 "} : new String[]{"two", "3 persons", "!!!!!!!!", ""};
+                break;
+            case "price":
+                inputs = valid ? new String[]{"15", "12,50", "9.5"} : new String[]{"free", "15 euro", "ask me", "1,2,3"};
+                break;
+            case "date":
+                inputs = valid ? new String[]{"24.12.2030", "1/2/2031", "2030-5-17"} : new String[]{"tomorrow", "next friday", "32.13.2030", "12.12."};
+                break;
+            case "time":
+                inputs = valid ? new String[]{"9:30", "14.15", "7"} : new String[]{"morning", "25:61", "half past", "9am"};
+                break;
+            default:
+                inputs = valid ? new String[]{"@someone", "+4915112345678", "015112345678"} : new String[]{"call me", "0151 1234", "me@mail.com", "+49 151 12345678"};
+                break;
+        }
+    }
+
+    @Benchmark
+    public boolean scanner() {
+        String text = inputs[next++ % inputs.length];
+        switch (field) {
+            case "persons":
+                return InputParser.parsePersons(text).isValid();
+            case "price":
+                return InputParser.parsePrice(text).isValid();
+            case "date":
+                return InputParser.parseDate(text).isValid();
+            case "time":
+                return InputParser.parseTime(text).isValid();
+            default:
+                return InputParser.parseContact(text).isValid();
+        }
+    }
+
+    @Benchmark
+    public boolean regexAndExceptions() {
+        String text = inputs[next++ % inputs.length];
+        switch (field) {
+            case "persons":
+                try {
+                    int persons = Integer.parseInt(text.trim());
+                    return persons >= 1 && persons <= InputParser.MAX_PERSONS;
+                } catch (NumberFormatException e) {
+                    return false;
+                }
+            case "price":
+                try {
+                    double price = Double.parseDouble(text.trim().replace(',', '.'));
+                    return price >= 0 && Math.round(price * 100) <= InputParser.MAX_PRICE_CENTS;
+                } catch (NumberFormatException e) {
+                    return false;
+                }
+            case "date":
+                for (DateTimeFormatter format : DATE_FORMATS) {
+                    try {
+                        return LocalDate.parse(text.trim(), format) != null;
+                    } catch (DateTimeParseException e) {
+                        // try the next format
+                    }
+                }
+                return false;
+            case "time":
+                for (DateTimeFormatter format : TIME_FORMATS) {
+                    try {
+                        return LocalTime.parse(text.trim(), format) != null;
+                    } catch (DateTimeParseException e) {
+                        // try the next format
+                    }
+                }
+                return false;
+            default:
+                return text.startsWith("@") || text.matches("\\+?[0-9]{10,13}");
+        }
+    }
+}
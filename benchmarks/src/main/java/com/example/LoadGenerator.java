@@ -0,0 +1,378 @@
+package com.example;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.telegram.telegrambots.meta.api.objects.Update;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.InetSocketAddress;
+import java.net.URL;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+
+/**
+ * Replays thousands of simulated users through the complete offer and need forms against
+ * real bots whose Bot API is faked, and reports throughput and reply latency.
+ * <p>
+ * Each user sends {@code /start}, presses the publish and ride type buttons and answers
+ * every question, waiting for the bot's reply and a think time before the next step. The
+ * latency of a step runs from handing its update to the bot to the first reply arriving
+ * at the fake Telegram, so it includes dispatch, rate limiting and the simulated round
+ * trip. The reply to the last answer only comes once the ride is posted, and channel
+ * posts are limited to 20 a minute per channel, so those are reported separately and the
+ * run ends once every user has submitted the form. Options are {@code key=value}
+ * arguments:
+ * <ul>
+ * <li>{@code users} (2000), {@code think} and {@code ramp} in milliseconds (1000 each),
+ * {@code rtt} simulated Bot API round trip in milliseconds (0), {@code timeout} in
+ * seconds (300), {@code seed} (1)</li>
+ * <li>{@code mode}: {@code direct} calls the bot, {@code webhook} posts JSON updates to
+ * local webhook servers ({@code port}, default 18080), {@code processes} does the same
+ * with each bot started as a process of its own through {@link Main}</li>
+ * <li>{@code nodes}: in webhook and processes mode, the number of clustered bots; updates
+ * are posted to random nodes and forwarded to their owners. In-process nodes share an
+ * {@link InMemoryStateBackend}, processes a {@link FileStateBackend} directory.</li>
+ * <li>{@code apiport}: in processes mode, the port the faked Bot API is served on for
+ * the processes (18070)</li>
+ * </ul>
+ * The bots read the usual environment variables. Telegram's global limit of 30 messages
+ * per second applies unless {@code SEND_GLOBAL_PER_SECOND} and {@code SEND_GLOBAL_BURST}
+ * are raised for the run.
+ */
+public class LoadGenerator {
+    private static final Logger logger = LoggerFactory.getLogger(LoadGenerator.class);
+    private static final String WEBHOOK_PATH = "/telegram";
+    private static final String WEBHOOK_SECRET = "load-generator";
+    private static final ObjectMapper JSON = new ObjectMapper();
+    private static final String TOKEN = "load";
+    private static final long CHANNEL_CHAT_ID = -1_001_000_000_000L;
+
+    private final Map<Long, SimulatedUser> users = new ConcurrentHashMap<>();
+    private final LatencyHistogram latency = new LatencyHistogram();
+    private final LatencyHistogram publishLatency = new LatencyHistogram();
+    private final AtomicLong updatesSent = new AtomicLong();
+    private final AtomicLong replies = new AtomicLong();
+    private final AtomicLong channelPosts = new AtomicLong();
+    private final AtomicInteger messageIds = new AtomicInteger();
+    private final AtomicInteger webhooksSet = new AtomicInteger();
+    private final ScheduledExecutorService clock = Executors.newScheduledThreadPool(2, daemon("load-clock"));
+    private final long thinkMillis;
+    private CountDownLatch finished;
+    private Consumer<Update> entry;
+
+    private LoadGenerator(long thinkMillis) {
+        this.thinkMillis = thinkMillis;
+    }
+
+    public static void main(String[] args) throws Exception {
+        Map<String, String> options = new HashMap<>();
+        for (String arg : args) {
+            int eq = arg.indexOf('=');
+            if (eq <= 0) {
+                throw new IllegalArgumentException("Expected key=value, got " + arg);
+            }
+            options.put(arg.substring(0, eq), arg.substring(eq + 1));
+        }
+        int userCount = intOption(options, "users", 2000);
+        long think = intOption(options, "think", 1000);
+        long ramp = intOption(options, "ramp", 1000);
+        long rtt = intOption(options, "rtt", 0);
+        long timeout = intOption(options, "timeout", 300);
+        int nodes = intOption(options, "nodes", 1);
+        int port = intOption(options, "port", 18080);
+        String mode = options.getOrDefault("mode", "direct");
+        Random random = new Random(intOption(options, "seed", 1));
+        if (nodes > 1 && "direct".equals(mode)) {
+            throw new IllegalArgumentException("Clustered nodes need mode=webhook or mode=processes to forward updates");
+        }
+        if (RideShareBot.envInt("SEND_GLOBAL_PER_SECOND", 30) <= 30) {
+            System.out.println("Note: SEND_GLOBAL_PER_SECOND is at Telegram's default of 30/s and will cap throughput");
+        }
+
+        LoadGenerator generator = new LoadGenerator(think);
+        File dataDir = Files.createTempDirectory("rideshare-load").toFile();
+        List<Process> processes = new ArrayList<>();
+        if ("processes".equals(mode)) {
+            processes = generator.startProcesses(nodes, port, intOption(options, "apiport", 18070), dataDir);
+            generator.entry = poster(port, nodes);
+        } else {
+            ScheduledExecutorService network = Executors.newScheduledThreadPool(4, daemon("fake-telegram"));
+            List<FakeTelegramBot> bots = new ArrayList<>();
+            for (int i = 0; i < nodes; i++) {
+                bots.add(new FakeTelegramBot(new File(dataDir, "node-" + i), network, rtt,
+                        message -> generator.onSent(message.getChatId())));
+            }
+            generator.entry = "webhook".equals(mode) ? startWebhooks(bots, port) : bots.get(0)::onUpdateReceived;
+        }
+
+        ConversationFlow flow = ConversationFlow.standard();
+        for (int i = 0; i < userCount; i++) {
+            long chatId = 100_000_000L + i;
+            RideType type = i % 2 == 0 ? RideType.DRIVER : RideType.PASSENGER;
+            generator.users.put(chatId, new SimulatedUser(generator, SyntheticUpdates.publishRide(chatId, type, flow, random)));
+        }
+        generator.finished = new CountDownLatch(userCount);
+
+        System.out.printf("Replaying %d users (%s, %d node(s), think %d ms, rtt %d ms)%n", userCount, mode, nodes, think, rtt);
+        long start = System.nanoTime();
+        for (SimulatedUser user : generator.users.values()) {
+            generator.clock.schedule(user::sendNext, ramp > 0 ? random.nextInt((int) ramp) : 0, TimeUnit.MILLISECONDS);
+        }
+        boolean complete = generator.finished.await(timeout, TimeUnit.SECONDS);
+        generator.report(userCount, System.nanoTime() - start, complete);
+        for (Process process : processes) {
+            process.destroy();
+        }
+        for (Process process : processes) {
+            process.waitFor();
+        }
+        System.exit(complete ? 0 : 1);
+    }
+
+    private static Consumer<Update> startWebhooks(List<FakeTelegramBot> bots, int port) throws IOException {
+        InMemoryStateBackend backend = new InMemoryStateBackend();
+        List<ClusterNode> nodes = new ArrayList<>();
+        for (int i = 0; i < bots.size(); i++) {
+            FakeTelegramBot bot = bots.get(i);
+            if (bots.size() == 1) {
+                new WebhookServer(port, WEBHOOK_PATH, WEBHOOK_SECRET, 4, bot::onUpdateReceived).start();
+                continue;
+            }
+            ClusterNode node = bot.attachCluster("127.0.0.1:" + (port + i), backend, WEBHOOK_PATH, WEBHOOK_SECRET);
+            new WebhookServer(port + i, WEBHOOK_PATH, WEBHOOK_SECRET, 4, node::route, node::acceptForwarded).start();
+            nodes.add(node);
+        }
+        for (ClusterNode node : nodes) {
+            node.start();
+        }
+        return poster(port, bots.size());
+    }
+
+    // Starts the bots as processes clustered through a shared directory, calling the Bot
+    // API served here, and waits until every one has registered its webhook. The rtt
+    // option does not apply; the processes' logs go to the data directory.
+    private List<Process> startProcesses(int nodes, int port, int apiPort, File dataDir)
+            throws IOException, InterruptedException {
+        HttpServer api = HttpServer.create(new InetSocketAddress("127.0.0.1", apiPort), 0);
+        api.createContext("/bot" + TOKEN + "/", this::handleApiCall);
+        api.setExecutor(Executors.newCachedThreadPool(daemon("fake-bot-api")));
+        api.start();
+        List<Process> processes = new ArrayList<>();
+        for (int i = 0; i < nodes; i++) {
+            String address = "127.0.0.1:" + (port + i);
+            ProcessBuilder builder = new ProcessBuilder(new File(System.getProperty("java.home"), "bin/java").getPath(),
+                    "-cp", System.getProperty("java.class.path"), "com.example.Main");
+            Map<String, String> env = builder.environment();
+            env.put("BOT_TOKEN", TOKEN);
+            env.put("BOT_NAME", "load_bot");
+            env.put("BOT_API_URL", "http://127.0.0.1:" + apiPort + "/bot");
+            env.put("DATA_DIR", new File(dataDir, "node-" + i).getPath());
+            env.put("UPDATE_MODE", "webhook");
+            // Only the path is served; the scheme is what setWebhook accepts
+            env.put("WEBHOOK_URL", "https://" + address + WEBHOOK_PATH);
+            env.put("WEBHOOK_SECRET", WEBHOOK_SECRET);
+            env.put("WEBHOOK_PORT", String.valueOf(port + i));
+            env.put("CLUSTER_STATE_DIR", new File(dataDir, "cluster").getPath());
+            env.put("CLUSTER_NODE_ID", address);
+            builder.redirectErrorStream(true);
+            builder.redirectOutput(ProcessBuilder.Redirect.appendTo(new File(dataDir, "node-" + i + ".log")));
+            processes.add(builder.start());
+        }
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(60);
+        while (webhooksSet.get() < nodes) {
+            if (System.nanoTime() > deadline) {
+                for (Process process : processes) {
+                    process.destroyForcibly();
+                }
+                api.stop(0);
+                throw new IllegalStateException(webhooksSet.get() + " of " + nodes
+                        + " bots registered their webhook within 60 s; see the logs in " + dataDir);
+            }
+            Thread.sleep(20);
+        }
+        return processes;
+    }
+
+    // Answers the processes' Bot API calls: sent and edited messages come back as the
+    // message Telegram would return, everything else succeeds.
+    private void handleApiCall(HttpExchange exchange) throws IOException {
+        String path = exchange.getRequestURI().getPath();
+        String method = path.substring(path.lastIndexOf('/') + 1).toLowerCase(Locale.ROOT);
+        JsonNode request = JSON.readTree(exchange.getRequestBody());
+        ObjectNode response = JSON.createObjectNode();
+        response.put("ok", true);
+        if ("sendmessage".equals(method) || "editmessagetext".equals(method)) {
+            String chatId = request.path("chat_id").asText();
+            boolean channel = chatId.startsWith("@");
+            ObjectNode message = response.putObject("result");
+            message.put("message_id", "sendmessage".equals(method)
+                    ? messageIds.incrementAndGet() : request.path("message_id").asInt());
+            message.put("date", System.currentTimeMillis() / 1000);
+            message.putObject("chat").put("id", channel ? CHANNEL_CHAT_ID : Long.parseLong(chatId))
+                    .put("type", channel ? "channel" : "private");
+            message.put("text", request.path("text").asText());
+            if ("sendmessage".equals(method)) {
+                onSent(chatId);
+            }
+        } else {
+            if ("setwebhook".equals(method)) {
+                webhooksSet.incrementAndGet();
+            }
+            response.put("result", true);
+        }
+        byte[] body = JSON.writeValueAsBytes(response);
+        exchange.getResponseHeaders().set("Content-Type", "application/json");
+        exchange.sendResponseHeaders(200, body.length);
+        try (OutputStream out = exchange.getResponseBody()) {
+            out.write(body);
+        }
+    }
+
+    // Posts each update to the webhook of a random one of the nodes on consecutive ports.
+    private static Consumer<Update> poster(int port, int nodes) {
+        ExecutorService posters = Executors.newFixedThreadPool(16, daemon("webhook-client"));
+        return update -> posters.execute(() -> {
+            int target = port + ThreadLocalRandom.current().nextInt(nodes);
+            try {
+                post(target, update);
+            } catch (IOException e) {
+                logger.warn("Webhook post to port {} failed: {}", target, e.getMessage());
+            }
+        });
+    }
+
+    private static void post(int port, Update update) throws IOException {
+        HttpURLConnection connection = (HttpURLConnection) new URL("http://127.0.0.1:" + port + WEBHOOK_PATH).openConnection();
+        connection.setRequestMethod("POST");
+        connection.setDoOutput(true);
+        connection.setRequestProperty("Content-Type", "application/json");
+        connection.setRequestProperty(WebhookServer.SECRET_HEADER, WEBHOOK_SECRET);
+        try (OutputStream out = connection.getOutputStream()) {
+            JSON.writeValue(out, update);
+        }
+        int status = connection.getResponseCode();
+        // Closing the body lets the connection be reused
+        InputStream body = status < 400 ? connection.getInputStream() : connection.getErrorStream();
+        if (body != null) {
+            body.close();
+        }
+        if (status != 200) {
+            throw new IOException("Webhook answered " + status);
+        }
+    }
+
+    private void onSent(String chatId) {
+        if (chatId.startsWith("@")) {
+            channelPosts.incrementAndGet();
+            return;
+        }
+        replies.incrementAndGet();
+        SimulatedUser user = users.get(Long.parseLong(chatId));
+        if (user != null) {
+            user.onReply();
+        }
+    }
+
+    private void report(int userCount, long elapsedNanos, boolean complete) {
+        double seconds = elapsedNanos / 1e9;
+        long[] p = latency.percentiles(50, 90, 99, 99.9, 100);
+        long[] posted = publishLatency.percentiles(50, 99, 100);
+        System.out.printf("Submitted %d of %d forms in %.1f s%n", userCount - finished.getCount(), userCount, seconds);
+        System.out.printf("Updates: %d (%.0f/s), replies: %d, channel posts: %d%n",
+                updatesSent.get(), updatesSent.get() / seconds, replies.get(), channelPosts.get());
+        System.out.printf("Reply latency ms: p50 %.2f, p90 %.2f, p99 %.2f, p99.9 %.2f, max %.2f%n",
+                p[0] / 1e6, p[1] / 1e6, p[2] / 1e6, p[3] / 1e6, p[4] / 1e6);
+        System.out.printf("Confirmed %d posts, latency ms: p50 %.2f, p99 %.2f, max %.2f; the rest wait for the channel rate limit%n",
+                publishLatency.count(), posted[0] / 1e6, posted[1] / 1e6, posted[2] / 1e6);
+        if (!complete) {
+            System.out.println("Timed out before every form was complete");
+        }
+    }
+
+    private static int intOption(Map<String, String> options, String name, int defaultValue) {
+        String value = options.get(name);
+        return value == null ? defaultValue : Integer.parseInt(value);
+    }
+
+    private static ThreadFactory daemon(String name) {
+        AtomicLong ids = new AtomicLong();
+        return runnable -> {
+            Thread thread = new Thread(runnable, name + "-" + ids.getAndIncrement());
+            thread.setDaemon(true);
+            return thread;
+        };
+    }
+
+    // One user stepping through a form; the next step goes out a think time after the
+    // reply to the previous one.
+    private static final class SimulatedUser {
+        private final LoadGenerator generator;
+        private final List<Update> steps;
+        private int next;
+        private long sentNanos;
+        private boolean waiting;
+
+        SimulatedUser(LoadGenerator generator, List<Update> steps) {
+            this.generator = generator;
+            this.steps = steps;
+        }
+
+        void sendNext() {
+            Update update;
+            boolean last;
+            synchronized (this) {
+                update = steps.get(next++);
+                last = next == steps.size();
+                sentNanos = System.nanoTime();
+                waiting = true;
+            }
+            generator.updatesSent.incrementAndGet();
+            generator.entry.accept(update);
+            if (last) {
+                generator.finished.countDown();
+            }
+        }
+
+        void onReply() {
+            boolean done;
+            synchronized (this) {
+                if (!waiting) {
+                    return;
+                }
+                waiting = false;
+                done = next == steps.size();
+                (done ? generator.publishLatency : generator.latency).recordSince(sentNanos);
+            }
+            if (!done) {
+                long think = generator.thinkMillis;
+                long delay = think > 0 ? think / 2 + ThreadLocalRandom.current().nextLong(think) : 0;
+                generator.clock.schedule(this::sendNext, delay, TimeUnit.MILLISECONDS);
+            }
+        }
+    }
+}
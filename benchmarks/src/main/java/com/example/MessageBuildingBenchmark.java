@@ -0,0 +1,46 @@
+package com.example;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.telegram.telegrambots.meta.api.methods.send.SendMessage;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Building the {@link SendMessage} of a reply, with and without an inline keyboard.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class MessageBuildingBenchmark {
+    private final Messages messages = Messages.getDefault();
+    private final String chatId = "123456789";
+    private final Map<String, String> buttons = new LinkedHashMap<>();
+
+    public MessageBuildingBenchmark() {
+        buttons.put(messages.text(MessageKey.BUTTON_NEED_RIDE), CallbackAction.NEED_RIDE.data());
+        buttons.put(messages.text(MessageKey.BUTTON_OFFER_RIDE), CallbackAction.OFFER_RIDE.data());
+    }
+
+    @Benchmark
+    public SendMessage createMessage() {
+        return RideShareBot.createMessage(chatId, messages.text(MessageKey.ASK_FROM_CITY));
+    }
+
+    @Benchmark
+    public SendMessage createMessageWithButtons() {
+        return RideShareBot.createMessage(chatId, messages.text(MessageKey.ASK_RIDE_OPTION), buttons);
+    }
+}
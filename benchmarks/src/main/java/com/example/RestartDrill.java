@@ -0,0 +1,397 @@
+package com.example;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ArrayNode;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import org.telegram.telegrambots.meta.api.objects.Update;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Random;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Kills and restarts the bot while simulated users are halfway through their forms, and
+ * reports what they lost.
+ * <p>
+ * The bot runs as a child process of the drill, talking to a fake Bot API the drill
+ * serves on a local port through {@code BOT_API_URL}. The fake answers
+ * {@code getUpdates} like Telegram: an update is delivered until a request asks for an
+ * offset past it, and a new request ends the one still waiting. Every user publishes a
+ * ride on the same route, with a contact of their own, answering each step once the
+ * bot replied to the previous one. At the given times the bot is sent SIGTERM, or
+ * SIGKILL with {@code signal=kill}, and started again on the same data directory.
+ * <p>
+ * The report gives how long each stop took, the time from starting the new process to
+ * its first {@code getUpdates} and to its first reply, the users left waiting for a
+ * reply that never came, and the rides missing from the channel or posted twice. Options
+ * are {@code key=value} arguments: {@code users} (100), {@code think} in milliseconds
+ * (300), {@code restarts} (1), {@code every} seconds between restarts (8),
+ * {@code timeout} in seconds after the last restart (180), {@code signal} ({@code term})
+ * and {@code port} (18090). The bot inherits the environment, so for example
+ * {@code SHUTDOWN_DRAIN_SECONDS} applies.
+ */
+public class RestartDrill {
+    private static final ObjectMapper JSON = new ObjectMapper();
+    private static final String TOKEN = "drill";
+    private static final long CHANNEL_CHAT_ID = -1_001_000_000_000L;
+
+    // Updates not yet confirmed, by id
+    private final TreeMap<Integer, ObjectNode> unconfirmed = new TreeMap<>();
+    private final Map<Integer, Integer> deliveries = new HashMap<>();
+    private int nextUpdateId = 1;
+    private int pollGeneration;
+
+    private final Map<Long, SimulatedUser> users = new ConcurrentHashMap<>();
+    private final Map<Integer, String> channelPosts = new ConcurrentHashMap<>();
+    private final AtomicInteger messageIds = new AtomicInteger();
+    private final AtomicLong replies = new AtomicLong();
+    private final AtomicLong firstPollNanos = new AtomicLong();
+    private final AtomicLong firstReplyNanos = new AtomicLong();
+    private final ScheduledExecutorService clock = Executors.newScheduledThreadPool(2, runnable -> {
+        Thread thread = new Thread(runnable, "drill-clock");
+        thread.setDaemon(true);
+        return thread;
+    });
+    private final long thinkMillis;
+
+    private RestartDrill(long thinkMillis) {
+        this.thinkMillis = thinkMillis;
+    }
+
+    public static void main(String[] args) throws Exception {
+        Map<String, String> options = new HashMap<>();
+        for (String arg : args) {
+            int eq = arg.indexOf('=');
+            if (eq <= 0) {
+                throw new IllegalArgumentException("Expected key=value, got " + arg);
+            }
+            options.put(arg.substring(0, eq), arg.substring(eq + 1));
+        }
+        int userCount = intOption(options, "users", 100);
+        long think = intOption(options, "think", 300);
+        int restarts = intOption(options, "restarts", 1);
+        long every = intOption(options, "every", 8);
+        long timeout = intOption(options, "timeout", 180);
+        int port = intOption(options, "port", 18090);
+        boolean kill = "kill".equals(options.getOrDefault("signal", "term"));
+
+        RestartDrill drill = new RestartDrill(think);
+        HttpServer server = HttpServer.create(new InetSocketAddress("127.0.0.1", port), 0);
+        server.createContext("/bot" + TOKEN + "/", drill::handle);
+        server.setExecutor(Executors.newCachedThreadPool(runnable -> {
+            Thread thread = new Thread(runnable, "fake-bot-api");
+            thread.setDaemon(true);
+            return thread;
+        }));
+        server.start();
+
+        File dataDir = Files.createTempDirectory("rideshare-drill").toFile();
+        File log = new File(dataDir.getParentFile(), dataDir.getName() + ".log");
+        ProcessBuilder builder = new ProcessBuilder(new File(System.getProperty("java.home"), "bin/java").getPath(),
+                "-cp", System.getProperty("java.class.path"), "com.example.Main");
+        builder.environment().put("BOT_TOKEN", TOKEN);
+        builder.environment().put("BOT_NAME", "drill_bot");
+        builder.environment().put("BOT_API_URL", "http://127.0.0.1:" + port + "/bot");
+        builder.environment().put("DATA_DIR", dataDir.getPath());
+        builder.redirectErrorStream(true);
+        builder.redirectOutput(ProcessBuilder.Redirect.appendTo(log));
+
+        Random random = new Random(1);
+        ConversationFlow flow = ConversationFlow.standard();
+        for (int i = 0; i < userCount; i++) {
+            long chatId = 100_000_000L + i;
+            drill.users.put(chatId, new SimulatedUser(drill, chatId,
+                    publishRide(chatId, i % 2 == 0 ? RideType.DRIVER : RideType.PASSENGER, flow, random)));
+        }
+
+        System.out.printf("Drilling %d users, %d restart(s) by %s every %d s; bot log in %s%n",
+                userCount, restarts, kill ? "SIGKILL" : "SIGTERM", every, log);
+        Process bot = drill.startBot(builder);
+        for (SimulatedUser user : drill.users.values()) {
+            drill.clock.schedule(user::sendNext, random.nextInt(1000), TimeUnit.MILLISECONDS);
+        }
+        for (int restart = 1; restart <= restarts; restart++) {
+            Thread.sleep(TimeUnit.SECONDS.toMillis(every));
+            long stopStart = System.nanoTime();
+            if (kill) {
+                bot.destroyForcibly();
+            } else {
+                bot.destroy();
+            }
+            bot.waitFor();
+            long stopNanos = System.nanoTime() - stopStart;
+            long started = System.nanoTime();
+            bot = drill.startBot(builder);
+            System.out.printf("Restart %d: stopped in %d ms, %d user(s) waiting for a reply; polling after %d ms, first reply after %d ms%n",
+                    restart, stopNanos / 1_000_000, drill.waitingUsers(),
+                    (drill.firstPollNanos.get() - started) / 1_000_000, (drill.awaitFirstReply(30) - started) / 1_000_000);
+        }
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(timeout);
+        while (System.nanoTime() < deadline && (drill.waitingUsers() > 0 || drill.ridesPosted()[0] > 0)) {
+            Thread.sleep(200);
+        }
+        bot.destroy();
+        bot.waitFor();
+        drill.report();
+        System.exit(0);
+    }
+
+    // Builds the steps of one user publishing a ride from Berlin to Hamburg, so all rides
+    // share a channel digest, with a contact only this user has.
+    private static List<Update> publishRide(long chatId, RideType type, ConversationFlow flow, Random random) {
+        List<Update> updates = new ArrayList<>();
+        updates.add(SyntheticUpdates.text(chatId, "/start"));
+        updates.add(SyntheticUpdates.callback(chatId, CallbackAction.START_PUBLICATION));
+        updates.add(SyntheticUpdates.callback(chatId, type == RideType.DRIVER ? CallbackAction.OFFER_RIDE : CallbackAction.NEED_RIDE));
+        for (ConversationState state = flow.firstState(type); state != null; state = flow.nextState(type, state)) {
+            String answer = state == ConversationState.FROM_CITY ? "Berlin"
+                    : state == ConversationState.TO_CITY ? "Hamburg"
+                    : state == ConversationState.CONTACT_INFO ? contact(chatId)
+                    : SyntheticUpdates.answer(state, chatId, random);
+            updates.add(SyntheticUpdates.text(chatId, answer));
+        }
+        return updates;
+    }
+
+    private static String contact(long chatId) {
+        return "@drill" + chatId;
+    }
+
+    private Process startBot(ProcessBuilder builder) throws IOException, InterruptedException {
+        firstPollNanos.set(0);
+        firstReplyNanos.set(0);
+        Process process = builder.start();
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(30);
+        while (firstPollNanos.get() == 0 && System.nanoTime() < deadline) {
+            Thread.sleep(5);
+        }
+        if (firstPollNanos.get() == 0) {
+            throw new IllegalStateException("The bot did not poll for updates within 30 s");
+        }
+        return process;
+    }
+
+    private long awaitFirstReply(int seconds) throws InterruptedException {
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(seconds);
+        while (firstReplyNanos.get() == 0 && System.nanoTime() < deadline) {
+            Thread.sleep(5);
+        }
+        return firstReplyNanos.get();
+    }
+
+    private void handle(HttpExchange exchange) throws IOException {
+        String path = exchange.getRequestURI().getPath();
+        String method = path.substring(path.lastIndexOf('/') + 1).toLowerCase(Locale.ROOT);
+        JsonNode request = JSON.readTree(exchange.getRequestBody());
+        Object response;
+        try {
+            switch (method) {
+                case "getupdates":
+                    response = getUpdates(request);
+                    break;
+                case "sendmessage":
+                case "editmessagetext":
+                    response = message(method, request);
+                    break;
+                default:
+                    response = ok(JSON.getNodeFactory().booleanNode(true));
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            response = JSON.createObjectNode().put("ok", false).put("error_code", 500).put("description", "Interrupted");
+        }
+        byte[] body = JSON.writeValueAsBytes(response);
+        exchange.getResponseHeaders().set("Content-Type", "application/json");
+        exchange.sendResponseHeaders(200, body.length);
+        try (OutputStream out = exchange.getResponseBody()) {
+            out.write(body);
+        }
+    }
+
+    private synchronized ObjectNode getUpdates(JsonNode request) throws InterruptedException {
+        firstPollNanos.compareAndSet(0, System.nanoTime());
+        int offset = request.path("offset").asInt(0);
+        int limit = request.path("limit").asInt(100);
+        long timeoutNanos = TimeUnit.SECONDS.toNanos(request.path("timeout").asInt(0));
+        unconfirmed.headMap(offset).clear();
+        int generation = ++pollGeneration;
+        notifyAll();
+        long deadline = System.nanoTime() + timeoutNanos;
+        while (unconfirmed.isEmpty() && System.nanoTime() < deadline && generation == pollGeneration) {
+            TimeUnit.NANOSECONDS.timedWait(this, deadline - System.nanoTime());
+        }
+        if (generation != pollGeneration) {
+            return JSON.createObjectNode().put("ok", false).put("error_code", 409)
+                    .put("description", "Conflict: terminated by other getUpdates request");
+        }
+        ArrayNode updates = JSON.createArrayNode();
+        for (Map.Entry<Integer, ObjectNode> entry : unconfirmed.entrySet()) {
+            if (updates.size() == limit) {
+                break;
+            }
+            updates.add(entry.getValue());
+            deliveries.merge(entry.getKey(), 1, Integer::sum);
+        }
+        return ok(updates);
+    }
+
+    private synchronized void enqueue(Update update) {
+        ObjectNode json = JSON.valueToTree(update);
+        int id = nextUpdateId++;
+        json.put("update_id", id);
+        unconfirmed.put(id, json);
+        notifyAll();
+    }
+
+    private ObjectNode message(String method, JsonNode request) {
+        String chatId = request.path("chat_id").asText();
+        boolean channel = chatId.startsWith("@");
+        int messageId = "editmessagetext".equals(method) ? request.path("message_id").asInt() : messageIds.incrementAndGet();
+        if (channel) {
+            channelPosts.put(messageId, request.path("text").asText());
+        } else {
+            firstReplyNanos.compareAndSet(0, System.nanoTime());
+            replies.incrementAndGet();
+            SimulatedUser user = users.get(Long.parseLong(chatId));
+            if (user != null) {
+                user.onReply();
+            }
+        }
+        ObjectNode message = JSON.createObjectNode();
+        message.put("message_id", messageId);
+        message.put("date", System.currentTimeMillis() / 1000);
+        message.putObject("chat").put("id", channel ? CHANNEL_CHAT_ID : Long.parseLong(chatId))
+                .put("type", channel ? "channel" : "private");
+        message.put("text", request.path("text").asText());
+        return ok(message);
+    }
+
+    private static ObjectNode ok(JsonNode result) {
+        ObjectNode response = JSON.createObjectNode();
+        response.put("ok", true);
+        response.set("result", result);
+        return response;
+    }
+
+    private int waitingUsers() {
+        int waiting = 0;
+        for (SimulatedUser user : users.values()) {
+            if (!user.isDone()) {
+                waiting++;
+            }
+        }
+        return waiting;
+    }
+
+    // Rides missing from the channel, and rides in more than one post or twice in one
+    private int[] ridesPosted() {
+        int missing = 0;
+        int duplicated = 0;
+        for (long chatId : users.keySet()) {
+            String contact = contact(chatId);
+            int posts = 0;
+            for (String text : channelPosts.values()) {
+                for (int at = text.indexOf(contact); at >= 0; at = text.indexOf(contact, at + 1)) {
+                    posts++;
+                }
+            }
+            if (posts == 0) {
+                missing++;
+            } else if (posts > 1) {
+                duplicated++;
+            }
+        }
+        return new int[]{missing, duplicated};
+    }
+
+    private synchronized int redelivered() {
+        int redelivered = 0;
+        for (int count : deliveries.values()) {
+            if (count > 1) {
+                redelivered++;
+            }
+        }
+        return redelivered;
+    }
+
+    private void report() {
+        int done = users.size() - waitingUsers();
+        int[] rides = ridesPosted();
+        System.out.printf("Completed forms: %d of %d; replies: %d; updates delivered more than once: %d%n",
+                done, users.size(), replies.get(), redelivered());
+        System.out.printf("Rides missing from the channel: %d, posted twice: %d%n", rides[0], rides[1]);
+        for (SimulatedUser user : users.values()) {
+            if (!user.isDone()) {
+                System.out.printf("User %d is still waiting for a reply to step %d%n", user.chatId, user.next);
+            }
+        }
+    }
+
+    private static int intOption(Map<String, String> options, String name, int defaultValue) {
+        String value = options.get(name);
+        return value == null ? defaultValue : Integer.parseInt(value);
+    }
+
+    // One user stepping through a form; the next step goes out a think time after the
+    // reply to the previous one, and the user is done once the last step was answered.
+    private static final class SimulatedUser {
+        private final RestartDrill drill;
+        private final long chatId;
+        private final List<Update> steps;
+        private int next;
+        private boolean waiting;
+
+        SimulatedUser(RestartDrill drill, long chatId, List<Update> steps) {
+            this.drill = drill;
+            this.chatId = chatId;
+            this.steps = steps;
+        }
+
+        void sendNext() {
+            Update update;
+            synchronized (this) {
+                update = steps.get(next++);
+                waiting = true;
+            }
+            drill.enqueue(update);
+        }
+
+        void onReply() {
+            synchronized (this) {
+                if (!waiting) {
+                    return;
+                }
+                waiting = false;
+                if (next == steps.size()) {
+                    return;
+                }
+            }
+            long think = drill.thinkMillis;
+            long delay = think > 0 ? think / 2 + ThreadLocalRandom.current().nextLong(think) : 0;
+            drill.clock.schedule(this::sendNext, delay, TimeUnit.MILLISECONDS);
+        }
+
+        synchronized boolean isDone() {
+            return next == steps.size() && !waiting;
+        }
+    }
+}
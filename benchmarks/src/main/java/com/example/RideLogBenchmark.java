@@ -0,0 +1,158 @@
+package com.example;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.time.LocalDate;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Write throughput of {@link RideLog} and how long recovery takes as the log grows.
+ * <p>
+ * Appends are the mix the bot writes, two form steps for every published ride, over
+ * 200000 chats; once 100000 rides are live, each new ride retires the oldest one. They
+ * use the bot's 64 MB compaction threshold, so the throughput includes the compactions
+ * running alongside, and the slowest sampled appends show how long they held appends up. Recovery rebuilds a fresh store from a log of the given number of
+ * appends.
+ */
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = "-Xmx2g")
+public class RideLogBenchmark {
+    private static final long COMPACT_BYTES = 64L * 1024 * 1024;
+    private static final int CHATS = 200_000;
+    private static final int LIVE_RIDES = 100_000;
+    private static final String[] CITIES = {"Berlin", "Hamburg", "M\u00fcnchen", "K\u00f6ln", "Frankfurt am Main",
+            "Stuttgart", "D\u00fcsseldorf", "Leipzig", "Dortmund", "Dresden"};
+
+    @State(Scope.Thread)
+    public static class Appending {
+        File directory;
+        RideLog log;
+        ConversationStore conversations;
+        Map<Long, RideDetails> published;
+        Random random;
+        long nextRideId;
+
+        @Setup
+        public void setUp() throws IOException {
+            directory = Files.createTempDirectory("ride-log-append").toFile();
+            conversations = new ConversationStore(TimeUnit.HOURS.toMillis(1), 2 * CHATS);
+            published = new ConcurrentHashMap<>();
+            log = new RideLog(directory, COMPACT_BYTES, conversations, published, new Subscriptions());
+            log.recover();
+            random = new Random(42);
+        }
+
+        @TearDown
+        public void tearDown() throws IOException {
+            log.close();
+            deleteDirectory(directory);
+        }
+
+        void appendNext() {
+            long chatId = random.nextInt(CHATS);
+            RideDetails details = new RideDetails();
+            details.setChatId(chatId);
+            details.setType(random.nextBoolean() ? RideType.DRIVER : RideType.PASSENGER);
+            details.setCityA(CITIES[random.nextInt(CITIES.length)]);
+            details.setCityB(CITIES[random.nextInt(CITIES.length)]);
+            details.setDepartureDate(LocalDate.ofEpochDay(20_000 + random.nextInt(90)));
+            details.setNumberOfPersons(1 + random.nextInt(4));
+            if (random.nextInt(3) == 0) {
+                details.setId(++nextRideId);
+                details.setPriceCents(random.nextInt(5000));
+                details.setCarModel("Golf");
+                details.setContactInfo("@rider" + chatId);
+                published.put(details.getId(), details);
+                log.appendPublished(details);
+                long retired = details.getId() - LIVE_RIDES;
+                if (retired > 0) {
+                    published.remove(retired);
+                    log.appendRetired(retired);
+                }
+            } else {
+                Conversation conversation = conversations.getOrCreate(chatId);
+                conversation.setState(ConversationState.PERSONS);
+                conversation.setDetails(details);
+                log.appendConversation(conversation);
+            }
+        }
+    }
+
+    @State(Scope.Benchmark)
+    public static class Recovering {
+        @Param({"250000", "1000000", "2000000"})
+        int records;
+
+        File directory;
+
+        @Setup
+        public void setUp() throws IOException {
+            directory = Files.createTempDirectory("ride-log-recover").toFile();
+            Appending writer = new Appending();
+            writer.directory = directory;
+            writer.conversations = new ConversationStore(TimeUnit.HOURS.toMillis(1), 2 * CHATS);
+            writer.published = new HashMap<>();
+            writer.log = new RideLog(directory, Long.MAX_VALUE, writer.conversations, writer.published, new Subscriptions());
+            writer.log.recover();
+            writer.random = new Random(42);
+            for (int i = 0; i < records; i++) {
+                writer.appendNext();
+            }
+            writer.log.close();
+        }
+
+        @TearDown
+        public void tearDown() throws IOException {
+            deleteDirectory(directory);
+        }
+    }
+
+    @Benchmark
+    @BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+    @OutputTimeUnit(TimeUnit.MICROSECONDS)
+    public void append(Appending state) {
+        state.appendNext();
+    }
+
+    @Benchmark
+    @BenchmarkMode(Mode.SingleShotTime)
+    @OutputTimeUnit(TimeUnit.MILLISECONDS)
+    @Warmup(iterations = 3)
+    @Measurement(iterations = 5)
+    public long recover(Recovering state) throws IOException {
+        ConversationStore conversations = new ConversationStore(TimeUnit.HOURS.toMillis(1), 2 * CHATS);
+        RideLog log = new RideLog(state.directory, Long.MAX_VALUE, conversations, new HashMap<>(), new Subscriptions());
+        long maxRideId = log.recover();
+        log.close();
+        return maxRideId;
+    }
+
+    private static void deleteDirectory(File directory) {
+        File[] files = directory.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                file.delete();
+            }
+        }
+        directory.delete();
+    }
+}
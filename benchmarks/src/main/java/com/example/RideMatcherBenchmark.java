@@ -0,0 +1,143 @@
+package com.example;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.time.LocalDate;
+import java.time.LocalTime;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Inserts, matches and retirement on a {@link RideMatcher} holding several hundred thousand
+ * active rides, spread over 90 days and 300 cities, most of them between a few big ones.
+ * Half of the rides are offered by drivers.
+ * <p>
+ * Each insert also removes the ride published that many inserts earlier, the way rides
+ * are retired, so the index keeps its size. Each match asks for up to 10 rides fitting a
+ * random passenger or driver. Retirement removes the rides of the first day from a
+ * freshly built index, about 1/90 of them, one at a time as their expiry timers do.
+ */
+@State(Scope.Benchmark)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = "-Xmx2g")
+public class RideMatcherBenchmark {
+    private static final int CITIES = 300;
+    private static final int DAYS = 90;
+    private static final int REQUESTS = 1 << 16;
+
+    @Param({"300000", "600000"})
+    int rides;
+
+    private final long[] out = new long[10];
+    private RideMatcher matcher;
+    private RideDetails[] requests;
+    private long today;
+    private long nextId;
+    private int nextRequest;
+
+    @Setup
+    public void setUp() {
+        today = LocalDate.now().toEpochDay();
+        Random random = new Random(42);
+        matcher = build(rides, today, random);
+        nextId = rides;
+        requests = new RideDetails[REQUESTS];
+        for (int i = 0; i < requests.length; i++) {
+            requests[i] = ride(0, today, random);
+        }
+    }
+
+    @State(Scope.Thread)
+    public static class Retiring {
+        RideMatcher matcher;
+        long[] departed;
+
+        @Setup(Level.Iteration)
+        public void setUp(RideMatcherBenchmark benchmark) {
+            Random random = new Random(7);
+            matcher = new RideMatcher();
+            departed = new long[benchmark.rides];
+            int count = 0;
+            for (int id = 1; id <= benchmark.rides; id++) {
+                RideDetails ride = ride(id, benchmark.today, random);
+                matcher.add(ride);
+                if (ride.getDepartureDay() == benchmark.today) {
+                    departed[count++] = id;
+                }
+            }
+            departed = Arrays.copyOf(departed, count);
+        }
+    }
+
+    // Reuses the generated requests as new rides; the matcher keeps no reference to them.
+    @Benchmark
+    @BenchmarkMode(Mode.AverageTime)
+    @OutputTimeUnit(TimeUnit.NANOSECONDS)
+    public boolean insert() {
+        RideDetails ride = requests[nextRequest++ & (REQUESTS - 1)];
+        ride.setId(++nextId);
+        matcher.remove(nextId - rides);
+        return matcher.add(ride);
+    }
+
+    @Benchmark
+    @BenchmarkMode(Mode.AverageTime)
+    @OutputTimeUnit(TimeUnit.NANOSECONDS)
+    public int match() {
+        return matcher.match(requests[nextRequest++ & (REQUESTS - 1)], out);
+    }
+
+    @Benchmark
+    @BenchmarkMode(Mode.SingleShotTime)
+    @OutputTimeUnit(TimeUnit.MICROSECONDS)
+    @Warmup(iterations = 5)
+    @Measurement(iterations = 10)
+    public int retire(Retiring state) {
+        int removed = 0;
+        for (long id : state.departed) {
+            if (state.matcher.remove(id)) {
+                removed++;
+            }
+        }
+        return removed;
+    }
+
+    private static RideMatcher build(int rides, long today, Random random) {
+        RideMatcher matcher = new RideMatcher();
+        for (int id = 1; id <= rides; id++) {
+            matcher.add(ride(id, today, random));
+        }
+        return matcher;
+    }
+
+    private static RideDetails ride(long id, long today, Random random) {
+        RideDetails ride = new RideDetails();
+        ride.setId(id);
+        ride.setType(random.nextBoolean() ? RideType.DRIVER : RideType.PASSENGER);
+        ride.setCityA(city(random));
+        ride.setCityB(city(random));
+        ride.setDepartureDate(LocalDate.ofEpochDay(today + random.nextInt(DAYS)));
+        ride.setDepartureTime(LocalTime.of(random.nextInt(24), random.nextInt(60)));
+        ride.setNumberOfPersons(1 + random.nextInt(4));
+        return ride;
+    }
+
+    // Skewed towards the first cities, so popular routes hold many rides, as they do.
+    private static int city(Random random) {
+        double draw = random.nextDouble();
+        return CityDictionary.getDefault().idOf("Town " + (int) (CITIES * draw * draw * draw));
+    }
+}
@@ -0,0 +1,123 @@
+package com.example;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.time.LocalDate;
+import java.time.LocalTime;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A page of {@code /search} results from {@link RideSearch} over a million rides spread
+ * over 300 cities and 90 days, against filtering and sorting the published rides map,
+ * which is what answering a search without an index takes. Each invocation asks for the
+ * next of the first 20 pages.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = "-Xmx3g")
+public class RideSearchBenchmark {
+    private static final String[] CITIES = {"Berlin", "Bernau bei Berlin", "Bern", "Hamburg", "Frankfurt am Main",
+            "Frankfurt (Oder)", "Halle (Saale)", "Hannover", "Heidelberg", "K\u00f6ln"};
+    private static final int PAGE_SIZE = 5;
+
+    @Param({"1000000"})
+    int rides;
+
+    // A route, an origin prefix, a destination with a seat filter, and filters only
+    @Param({"ber, ham", "frank", "*, hamburg, 3+", "2+, <10"})
+    String query;
+
+    private final RideSearch search = new RideSearch();
+    private final Map<Long, RideDetails> published = new HashMap<>();
+    private RideSearch.Query parsed;
+    private long today;
+    private int page;
+
+    @Setup
+    public void setUp() {
+        List<Integer> cities = new ArrayList<>();
+        for (String city : CITIES) {
+            cities.add(CityDictionary.getDefault().idOf(city));
+        }
+        while (cities.size() < 300) {
+            cities.add(CityDictionary.getDefault().idOf("Town " + cities.size()));
+        }
+        today = LocalDate.now().toEpochDay();
+        Random random = new Random(42);
+        for (long id = 1; id <= rides; id++) {
+            RideDetails ride = new RideDetails();
+            ride.setId(id);
+            ride.setType(random.nextBoolean() ? RideType.DRIVER : RideType.PASSENGER);
+            ride.setCityA(cities.get(random.nextInt(cities.size())));
+            ride.setCityB(cities.get(random.nextInt(cities.size())));
+            ride.setDepartureDate(LocalDate.ofEpochDay(today + random.nextInt(90)));
+            ride.setDepartureTime(LocalTime.of(random.nextInt(24), random.nextInt(60)));
+            ride.setNumberOfPersons(1 + random.nextInt(6));
+            ride.setPriceCents(random.nextInt(5000));
+            search.add(ride);
+            published.put(id, ride);
+        }
+        parsed = RideSearch.Query.parse(query);
+    }
+
+    @Benchmark
+    public long index() {
+        long[] out = new long[PAGE_SIZE];
+        search.search(parsed, today, PAGE_SIZE * (page++ % 20), out);
+        return out[0];
+    }
+
+    @Benchmark
+    public long mapScan() {
+        String[] fields = query.split(",");
+        String from = null;
+        String to = null;
+        int minSeats = 0;
+        int maxPrice = Integer.MAX_VALUE;
+        for (String field : fields) {
+            String value = field.trim().toLowerCase(Locale.ROOT);
+            if (value.startsWith("<")) {
+                maxPrice = Integer.parseInt(value.substring(1)) * 100;
+            } else if (value.endsWith("+")) {
+                minSeats = Integer.parseInt(value.substring(0, value.length() - 1));
+            } else if (from == null) {
+                from = value;
+            } else {
+                to = value;
+            }
+        }
+        List<RideDetails> matches = new ArrayList<>();
+        for (RideDetails ride : published.values()) {
+            if (ride.getDepartureDay() >= today
+                    && (from == null || from.equals("*") || ride.getCityAName().toLowerCase(Locale.ROOT).startsWith(from))
+                    && (to == null || to.equals("*") || ride.getCityBName().toLowerCase(Locale.ROOT).startsWith(to))
+                    && ride.getNumberOfPersons() >= minSeats
+                    && (ride.getType() != RideType.DRIVER || ride.getPriceCents() <= maxPrice)) {
+                matches.add(ride);
+            }
+        }
+        matches.sort((a, b) -> a.getDeparture() != b.getDeparture()
+                ? Long.compare(a.getDeparture(), b.getDeparture()) : Long.compare(a.getId(), b.getId()));
+        int offset = PAGE_SIZE * (page++ % 20);
+        return offset < matches.size() ? matches.get(offset).getId() : 0;
+    }
+}
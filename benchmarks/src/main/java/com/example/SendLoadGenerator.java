@@ -0,0 +1,189 @@
+package com.example;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import org.telegram.telegrambots.bots.DefaultAbsSender;
+import org.telegram.telegrambots.bots.DefaultBotOptions;
+import org.telegram.telegrambots.meta.api.methods.send.SendMessage;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Measures reply latency through {@link MessageSender} and the real HTTP client against a
+ * local stub of the Bot API, with many chats sending at once.
+ * <p>
+ * Every chat sends its messages a fixed interval apart, as interactive replies. With
+ * {@code followups=1}, the completion callback of each reply queues one more message to
+ * the same chat, the way the bot sends the list of matching rides once a ride is posted,
+ * so sends are also started from the HTTP client's own threads. The stub answers every
+ * call after the given round trip. The report gives the time callers spent inside
+ * {@code send}, which should stay far below the round trip since callers never wait on
+ * network I/O, and the time from queueing a message to its result. Options are
+ * {@code key=value} arguments: {@code chats} (100), {@code messages} per chat (5),
+ * {@code interval} and {@code rtt} in milliseconds (5000 and 50), {@code followups} (1),
+ * {@code threads} for the HTTP client (16), {@code lanes} (32), {@code capacity} (4096),
+ * {@code timeout} in seconds (120) and {@code port} (18095). Telegram's per-chat limit of
+ * one message a second applies; the global limit is raised to 100000 a second.
+ */
+public class SendLoadGenerator {
+    private static final ObjectMapper JSON = new ObjectMapper();
+    private static final String TOKEN = "stub";
+
+    private final LatencyHistogram callerLatency = new LatencyHistogram();
+    private final LatencyHistogram replyLatency = new LatencyHistogram();
+    private final AtomicInteger messageIds = new AtomicInteger();
+    private final AtomicLong failed = new AtomicLong();
+    private final ScheduledExecutorService network = Executors.newScheduledThreadPool(4, runnable -> {
+        Thread thread = new Thread(runnable, "stub-bot-api");
+        thread.setDaemon(true);
+        return thread;
+    });
+    private final long rttMillis;
+    private MessageSender sender;
+    private CountDownLatch finished;
+
+    private SendLoadGenerator(long rttMillis) {
+        this.rttMillis = rttMillis;
+    }
+
+    public static void main(String[] args) throws Exception {
+        Map<String, String> options = new HashMap<>();
+        for (String arg : args) {
+            int eq = arg.indexOf('=');
+            if (eq <= 0) {
+                throw new IllegalArgumentException("Expected key=value, got " + arg);
+            }
+            options.put(arg.substring(0, eq), arg.substring(eq + 1));
+        }
+        int chats = intOption(options, "chats", 100);
+        int messages = intOption(options, "messages", 5);
+        long interval = intOption(options, "interval", 5000);
+        long rtt = intOption(options, "rtt", 50);
+        int followups = intOption(options, "followups", 1);
+        int threads = intOption(options, "threads", 16);
+        int lanes = intOption(options, "lanes", 32);
+        int capacity = intOption(options, "capacity", 4096);
+        long timeout = intOption(options, "timeout", 120);
+        int port = intOption(options, "port", 18095);
+
+        SendLoadGenerator generator = new SendLoadGenerator(rtt);
+        // Without it, the response body waits on the client's delayed ACK for every call
+        System.setProperty("sun.net.httpserver.nodelay", "true");
+        HttpServer server = HttpServer.create(new InetSocketAddress("127.0.0.1", port), 0);
+        server.createContext("/bot" + TOKEN + "/", generator::handle);
+        server.setExecutor(Executors.newFixedThreadPool(4, runnable -> {
+            Thread thread = new Thread(runnable, "stub-http");
+            thread.setDaemon(true);
+            return thread;
+        }));
+        server.start();
+
+        DefaultBotOptions botOptions = new DefaultBotOptions();
+        botOptions.setBaseUrl("http://127.0.0.1:" + port + "/bot");
+        botOptions.setMaxThreads(threads);
+        DefaultAbsSender bot = new DefaultAbsSender(botOptions) {
+            @Override
+            public String getBotToken() {
+                return TOKEN;
+            }
+        };
+        generator.sender = new MessageSender(bot, new SendScheduler(100_000, 1_000), lanes, capacity, 5);
+        generator.finished = new CountDownLatch(chats * messages * (1 + followups));
+
+        System.out.printf("Sending %d messages to each of %d chats every %d ms (%d follow-up(s), rtt %d ms, %d threads)%n",
+                messages, chats, interval, followups, rtt, threads);
+        ScheduledExecutorService clock = Executors.newScheduledThreadPool(2, runnable -> {
+            Thread thread = new Thread(runnable, "send-clock");
+            thread.setDaemon(true);
+            return thread;
+        });
+        long start = System.nanoTime();
+        for (int i = 0; i < chats; i++) {
+            String chatId = Long.toString(100_000_000L + i);
+            long offset = ThreadLocalRandom.current().nextLong(interval);
+            for (int m = 0; m < messages; m++) {
+                clock.schedule(() -> generator.send(chatId, followups), offset + m * interval, TimeUnit.MILLISECONDS);
+            }
+        }
+        boolean complete = generator.finished.await(timeout, TimeUnit.SECONDS);
+        generator.report(System.nanoTime() - start, complete);
+        System.exit(complete ? 0 : 1);
+    }
+
+    private void send(String chatId, int followups) {
+        long queued = System.nanoTime();
+        sender.send(chatId, RideShareBot.createMessage(chatId, "Reply")).whenComplete((message, error) -> {
+            replyLatency.recordSince(queued);
+            if (error != null) {
+                failed.incrementAndGet();
+            }
+            finished.countDown();
+            if (followups > 0) {
+                send(chatId, followups - 1);
+            }
+        });
+        callerLatency.recordSince(queued);
+    }
+
+    private void handle(HttpExchange exchange) throws IOException {
+        String method = exchange.getRequestURI().getPath();
+        method = method.substring(method.lastIndexOf('/') + 1);
+        JsonNode request = JSON.readTree(exchange.getRequestBody());
+        ObjectNode response = JSON.createObjectNode().put("ok", true);
+        if (SendMessage.PATH.equalsIgnoreCase(method)) {
+            ObjectNode message = response.putObject("result");
+            message.put("message_id", messageIds.incrementAndGet());
+            message.put("date", System.currentTimeMillis() / 1000);
+            message.putObject("chat").put("id", request.path("chat_id").asLong()).put("type", "private");
+            message.put("text", request.path("text").asText());
+        } else {
+            response.put("result", true);
+        }
+        byte[] body = JSON.writeValueAsBytes(response);
+        network.schedule(() -> {
+            try (OutputStream out = exchange.getResponseBody()) {
+                exchange.getResponseHeaders().set("Content-Type", "application/json");
+                exchange.sendResponseHeaders(200, body.length);
+                out.write(body);
+            } catch (IOException e) {
+                // the client gave up on the request
+            } finally {
+                exchange.close();
+            }
+        }, rttMillis, TimeUnit.MILLISECONDS);
+    }
+
+    private void report(long elapsedNanos, boolean complete) {
+        double seconds = elapsedNanos / 1e9;
+        long[] caller = callerLatency.percentiles(50, 99, 100);
+        long[] reply = replyLatency.percentiles(50, 90, 99, 99.9, 100);
+        System.out.printf("Completed %d sends in %.1f s (%.0f/s), %d failed%n",
+                replyLatency.count(), seconds, replyLatency.count() / seconds, failed.get());
+        System.out.printf("Time in send() ms: p50 %.3f, p99 %.3f, max %.3f%n",
+                caller[0] / 1e6, caller[1] / 1e6, caller[2] / 1e6);
+        System.out.printf("Reply latency ms: p50 %.2f, p90 %.2f, p99 %.2f, p99.9 %.2f, max %.2f%n",
+                reply[0] / 1e6, reply[1] / 1e6, reply[2] / 1e6, reply[3] / 1e6, reply[4] / 1e6);
+        if (!complete) {
+            System.out.printf("Timed out with %d sends unfinished%n", finished.getCount());
+        }
+    }
+
+    private static int intOption(Map<String, String> options, String name, int defaultValue) {
+        String value = options.get(name);
+        return value == null ? defaultValue : Integer.parseInt(value);
+    }
+}
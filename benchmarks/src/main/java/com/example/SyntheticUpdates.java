@@ -0,0 +1,138 @@
+package com.example;
+
+import org.telegram.telegrambots.meta.api.objects.CallbackQuery;
+import org.telegram.telegrambots.meta.api.objects.Chat;
+import org.telegram.telegrambots.meta.api.objects.Message;
+import org.telegram.telegrambots.meta.api.objects.Update;
+import org.telegram.telegrambots.meta.api.objects.User;
+
+import java.time.LocalDate;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Builds the updates a Telegram user produces when going through the bot's forms, for the
+ * benchmarks and the load generator.
+ */
+final class SyntheticUpdates {
+    static final String[] CITIES = {
+            "Berlin", "Hamburg", "München", "Köln", "Frankfurt am Main", "Stuttgart", "Düsseldorf",
+            "Leipzig", "Dresden", "Hannover", "Nürnberg", "Bremen", "Wien", "Salzburg", "Graz",
+            "Zürich", "Basel", "Prag", "Amsterdam", "Strasbourg"
+    };
+
+    private static final AtomicInteger updateIds = new AtomicInteger();
+    private static final AtomicInteger messageIds = new AtomicInteger();
+
+    private SyntheticUpdates() {
+    }
+
+    static Update text(long chatId, String text) {
+        Message message = message(chatId);
+        message.setFrom(user(chatId));
+        message.setText(text);
+        Update update = new Update();
+        update.setUpdateId(updateIds.incrementAndGet());
+        update.setMessage(message);
+        return update;
+    }
+
+    static Update callback(long chatId, CallbackAction action) {
+        CallbackQuery query = new CallbackQuery();
+        query.setId(Integer.toString(updateIds.get()));
+        query.setFrom(user(chatId));
+        query.setMessage(message(chatId));
+        query.setData(action.data());
+        Update update = new Update();
+        update.setUpdateId(updateIds.incrementAndGet());
+        update.setCallbackQuery(query);
+        return update;
+    }
+
+    /**
+     * Returns the updates of one user publishing a ride: {@code /start}, the publish and
+     * ride type buttons, then one valid answer per form step.
+     */
+    static List<Update> publishRide(long chatId, RideType type, ConversationFlow flow, Random random) {
+        List<Update> updates = new ArrayList<>();
+        updates.add(text(chatId, "/start"));
+        updates.add(callback(chatId, CallbackAction.START_PUBLICATION));
+        updates.add(callback(chatId, type == RideType.DRIVER ? CallbackAction.OFFER_RIDE : CallbackAction.NEED_RIDE));
+        for (ConversationState state = flow.firstState(type); state != null; state = flow.nextState(type, state)) {
+            updates.add(text(chatId, answer(state, chatId, random)));
+        }
+        return updates;
+    }
+
+    /**
+     * Returns input a user might type at the given form step that the bot accepts.
+     */
+    static String answer(ConversationState state, long chatId, Random random) {
+        switch (state) {
+            case FROM_CITY:
+            case TO_CITY:
+                return CITIES[random.nextInt(CITIES.length)];
+            case DEPARTURE_DATE:
+                LocalDate date = LocalDate.now().plusDays(1 + random.nextInt(30));
+                return date.getDayOfMonth() + "." + date.getMonthValue() + "." + date.getYear();
+            case DEPARTURE_TIME:
+                return random.nextInt(24) + ":" + (random.nextBoolean() ? "00" : "30");
+            case PERSONS:
+                return Integer.toString(1 + random.nextInt(4));
+            case PRICE:
+                return (5 + random.nextInt(40)) + ",50";
+            case CAR_MODEL:
+                return "VW Golf";
+            case CONTACT_INFO:
+                return random.nextBoolean() ? "@user" + chatId : "+49151" + (1_000_000 + chatId % 9_000_000);
+            default:
+                throw new IllegalArgumentException("No answer for " + state);
+        }
+    }
+
+    /**
+     * Returns input the bot rejects at the given form step, or {@code null} if it accepts
+     * anything there.
+     */
+    static String invalidAnswer(ConversationState state) {
+        switch (state) {
+            case FROM_CITY:
+            case TO_CITY:
+                return "#";
+            case DEPARTURE_DATE:
+                return "next friday";
+            case DEPARTURE_TIME:
+                return "25:61";
+            case PERSONS:
+                return "two";
+            case PRICE:
+                return "free";
+            case CONTACT_INFO:
+                return "call me";
+            default:
+                return null;
+        }
+    }
+
+    private static Message message(long chatId) {
+        Chat chat = new Chat();
+        chat.setId(chatId);
+        chat.setType("private");
+        Message message = new Message();
+        message.setMessageId(messageIds.incrementAndGet());
+        message.setDate((int) (System.currentTimeMillis() / 1000));
+        message.setChat(chat);
+        return message;
+    }
+
+    private static User user(long chatId) {
+        User user = new User();
+        user.setId(chatId);
+        user.setFirstName("User " + chatId);
+        user.setIsBot(false);
+        user.setLanguageCode("en");
+        return user;
+    }
+}
@@ -0,0 +1,65 @@
+package com.example;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+import org.telegram.telegrambots.meta.api.objects.Update;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Throughput of handing updates from the receiving thread to the dispatch shards, with a
+ * handler that does no work. Once the shard queues fill, this measures the whole
+ * queue-to-shard hand-off, including the backpressure on the caller.
+ * <p>
+ * Updates come from the given number of chats in turn. A chat always goes to the same
+ * shard, so with a single chat one shard does all the work, while with many chats the
+ * updates spread over every shard.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class UpdateDispatchBenchmark {
+    @Param({"4", "16"})
+    int shards;
+
+    @Param({"1", "100", "10000"})
+    int chats;
+
+    private UpdateDispatcher dispatcher;
+    private Update[] updates;
+    private int next;
+
+    @Setup
+    public void setUp() {
+        dispatcher = new UpdateDispatcher(shards, 256, (update, receivedNanos) -> Blackhole.consumeCPU(1));
+        updates = new Update[chats];
+        for (int i = 0; i < chats; i++) {
+            updates[i] = SyntheticUpdates.text(1_000_000 + i, "Berlin");
+        }
+    }
+
+    @TearDown
+    public void tearDown() {
+        dispatcher.shutdown();
+    }
+
+    @Benchmark
+    public void dispatch() {
+        dispatcher.dispatch(updates[next]);
+        next = next + 1 == updates.length ? 0 : next + 1;
+    }
+}
@@ -0,0 +1,60 @@
+package com.example;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * The inline keyboard buttons the bot offers, keyed by their callback data. A button
+ * can carry an argument after a {@code :}, such as the page a search button turns to.
+ */
+public enum CallbackAction {
+    START_PUBLICATION("start_publication"),
+    GO_TO_CHANNEL("go_to_channel"),
+    NEED_RIDE("need_ride"),
+    OFFER_RIDE("offer_ride"),
+    SEARCH_PAGE("search");
+
+    // Telegram rejects buttons with more callback data than this, in UTF-8 bytes
+    public static final int MAX_DATA_BYTES = 64;
+
+    private static final Map<String, CallbackAction> BY_DATA = new HashMap<>();
+
+    static {
+        for (CallbackAction action : values()) {
+            BY_DATA.put(action.data, action);
+        }
+    }
+
+    private final String data;
+
+    CallbackAction(String data) {
+        this.data = data;
+    }
+
+    public String data() {
+        return data;
+    }
+
+    public String data(String argument) {
+        return data + ':' + argument;
+    }
+
+    /**
+     * Returns the action for a button's callback data, or {@code null} if unknown.
+     */
+    public static CallbackAction fromData(String data) {
+        if (data == null) {
+            return null;
+        }
+        int colon = data.indexOf(':');
+        return BY_DATA.get(colon < 0 ? data : data.substring(0, colon));
+    }
+
+    /**
+     * Returns the argument in a button's callback data, or {@code null} if it has none.
+     */
+    public static String argumentOf(String data) {
+        int colon = data == null ? -1 : data.indexOf(':');
+        return colon < 0 ? null : data.substring(colon + 1);
+    }
+}
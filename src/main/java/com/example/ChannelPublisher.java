@@ -0,0 +1,475 @@
+package com.example;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.telegram.telegrambots.meta.api.methods.send.SendMessage;
+import org.telegram.telegrambots.meta.api.methods.updatingmessages.DeleteMessage;
+import org.telegram.telegrambots.meta.api.methods.updatingmessages.EditMessageText;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Posts published rides to their channels in per-route digests.
+ * <p>
+ * Rides on the same route (channel, origin and destination) that arrive within the
+ * batching window are posted as one message. A later batch on a route whose digest is
+ * still recent and has room is added to that message by editing it instead of posting a
+ * new one, so a busy route costs one API call per batch rather than one per ride. Edits
+ * of a digest are chained, so they never overtake each other or the post that created it.
+ * <p>
+ * A ride whose normalized fields match one posted within the dedup window is not posted
+ * again; its future completes with the earlier post. A ride whose post failed is
+ * forgotten, so it can be posted again. The dedup filter and the open
+ * digests are bounded LRU maps, so memory stays flat however many rides go through.
+ * <p>
+ * A {@linkplain #retire retired} ride can be taken out of its post: the post is edited to
+ * show the remaining rides, and once none are left it is deleted or marked as departed,
+ * as the {@link ExpiredPosts} policy says.
+ */
+public class ChannelPublisher {
+    private static final Logger logger = LoggerFactory.getLogger(ChannelPublisher.class);
+
+    /**
+     * What happens to the post of a ride once it is retired.
+     */
+    public enum ExpiredPosts {
+        KEEP,
+        EDIT,
+        DELETE
+    }
+
+    // Telegram rejects message texts longer than this, in UTF-16 code units.
+    static final int MAX_MESSAGE_LENGTH = 4096;
+    static final int MAX_OPEN_DIGESTS = 4096;
+    private static final String SEPARATOR = "\n\n";
+    private static final long FNV_PRIME = 0x100000001B3L;
+
+    private final MessageSender sender;
+    private final ChannelRouter router;
+    private final Messages messages;
+    private final String botUsername;
+    private final long batchMillis;
+    private final long editWindowMillis;
+    private final int maxRidesPerPost;
+    private final long dedupWindowMillis;
+    private final ExpiredPosts expiredPosts;
+    private final Map<Long, Recent> recent;
+    // Only kept when expired posts are changed; holds each ride until it is retired
+    private final Map<Long, Post> postsByRide = new HashMap<>();
+    private final Map<String, Digest> digests = new LinkedHashMap<String, Digest>(256, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, Digest> eldest) {
+            return size() > MAX_OPEN_DIGESTS && eldest.getValue().pending == null;
+        }
+    };
+    private final ScheduledExecutorService batcher = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread thread = new Thread(r, "channel-batcher");
+        thread.setDaemon(true);
+        return thread;
+    });
+    // Batches whose rides are not in their channel yet
+    private final AtomicInteger unposted = new AtomicInteger();
+
+    private final LongAdder rides;
+    private final LongAdder duplicates;
+    private final LongAdder newPosts;
+    private final LongAdder edits;
+    private final LongAdder deletes;
+
+    /**
+     * @param batchMillis       how long the first ride on a route waits for others
+     * @param editWindowMillis  how long after it was posted a digest may still be extended
+     * @param maxRidesPerPost   the most rides one digest holds
+     * @param dedupWindowMillis how long a posted ride suppresses identical ones
+     * @param maxRecentRides    the most posted rides remembered for deduplication
+     * @param expiredPosts      what to do with the post of a retired ride
+     */
+    public ChannelPublisher(MessageSender sender, ChannelRouter router, Messages messages, String botUsername,
+                            long batchMillis, long editWindowMillis, int maxRidesPerPost,
+                            long dedupWindowMillis, int maxRecentRides, ExpiredPosts expiredPosts) {
+        this.sender = sender;
+        this.router = router;
+        this.messages = messages;
+        this.botUsername = botUsername;
+        this.batchMillis = batchMillis;
+        this.editWindowMillis = editWindowMillis;
+        this.maxRidesPerPost = Math.max(1, maxRidesPerPost);
+        this.dedupWindowMillis = dedupWindowMillis;
+        this.expiredPosts = expiredPosts;
+        this.recent = new LinkedHashMap<Long, Recent>(1024, 0.75f, false) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Long, Recent> eldest) {
+                return size() > maxRecentRides;
+            }
+        };
+
+        Metrics metrics = Metrics.getDefault();
+        this.rides = metrics.counter("ridebot_channel_rides_total", "Rides submitted for posting to a channel");
+        this.duplicates = metrics.counter("ridebot_channel_duplicates_total", "Rides not posted because an identical one was");
+        String help = "Channel messages sent or edited to post rides";
+        this.newPosts = metrics.counter("ridebot_channel_posts_total", help, "kind", "new");
+        this.edits = metrics.counter("ridebot_channel_posts_total", help, "kind", "edit");
+        this.deletes = metrics.counter("ridebot_channel_posts_total", help, "kind", "delete");
+    }
+
+    /**
+     * Returns the post of a recently posted ride with the same fields, or {@code null}.
+     * The future completes with the message id once that ride is in its channel.
+     */
+    public CompletableFuture<Integer> findDuplicate(RideDetails ride) {
+        long now = System.currentTimeMillis();
+        synchronized (this) {
+            Recent earlier = recent.get(fingerprint(ride));
+            if (earlier == null || now - earlier.submittedMillis > dedupWindowMillis) {
+                return null;
+            }
+            duplicates.increment();
+            return earlier.posted;
+        }
+    }
+
+    /**
+     * Queues a ride for its channel. The future completes with the id of the message that
+     * shows it, or exceptionally if it could not be posted.
+     */
+    public CompletableFuture<Integer> publish(RideDetails ride) {
+        String channel = router.channelFor(ride);
+        String route = channel + '|' + ride.getCityA() + '|' + ride.getCityB();
+        rides.increment();
+        synchronized (this) {
+            Digest digest = digests.computeIfAbsent(route, key -> new Digest(channel));
+            Batch batch = digest.pending;
+            if (batch == null) {
+                batch = new Batch();
+                unposted.incrementAndGet();
+                batch.posted.whenComplete((messageId, error) -> unposted.decrementAndGet());
+                digest.pending = batch;
+                Batch scheduled = batch;
+                batcher.schedule(() -> flush(digest, scheduled), batchMillis, TimeUnit.MILLISECONDS);
+            }
+            batch.rides.add(ride);
+            if (batch.rides.size() == maxRidesPerPost) {
+                // A full batch goes out now; the next ride starts a new one
+                digest.pending = null;
+                Batch full = batch;
+                batcher.execute(() -> flush(digest, full));
+            }
+            long fingerprint = fingerprint(ride);
+            Recent posted = new Recent(batch.posted, System.currentTimeMillis());
+            recent.put(fingerprint, posted);
+            // A ride that could not be posted may be submitted again
+            batch.posted.whenComplete((messageId, error) -> {
+                if (error != null) {
+                    forget(fingerprint, posted);
+                }
+            });
+            return batch.posted;
+        }
+    }
+
+    private synchronized void forget(long fingerprint, Recent posted) {
+        recent.remove(fingerprint, posted);
+    }
+
+    /**
+     * Takes a ride out of its channel post, if it was posted by this publisher and the
+     * policy is not {@link ExpiredPosts#KEEP}.
+     */
+    public void retire(long rideId) {
+        synchronized (this) {
+            Post post = postsByRide.remove(rideId);
+            if (post == null) {
+                return;
+            }
+            post.rides.removeIf(ride -> ride.getId() == rideId);
+            String text = post.rides.isEmpty() ? null : render(post.rides);
+            post.last = post.last.handle((previous, previousError) -> post.messageId).thenCompose(messageId -> {
+                if (messageId == null) {
+                    return CompletableFuture.completedFuture(null);
+                }
+                if (text != null) {
+                    return editText(post.channel, messageId, text);
+                }
+                if (expiredPosts == ExpiredPosts.EDIT) {
+                    return editText(post.channel, messageId, messages.text(MessageKey.POST_EXPIRED));
+                }
+                deletes.increment();
+                DeleteMessage delete = new DeleteMessage();
+                delete.setChatId(post.channel);
+                delete.setMessageId(messageId);
+                // Telegram may refuse to delete old posts; marking them departed still works
+                return sender.broadcast(post.channel, delete)
+                        .handle((deleted, error) -> error == null
+                                ? CompletableFuture.completedFuture(messageId)
+                                : editText(post.channel, messageId, messages.text(MessageKey.POST_EXPIRED)))
+                        .thenCompose(update -> update);
+            });
+            post.last.whenComplete((messageId, error) -> {
+                if (error != null) {
+                    logger.warn("Could not update the post of retired ride {} in {}: {}", rideId, post.channel, error.getMessage());
+                }
+            });
+        }
+    }
+
+    /**
+     * Posts every batch still waiting out its window right away, as when shutting down.
+     */
+    public void flushPending() {
+        synchronized (this) {
+            for (Digest digest : digests.values()) {
+                Batch batch = digest.pending;
+                if (batch != null) {
+                    batcher.execute(() -> flush(digest, batch));
+                }
+            }
+        }
+    }
+
+    /**
+     * Returns the number of batches not posted yet, successfully or not.
+     */
+    public int pending() {
+        return unposted.get();
+    }
+
+    public void shutdown() {
+        batcher.shutdownNow();
+    }
+
+    private void flush(Digest digest, Batch pending) {
+        List<RideDetails> batch = pending.rides;
+        CompletableFuture<Integer> result = pending.posted;
+        Post post;
+        String text = null;
+        List<Post> posts = new ArrayList<>();
+        synchronized (this) {
+            if (pending.flushed) {
+                return; // went out early because it filled up
+            }
+            pending.flushed = true;
+            if (digest.pending == pending) {
+                digest.pending = null;
+            }
+            post = digest.open;
+            if (post != null && !post.rides.isEmpty() && System.currentTimeMillis() - post.postedMillis < editWindowMillis
+                    && post.rides.size() + batch.size() <= maxRidesPerPost) {
+                List<RideDetails> combined = new ArrayList<>(post.rides);
+                combined.addAll(batch);
+                text = render(combined);
+                if (text.length() <= MAX_MESSAGE_LENGTH) {
+                    post.rides = combined;
+                    track(post, batch);
+                } else {
+                    text = null;
+                }
+            }
+            if (text == null) {
+                // Long free-text fields can overflow a message before the ride limit does
+                int from = 0;
+                for (int to = 1; to <= batch.size(); to++) {
+                    if (to == batch.size() || render(batch.subList(from, to + 1)).length() > MAX_MESSAGE_LENGTH) {
+                        Post created = new Post(digest.channel, batch.subList(from, to));
+                        track(created, created.rides);
+                        posts.add(created);
+                        from = to;
+                    }
+                }
+                digest.open = posts.get(posts.size() - 1);
+            }
+        }
+        if (text != null) {
+            edit(digest, post, batch, text, result);
+            return;
+        }
+        for (int i = 0; i < posts.size(); i++) {
+            Post created = posts.get(i);
+            // Every chunk must make it for the batch to count as posted
+            send(digest.channel, created, render(created.rides), i == posts.size() - 1 ? result : failureOnly(result));
+        }
+    }
+
+    private void send(String channel, Post post, String text, CompletableFuture<Integer> result) {
+        newPosts.increment();
+        SendMessage message = new SendMessage();
+        message.setChatId(channel);
+        message.setText(text);
+        sender.broadcast(channel, message).whenComplete((posted, error) -> {
+            if (error != null) {
+                logger.error("Failed to post ride(s) to {}", channel, error);
+                post.posted.completeExceptionally(error);
+                result.completeExceptionally(error);
+            } else {
+                post.messageId = posted.getMessageId();
+                if (logger.isDebugEnabled()) {
+                    logger.debug("Posted message {} to {}", post.messageId, channel);
+                }
+                post.posted.complete(post.messageId);
+                result.complete(post.messageId);
+            }
+        });
+    }
+
+    // Runs after the digest's previous send or edit, whatever its outcome; if the digest
+    // is gone or cannot be edited, the batch is posted as a new message instead.
+    private void edit(Digest digest, Post post, List<RideDetails> batch, String text, CompletableFuture<Integer> result) {
+        CompletableFuture<Integer> edited;
+        synchronized (this) {
+            edited = post.last.handle((previous, previousError) -> post.messageId).thenCompose(messageId -> {
+                if (messageId == null) {
+                    return failed(new IllegalStateException("Digest was never posted"));
+                }
+                return editText(digest.channel, messageId, text);
+            });
+            post.last = edited;
+        }
+        edited.whenComplete((messageId, error) -> {
+            if (error == null) {
+                result.complete(messageId);
+                return;
+            }
+            logger.warn("Could not extend digest in {}, posting a new one: {}", digest.channel, error.getMessage());
+            Post replacement = new Post(digest.channel, batch);
+            synchronized (this) {
+                post.rides.removeAll(batch);
+                track(replacement, batch);
+                if (digest.open == post) {
+                    digest.open = replacement;
+                }
+            }
+            send(digest.channel, replacement, render(batch), result);
+        });
+    }
+
+    private CompletableFuture<Integer> editText(String channel, int messageId, String text) {
+        edits.increment();
+        EditMessageText edit = new EditMessageText();
+        edit.setChatId(channel);
+        edit.setMessageId(messageId);
+        edit.setText(text);
+        return sender.broadcast(channel, edit).thenApply(done -> messageId);
+    }
+
+    // Remembers which post shows each ride, for retiring it later. Callers hold the lock.
+    private void track(Post post, List<RideDetails> rides) {
+        if (expiredPosts != ExpiredPosts.KEEP) {
+            for (RideDetails ride : rides) {
+                postsByRide.put(ride.getId(), post);
+            }
+        }
+    }
+
+    private String render(List<RideDetails> rides) {
+        StringBuilder text = new StringBuilder(512 * rides.size());
+        for (RideDetails ride : rides) {
+            if (text.length() > 0) {
+                text.append(SEPARATOR);
+            }
+            MessageKey post = ride.getType() == RideType.DRIVER ? MessageKey.POST_DRIVER : MessageKey.POST_PASSENGER;
+            messages.get(post).renderTo(text, new RideFields(ride, botUsername));
+        }
+        return text.toString();
+    }
+
+    private static CompletableFuture<Integer> failureOnly(CompletableFuture<Integer> result) {
+        CompletableFuture<Integer> chunk = new CompletableFuture<>();
+        chunk.whenComplete((messageId, error) -> {
+            if (error != null) {
+                result.completeExceptionally(error);
+            }
+        });
+        return chunk;
+    }
+
+    private static <T> CompletableFuture<T> failed(Throwable error) {
+        CompletableFuture<T> future = new CompletableFuture<>();
+        future.completeExceptionally(error);
+        return future;
+    }
+
+    /**
+     * Hashes the fields a reader sees in a post. Free text is compared ignoring case,
+     * spaces and punctuation, so {@code +49 151 234} and {@code +49151234} are the same
+     * contact.
+     */
+    static long fingerprint(RideDetails ride) {
+        long hash = ride.getType() == null ? -1 : ride.getType().ordinal();
+        hash = hash * 31 + ride.getCityA();
+        hash = hash * 31 + ride.getCityB();
+        hash = hash * 31 + ride.getDeparture();
+        hash = hash * 31 + ride.getNumberOfPersons();
+        hash = hash * 31 + ride.getPriceCents();
+        hash = hashText(hash, ride.getCarModel());
+        hash = hashText(hash, ride.getContactInfo());
+        return ConversationStore.mix(hash);
+    }
+
+    private static long hashText(long hash, String text) {
+        hash = (hash ^ 0xFF) * FNV_PRIME;
+        if (text == null) {
+            return hash;
+        }
+        for (int i = 0; i < text.length(); i++) {
+            char c = text.charAt(i);
+            if (Character.isLetterOrDigit(c) || c == '@' || c == '+') {
+                hash = (hash ^ Character.toLowerCase(c)) * FNV_PRIME;
+            }
+        }
+        return hash;
+    }
+
+    // A ride posted recently, by fingerprint.
+    private static final class Recent {
+        final CompletableFuture<Integer> posted;
+        final long submittedMillis;
+
+        Recent(CompletableFuture<Integer> posted, long submittedMillis) {
+            this.posted = posted;
+            this.submittedMillis = submittedMillis;
+        }
+    }
+
+    // Rides waiting out the batching window together.
+    private static final class Batch {
+        final List<RideDetails> rides = new ArrayList<>();
+        final CompletableFuture<Integer> posted = new CompletableFuture<>();
+        boolean flushed;
+    }
+
+    // The rides waiting on one route and the digest they may be added to.
+    private static final class Digest {
+        final String channel;
+        Batch pending;
+        Post open;
+
+        Digest(String channel) {
+            this.channel = channel;
+        }
+    }
+
+    // A channel message and the rides it shows. Edits chain on the last operation, which
+    // starts out as the send that creates the message.
+    private static final class Post {
+        final String channel;
+        final long postedMillis = System.currentTimeMillis();
+        final CompletableFuture<Integer> posted = new CompletableFuture<>();
+        List<RideDetails> rides;
+        CompletableFuture<Integer> last = posted;
+        volatile Integer messageId;
+
+        Post(String channel, List<RideDetails> rides) {
+            this.channel = channel;
+            this.rides = new ArrayList<>(rides);
+        }
+    }
+}
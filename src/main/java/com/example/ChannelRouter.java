@@ -0,0 +1,119 @@
+package com.example;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * Picks the channel a ride is posted to from the countries of its cities.
+ * <p>
+ * A ride goes to the channel of its origin's country, else to that of its destination's,
+ * else to the default channel. Countries come from the {@link Gazetteer}, which loads in
+ * the background; the first post waits for it if it is not ready yet. Results are cached
+ * per city id in a bounded LRU map, so a hot city costs one map lookup.
+ */
+public class ChannelRouter {
+    private static final Logger logger = LoggerFactory.getLogger(ChannelRouter.class);
+
+    static final int MAX_CACHED_CITIES = 4096;
+    private static final String UNKNOWN = "";
+
+    private final String defaultChannel;
+    private final Map<String, String> channels;
+    private final CompletableFuture<Gazetteer> gazetteer;
+    private final Map<Integer, String> countries = new LinkedHashMap<Integer, String>(256, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<Integer, String> eldest) {
+            return size() > MAX_CACHED_CITIES;
+        }
+    };
+
+    /**
+     * @param channels channel usernames by ISO country code
+     */
+    public ChannelRouter(String defaultChannel, Map<String, String> channels, CompletableFuture<Gazetteer> gazetteer) {
+        this.defaultChannel = defaultChannel;
+        this.channels = Collections.unmodifiableMap(new HashMap<>(channels));
+        this.gazetteer = gazetteer;
+    }
+
+    /**
+     * Parses routes of the form {@code DE=@ride_share_de,AT=@ride_share_at}.
+     */
+    public static Map<String, String> parseRoutes(String routes) {
+        Map<String, String> channels = new HashMap<>();
+        if (routes == null) {
+            return channels;
+        }
+        for (String route : routes.split(",")) {
+            if (route.trim().isEmpty()) {
+                continue;
+            }
+            int eq = route.indexOf('=');
+            if (eq <= 0 || eq == route.length() - 1) {
+                throw new IllegalArgumentException("Invalid channel route '" + route.trim() + "', expected COUNTRY=@channel");
+            }
+            channels.put(route.substring(0, eq).trim().toUpperCase(Locale.ROOT), route.substring(eq + 1).trim());
+        }
+        return channels;
+    }
+
+    public String getDefaultChannel() {
+        return defaultChannel;
+    }
+
+    public String channelFor(RideDetails ride) {
+        if (channels.isEmpty()) {
+            return defaultChannel;
+        }
+        String channel = channelOf(ride.getCityA());
+        if (channel == null) {
+            channel = channelOf(ride.getCityB());
+        }
+        return channel == null ? defaultChannel : channel;
+    }
+
+    /**
+     * Returns the country code of an interned city, or {@code null} if it is unknown or
+     * the gazetteer failed to load.
+     */
+    public String countryOf(int cityId) {
+        if (cityId == CityDictionary.NONE) {
+            return null;
+        }
+        String country;
+        synchronized (countries) {
+            country = countries.get(cityId);
+        }
+        if (country == null) {
+            country = resolve(cityId);
+            synchronized (countries) {
+                countries.put(cityId, country);
+            }
+        }
+        return country == UNKNOWN ? null : country;
+    }
+
+    private String channelOf(int cityId) {
+        String country = countryOf(cityId);
+        return country == null ? null : channels.get(country);
+    }
+
+    private String resolve(int cityId) {
+        Gazetteer index;
+        try {
+            index = gazetteer.join();
+        } catch (RuntimeException e) {
+            logger.warn("Gazetteer unavailable, posting to {}: {}", defaultChannel, e.getMessage());
+            return UNKNOWN;
+        }
+        String country = index.countryOf(CityDictionary.getDefault().nameOf(cityId));
+        return country == null ? UNKNOWN : country;
+    }
+}
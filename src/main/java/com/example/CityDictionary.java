@@ -0,0 +1,193 @@
+package com.example;
+
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Interns city names into dense integer ids so rides store two ints instead of two
+ * Strings. Lookups are case-insensitive and ignore surrounding blanks and a leading
+ * {@code #}; the first spelling seen is kept for display.
+ * <p>
+ * Names typed into a form are not interned for good until the ride is published. Until
+ * then an unknown name gets a draft id from a fixed pool, and a draft id no draft has
+ * used for longer than the draft retention is recycled, so input that never becomes a
+ * ride cannot fill the dictionary.
+ */
+public class CityDictionary {
+    public static final int NONE = -1;
+    public static final int MAX_CITIES = 1 << 21;
+    public static final int MAX_DRAFT_CITIES = 1 << 16;
+    public static final int MAX_NAME_LENGTH = 64;
+
+    private static final CityDictionary DEFAULT = new CityDictionary();
+
+    private final ConcurrentHashMap<String, Integer> ids = new ConcurrentHashMap<>();
+    private volatile String[] names = new String[256];
+    private int size;
+
+    // Draft slots by lookup key, least recently used first; guarded by this
+    private final LinkedHashMap<String, Integer> drafts = new LinkedHashMap<>(256, 0.75f, true);
+    private final String[] draftNames = new String[MAX_DRAFT_CITIES];
+    private final String[] draftKeys = new String[MAX_DRAFT_CITIES];
+    private final long[] draftUsed = new long[MAX_DRAFT_CITIES];
+    private int draftSlots;
+    private volatile long draftRetentionMillis = TimeUnit.HOURS.toMillis(4);
+
+    public static CityDictionary getDefault() {
+        return DEFAULT;
+    }
+
+    /**
+     * Returns true for ids handed out by {@link #draftIdOf}, which are only valid while
+     * a draft uses them.
+     */
+    public static boolean isDraft(int id) {
+        return id >= MAX_CITIES;
+    }
+
+    /**
+     * Returns the id of the city, assigning a new one on first sight. Returns
+     * {@link #NONE} for blank or over-long input or once the dictionary is full.
+     */
+    public int idOf(String city) {
+        int id = find(city);
+        if (id != NONE || city == null) {
+            return id;
+        }
+        String display = strip(city);
+        if (display.isEmpty() || display.length() > MAX_NAME_LENGTH) {
+            return NONE;
+        }
+        synchronized (this) {
+            String key = display.toLowerCase(Locale.ROOT);
+            Integer existing = ids.get(key);
+            if (existing != null) {
+                return existing;
+            }
+            if (size == MAX_CITIES) {
+                return NONE;
+            }
+            String[] current = names;
+            if (size == current.length) {
+                current = Arrays.copyOf(current, size * 2);
+            }
+            current[size] = display;
+            names = current;
+            ids.put(key, size);
+            return size++;
+        }
+    }
+
+    /**
+     * Returns the id of a city typed into a form: the id of a known city, or else a draft
+     * id for the name. Returns {@link #NONE} for blank or over-long input, or if every
+     * draft id is still in use.
+     */
+    public int draftIdOf(String city) {
+        int id = find(city);
+        if (id != NONE || city == null) {
+            return id;
+        }
+        String display = strip(city);
+        if (display.isEmpty() || display.length() > MAX_NAME_LENGTH) {
+            return NONE;
+        }
+        String key = display.toLowerCase(Locale.ROOT);
+        long now = System.currentTimeMillis();
+        synchronized (this) {
+            Integer existing = ids.get(key);
+            if (existing != null) {
+                return existing;
+            }
+            Integer slot = drafts.get(key);
+            if (slot == null) {
+                slot = freeDraftSlot(now);
+                if (slot == NONE) {
+                    return NONE;
+                }
+                draftNames[slot] = display;
+                draftKeys[slot] = key;
+                drafts.put(key, slot);
+            }
+            draftUsed[slot] = now;
+            return MAX_CITIES + slot;
+        }
+    }
+
+    /**
+     * Returns the permanent id of the city, interning the name of a draft id. Returns
+     * {@link #NONE} if the draft id is no longer valid.
+     */
+    public int keep(int id) {
+        return isDraft(id) ? idOf(nameOf(id)) : id;
+    }
+
+    /**
+     * Sets how long a draft id stays valid after its last use. It must be longer than a
+     * draft can stay idle, since drafts refresh their cities' ids only when they are used.
+     */
+    public void setDraftRetention(long millis) {
+        draftRetentionMillis = millis;
+    }
+
+    /**
+     * Returns the id of an already known city, or {@link #NONE}.
+     */
+    public int find(String city) {
+        if (city == null) {
+            return NONE;
+        }
+        Integer id = ids.get(strip(city).toLowerCase(Locale.ROOT));
+        return id == null ? NONE : id;
+    }
+
+    /**
+     * Returns the name of the city, or {@code null}. Looking up a draft id counts as using
+     * it.
+     */
+    public String nameOf(int id) {
+        if (isDraft(id)) {
+            return draftNameOf(id - MAX_CITIES);
+        }
+        String[] current = names;
+        return id >= 0 && id < current.length ? current[id] : null;
+    }
+
+    public int size() {
+        return ids.size();
+    }
+
+    private synchronized String draftNameOf(int slot) {
+        if (slot >= draftSlots) {
+            return null;
+        }
+        draftUsed[slot] = System.currentTimeMillis();
+        drafts.get(draftKeys[slot]);
+        return draftNames[slot];
+    }
+
+    // Takes an unused slot, or recycles the least recently used one if it has been idle
+    // past the retention.
+    private int freeDraftSlot(long now) {
+        if (draftSlots < MAX_DRAFT_CITIES) {
+            return draftSlots++;
+        }
+        Iterator<Map.Entry<String, Integer>> eldest = drafts.entrySet().iterator();
+        int slot = eldest.next().getValue();
+        if (now - draftUsed[slot] <= draftRetentionMillis) {
+            return NONE;
+        }
+        eldest.remove();
+        return slot;
+    }
+
+    private static String strip(String city) {
+        String name = city.trim();
+        return name.startsWith("#") ? name.substring(1).trim() : name;
+    }
+}
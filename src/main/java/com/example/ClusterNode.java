@@ -0,0 +1,331 @@
+package com.example;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.telegram.telegrambots.meta.api.objects.Update;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+import java.util.function.IntConsumer;
+import java.util.function.LongConsumer;
+
+/**
+ * One bot process in a cluster that splits chats by consistent hashing on chat id.
+ * <p>
+ * Every node can receive any update from Telegram. {@link #route} hands updates of chats
+ * this node owns to the local dispatch path and forwards the rest to the owner's webhook
+ * endpoint, marked so the owner handles them whatever its view of the ring. A node's id is
+ * the {@code host:port} its webhook server is reachable at from the other nodes.
+ * <p>
+ * When the member set changes, conversations of chats that now belong to another node are
+ * parked in the {@link StateBackend} and dropped locally; the new owner claims a parked
+ * conversation the first time it sees the chat. Conversations are released and claimed on
+ * their chat's dispatch shard, so never while an update of the chat is handled. A node
+ * that {@linkplain #stop stops} parks its conversations before it leaves, and meanwhile
+ * passes every update on to the chat's next owner once the chat's conversation is parked.
+ * Published rides go through the backend so every node can match against all of them.
+ */
+public class ClusterNode implements StateBackend.Listener {
+    private static final Logger logger = LoggerFactory.getLogger(ClusterNode.class);
+
+    public static final String FORWARDED_HEADER = "X-RideShare-Forwarded-By";
+    private static final ObjectMapper JSON = new ObjectMapper();
+    private static final int FORWARD_TIMEOUT_MILLIS = 5_000;
+    private static final int STOP_WAIT_SECONDS = 10;
+
+    private final String nodeId;
+    private final StateBackend backend;
+    private final ConversationStore conversations;
+    private final UpdateDispatcher dispatcher;
+    private final Consumer<Update> local;
+    private final LongConsumer persist;
+    private final Consumer<RideDetails> ridePublished;
+    private final IntConsumer membersCounted;
+    private final String webhookPath;
+    private final String secret;
+    private volatile HashRing ring;
+    private volatile boolean leaving;
+
+    /**
+     * @param dispatcher     the dispatcher whose shards conversations are released on
+     * @param local          the local dispatch path for updates of owned chats
+     * @param persist        called with a chat id after its conversation was claimed or released
+     * @param ridePublished  called for every ride published anywhere in the cluster
+     * @param membersCounted called with the number of members whenever it changes
+     */
+    public ClusterNode(String nodeId, StateBackend backend, ConversationStore conversations,
+                       UpdateDispatcher dispatcher, Consumer<Update> local, LongConsumer persist, Consumer<RideDetails> ridePublished,
+                       IntConsumer membersCounted, String webhookPath, String secret) {
+        this.nodeId = nodeId;
+        this.backend = backend;
+        this.conversations = conversations;
+        this.dispatcher = dispatcher;
+        this.local = local;
+        this.persist = persist;
+        this.ridePublished = ridePublished;
+        this.membersCounted = membersCounted;
+        this.webhookPath = webhookPath;
+        this.secret = secret;
+        this.ring = new HashRing(Collections.singleton(nodeId), HashRing.DEFAULT_VIRTUAL_NODES);
+    }
+
+    public String getNodeId() {
+        return nodeId;
+    }
+
+    /**
+     * Joins the cluster. The node's webhook server should already be accepting forwarded
+     * updates, since other nodes start routing chats here right away.
+     */
+    public void start() throws IOException {
+        backend.join(nodeId, this);
+        logger.info("Node {} joined cluster of {}", nodeId, ring.nodes());
+    }
+
+    /**
+     * Hands every conversation to the remaining nodes, waiting until they are parked, and
+     * then leaves the cluster. Updates arriving here meanwhile, from Telegram or from nodes
+     * that still route the chat here, are forwarded to the chat's next owner. The webhook
+     * server must keep accepting forwarded updates until this returns. Only the first call
+     * does anything.
+     */
+    public void stop() throws IOException {
+        synchronized (this) {
+            if (leaving) {
+                return;
+            }
+            leaving = true;
+        }
+        List<String> remaining = new ArrayList<>(backend.members());
+        remaining.remove(nodeId);
+        if (!remaining.isEmpty()) {
+            HashRing next = new HashRing(remaining, HashRing.DEFAULT_VIRTUAL_NODES);
+            ring = next;
+            CountDownLatch released = releaseForeignConversations(next);
+            if (!await(released)) {
+                logger.warn("{} conversations were not handed off in time", released.getCount());
+            }
+        }
+        backend.leave(nodeId);
+    }
+
+    public boolean owns(long chatId) {
+        return nodeId.equals(ring.ownerOf(chatId));
+    }
+
+    /**
+     * Handles an update received from Telegram: locally if this node owns the chat,
+     * otherwise by forwarding it to the owner. Falls back to handling it locally if the
+     * owner cannot be reached.
+     */
+    public void route(Update update) {
+        long chatId = UpdateDispatcher.chatIdOf(update);
+        String owner = ring.ownerOf(chatId);
+        if (owner == null || owner.equals(nodeId) || chatId == 0) {
+            handleLocally(chatId, update);
+            return;
+        }
+        if (leaving) {
+            // The release of the chat's conversation may still be queued on its shard; the
+            // next owner must find it parked before it sees the update
+            CountDownLatch queued = new CountDownLatch(1);
+            dispatcher.execute(chatId, queued::countDown);
+            if (!await(queued)) {
+                logger.warn("Forwarding update of chat {} before its conversation was handed off", chatId);
+            }
+        }
+        try {
+            forward(owner, update);
+        } catch (IOException e) {
+            logger.warn("Failed to forward update of chat {} to {}, handling it here: {}", chatId, owner, e.getMessage());
+            handleLocally(chatId, update);
+        }
+    }
+
+    /**
+     * Handles an update another node forwarded to us as the chat's owner, or passes it on
+     * to the chat's next owner while this node is leaving.
+     */
+    public void acceptForwarded(Update update) {
+        if (leaving) {
+            route(update);
+        } else {
+            handleLocally(UpdateDispatcher.chatIdOf(update), update);
+        }
+    }
+
+    /**
+     * Returns a cluster-wide unique ride id.
+     */
+    public long nextRideId() {
+        try {
+            return backend.nextRideId();
+        } catch (IOException e) {
+            throw new UncheckedIOException("Failed to allocate ride id", e);
+        }
+    }
+
+    /**
+     * Makes a ride published on this node visible to every node.
+     */
+    public void publishRide(RideDetails ride) {
+        try {
+            backend.publishRide(ride.getId(), StateCodec.encode(ride));
+        } catch (IOException e) {
+            logger.error("Failed to share ride {} with the cluster", ride.getId(), e);
+        }
+    }
+
+    /**
+     * Tells the cluster a ride has expired here, so nodes joining later skip it.
+     */
+    public void retireRide(long rideId) {
+        try {
+            backend.retireRide(rideId);
+        } catch (IOException e) {
+            logger.error("Failed to retire ride {} in the cluster", rideId, e);
+        }
+    }
+
+    @Override
+    public void membersChanged(List<String> members) {
+        List<String> nodes = new ArrayList<>(members);
+        // A leaving node keeps routing as if it were gone already
+        if (leaving) {
+            nodes.remove(nodeId);
+            if (nodes.isEmpty()) {
+                return;
+            }
+        } else if (!nodes.contains(nodeId)) {
+            nodes.add(nodeId);
+        }
+        HashRing next = new HashRing(nodes, HashRing.DEFAULT_VIRTUAL_NODES);
+        ring = next;
+        logger.info("Cluster members changed to {}", next.nodes());
+        membersCounted.accept(next.nodes().size());
+        releaseForeignConversations(next);
+    }
+
+    @Override
+    public void ridePublished(byte[] ride) {
+        try {
+            ridePublished.accept(StateCodec.decodeRide(ride));
+        } catch (IOException e) {
+            logger.error("Skipping undecodable ride from the cluster", e);
+        }
+    }
+
+    // A parked conversation is claimed on the chat's shard ahead of the update, so no
+    // update of the chat runs between finding no conversation and installing the claimed
+    // one. The check here only saves queueing a claim for chats with a conversation.
+    private void handleLocally(long chatId, Update update) {
+        if (chatId != 0 && !conversations.contains(chatId)) {
+            dispatcher.execute(chatId, () -> {
+                if (!conversations.contains(chatId)) {
+                    claim(chatId);
+                }
+            });
+        }
+        local.accept(update);
+    }
+
+    private static boolean await(CountDownLatch latch) {
+        try {
+            return latch.await(STOP_WAIT_SECONDS, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        }
+    }
+
+    private void claim(long chatId) {
+        try {
+            byte[] parked = backend.claim(chatId);
+            if (parked != null) {
+                StateCodec.decodeInto(parked, conversations);
+                persist.accept(chatId);
+                logger.debug("Claimed conversation of chat {}", chatId);
+            }
+        } catch (IOException e) {
+            logger.error("Failed to claim conversation of chat {}", chatId, e);
+        }
+    }
+
+    // Queues the release of every conversation the ring gives to another node on the
+    // chat's shard; the latch counts the releases still to run.
+    private CountDownLatch releaseForeignConversations(HashRing next) {
+        List<Long> foreign = new ArrayList<>();
+        conversations.forEach(conversation -> {
+            if (!nodeId.equals(next.ownerOf(conversation.getChatId()))) {
+                foreign.add(conversation.getChatId());
+            }
+        });
+        CountDownLatch released = new CountDownLatch(foreign.size());
+        for (long chatId : foreign) {
+            dispatcher.execute(chatId, () -> {
+                try {
+                    release(chatId);
+                } finally {
+                    released.countDown();
+                }
+            });
+        }
+        if (!foreign.isEmpty()) {
+            logger.info("Handing off {} conversations", foreign.size());
+        }
+        return released;
+    }
+
+    // The ring may have changed back since the release was queued, and the form may
+    // have ended meanwhile.
+    private void release(long chatId) {
+        if (owns(chatId)) {
+            return;
+        }
+        Conversation conversation = conversations.peek(chatId);
+        if (conversation == null) {
+            return;
+        }
+        try {
+            backend.handOff(chatId, StateCodec.encode(conversation));
+            conversations.remove(chatId);
+            persist.accept(chatId);
+        } catch (IOException e) {
+            logger.error("Failed to hand off conversation of chat {}", chatId, e);
+        }
+    }
+
+    private void forward(String owner, Update update) throws IOException {
+        HttpURLConnection connection = (HttpURLConnection) new URL("http://" + owner + webhookPath).openConnection();
+        connection.setRequestMethod("POST");
+        connection.setDoOutput(true);
+        connection.setConnectTimeout(FORWARD_TIMEOUT_MILLIS);
+        connection.setReadTimeout(FORWARD_TIMEOUT_MILLIS);
+        connection.setRequestProperty("Content-Type", "application/json");
+        connection.setRequestProperty(WebhookServer.SECRET_HEADER, secret);
+        connection.setRequestProperty(FORWARDED_HEADER, nodeId);
+        try (OutputStream out = connection.getOutputStream()) {
+            JSON.writeValue(out, update);
+        }
+        int status = connection.getResponseCode();
+        // Closing the body lets the connection be reused
+        InputStream body = status < 400 ? connection.getInputStream() : connection.getErrorStream();
+        if (body != null) {
+            body.close();
+        }
+        if (status != 200) {
+            throw new IOException("Owner answered " + status);
+        }
+    }
+}
@@ -0,0 +1,40 @@
+package com.example;
+
+/**
+ * Per-chat form state: the step the user is on and the ride being filled in.
+ * Instances are only mutated by the thread currently handling that chat.
+ */
+public class Conversation {
+    private final long chatId;
+    private volatile ConversationState state;
+    private volatile RideDetails details;
+    volatile long lastAccess;
+
+    public Conversation(long chatId) {
+        this.chatId = chatId;
+    }
+
+    public long getChatId() {
+        return chatId;
+    }
+
+    public ConversationState getState() {
+        return state;
+    }
+
+    public void setState(ConversationState state) {
+        this.state = state;
+    }
+
+    public RideDetails getDetails() {
+        return details;
+    }
+
+    public void setDetails(RideDetails details) {
+        this.details = details;
+    }
+
+    public long getLastAccess() {
+        return lastAccess;
+    }
+}
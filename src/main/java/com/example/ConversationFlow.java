@@ -0,0 +1,295 @@
+package com.example;
+
+import java.time.LocalDate;
+import java.time.LocalTime;
+import java.time.ZoneId;
+import java.util.EnumSet;
+
+/**
+ * Transition table for the ride forms.
+ * <p>
+ * Each {@link ConversationState} has one {@link Step} that validates and stores the
+ * answer, shared by every ride type. A flow lists the steps a ride type goes through;
+ * from it the table derives, per type and state, the next state and the prompt to send
+ * on entering it. Handling a message is an array lookup by state ordinal, whatever the
+ * number of steps, so adding a step means adding a state, its step and its place in the
+ * flows.
+ */
+public class ConversationFlow {
+    /**
+     * Validates an answer and stores it in the ride.
+     */
+    public interface Step {
+        /**
+         * Returns {@code null} if the answer was accepted, otherwise the message telling
+         * the user what is expected. A rejected answer must leave the ride unchanged.
+         */
+        MessageKey accept(RideDetails details, String input, Messages messages);
+    }
+
+    // Rides are taken for the coming year at most; the matcher's day field would run out
+    // long before the last day a four-digit year can name
+    static final int MAX_DAYS_AHEAD = 366;
+
+    private static final int TYPES = RideType.values().length;
+    private static final int STATES = ConversationState.values().length;
+
+    private final Step[] steps = new Step[STATES];
+    private final MessageKey[][] prompts = new MessageKey[TYPES][STATES];
+    private final ConversationState[][] next = new ConversationState[TYPES][STATES];
+    private final ConversationState[] first = new ConversationState[TYPES];
+    private final ConversationState[] last = new ConversationState[TYPES];
+    private final MessageKey[] completed = new MessageKey[TYPES];
+
+    /**
+     * The passenger and driver forms of the bot, with dates checked against the current
+     * day in the system's time zone.
+     */
+    public static ConversationFlow standard() {
+        return standard(ZoneId.systemDefault());
+    }
+
+    /**
+     * The passenger and driver forms of the bot, with dates checked against the current
+     * day in {@code zone}.
+     */
+    public static ConversationFlow standard(ZoneId zone) {
+        return new ConversationFlow()
+                .step(ConversationState.RIDE_OPTION, ConversationFlow::acceptRideOption,
+                        MessageKey.ASK_RIDE_OPTION, MessageKey.ASK_RIDE_OPTION)
+                .step(ConversationState.FROM_CITY, ConversationFlow::acceptFromCity,
+                        MessageKey.ASK_FROM_CITY, MessageKey.ASK_FROM_CITY)
+                .step(ConversationState.TO_CITY, ConversationFlow::acceptToCity,
+                        MessageKey.ASK_TO_CITY, MessageKey.ASK_TO_CITY)
+                .step(ConversationState.DEPARTURE_DATE,
+                        (details, input, messages) -> acceptDate(details, input, LocalDate.now(zone).toEpochDay()),
+                        MessageKey.ASK_PASSENGER_DATE, MessageKey.ASK_DRIVER_DATE)
+                .step(ConversationState.DEPARTURE_TIME, ConversationFlow::acceptTime,
+                        MessageKey.ASK_PASSENGER_TIME, MessageKey.ASK_DRIVER_TIME)
+                .step(ConversationState.PERSONS, ConversationFlow::acceptPersons,
+                        MessageKey.ASK_PASSENGER_PERSONS, MessageKey.ASK_DRIVER_PERSONS)
+                .step(ConversationState.PRICE, ConversationFlow::acceptPrice,
+                        null, MessageKey.ASK_PRICE)
+                .step(ConversationState.CAR_MODEL, ConversationFlow::acceptCarModel,
+                        null, MessageKey.ASK_CAR_MODEL)
+                .step(ConversationState.CONTACT_INFO, ConversationFlow::acceptContactInfo,
+                        MessageKey.ASK_PASSENGER_CONTACT, MessageKey.ASK_DRIVER_CONTACT)
+                .flow(RideType.PASSENGER, MessageKey.PASSENGER_POSTED,
+                        ConversationState.FROM_CITY,
+                        ConversationState.TO_CITY,
+                        ConversationState.DEPARTURE_DATE,
+                        ConversationState.DEPARTURE_TIME,
+                        ConversationState.PERSONS,
+                        ConversationState.CONTACT_INFO)
+                .flow(RideType.DRIVER, MessageKey.DRIVER_POSTED,
+                        ConversationState.FROM_CITY,
+                        ConversationState.TO_CITY,
+                        ConversationState.DEPARTURE_DATE,
+                        ConversationState.DEPARTURE_TIME,
+                        ConversationState.PERSONS,
+                        ConversationState.PRICE,
+                        ConversationState.CAR_MODEL,
+                        ConversationState.CONTACT_INFO);
+    }
+
+    /**
+     * Registers the step for a state and the prompt each ride type is sent on entering it.
+     */
+    public ConversationFlow step(ConversationState state, Step step, MessageKey passengerPrompt, MessageKey driverPrompt) {
+        if (steps[state.ordinal()] != null) {
+            throw new IllegalStateException("Step " + state + " is already defined");
+        }
+        steps[state.ordinal()] = step;
+        prompts[RideType.PASSENGER.ordinal()][state.ordinal()] = passengerPrompt;
+        prompts[RideType.DRIVER.ordinal()][state.ordinal()] = driverPrompt;
+        return this;
+    }
+
+    /**
+     * Defines the states a ride type goes through after {@link ConversationState#RIDE_OPTION}
+     * and the message sent once the last one is answered. Every state must already have a
+     * step and a prompt for the type, and may appear only once.
+     */
+    public ConversationFlow flow(RideType type, MessageKey completedMessage, ConversationState... states) {
+        int t = type.ordinal();
+        if (first[t] != null) {
+            throw new IllegalStateException("Flow for " + type + " is already defined");
+        }
+        if (states.length == 0) {
+            throw new IllegalArgumentException("Flow for " + type + " has no steps");
+        }
+        EnumSet<ConversationState> seen = EnumSet.of(ConversationState.RIDE_OPTION);
+        ConversationState previous = ConversationState.RIDE_OPTION;
+        for (ConversationState state : states) {
+            if (!seen.add(state)) {
+                throw new IllegalArgumentException("Flow for " + type + " visits " + state + " twice");
+            }
+            if (steps[state.ordinal()] == null || prompts[t][state.ordinal()] == null) {
+                throw new IllegalArgumentException("Flow for " + type + " uses " + state + " without a step and prompt");
+            }
+            next[t][previous.ordinal()] = state;
+            previous = state;
+        }
+        first[t] = states[0];
+        last[t] = previous;
+        completed[t] = completedMessage;
+        return this;
+    }
+
+    /**
+     * Puts the conversation on the ride type question with an empty ride.
+     */
+    public void begin(Conversation conversation) {
+        conversation.setDetails(new RideDetails());
+        conversation.setState(ConversationState.RIDE_OPTION);
+    }
+
+    /**
+     * Starts the form for a ride type and returns the first prompt.
+     */
+    public MessageKey start(Conversation conversation, RideType type) {
+        RideDetails details = new RideDetails();
+        details.setType(type);
+        conversation.setDetails(details);
+        ConversationState state = first[type.ordinal()];
+        conversation.setState(state);
+        return prompts[type.ordinal()][state.ordinal()];
+    }
+
+    /**
+     * Feeds an answer to the conversation's current step. Returns the message to reply
+     * with: the next prompt, or the step's explanation if the answer was rejected.
+     * Returns {@code null} once the last step of the flow accepted its answer; the ride
+     * is then complete and the conversation is left on that step.
+     */
+    public MessageKey advance(Conversation conversation, String input, Messages messages) {
+        ConversationState state = conversation.getState();
+        if (conversation.getDetails() == null) {
+            conversation.setDetails(new RideDetails());
+        }
+        RideDetails details = conversation.getDetails();
+        if (details.getType() == null && state != ConversationState.RIDE_OPTION) {
+            begin(conversation);
+            return MessageKey.ASK_RIDE_OPTION;
+        }
+        MessageKey rejection = steps[state.ordinal()].accept(details, input, messages);
+        if (rejection != null) {
+            return rejection;
+        }
+        int t = details.getType().ordinal();
+        if (state == last[t]) {
+            return null;
+        }
+        ConversationState following = next[t][state.ordinal()];
+        if (following == null) {
+            throw new IllegalStateException(state + " is not part of the " + details.getType() + " flow");
+        }
+        conversation.setState(following);
+        return prompts[t][following.ordinal()];
+    }
+
+    public MessageKey completedMessage(RideType type) {
+        return completed[type.ordinal()];
+    }
+
+    public ConversationState firstState(RideType type) {
+        return first[type.ordinal()];
+    }
+
+    /**
+     * Returns the state following {@code state} in the flow of the ride type, or
+     * {@code null} after the last step or for a state the flow does not visit.
+     */
+    public ConversationState nextState(RideType type, ConversationState state) {
+        return next[type.ordinal()][state.ordinal()];
+    }
+
+    public MessageKey prompt(RideType type, ConversationState state) {
+        return prompts[type.ordinal()][state.ordinal()];
+    }
+
+    private static MessageKey acceptRideOption(RideDetails details, String input, Messages messages) {
+        if (input.equalsIgnoreCase(messages.text(MessageKey.BUTTON_NEED_RIDE))) {
+            details.setType(RideType.PASSENGER);
+        } else if (input.equalsIgnoreCase(messages.text(MessageKey.BUTTON_OFFER_RIDE))) {
+            details.setType(RideType.DRIVER);
+        } else {
+            return MessageKey.ASK_RIDE_OPTION;
+        }
+        return null;
+    }
+
+    private static MessageKey acceptFromCity(RideDetails details, String input, Messages messages) {
+        int city = CityDictionary.getDefault().draftIdOf(input);
+        if (city == CityDictionary.NONE) {
+            return MessageKey.INVALID_CITY;
+        }
+        details.setCityA(city);
+        return null;
+    }
+
+    private static MessageKey acceptToCity(RideDetails details, String input, Messages messages) {
+        int city = CityDictionary.getDefault().draftIdOf(input);
+        if (city == CityDictionary.NONE) {
+            return MessageKey.INVALID_CITY;
+        }
+        details.setCityB(city);
+        return null;
+    }
+
+    private static MessageKey acceptDate(RideDetails details, String input, long today) {
+        InputParser.Result day = InputParser.parseDate(input);
+        if (!day.isValid()) {
+            return day.getError();
+        }
+        if (day.getValue() < today) {
+            return MessageKey.INVALID_DATE_PAST;
+        }
+        if (day.getValue() > today + MAX_DAYS_AHEAD) {
+            return MessageKey.INVALID_DATE_TOO_FAR;
+        }
+        details.setDepartureDate(LocalDate.ofEpochDay(day.getValue()));
+        return null;
+    }
+
+    private static MessageKey acceptTime(RideDetails details, String input, Messages messages) {
+        InputParser.Result minute = InputParser.parseTime(input);
+        if (!minute.isValid()) {
+            return minute.getError();
+        }
+        details.setDepartureTime(LocalTime.of((int) minute.getValue() / 60, (int) minute.getValue() % 60));
+        return null;
+    }
+
+    private static MessageKey acceptPersons(RideDetails details, String input, Messages messages) {
+        InputParser.Result persons = InputParser.parsePersons(input);
+        if (!persons.isValid()) {
+            return persons.getError();
+        }
+        details.setNumberOfPersons((int) persons.getValue());
+        return null;
+    }
+
+    private static MessageKey acceptPrice(RideDetails details, String input, Messages messages) {
+        InputParser.Result cents = InputParser.parsePrice(input);
+        if (!cents.isValid()) {
+            return cents.getError();
+        }
+        details.setPriceCents((int) cents.getValue());
+        return null;
+    }
+
+    private static MessageKey acceptCarModel(RideDetails details, String input, Messages messages) {
+        details.setCarModel(input);
+        return null;
+    }
+
+    private static MessageKey acceptContactInfo(RideDetails details, String input, Messages messages) {
+        InputParser.Result contact = InputParser.parseContact(input);
+        if (!contact.isValid()) {
+            return contact.getError();
+        }
+        details.setContactInfo(InputParser.trim(input));
+        return null;
+    }
+}
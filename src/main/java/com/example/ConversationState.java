@@ -0,0 +1,38 @@
+package com.example;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * The step a conversation is on. Driver and passenger forms share these steps; which
+ * of them a ride type goes through, and in what order, is set by {@link ConversationFlow}.
+ * <p>
+ * The ride log stores the constant's name, so steps may be added or reordered freely but
+ * not renamed.
+ */
+public enum ConversationState {
+    RIDE_OPTION,
+    FROM_CITY,
+    TO_CITY,
+    DEPARTURE_DATE,
+    DEPARTURE_TIME,
+    PERSONS,
+    PRICE,
+    CAR_MODEL,
+    CONTACT_INFO;
+
+    private static final Map<String, ConversationState> BY_NAME = new HashMap<>();
+
+    static {
+        for (ConversationState state : values()) {
+            BY_NAME.put(state.name(), state);
+        }
+    }
+
+    /**
+     * Resolves a persisted state name, or returns {@code null} if it is unknown.
+     */
+    public static ConversationState fromName(String name) {
+        return name == null ? null : BY_NAME.get(name);
+    }
+}
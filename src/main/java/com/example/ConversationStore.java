@@ -0,0 +1,365 @@
+package com.example;
+
+import java.util.function.Consumer;
+import java.util.function.LongConsumer;
+
+/**
+ * Concurrent store of in-progress conversations keyed by primitive chat id.
+ * <p>
+ * The key space is split over a fixed number of stripes, each an open-addressing
+ * {@code long -> Conversation} table guarded by its own monitor, so chats in different
+ * stripes never contend and no {@code Long} boxes are allocated per lookup.
+ * Conversations idle for longer than the TTL are treated as absent and swept out
+ * lazily on writes; once a stripe reaches its share of {@code maxConversations} the
+ * least recently used entry is dropped so memory stays bounded. Conversations dropped
+ * that way are reported to the {@linkplain #setEvictionListener eviction listener}.
+ */
+public class ConversationStore {
+    /** Returned by {@link #removeIfIdle} when it removed the conversation. */
+    public static final long REMOVED = -1;
+    /** Returned by {@link #removeIfIdle} when the chat had no conversation. */
+    public static final long ABSENT = -2;
+
+    private static final int STRIPES = 64;
+    private static final int SWEEP_EVERY_WRITES = 1024;
+
+    private final Stripe[] stripes = new Stripe[STRIPES];
+    private final long ttlMillis;
+    private final int maxPerStripe;
+    private volatile LongConsumer evictionListener = chatId -> { };
+
+    public ConversationStore(long ttlMillis, int maxConversations) {
+        this.ttlMillis = ttlMillis;
+        this.maxPerStripe = Math.max(1, maxConversations / STRIPES);
+        for (int i = 0; i < stripes.length; i++) {
+            stripes[i] = new Stripe();
+        }
+    }
+
+    /**
+     * Sets what is told the chat id of every conversation the store drops by itself: one
+     * found idle past the TTL, or the least recently used one when making room. It is
+     * called under the lock of the dropped chat's stripe, so the chat cannot get a new
+     * conversation before the listener returns; it must not call back into the store.
+     * Conversations dropped by {@link #remove} or {@link #removeIfIdle} are not reported.
+     */
+    public void setEvictionListener(LongConsumer listener) {
+        this.evictionListener = listener;
+    }
+
+    /**
+     * Returns the live conversation for the chat, or {@code null} if there is none
+     * or it has been idle past the TTL.
+     */
+    public Conversation get(long chatId) {
+        long hash = mix(chatId);
+        Stripe stripe = stripeFor(hash);
+        long now = System.currentTimeMillis();
+        synchronized (stripe) {
+            Conversation conversation = stripe.get(chatId, hash);
+            if (conversation == null) {
+                return null;
+            }
+            if (isIdle(conversation, now)) {
+                stripe.remove(chatId, hash);
+                evictionListener.accept(chatId);
+                return null;
+            }
+            conversation.lastAccess = now;
+            return conversation;
+        }
+    }
+
+    /**
+     * Returns the live conversation for the chat like {@link #get}, without counting as a
+     * use: its idle time is not reset, and one idle past the TTL is left for expiry to
+     * remove.
+     */
+    public Conversation peek(long chatId) {
+        long hash = mix(chatId);
+        Stripe stripe = stripeFor(hash);
+        long now = System.currentTimeMillis();
+        synchronized (stripe) {
+            Conversation conversation = stripe.get(chatId, hash);
+            return conversation == null || isIdle(conversation, now) ? null : conversation;
+        }
+    }
+
+    /**
+     * Returns true if the chat has a live conversation; see {@link #peek}.
+     */
+    public boolean contains(long chatId) {
+        return peek(chatId) != null;
+    }
+
+    public Conversation getOrCreate(long chatId) {
+        long hash = mix(chatId);
+        Stripe stripe = stripeFor(hash);
+        long now = System.currentTimeMillis();
+        synchronized (stripe) {
+            Conversation conversation = stripe.get(chatId, hash);
+            if (conversation != null && !isIdle(conversation, now)) {
+                conversation.lastAccess = now;
+                return conversation;
+            }
+            if (conversation == null) {
+                makeRoom(stripe, now);
+            }
+            conversation = new Conversation(chatId);
+            conversation.lastAccess = now;
+            stripe.put(chatId, hash, conversation);
+            return conversation;
+        }
+    }
+
+    /**
+     * Returns the chat's conversation, creating it if needed, as last used at the given
+     * time, for a conversation recovered or handed over from another node. One already
+     * idle past the TTL is dropped instead and {@code null} returned.
+     */
+    public Conversation restore(long chatId, long lastAccess) {
+        long hash = mix(chatId);
+        Stripe stripe = stripeFor(hash);
+        long now = System.currentTimeMillis();
+        synchronized (stripe) {
+            Conversation conversation = stripe.get(chatId, hash);
+            if (now - lastAccess > ttlMillis) {
+                if (conversation != null) {
+                    stripe.remove(chatId, hash);
+                    evictionListener.accept(chatId);
+                }
+                return null;
+            }
+            if (conversation == null) {
+                makeRoom(stripe, now);
+                conversation = new Conversation(chatId);
+                stripe.put(chatId, hash, conversation);
+            }
+            conversation.lastAccess = lastAccess;
+            return conversation;
+        }
+    }
+
+    public void remove(long chatId) {
+        long hash = mix(chatId);
+        Stripe stripe = stripeFor(hash);
+        synchronized (stripe) {
+            stripe.remove(chatId, hash);
+        }
+    }
+
+    /**
+     * Removes the chat's conversation if it has been idle past the TTL. Returns
+     * {@link #REMOVED} if it was removed, {@link #ABSENT} if there was none, or else the
+     * time it will become idle.
+     */
+    public long removeIfIdle(long chatId) {
+        long hash = mix(chatId);
+        Stripe stripe = stripeFor(hash);
+        long now = System.currentTimeMillis();
+        synchronized (stripe) {
+            Conversation conversation = stripe.get(chatId, hash);
+            if (conversation == null) {
+                return ABSENT;
+            }
+            if (isIdle(conversation, now)) {
+                stripe.remove(chatId, hash);
+                return REMOVED;
+            }
+            return conversation.lastAccess + ttlMillis + 1;
+        }
+    }
+
+    public long getTtlMillis() {
+        return ttlMillis;
+    }
+
+    public int size() {
+        int size = 0;
+        for (Stripe stripe : stripes) {
+            synchronized (stripe) {
+                size += stripe.size;
+            }
+        }
+        return size;
+    }
+
+    /**
+     * Visits every live conversation, one stripe at a time.
+     */
+    public void forEach(Consumer<Conversation> action) {
+        long now = System.currentTimeMillis();
+        for (Stripe stripe : stripes) {
+            synchronized (stripe) {
+                for (Conversation conversation : stripe.values) {
+                    if (conversation != null && !isIdle(conversation, now)) {
+                        action.accept(conversation);
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Drops every conversation idle past the TTL and returns how many were removed.
+     */
+    public int evictIdle() {
+        long now = System.currentTimeMillis();
+        int evicted = 0;
+        for (Stripe stripe : stripes) {
+            synchronized (stripe) {
+                evicted += sweep(stripe, now);
+            }
+        }
+        return evicted;
+    }
+
+    private void makeRoom(Stripe stripe, long now) {
+        if (++stripe.writes >= Math.max(SWEEP_EVERY_WRITES, stripe.keys.length)) {
+            stripe.writes = 0;
+            sweep(stripe, now);
+        }
+        if (stripe.size >= maxPerStripe && sweep(stripe, now) == 0) {
+            evictionListener.accept(stripe.removeOldest());
+        }
+    }
+
+    private int sweep(Stripe stripe, long now) {
+        long[] idle = null;
+        int count = 0;
+        for (int i = 0; i < stripe.values.length; i++) {
+            Conversation conversation = stripe.values[i];
+            if (conversation != null && isIdle(conversation, now)) {
+                if (idle == null) {
+                    idle = new long[stripe.size];
+                }
+                idle[count++] = stripe.keys[i];
+            }
+        }
+        for (int i = 0; i < count; i++) {
+            stripe.remove(idle[i], mix(idle[i]));
+            evictionListener.accept(idle[i]);
+        }
+        return count;
+    }
+
+    private boolean isIdle(Conversation conversation, long now) {
+        return now - conversation.lastAccess > ttlMillis;
+    }
+
+    private Stripe stripeFor(long hash) {
+        return stripes[(int) hash & (STRIPES - 1)];
+    }
+
+    static long mix(long key) {
+        key ^= key >>> 33;
+        key *= 0xff51afd7ed558ccdL;
+        key ^= key >>> 33;
+        key *= 0xc4ceb9fe1a85ec53L;
+        key ^= key >>> 33;
+        return key;
+    }
+
+    /**
+     * Linear-probing table; a {@code null} value marks an empty slot.
+     */
+    private static final class Stripe {
+        long[] keys = new long[16];
+        Conversation[] values = new Conversation[16];
+        int size;
+        int writes;
+
+        Conversation get(long key, long hash) {
+            int mask = keys.length - 1;
+            for (int i = slot(hash, mask); values[i] != null; i = (i + 1) & mask) {
+                if (keys[i] == key) {
+                    return values[i];
+                }
+            }
+            return null;
+        }
+
+        void put(long key, long hash, Conversation value) {
+            if ((size + 1) * 2 > keys.length) {
+                resize();
+            }
+            int mask = keys.length - 1;
+            int i = slot(hash, mask);
+            while (values[i] != null) {
+                if (keys[i] == key) {
+                    values[i] = value;
+                    return;
+                }
+                i = (i + 1) & mask;
+            }
+            keys[i] = key;
+            values[i] = value;
+            size++;
+        }
+
+        Conversation remove(long key, long hash) {
+            int mask = keys.length - 1;
+            for (int i = slot(hash, mask); values[i] != null; i = (i + 1) & mask) {
+                if (keys[i] == key) {
+                    Conversation old = values[i];
+                    deleteAt(i);
+                    size--;
+                    return old;
+                }
+            }
+            return null;
+        }
+
+        // Only called on a non-empty stripe; returns the key removed.
+        long removeOldest() {
+            int oldest = -1;
+            for (int i = 0; i < values.length; i++) {
+                if (values[i] != null && (oldest < 0 || values[i].lastAccess < values[oldest].lastAccess)) {
+                    oldest = i;
+                }
+            }
+            long key = keys[oldest];
+            deleteAt(oldest);
+            size--;
+            return key;
+        }
+
+        // Backward-shift deletion keeps probe chains intact without tombstones.
+        private void deleteAt(int hole) {
+            int mask = keys.length - 1;
+            int i = hole;
+            while (true) {
+                i = (i + 1) & mask;
+                if (values[i] == null) {
+                    break;
+                }
+                int ideal = slot(mix(keys[i]), mask);
+                boolean movable = i > hole ? (ideal <= hole || ideal > i) : (ideal <= hole && ideal > i);
+                if (movable) {
+                    keys[hole] = keys[i];
+                    values[hole] = values[i];
+                    hole = i;
+                }
+            }
+            keys[hole] = 0;
+            values[hole] = null;
+        }
+
+        private void resize() {
+            long[] oldKeys = keys;
+            Conversation[] oldValues = values;
+            keys = new long[oldKeys.length * 2];
+            values = new Conversation[oldValues.length * 2];
+            size = 0;
+            for (int i = 0; i < oldValues.length; i++) {
+                if (oldValues[i] != null) {
+                    put(oldKeys[i], mix(oldKeys[i]), oldValues[i]);
+                }
+            }
+        }
+
+        private static int slot(long hash, int mask) {
+            return (int) (hash >>> 32) & mask;
+        }
+    }
+}
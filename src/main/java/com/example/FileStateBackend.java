@@ -0,0 +1,438 @@
+package com.example;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.net.URLDecoder;
+import java.net.URLEncoder;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * {@link StateBackend} on a directory shared by every node, for several bot processes on
+ * one host or on a shared volume.
+ * <ul>
+ * <li>Each node keeps a file under {@code members/} fresh; a node whose file has not been
+ * touched for {@link #MEMBER_TIMEOUT_MILLIS} is considered gone.</li>
+ * <li>Parked conversations are files under {@code handoff/}, written atomically and
+ * claimed by renaming them away.</li>
+ * <li>Published rides are appended to the ride feed under a file lock and tailed by every
+ * node. Once the rides a node has retired are a good part of the feed, it rewrites the
+ * feed without them as the next generation, {@code rides-<n>.feed}; nodes then append to
+ * and read the newest generation, reading it from the start, and delete older ones. A
+ * joining node so only replays rides that have not expired yet.</li>
+ * <li>The ride id sequence is a counter in {@code ride-ids}, updated under a file lock.</li>
+ * </ul>
+ * Membership and new rides are polled every {@link #POLL_MILLIS}, and right after a ride
+ * is published here. Listeners are called by {@link #join} and then only on the polling
+ * thread, never by a thread publishing a ride, so a listener may wait on such threads.
+ * File locks guard against other processes; monitors against other threads of this one.
+ */
+public class FileStateBackend implements StateBackend {
+    private static final Logger logger = LoggerFactory.getLogger(FileStateBackend.class);
+
+    static final long POLL_MILLIS = 500;
+    static final long MEMBER_TIMEOUT_MILLIS = 5_000;
+    // Rides retired here before the feed is rewritten without them
+    static final int COMPACT_MIN_RETIRED = 1_000;
+    // Ride length and id
+    private static final int FRAME_HEADER_BYTES = 12;
+    private static final Pattern FEED_NAME = Pattern.compile("rides-(\\d+)\\.feed");
+
+    private final File directory;
+    private final File membersDir;
+    private final File handoffDir;
+    private final FileChannel rideIds;
+    private final ScheduledExecutorService poller;
+    // Rides retired here that may still be in the feed, and how many of them are in the
+    // generation being read
+    private final Set<Long> retired = ConcurrentHashMap.newKeySet();
+    private final AtomicInteger feedRetired = new AtomicInteger();
+
+    private String nodeId;
+    private Listener listener;
+    private List<String> lastMembers = Collections.emptyList();
+
+    // The feed generation this node appends to and reads, how far it has read it and how
+    // many rides that was
+    private final Object feedLock = new Object();
+    private FileChannel feed;
+    private long feedGeneration;
+    private long feedOffset;
+    private int feedRides;
+
+    public FileStateBackend(File directory) throws IOException {
+        this.directory = directory;
+        this.membersDir = new File(directory, "members");
+        this.handoffDir = new File(directory, "handoff");
+        if (!membersDir.mkdirs() && !membersDir.isDirectory() || !handoffDir.mkdirs() && !handoffDir.isDirectory()) {
+            throw new IOException("Cannot create cluster state directory " + directory);
+        }
+        openFeed(Math.max(1, newestFeedGeneration()));
+        this.rideIds = new RandomAccessFile(new File(directory, "ride-ids"), "rw").getChannel();
+        this.poller = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "cluster-state-poller");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    @Override
+    public void join(String nodeId, Listener listener) throws IOException {
+        synchronized (this) {
+            this.nodeId = nodeId;
+            this.listener = listener;
+        }
+        touchMember();
+        poll();
+        poller.scheduleWithFixedDelay(() -> {
+            try {
+                touchMember();
+            } catch (IOException e) {
+                logger.error("Failed to refresh cluster membership", e);
+            }
+            pollQuietly();
+        }, POLL_MILLIS, POLL_MILLIS, TimeUnit.MILLISECONDS);
+    }
+
+    @Override
+    public void leave(String nodeId) throws IOException {
+        if (nodeId.equals(this.nodeId)) {
+            poller.shutdownNow();
+        }
+        Files.deleteIfExists(memberFile(nodeId).toPath());
+    }
+
+    @Override
+    public List<String> members() throws IOException {
+        long now = System.currentTimeMillis();
+        List<String> members = new ArrayList<>();
+        File[] files = membersDir.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                if (now - file.lastModified() < MEMBER_TIMEOUT_MILLIS) {
+                    members.add(URLDecoder.decode(file.getName(), "UTF-8"));
+                }
+            }
+        }
+        Collections.sort(members);
+        return members;
+    }
+
+    @Override
+    public void handOff(long chatId, byte[] conversation) throws IOException {
+        File target = new File(handoffDir, Long.toString(chatId));
+        File tmp = new File(handoffDir, chatId + "." + Thread.currentThread().getId() + ".tmp");
+        Files.write(tmp.toPath(), conversation);
+        move(tmp, target);
+    }
+
+    @Override
+    public byte[] claim(long chatId) throws IOException {
+        File parked = new File(handoffDir, Long.toString(chatId));
+        if (!parked.exists()) {
+            return null;
+        }
+        File claimed = new File(handoffDir, chatId + "." + Thread.currentThread().getId() + ".claimed");
+        try {
+            move(parked, claimed);
+        } catch (NoSuchFileException e) {
+            return null;
+        }
+        byte[] conversation = Files.readAllBytes(claimed.toPath());
+        Files.delete(claimed.toPath());
+        return conversation;
+    }
+
+    @Override
+    public void publishRide(long rideId, byte[] ride) throws IOException {
+        ByteBuffer frame = ByteBuffer.allocate(FRAME_HEADER_BYTES + ride.length);
+        frame.putInt(ride.length).putLong(rideId).put(ride).flip();
+        synchronized (feedLock) {
+            // A feed that has been rewritten gets no more rides
+            do {
+                FileLock lock = feed.lock();
+                try {
+                    if (!feedFile(feedGeneration + 1).exists()) {
+                        long position = feed.size();
+                        while (frame.hasRemaining()) {
+                            position += feed.write(frame, position);
+                        }
+                    }
+                } finally {
+                    lock.release();
+                }
+            } while (frame.hasRemaining() && followNewerFeed());
+            if (frame.hasRemaining()) {
+                throw new IOException("Ride feed generation " + feedGeneration + " was replaced without a successor");
+            }
+        }
+        try {
+            poller.execute(this::pollQuietly);
+        } catch (RejectedExecutionException e) {
+            // left the cluster meanwhile
+        }
+    }
+
+    @Override
+    public void retireRide(long rideId) {
+        if (retired.add(rideId)) {
+            feedRetired.incrementAndGet();
+        }
+    }
+
+    @Override
+    public long nextRideId() throws IOException {
+        synchronized (rideIds) {
+            FileLock lock = rideIds.lock();
+            try {
+                long next = readRideId() + 1;
+                writeRideId(next);
+                return next;
+            } finally {
+                lock.release();
+            }
+        }
+    }
+
+    @Override
+    public void reserveRideIds(long maxUsed) throws IOException {
+        synchronized (rideIds) {
+            FileLock lock = rideIds.lock();
+            try {
+                if (readRideId() < maxUsed) {
+                    writeRideId(maxUsed);
+                }
+            } finally {
+                lock.release();
+            }
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        poller.shutdownNow();
+        synchronized (feedLock) {
+            feed.close();
+        }
+        rideIds.close();
+    }
+
+    private void touchMember() throws IOException {
+        File file = memberFile(nodeId);
+        if (!file.exists()) {
+            Files.write(file.toPath(), new byte[0]);
+        }
+        if (!file.setLastModified(System.currentTimeMillis())) {
+            throw new IOException("Cannot refresh cluster membership file " + file);
+        }
+    }
+
+    // Delivers new members and rides to the listener; synchronized so events stay ordered.
+    private synchronized void poll() throws IOException {
+        if (listener == null) {
+            return;
+        }
+        List<String> members = members();
+        if (!members.equals(lastMembers)) {
+            lastMembers = members;
+            listener.membersChanged(members);
+        }
+        List<byte[]> rides = new ArrayList<>();
+        synchronized (feedLock) {
+            followNewerFeed();
+            readFeed(rides);
+            compactFeed();
+        }
+        for (byte[] ride : rides) {
+            listener.ridePublished(ride);
+        }
+    }
+
+    // Reads the rides appended since the last read, leaving out those retired here.
+    private void readFeed(List<byte[]> rides) throws IOException {
+        FileLock lock = feed.lock(0, Long.MAX_VALUE, true);
+        try {
+            long size = feed.size();
+            ByteBuffer header = ByteBuffer.allocate(FRAME_HEADER_BYTES);
+            while (feedOffset + FRAME_HEADER_BYTES <= size) {
+                header.clear();
+                feed.read(header, feedOffset);
+                int length = header.getInt(0);
+                if (retired.contains(header.getLong(4))) {
+                    feedRetired.incrementAndGet();
+                } else {
+                    ByteBuffer ride = ByteBuffer.allocate(length);
+                    feed.read(ride, feedOffset + FRAME_HEADER_BYTES);
+                    rides.add(ride.array());
+                }
+                feedOffset += FRAME_HEADER_BYTES + length;
+                feedRides++;
+            }
+        } finally {
+            lock.release();
+        }
+    }
+
+    // Rewrites the feed without the rides retired here once they are half of it. The
+    // exclusive lock keeps rides from being appended meanwhile; writers and readers find
+    // the next generation afterwards and move to it.
+    private void compactFeed() throws IOException {
+        int retiring = feedRetired.get();
+        if (retiring < COMPACT_MIN_RETIRED || retiring * 2L < feedRides) {
+            return;
+        }
+        Set<Long> dropped = new HashSet<>(retired);
+        File next = feedFile(feedGeneration + 1);
+        File tmp = new File(directory, next.getName() + ".tmp");
+        int kept = 0;
+        long size;
+        long written = 0;
+        FileLock lock = feed.lock();
+        try {
+            if (next.exists()) {
+                // Another node compacted first; the next poll moves to its feed
+                return;
+            }
+            size = feed.size();
+            try (DataInputStream in = new DataInputStream(new BufferedInputStream(
+                    Files.newInputStream(feedFile(feedGeneration).toPath())));
+                 FileOutputStream file = new FileOutputStream(tmp)) {
+                DataOutputStream out = new DataOutputStream(new BufferedOutputStream(file));
+                for (long position = 0; position + FRAME_HEADER_BYTES <= size; ) {
+                    int length = in.readInt();
+                    long rideId = in.readLong();
+                    byte[] ride = new byte[length];
+                    in.readFully(ride);
+                    position += FRAME_HEADER_BYTES + length;
+                    if (!dropped.contains(rideId)) {
+                        out.writeInt(length);
+                        out.writeLong(rideId);
+                        out.write(ride);
+                        written += FRAME_HEADER_BYTES + length;
+                        kept++;
+                    }
+                }
+                out.flush();
+                file.getFD().sync();
+            }
+            move(tmp, next);
+        } finally {
+            lock.release();
+        }
+        retired.removeAll(dropped);
+        long previous = feedGeneration;
+        boolean caughtUp = feedOffset == size;
+        int rides = feedRides;
+        openFeed(previous + 1);
+        // Everything in the old feed was read, so the new one holds nothing unread
+        if (caughtUp) {
+            feedOffset = written;
+            feedRides = kept;
+            feedRetired.set(retired.size());
+        }
+        Files.deleteIfExists(feedFile(previous).toPath());
+        logger.info("Compacted the ride feed to generation {}, keeping {} of {} rides", previous + 1, kept, rides);
+    }
+
+    // Moves to the newest feed generation if another node has rewritten the feed, and
+    // deletes the one left. The new feed holds every ride not retired yet and is read
+    // from the start, so rides may be told again.
+    private boolean followNewerFeed() throws IOException {
+        if (!feedFile(feedGeneration + 1).exists()) {
+            return false;
+        }
+        long previous = feedGeneration;
+        openFeed(newestFeedGeneration());
+        Files.deleteIfExists(feedFile(previous).toPath());
+        return true;
+    }
+
+    private void openFeed(long generation) throws IOException {
+        if (feed != null) {
+            feed.close();
+        }
+        feed = new RandomAccessFile(feedFile(generation), "rw").getChannel();
+        feedGeneration = generation;
+        feedOffset = 0;
+        feedRides = 0;
+        feedRetired.set(0);
+    }
+
+    private File feedFile(long generation) {
+        return new File(directory, "rides-" + generation + ".feed");
+    }
+
+    // Returns the highest feed generation in the directory, or 0 if there is none.
+    private long newestFeedGeneration() {
+        long newest = 0;
+        String[] names = directory.list();
+        if (names != null) {
+            for (String name : names) {
+                Matcher matcher = FEED_NAME.matcher(name);
+                if (matcher.matches()) {
+                    newest = Math.max(newest, Long.parseLong(matcher.group(1)));
+                }
+            }
+        }
+        return newest;
+    }
+
+    private void pollQuietly() {
+        try {
+            poll();
+        } catch (IOException | RuntimeException e) {
+            logger.error("Failed to poll cluster state", e);
+        }
+    }
+
+    private long readRideId() throws IOException {
+        ByteBuffer value = ByteBuffer.allocate(8);
+        return rideIds.read(value, 0) == 8 ? value.getLong(0) : 0;
+    }
+
+    private void writeRideId(long id) throws IOException {
+        ByteBuffer value = ByteBuffer.allocate(8);
+        value.putLong(0, id);
+        rideIds.write(value, 0);
+        rideIds.force(false);
+    }
+
+    private File memberFile(String nodeId) throws IOException {
+        return new File(membersDir, URLEncoder.encode(nodeId, "UTF-8"));
+    }
+
+    private static void move(File from, File to) throws IOException {
+        try {
+            Files.move(from.toPath(), to.toPath(), StandardCopyOption.ATOMIC_MOVE);
+        } catch (AtomicMoveNotSupportedException e) {
+            Files.move(from.toPath(), to.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        }
+    }
+}
@@ -0,0 +1,322 @@
+package com.example;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.text.Normalizer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * Offline city-to-country index built from the bundled {@code gazetteer.tsv}.
+ * <p>
+ * Names are normalized (case, accents, sharp s, separators) and stored in a trie of
+ * parallel arrays: one char label, first-child and next-sibling link and country per node,
+ * so a few thousand names take a few tens of kilobytes and no per-node objects. An exact
+ * lookup walks the trie; a miss falls back to an edit-distance search over the trie that
+ * tolerates one typo (a wrong, missing, extra or swapped letter) in names of four to seven
+ * characters and two in longer ones. A typo equally close to cities of different countries
+ * resolves to none. Immutable once built.
+ */
+public final class Gazetteer {
+    public static final String DEFAULT_RESOURCE = "gazetteer.tsv";
+
+    private static final int NO_NODE = -1;
+    private static final byte NO_COUNTRY = -1;
+
+    private final char[] labels;
+    private final int[] firstChild;
+    private final int[] nextSibling;
+    private final byte[] countryOf;
+    private final String[] countries;
+    private final int depth;
+
+    private Gazetteer(char[] labels, int[] firstChild, int[] nextSibling, byte[] countryOf,
+                      String[] countries, int depth) {
+        this.labels = labels;
+        this.firstChild = firstChild;
+        this.nextSibling = nextSibling;
+        this.countryOf = countryOf;
+        this.countries = countries;
+        this.depth = depth;
+    }
+
+    /**
+     * Loads a gazetteer resource on a daemon thread, so callers start without waiting for
+     * it and join the future on first use.
+     */
+    public static CompletableFuture<Gazetteer> loadAsync(String resource) {
+        CompletableFuture<Gazetteer> future = new CompletableFuture<>();
+        Thread loader = new Thread(() -> {
+            try {
+                future.complete(load(resource));
+            } catch (IOException | RuntimeException e) {
+                future.completeExceptionally(e);
+            }
+        }, "gazetteer-loader");
+        loader.setDaemon(true);
+        loader.start();
+        return future;
+    }
+
+    /**
+     * Reads {@code <name> TAB <country>} lines; blank lines and lines starting with
+     * {@code #} are skipped.
+     */
+    public static Gazetteer load(String resource) throws IOException {
+        InputStream in = Gazetteer.class.getClassLoader().getResourceAsStream(resource);
+        if (in == null) {
+            throw new IOException("Missing gazetteer " + resource);
+        }
+        Builder builder = new Builder();
+        try (BufferedReader reader = new BufferedReader(new InputStreamReader(in, StandardCharsets.UTF_8))) {
+            String line;
+            int number = 0;
+            while ((line = reader.readLine()) != null) {
+                number++;
+                if (line.isEmpty() || line.charAt(0) == '#') {
+                    continue;
+                }
+                int tab = line.indexOf('\t');
+                if (tab <= 0 || tab == line.length() - 1) {
+                    throw new IOException(resource + ":" + number + ": expected <name> TAB <country>");
+                }
+                builder.add(line.substring(0, tab), line.substring(tab + 1).trim());
+            }
+        }
+        return builder.build();
+    }
+
+    /**
+     * Returns the ISO country code of the city, allowing for typos, or {@code null}.
+     */
+    public String countryOf(String city) {
+        if (city == null) {
+            return null;
+        }
+        String key = normalize(city);
+        if (key.isEmpty()) {
+            return null;
+        }
+        int node = exact(key);
+        if (node != NO_NODE && countryOf[node] != NO_COUNTRY) {
+            return countries[countryOf[node]];
+        }
+        int maxDistance = key.length() < 4 ? 0 : key.length() < 8 ? 1 : 2;
+        return maxDistance == 0 ? null : fuzzy(key, maxDistance);
+    }
+
+    /**
+     * Returns the number of trie nodes.
+     */
+    public int size() {
+        return labels.length;
+    }
+
+    /**
+     * Folds a city name to its lookup key: lower case without accents, sharp s as
+     * {@code ss}, and any run of blanks, dashes and underscores as one space. A leading
+     * {@code #}, dots, apostrophes and brackets are dropped.
+     */
+    static String normalize(String name) {
+        String decomposed = Normalizer.normalize(name, Normalizer.Form.NFD);
+        StringBuilder key = new StringBuilder(decomposed.length());
+        boolean space = false;
+        for (int i = 0; i < decomposed.length(); i++) {
+            char c = decomposed.charAt(i);
+            if (Character.getType(c) == Character.NON_SPACING_MARK
+                    || c == '#' || c == '.' || c == '\'' || c == '(' || c == ')') {
+                continue;
+            }
+            if (Character.isWhitespace(c) || c == '-' || c == '_' || c == ',') {
+                space = key.length() > 0;
+                continue;
+            }
+            if (space) {
+                key.append(' ');
+                space = false;
+            }
+            c = Character.toLowerCase(c);
+            switch (c) {
+                case '\u00df':
+                    key.append("ss");
+                    break;
+                case '\u00e6':
+                    key.append("ae");
+                    break;
+                case '\u0142':
+                    key.append('l');
+                    break;
+                case '\u00f8':
+                    key.append('o');
+                    break;
+                case '\u0111':
+                    key.append('d');
+                    break;
+                default:
+                    key.append(c);
+            }
+        }
+        return key.toString();
+    }
+
+    private int exact(String key) {
+        int node = 0;
+        for (int i = 0; i < key.length() && node != NO_NODE; i++) {
+            node = child(node, key.charAt(i));
+        }
+        return node;
+    }
+
+    private int child(int node, char label) {
+        for (int child = firstChild[node]; child != NO_NODE; child = nextSibling[child]) {
+            if (labels[child] == label) {
+                return child;
+            }
+        }
+        return NO_NODE;
+    }
+
+    // Depth-first search carrying one edit-distance row per trie level, counting a swap of
+    // adjacent letters as one edit; a branch is cut once every cell of its row exceeds the
+    // allowed distance.
+    private String fuzzy(String key, int maxDistance) {
+        int width = key.length() + 1;
+        int[][] rows = new int[Math.min(depth, key.length() + maxDistance) + 1][width];
+        for (int i = 0; i < width; i++) {
+            rows[0][i] = i;
+        }
+        Match match = new Match(maxDistance);
+        for (int child = firstChild[0]; child != NO_NODE; child = nextSibling[child]) {
+            search(child, 1, '\0', key, rows, match);
+        }
+        return match.country == NO_COUNTRY || match.ambiguous ? null : countries[match.country];
+    }
+
+    private void search(int node, int level, char parent, String key, int[][] rows, Match match) {
+        if (level >= rows.length) {
+            return;
+        }
+        int[] previous = rows[level - 1];
+        int[] row = rows[level];
+        char label = labels[node];
+        row[0] = level;
+        int min = row[0];
+        for (int i = 1; i < row.length; i++) {
+            char c = key.charAt(i - 1);
+            int cost = c == label ? 0 : 1;
+            int d = Math.min(Math.min(row[i - 1] + 1, previous[i] + 1), previous[i - 1] + cost);
+            if (level > 1 && i > 1 && c == parent && key.charAt(i - 2) == label) {
+                d = Math.min(d, rows[level - 2][i - 2] + 1);
+            }
+            row[i] = d;
+            min = Math.min(min, d);
+        }
+        int distance = row[row.length - 1];
+        if (countryOf[node] != NO_COUNTRY && distance <= match.distance) {
+            match.offer(distance, countryOf[node]);
+        }
+        if (min > match.distance) {
+            return;
+        }
+        for (int child = firstChild[node]; child != NO_NODE; child = nextSibling[child]) {
+            search(child, level + 1, label, key, rows, match);
+        }
+    }
+
+    private static final class Match {
+        int distance;
+        byte country = NO_COUNTRY;
+        boolean ambiguous;
+
+        Match(int maxDistance) {
+            this.distance = maxDistance;
+        }
+
+        void offer(int distance, byte country) {
+            if (this.country == NO_COUNTRY || distance < this.distance) {
+                this.distance = distance;
+                this.country = country;
+                this.ambiguous = false;
+            } else if (country != this.country) {
+                ambiguous = true;
+            }
+        }
+    }
+
+    static final class Builder {
+        private final List<String> countries = new ArrayList<>();
+        private char[] labels = new char[1024];
+        private int[] firstChild = new int[1024];
+        private int[] nextSibling = new int[1024];
+        private byte[] countryOf = new byte[1024];
+        private int size;
+        private int depth;
+
+        Builder() {
+            newNode('\0');
+        }
+
+        Builder add(String name, String country) {
+            String key = normalize(name);
+            if (key.isEmpty()) {
+                throw new IllegalArgumentException("Blank city name");
+            }
+            int node = 0;
+            for (int i = 0; i < key.length(); i++) {
+                int child = NO_NODE;
+                for (int c = firstChild[node]; c != NO_NODE; c = nextSibling[c]) {
+                    if (labels[c] == key.charAt(i)) {
+                        child = c;
+                        break;
+                    }
+                }
+                if (child == NO_NODE) {
+                    child = newNode(key.charAt(i));
+                    nextSibling[child] = firstChild[node];
+                    firstChild[node] = child;
+                }
+                node = child;
+            }
+            countryOf[node] = countryIndex(country);
+            depth = Math.max(depth, key.length());
+            return this;
+        }
+
+        Gazetteer build() {
+            return new Gazetteer(Arrays.copyOf(labels, size), Arrays.copyOf(firstChild, size),
+                    Arrays.copyOf(nextSibling, size), Arrays.copyOf(countryOf, size),
+                    countries.toArray(new String[0]), depth);
+        }
+
+        private byte countryIndex(String country) {
+            int index = countries.indexOf(country);
+            if (index < 0) {
+                if (countries.size() == Byte.MAX_VALUE) {
+                    throw new IllegalArgumentException("Too many countries");
+                }
+                countries.add(country);
+                index = countries.size() - 1;
+            }
+            return (byte) index;
+        }
+
+        private int newNode(char label) {
+            if (size == labels.length) {
+                labels = Arrays.copyOf(labels, size * 2);
+                firstChild = Arrays.copyOf(firstChild, size * 2);
+                nextSibling = Arrays.copyOf(nextSibling, size * 2);
+                countryOf = Arrays.copyOf(countryOf, size * 2);
+            }
+            labels[size] = label;
+            firstChild[size] = NO_NODE;
+            nextSibling[size] = NO_NODE;
+            countryOf[size] = NO_COUNTRY;
+            return size++;
+        }
+    }
+}
@@ -0,0 +1,77 @@
+package com.example;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.TreeSet;
+
+/**
+ * Consistent hash ring assigning chat ids to cluster nodes.
+ * <p>
+ * Each node is placed at a number of pseudo-random points on a 64-bit ring; a chat
+ * belongs to the node owning the first point at or after the chat's hash. Adding or
+ * removing a node only moves the chats between it and its ring neighbours, roughly
+ * {@code 1/n} of them. Immutable; a membership change builds a new ring.
+ */
+public final class HashRing {
+    public static final int DEFAULT_VIRTUAL_NODES = 512;
+
+    private final List<String> nodes;
+    private final long[] points;
+    private final String[] owners;
+
+    public HashRing(Collection<String> nodes, int virtualNodes) {
+        this.nodes = Collections.unmodifiableList(new ArrayList<>(new TreeSet<>(nodes)));
+        int size = this.nodes.size() * virtualNodes;
+        long[] hashes = new long[size];
+        String[] names = new String[size];
+        Integer[] order = new Integer[size];
+        int i = 0;
+        for (String node : this.nodes) {
+            long base = hash(node);
+            for (int v = 0; v < virtualNodes; v++, i++) {
+                hashes[i] = ConversationStore.mix(base + v * 0x9E3779B97F4A7C15L);
+                names[i] = node;
+                order[i] = i;
+            }
+        }
+        Arrays.sort(order, (a, b) -> Long.compare(hashes[a], hashes[b]));
+        this.points = new long[size];
+        this.owners = new String[size];
+        for (i = 0; i < size; i++) {
+            points[i] = hashes[order[i]];
+            owners[i] = names[order[i]];
+        }
+    }
+
+    /**
+     * Returns the node owning the chat, or {@code null} if the ring is empty.
+     */
+    public String ownerOf(long chatId) {
+        if (points.length == 0) {
+            return null;
+        }
+        int index = Arrays.binarySearch(points, ConversationStore.mix(chatId));
+        if (index < 0) {
+            index = -index - 1;
+        }
+        return owners[index == points.length ? 0 : index];
+    }
+
+    public List<String> nodes() {
+        return nodes;
+    }
+
+    // 64-bit FNV-1a, so a node's points do not depend on String.hashCode.
+    private static long hash(String node) {
+        long hash = 0xcbf29ce484222325L;
+        for (byte b : node.getBytes(StandardCharsets.UTF_8)) {
+            hash ^= b & 0xff;
+            hash *= 0x100000001b3L;
+        }
+        return hash;
+    }
+}
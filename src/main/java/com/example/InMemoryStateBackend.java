@@ -0,0 +1,101 @@
+package com.example;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * {@link StateBackend} for nodes running in one JVM, such as tests and local
+ * experiments. Listeners are called synchronously on the caller's thread.
+ */
+public class InMemoryStateBackend implements StateBackend {
+    private final Map<String, Listener> members = new TreeMap<>();
+    private final Map<Long, byte[]> rides = new LinkedHashMap<>();
+    private final ConcurrentHashMap<Long, byte[]> parked = new ConcurrentHashMap<>();
+    private final AtomicLong rideIds = new AtomicLong();
+
+    @Override
+    public void join(String nodeId, Listener listener) {
+        List<Listener> listeners;
+        List<String> current;
+        List<byte[]> published;
+        synchronized (this) {
+            members.put(nodeId, listener);
+            listeners = new ArrayList<>(members.values());
+            current = new ArrayList<>(members.keySet());
+            published = new ArrayList<>(rides.values());
+        }
+        for (byte[] ride : published) {
+            listener.ridePublished(ride);
+        }
+        for (Listener member : listeners) {
+            member.membersChanged(current);
+        }
+    }
+
+    @Override
+    public void leave(String nodeId) {
+        List<Listener> listeners;
+        List<String> current;
+        synchronized (this) {
+            if (members.remove(nodeId) == null) {
+                return;
+            }
+            listeners = new ArrayList<>(members.values());
+            current = new ArrayList<>(members.keySet());
+        }
+        for (Listener member : listeners) {
+            member.membersChanged(current);
+        }
+    }
+
+    @Override
+    public synchronized List<String> members() {
+        return new ArrayList<>(members.keySet());
+    }
+
+    @Override
+    public void handOff(long chatId, byte[] conversation) {
+        parked.put(chatId, conversation);
+    }
+
+    @Override
+    public byte[] claim(long chatId) {
+        return parked.isEmpty() ? null : parked.remove(chatId);
+    }
+
+    @Override
+    public void publishRide(long rideId, byte[] ride) {
+        List<Listener> listeners;
+        synchronized (this) {
+            rides.put(rideId, ride);
+            listeners = new ArrayList<>(members.values());
+        }
+        for (Listener member : listeners) {
+            member.ridePublished(ride);
+        }
+    }
+
+    @Override
+    public synchronized void retireRide(long rideId) {
+        rides.remove(rideId);
+    }
+
+    @Override
+    public long nextRideId() {
+        return rideIds.incrementAndGet();
+    }
+
+    @Override
+    public void reserveRideIds(long maxUsed) {
+        rideIds.accumulateAndGet(maxUsed, Math::max);
+    }
+
+    @Override
+    public void close() {
+    }
+}
@@ -0,0 +1,230 @@
+package com.example;
+
+import org.telegram.telegrambots.meta.api.objects.Update;
+
+import java.util.Arrays;
+import java.util.Locale;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Decides which incoming updates are handled at all, before they reach the dispatcher.
+ * <p>
+ * Three checks run in order. Updates whose {@code update_id} was already seen, as with
+ * webhook retries or a node replaying after a failover, are dropped. Each chat gets a
+ * sliding-window message budget, estimated from the counts of the current and the
+ * previous window; a chat over budget is dropped until it slows down, and is told so
+ * once per window. Inline queries are counted apart, against a larger budget, since
+ * Telegram sends one for nearly every keystroke of a search and for every further page
+ * of results; searching therefore never uses up the budget of the user's chat. Finally,
+ * when the chat's dispatch shard is backing up, new sessions are shed first and other
+ * commands next, while answers to forms in progress and button presses are always
+ * queued, so users already halfway through a ride keep going.
+ * <p>
+ * The counters live in a fixed table of packed {@code long}s updated with
+ * compare-and-set, so memory is bounded whatever the number of chats, and no lock is
+ * taken. Chats hashing to the same slot evict each other, which only resets a budget.
+ * Seen update ids are kept as a ring of bits over the most recent ids; an id older than
+ * the ring cannot be checked and is let through.
+ */
+public class IngressGuard {
+    /**
+     * What to do with an update.
+     */
+    public enum Verdict {
+        ACCEPT,
+        // Dropped because the chat is over its budget, for the first time this window
+        FLOODING,
+        DROP
+    }
+
+    // How much an update is worth keeping when the dispatcher is overloaded; lower
+    // ordinals are shed last.
+    enum Priority {
+        FORM,
+        COMMAND,
+        NEW_SESSION
+    }
+
+    // Slot layout: tag (15 bits) | warned (1) | window (16) | previous count (16) | current count (16)
+    private static final int COUNT_BITS = 16;
+    private static final long WARNED = 1L << 48;
+    private static final long COUNT_MASK = (1L << COUNT_BITS) - 1;
+    private static final long WINDOW_MASK = 0xFFFF;
+
+    private final ConversationStore conversations;
+    private final UpdateDispatcher dispatcher;
+    private final AtomicLongArray slots;
+    private final AtomicLongArray inlineSlots;
+    private final int slotMask;
+    private final long windowMillis;
+    private final int maxPerWindow;
+    private final int maxInlinePerWindow;
+
+    private final long[] seenIds;
+    private final int seenWindow;
+    private long maxSeenId = Long.MIN_VALUE;
+
+    private final LongAdder duplicates;
+    private final LongAdder flooded;
+    private final LongAdder inlineFlooded;
+    private final LongAdder[] shed = new LongAdder[Priority.values().length];
+
+    /**
+     * @param chatSlots          number of per-chat counters, rounded up to a power of two
+     * @param maxPerWindow       updates a chat may send per {@code windowMillis}
+     * @param maxInlinePerWindow inline queries a user may send per {@code windowMillis}
+     * @param seenWindow         number of most recent update ids remembered for deduplication
+     */
+    public IngressGuard(ConversationStore conversations, UpdateDispatcher dispatcher, int chatSlots,
+                        long windowMillis, int maxPerWindow, int maxInlinePerWindow, int seenWindow) {
+        this.conversations = conversations;
+        this.dispatcher = dispatcher;
+        int capacity = Integer.highestOneBit(Math.max(1, chatSlots - 1)) << 1;
+        this.slots = new AtomicLongArray(capacity);
+        this.inlineSlots = new AtomicLongArray(capacity);
+        this.slotMask = capacity - 1;
+        this.windowMillis = windowMillis;
+        this.maxPerWindow = maxPerWindow;
+        this.maxInlinePerWindow = maxInlinePerWindow;
+        this.seenWindow = Math.max(64, (seenWindow + 63) & ~63);
+        this.seenIds = new long[this.seenWindow / 64];
+
+        Metrics metrics = Metrics.getDefault();
+        String help = "Updates dropped before dispatch by reason";
+        this.duplicates = metrics.counter("ridebot_ingress_dropped_total", help, "reason", "duplicate");
+        this.flooded = metrics.counter("ridebot_ingress_dropped_total", help, "reason", "flood");
+        this.inlineFlooded = metrics.counter("ridebot_ingress_dropped_total", help, "reason", "inline_flood");
+        for (Priority priority : Priority.values()) {
+            shed[priority.ordinal()] = metrics.counter("ridebot_ingress_dropped_total", help,
+                    "reason", "shed_" + priority.name().toLowerCase(Locale.ROOT));
+        }
+    }
+
+    public Verdict admit(Update update) {
+        if (!firstDelivery(update.getUpdateId())) {
+            duplicates.increment();
+            return Verdict.DROP;
+        }
+        long chatId = UpdateDispatcher.chatIdOf(update);
+        if (chatId != 0) {
+            boolean inline = update.hasInlineQuery();
+            Verdict budget = inline
+                    ? count(inlineSlots, maxInlinePerWindow, chatId, System.currentTimeMillis())
+                    : count(slots, maxPerWindow, chatId, System.currentTimeMillis());
+            if (budget != Verdict.ACCEPT) {
+                (inline ? inlineFlooded : flooded).increment();
+                return budget;
+            }
+        }
+        Priority priority = priorityOf(update, chatId);
+        if (priority != Priority.FORM && overloaded(chatId, priority)) {
+            shed[priority.ordinal()].increment();
+            return Verdict.DROP;
+        }
+        return Verdict.ACCEPT;
+    }
+
+    /**
+     * Records an update id, returning {@code false} if it is among the remembered ids
+     * and was seen before.
+     */
+    synchronized boolean firstDelivery(Integer updateId) {
+        if (updateId == null) {
+            return true;
+        }
+        long id = updateId;
+        if (id > maxSeenId) {
+            if (maxSeenId == Long.MIN_VALUE || id - maxSeenId >= seenWindow) {
+                Arrays.fill(seenIds, 0L);
+            } else {
+                for (long cleared = maxSeenId + 1; cleared < id; cleared++) {
+                    clearSeen(cleared);
+                }
+            }
+            maxSeenId = id;
+            markSeen(id);
+            return true;
+        }
+        if (maxSeenId - id >= seenWindow) {
+            return true;
+        }
+        int bit = (int) Math.floorMod(id, (long) seenWindow);
+        long mask = 1L << bit;
+        if ((seenIds[bit >>> 6] & mask) != 0) {
+            return false;
+        }
+        seenIds[bit >>> 6] |= mask;
+        return true;
+    }
+
+    /**
+     * Counts a message of the chat against its budget in the given counters.
+     */
+    private Verdict count(AtomicLongArray slots, int maxPerWindow, long chatId, long nowMillis) {
+        long hash = ConversationStore.mix(chatId);
+        int index = (int) hash & slotMask;
+        long tag = hash >>> 49;
+        long window = nowMillis / windowMillis;
+        // Weight of the previous window: the part of it still inside the sliding window
+        long previousWeight = windowMillis - nowMillis % windowMillis;
+        while (true) {
+            long slot = slots.get(index);
+            long previous = 0;
+            long current = 0;
+            long warned = 0;
+            if (slot != 0 && (slot >>> 49) == tag) {
+                long slotWindow = (slot >>> 32) & WINDOW_MASK;
+                if (slotWindow == (window & WINDOW_MASK)) {
+                    previous = (slot >>> COUNT_BITS) & COUNT_MASK;
+                    current = slot & COUNT_MASK;
+                    warned = slot & WARNED;
+                } else if (slotWindow == ((window - 1) & WINDOW_MASK)) {
+                    previous = slot & COUNT_MASK;
+                }
+            }
+            boolean accepted = current + previous * previousWeight / windowMillis < maxPerWindow;
+            long updated = tag << 49 | (accepted ? warned : WARNED) | (window & WINDOW_MASK) << 32
+                    | previous << COUNT_BITS | Math.min(current + 1, COUNT_MASK);
+            if (slots.compareAndSet(index, slot, updated)) {
+                return accepted ? Verdict.ACCEPT : warned == 0 ? Verdict.FLOODING : Verdict.DROP;
+            }
+        }
+    }
+
+    private Priority priorityOf(Update update, long chatId) {
+        if (update.hasCallbackQuery()) {
+            return Priority.FORM;
+        }
+        if (!update.hasMessage() || !update.getMessage().hasText()) {
+            return Priority.NEW_SESSION;
+        }
+        String text = update.getMessage().getText();
+        if (text.startsWith("/start")) {
+            return Priority.NEW_SESSION;
+        }
+        if (text.startsWith("/")) {
+            return Priority.COMMAND;
+        }
+        // Free text only matters inside a form
+        return conversations.contains(chatId) ? Priority.FORM : Priority.NEW_SESSION;
+    }
+
+    // New sessions are shed once the chat's shard queue is half full, other commands
+    // once it is three quarters full.
+    private boolean overloaded(long chatId, Priority priority) {
+        int depth = dispatcher.queueDepth(chatId);
+        int capacity = dispatcher.getQueueCapacity();
+        return priority == Priority.NEW_SESSION ? depth * 2 >= capacity : depth * 4 >= capacity * 3;
+    }
+
+    private void markSeen(long id) {
+        int bit = (int) Math.floorMod(id, (long) seenWindow);
+        seenIds[bit >>> 6] |= 1L << bit;
+    }
+
+    private void clearSeen(long id) {
+        int bit = (int) Math.floorMod(id, (long) seenWindow);
+        seenIds[bit >>> 6] &= ~(1L << bit);
+    }
+}
@@ -0,0 +1,308 @@
+package com.example;
+
+/**
+ * Hand-written scanners for the answers users type into the ride forms.
+ * <p>
+ * Each parser walks the characters of its input once, without regular expressions,
+ * intermediate Strings or exceptions, and returns a {@link Result}: the parsed value, or
+ * the message explaining what is wrong with the input. Rejections are shared constants,
+ * so spam that fails validation costs a scan and nothing else. Leading and trailing
+ * whitespace is ignored everywhere.
+ */
+public final class InputParser {
+    public static final int MAX_PERSONS = 50;
+    public static final int MAX_PRICE_CENTS = 100_000_00;
+
+    private static final int MIN_PHONE_DIGITS = 10;
+    private static final int MAX_PHONE_DIGITS = 13;
+    private static final int MIN_USERNAME_LENGTH = 5;
+    private static final int MAX_USERNAME_LENGTH = 32;
+
+    /**
+     * The outcome of parsing one answer: a value if {@link #isValid()}, otherwise the
+     * message to reply with.
+     */
+    public static final class Result {
+        private static final Result[] ERRORS = new Result[MessageKey.values().length];
+        private static final Result VALID = new Result(0, null);
+
+        static {
+            for (MessageKey key : MessageKey.values()) {
+                ERRORS[key.ordinal()] = new Result(0, key);
+            }
+        }
+
+        private final long value;
+        private final MessageKey error;
+
+        private Result(long value, MessageKey error) {
+            this.value = value;
+            this.error = error;
+        }
+
+        static Result of(long value) {
+            return value == 0 ? VALID : new Result(value, null);
+        }
+
+        static Result error(MessageKey error) {
+            return ERRORS[error.ordinal()];
+        }
+
+        public boolean isValid() {
+            return error == null;
+        }
+
+        public long getValue() {
+            return value;
+        }
+
+        public MessageKey getError() {
+            return error;
+        }
+    }
+
+    private InputParser() {
+    }
+
+    /**
+     * Reads a number of persons from 1 to {@value #MAX_PERSONS}.
+     */
+    public static Result parsePersons(String text) {
+        int start = skipWhitespace(text, 0);
+        int end = trimEnd(text, start);
+        if (start == end) {
+            return Result.error(MessageKey.INVALID_NUMBER);
+        }
+        long persons = 0;
+        for (int i = start; i < end; i++) {
+            int digit = text.charAt(i) - '0';
+            if (digit < 0 || digit > 9) {
+                return Result.error(MessageKey.INVALID_NUMBER);
+            }
+            // Saturate rather than overflow; anything this large is out of range anyway
+            persons = Math.min(persons * 10 + digit, Integer.MAX_VALUE);
+        }
+        if (persons < 1 || persons > MAX_PERSONS) {
+            return Result.error(MessageKey.INVALID_PERSONS_RANGE);
+        }
+        return Result.of(persons);
+    }
+
+    /**
+     * Reads a price such as {@code 15}, {@code 12.5} or {@code 12,50}, in cents.
+     */
+    public static Result parsePrice(String text) {
+        int start = skipWhitespace(text, 0);
+        int end = trimEnd(text, start);
+        long cents = 0;
+        int i = start;
+        int digits = 0;
+        while (i < end && isDigit(text.charAt(i))) {
+            cents = Math.min(cents * 10 + (text.charAt(i++) - '0'), Integer.MAX_VALUE);
+            digits++;
+        }
+        cents *= 100;
+        if (i < end && (text.charAt(i) == '.' || text.charAt(i) == ',')) {
+            i++;
+            int decimals = 0;
+            while (i < end && isDigit(text.charAt(i))) {
+                if (++decimals > 2) {
+                    return Result.error(MessageKey.INVALID_PRICE);
+                }
+                cents += (text.charAt(i++) - '0') * (decimals == 1 ? 10 : 1);
+            }
+            digits += decimals;
+        }
+        if (digits == 0 || i != end) {
+            return Result.error(MessageKey.INVALID_PRICE);
+        }
+        if (cents > MAX_PRICE_CENTS) {
+            return Result.error(MessageKey.INVALID_PRICE_RANGE);
+        }
+        return Result.of(cents);
+    }
+
+    /**
+     * Reads a date as {@code d.M.yyyy}, {@code d/M/yyyy}, {@code d-M-yyyy} or
+     * {@code yyyy-M-d}, as a day counted from the epoch.
+     */
+    public static Result parseDate(String text) {
+        int start = skipWhitespace(text, 0);
+        int end = trimEnd(text, start);
+        int first = scanNumber(text, start, end);
+        int i = start + widthOf(first);
+        if (widthOf(first) == 0 || i == end) {
+            return Result.error(MessageKey.INVALID_DATE);
+        }
+        char separator = text.charAt(i++);
+        if (separator != '.' && separator != '/' && separator != '-') {
+            return Result.error(MessageKey.INVALID_DATE);
+        }
+        int second = scanNumber(text, i, end);
+        i += widthOf(second);
+        if (widthOf(second) == 0 || i == end || text.charAt(i++) != separator) {
+            return Result.error(MessageKey.INVALID_DATE);
+        }
+        int third = scanNumber(text, i, end);
+        i += widthOf(third);
+        boolean yearFirst = separator == '-' && widthOf(first) == 4;
+        int year = yearFirst ? first : third;
+        int day = yearFirst ? third : first;
+        if (i != end || widthOf(year) != 4 || widthOf(second) > 2 || widthOf(day) == 0 || widthOf(day) > 2) {
+            return Result.error(MessageKey.INVALID_DATE);
+        }
+        int month = valueOf(second);
+        if (month < 1 || month > 12 || valueOf(day) < 1 || valueOf(day) > daysInMonth(valueOf(year), month)) {
+            return Result.error(MessageKey.INVALID_DATE_NONEXISTENT);
+        }
+        return Result.of(epochDay(valueOf(year), month, valueOf(day)));
+    }
+
+    /**
+     * Reads a time as {@code H:mm}, {@code H.mm} or a whole hour {@code H}, in minutes
+     * since midnight.
+     */
+    public static Result parseTime(String text) {
+        int start = skipWhitespace(text, 0);
+        int end = trimEnd(text, start);
+        int i = start;
+        int hour = 0;
+        while (i < end && isDigit(text.charAt(i)) && i - start < 2) {
+            hour = hour * 10 + (text.charAt(i++) - '0');
+        }
+        if (i == start) {
+            return Result.error(MessageKey.INVALID_TIME);
+        }
+        int minute = 0;
+        if (i < end) {
+            char separator = text.charAt(i++);
+            if ((separator != ':' && separator != '.') || end - i != 2
+                    || !isDigit(text.charAt(i)) || !isDigit(text.charAt(i + 1))) {
+                return Result.error(MessageKey.INVALID_TIME);
+            }
+            minute = (text.charAt(i) - '0') * 10 + (text.charAt(i + 1) - '0');
+        }
+        if (hour > 23 || minute > 59) {
+            return Result.error(MessageKey.INVALID_TIME_RANGE);
+        }
+        return Result.of(hour * 60 + minute);
+    }
+
+    /**
+     * Checks a contact: a Telegram {@code @username} of 5 to 32 letters, digits or
+     * underscores starting with a letter, or a phone number of 10 to 13 digits with an
+     * optional leading {@code +}.
+     */
+    public static Result parseContact(String text) {
+        int start = skipWhitespace(text, 0);
+        int end = trimEnd(text, start);
+        if (start == end) {
+            return Result.error(MessageKey.INVALID_CONTACT);
+        }
+        char first = text.charAt(start);
+        if (first == '@') {
+            return checkUsername(text, start + 1, end);
+        }
+        if (first == '+' || isDigit(first)) {
+            return checkPhone(text, first == '+' ? start + 1 : start, end);
+        }
+        return Result.error(MessageKey.INVALID_CONTACT);
+    }
+
+    private static Result checkUsername(String text, int start, int end) {
+        int length = end - start;
+        if (length < MIN_USERNAME_LENGTH || length > MAX_USERNAME_LENGTH || !isLetter(text.charAt(start))) {
+            return Result.error(MessageKey.INVALID_USERNAME);
+        }
+        for (int i = start + 1; i < end; i++) {
+            char c = text.charAt(i);
+            if (!isLetter(c) && !isDigit(c) && c != '_') {
+                return Result.error(MessageKey.INVALID_USERNAME);
+            }
+        }
+        return Result.of(0);
+    }
+
+    private static Result checkPhone(String text, int start, int end) {
+        int length = end - start;
+        if (length < MIN_PHONE_DIGITS || length > MAX_PHONE_DIGITS) {
+            return Result.error(MessageKey.INVALID_PHONE);
+        }
+        for (int i = start; i < end; i++) {
+            if (!isDigit(text.charAt(i))) {
+                return Result.error(MessageKey.INVALID_PHONE);
+            }
+        }
+        return Result.of(0);
+    }
+
+    /**
+     * Returns the input without leading and trailing whitespace.
+     */
+    public static String trim(String text) {
+        int start = skipWhitespace(text, 0);
+        int end = trimEnd(text, start);
+        return start == 0 && end == text.length() ? text : text.substring(start, end);
+    }
+
+    // Reads up to four digits, packed as value * 8 + number of digits read.
+    private static int scanNumber(String text, int start, int end) {
+        int value = 0;
+        int i = start;
+        while (i < end && i - start < 4 && isDigit(text.charAt(i))) {
+            value = value * 10 + (text.charAt(i++) - '0');
+        }
+        return value << 3 | (i - start);
+    }
+
+    private static int valueOf(int number) {
+        return number >>> 3;
+    }
+
+    private static int widthOf(int number) {
+        return number & 7;
+    }
+
+    private static int skipWhitespace(String text, int from) {
+        int i = from;
+        while (i < text.length() && Character.isWhitespace(text.charAt(i))) {
+            i++;
+        }
+        return i;
+    }
+
+    private static int trimEnd(String text, int start) {
+        int end = text.length();
+        while (end > start && Character.isWhitespace(text.charAt(end - 1))) {
+            end--;
+        }
+        return end;
+    }
+
+    private static boolean isDigit(char c) {
+        return c >= '0' && c <= '9';
+    }
+
+    private static boolean isLetter(char c) {
+        return (c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z');
+    }
+
+    private static int daysInMonth(int year, int month) {
+        if (month == 2) {
+            boolean leap = (year % 4 == 0 && year % 100 != 0) || year % 400 == 0;
+            return leap ? 29 : 28;
+        }
+        return month == 4 || month == 6 || month == 9 || month == 11 ? 30 : 31;
+    }
+
+    // Days from 1970-01-01 to a valid date in the proleptic Gregorian calendar, as in
+    // LocalDate.toEpochDay.
+    private static long epochDay(int year, int month, int day) {
+        long y = month <= 2 ? year - 1 : year;
+        long era = Math.floorDiv(y, 400);
+        long yearOfEra = y - era * 400;
+        long dayOfYear = (153 * (month + (month > 2 ? -3 : 9)) + 2) / 5 + day - 1;
+        long dayOfEra = yearOfEra * 365 + yearOfEra / 4 - yearOfEra / 100 + dayOfYear;
+        return era * 146097 + dayOfEra - 719468;
+    }
+}
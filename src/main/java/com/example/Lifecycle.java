@@ -0,0 +1,100 @@
+package com.example;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Shuts the bot down in order when the process is asked to stop.
+ * <p>
+ * On SIGTERM, which Heroku sends before every restart, or any other JVM shutdown, the
+ * update sources stop first, so nothing new is accepted. The bot then {@linkplain
+ * RideShareBot#drain drains} what it already accepted, for at most the drain deadline,
+ * and {@linkplain RideShareBot#close checkpoints} its state to the ride log snapshot the
+ * next start recovers from. Services that only report on the bot, such as the metrics
+ * endpoint, stop last. Heroku kills a process 30 seconds after SIGTERM, so the deadline
+ * should leave a few seconds for the snapshot.
+ */
+public class Lifecycle {
+    private static final Logger logger = LoggerFactory.getLogger(Lifecycle.class);
+
+    private final RideShareBot bot;
+    private final long drainMillis;
+    private final List<Runnable> sources = new ArrayList<>();
+    private final List<Runnable> services = new ArrayList<>();
+    private boolean stopped;
+
+    public Lifecycle(RideShareBot bot, long drainMillis) {
+        this.bot = bot;
+        this.drainMillis = drainMillis;
+    }
+
+    /**
+     * Registers how to stop a source of updates, such as the long poller or the webhook
+     * server. Sources stop in the order they were added.
+     */
+    public synchronized void addSource(Runnable stop) {
+        sources.add(stop);
+    }
+
+    /**
+     * Registers how to stop a service that should keep running while the bot drains.
+     */
+    public synchronized void addService(Runnable stop) {
+        services.add(stop);
+    }
+
+    /**
+     * Runs {@link #stop} when the JVM shuts down.
+     */
+    public void installShutdownHook() {
+        Runtime.getRuntime().addShutdownHook(new Thread(this::stop, "shutdown"));
+    }
+
+    /**
+     * Stops the sources, drains the bot and checkpoints its state; only the first call
+     * does anything.
+     */
+    public synchronized void stop() {
+        if (stopped) {
+            return;
+        }
+        stopped = true;
+        long start = System.nanoTime();
+        logger.info("Shutting down, draining for at most {} ms", drainMillis);
+        stopAll(sources);
+        int unfinished = 0;
+        try {
+            unfinished = bot.drain(start + TimeUnit.MILLISECONDS.toNanos(drainMillis));
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            logger.warn("Interrupted while draining");
+        }
+        long drainedMillis = (System.nanoTime() - start) / 1_000_000;
+        try {
+            bot.close();
+        } catch (IOException | RuntimeException e) {
+            logger.error("Failed to checkpoint state on shutdown", e);
+        }
+        stopAll(services);
+        if (unfinished > 0) {
+            logger.warn("Drain deadline passed with {} updates, batches, alerts and sends unfinished; they are lost",
+                    unfinished);
+        }
+        logger.info("Shut down in {} ms, {} ms of them draining", (System.nanoTime() - start) / 1_000_000, drainedMillis);
+    }
+
+    private static void stopAll(List<Runnable> stops) {
+        for (Runnable stop : stops) {
+            try {
+                stop.run();
+            } catch (RuntimeException e) {
+                logger.error("Failed to stop {}", stop, e);
+            }
+        }
+    }
+}
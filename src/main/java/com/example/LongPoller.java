@@ -0,0 +1,126 @@
+package com.example;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.telegram.telegrambots.bots.DefaultAbsSender;
+import org.telegram.telegrambots.bots.DefaultBotOptions;
+import org.telegram.telegrambots.meta.api.methods.updates.GetUpdates;
+import org.telegram.telegrambots.meta.api.objects.Update;
+import org.telegram.telegrambots.meta.exceptions.TelegramApiException;
+
+import java.util.List;
+import java.util.function.Consumer;
+
+/**
+ * Receives updates by long polling {@code getUpdates} on a thread of its own.
+ * <p>
+ * Telegram keeps an update until a later {@code getUpdates} asks for an offset past it,
+ * and this poller only moves the offset past updates it handed to the consumer. When it
+ * is {@linkplain #stop stopped}, nothing more is handed over, and one last request that
+ * does not wait confirms what was; updates fetched but not handed over yet are delivered
+ * again to the next process instead of being lost. A request still waiting for updates
+ * is abandoned, and Telegram ends it when the confirming request arrives.
+ */
+public class LongPoller {
+    private static final Logger logger = LoggerFactory.getLogger(LongPoller.class);
+
+    private static final long BASE_BACKOFF_MILLIS = 500;
+    private static final long MAX_BACKOFF_MILLIS = 30_000;
+
+    private final DefaultAbsSender bot;
+    private final Consumer<Update> updates;
+    private final Thread worker;
+    private volatile boolean running = true;
+    // The id after the last update handed over, or 0 before the first; guarded by this
+    private int offset;
+
+    /**
+     * @param bot     sends the requests, with its options' {@code getUpdates} limit,
+     *                timeout and allowed updates
+     * @param updates receives every update, in order, typically the bot's dispatch path
+     */
+    public LongPoller(DefaultAbsSender bot, Consumer<Update> updates) {
+        this.bot = bot;
+        this.updates = updates;
+        // Not a daemon: in polling mode this thread is what keeps the process running
+        this.worker = new Thread(this::run, "long-poll");
+    }
+
+    public void start() {
+        worker.start();
+        logger.info("Polling for updates");
+    }
+
+    /**
+     * Stops handing over updates and confirms the ones handed over. Waits only for an
+     * update being handed over right now, not for a request in flight.
+     */
+    public void stop() {
+        int confirmed;
+        synchronized (this) {
+            running = false;
+            confirmed = offset;
+        }
+        worker.interrupt();
+        if (confirmed == 0) {
+            return;
+        }
+        GetUpdates confirm = new GetUpdates();
+        confirm.setOffset(confirmed);
+        confirm.setLimit(1);
+        confirm.setTimeout(0);
+        try {
+            bot.execute(confirm);
+        } catch (TelegramApiException e) {
+            logger.warn("Could not confirm handled updates, the next start receives updates before {} again: {}",
+                    confirmed, e.getMessage());
+        }
+    }
+
+    private void run() {
+        DefaultBotOptions options = bot.getOptions();
+        int failures = 0;
+        while (running) {
+            GetUpdates request = new GetUpdates();
+            synchronized (this) {
+                request.setOffset(offset);
+            }
+            request.setLimit(options.getGetUpdatesLimit());
+            request.setTimeout(options.getGetUpdatesTimeout());
+            request.setAllowedUpdates(options.getAllowedUpdates());
+            List<Update> batch;
+            try {
+                batch = bot.execute(request);
+                failures = 0;
+            } catch (TelegramApiException e) {
+                if (!running) {
+                    return;
+                }
+                long delay = Math.min(MAX_BACKOFF_MILLIS, BASE_BACKOFF_MILLIS << Math.min(failures++, 16));
+                logger.warn("Polling for updates failed, retrying in {} ms: {}", delay, e.getMessage());
+                try {
+                    Thread.sleep(delay);
+                } catch (InterruptedException interrupted) {
+                    return;
+                }
+                continue;
+            }
+            for (Update update : batch) {
+                if (!handOver(update)) {
+                    return;
+                }
+            }
+        }
+    }
+
+    // Holds the lock while the consumer runs, so stop() never confirms an update that
+    // is only half handed over.
+    private synchronized boolean handOver(Update update) {
+        if (!running) {
+            return false;
+        }
+        updates.accept(update);
+        offset = update.getUpdateId() + 1;
+        return true;
+    }
+}
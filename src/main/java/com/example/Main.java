@@ -1,26 +1,96 @@
 package com.example;
 
-import org.telegram.telegrambots.meta.TelegramBotsApi;
 import org.telegram.telegrambots.meta.exceptions.TelegramApiException;
-import org.telegram.telegrambots.updatesreceivers.DefaultBotSession;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.io.File;
+import java.io.IOException;
+import java.net.URI;
+import java.util.concurrent.TimeUnit;
+
 public class Main {
     private static final Logger logger = LoggerFactory.getLogger(Main.class);
 
     public static void main(String[] args) {
         try {
-            // Instantiate Telegram Bots API
-            TelegramBotsApi botsApi = new TelegramBotsApi(DefaultBotSession.class);
-
-            // Register our bot
             RideShareBot bot = new RideShareBot();
-            botsApi.registerBot(bot);
+
+            // On SIGTERM, work already accepted gets SHUTDOWN_DRAIN_SECONDS to finish
+            // before the state is checkpointed
+            Lifecycle lifecycle = new Lifecycle(bot,
+                    TimeUnit.SECONDS.toMillis(RideShareBot.envInt("SHUTDOWN_DRAIN_SECONDS", 20)));
+            lifecycle.installShutdownHook();
+
+            // UPDATE_MODE=webhook receives pushed updates instead of long polling
+            if ("webhook".equalsIgnoreCase(RideShareBot.env("UPDATE_MODE", "polling"))) {
+                startWebhook(bot, lifecycle);
+            } else {
+                // Telegram refuses getUpdates while a webhook is set
+                bot.clearWebhook();
+                LongPoller poller = new LongPoller(bot, bot::onUpdateReceived);
+                lifecycle.addSource(poller::stop);
+                poller.start();
+            }
 
             logger.info("Bot registered successfully");
+
+            // Nothing a user waits for needs the metrics endpoint, so it is only set up
+            // once updates are being received. METRICS_PORT exposes Prometheus metrics, on
+            // loopback unless METRICS_HOST says otherwise.
+            int metricsPort = RideShareBot.envInt("METRICS_PORT", 0);
+            if (metricsPort > 0) {
+                MetricsServer metricsServer = new MetricsServer(RideShareBot.env("METRICS_HOST", "127.0.0.1"),
+                        metricsPort, Metrics.getDefault());
+                lifecycle.addService(metricsServer::stop);
+                metricsServer.start();
+            }
         } catch (TelegramApiException e) {
             logger.error("Failed to register bot", e);
+        } catch (IOException e) {
+            logger.error("Failed to start HTTP server", e);
+        }
+    }
+
+    private static void startWebhook(RideShareBot bot, Lifecycle lifecycle) throws IOException, TelegramApiException {
+        String url = RideShareBot.env("WEBHOOK_URL", null);
+        if (url == null) {
+            throw new IllegalStateException("WEBHOOK_URL is required in webhook mode");
+        }
+        String secret = RideShareBot.env("WEBHOOK_SECRET", null);
+        String path = URI.create(url).getPath();
+        if (path == null || path.isEmpty()) {
+            path = "/";
         }
+        int port = RideShareBot.envInt("WEBHOOK_PORT", 8080);
+        int threads = RideShareBot.envInt("WEBHOOK_THREADS", 4);
+
+        // CLUSTER_STATE_DIR shared by several processes splits chats between them
+        String clusterDir = RideShareBot.env("CLUSTER_STATE_DIR", null);
+        WebhookServer server;
+        if (clusterDir != null) {
+            String nodeId = RideShareBot.env("CLUSTER_NODE_ID", "127.0.0.1:" + port);
+            ClusterNode node = bot.attachCluster(nodeId, new FileStateBackend(new File(clusterDir)), path, secret);
+            server = new WebhookServer(port, path, secret, threads, node::route, node::acceptForwarded);
+            server.start();
+            node.start();
+            // The node hands its chats over while the server still takes forwarded updates
+            lifecycle.addSource(() -> {
+                try {
+                    node.stop();
+                } catch (IOException e) {
+                    logger.error("Failed to leave the cluster", e);
+                }
+            });
+        } else {
+            server = new WebhookServer(port, path, secret, threads, bot::onUpdateReceived);
+            server.start();
+        }
+        // Telegram retries the updates it cannot deliver meanwhile with the next process
+        lifecycle.addSource(server::stop);
+
+        SetSecretWebhook setWebhook = new SetSecretWebhook(url, secret);
+        setWebhook.setMaxConnections(RideShareBot.envInt("WEBHOOK_MAX_CONNECTIONS", 40));
+        bot.execute(setWebhook);
     }
 }
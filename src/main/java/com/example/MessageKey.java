@@ -0,0 +1,88 @@
+package com.example;
+
+/**
+ * Every text the bot sends, keyed by its entry in {@code messages*.properties}. Keys
+ * that take ride fields declare the placeholder names their templates may use.
+ */
+public enum MessageKey {
+    WELCOME("welcome"),
+    DISCLAIMER("disclaimer"),
+    BUTTON_FIND_RIDE("button.find_ride"),
+    BUTTON_PUBLISH("button.publish"),
+    BUTTON_NEED_RIDE("button.need_ride"),
+    BUTTON_OFFER_RIDE("button.offer_ride"),
+    BUTTON_GO_TO_CHANNEL("button.go_to_channel"),
+    BUTTON_PREVIOUS_PAGE("button.previous_page"),
+    BUTTON_NEXT_PAGE("button.next_page"),
+    ASK_RIDE_OPTION("ask.ride_option"),
+    REDIRECTING_TO_CHANNEL("channel.redirecting"),
+    CHANNEL_LINK("channel.link"),
+    ASK_FROM_CITY("ask.from_city"),
+    ASK_TO_CITY("ask.to_city"),
+    ASK_PASSENGER_DATE("ask.passenger.date"),
+    ASK_PASSENGER_TIME("ask.passenger.time"),
+    ASK_PASSENGER_PERSONS("ask.passenger.persons"),
+    ASK_PASSENGER_CONTACT("ask.passenger.contact"),
+    ASK_DRIVER_DATE("ask.driver.date"),
+    ASK_DRIVER_TIME("ask.driver.time"),
+    ASK_DRIVER_PERSONS("ask.driver.persons"),
+    ASK_PRICE("ask.driver.price"),
+    ASK_CAR_MODEL("ask.driver.car_model"),
+    ASK_DRIVER_CONTACT("ask.driver.contact"),
+    INVALID_CITY("invalid.city"),
+    INVALID_DATE("invalid.date"),
+    INVALID_DATE_NONEXISTENT("invalid.date_nonexistent"),
+    INVALID_DATE_PAST("invalid.date_past"),
+    INVALID_DATE_TOO_FAR("invalid.date_too_far"),
+    INVALID_TIME("invalid.time"),
+    INVALID_TIME_RANGE("invalid.time_range"),
+    INVALID_NUMBER("invalid.number"),
+    INVALID_PERSONS_RANGE("invalid.persons_range"),
+    INVALID_PRICE("invalid.price"),
+    INVALID_PRICE_RANGE("invalid.price_range"),
+    INVALID_CONTACT("invalid.contact"),
+    INVALID_PHONE("invalid.phone"),
+    INVALID_USERNAME("invalid.username"),
+    SLOW_DOWN("slow_down"),
+    INLINE_SLOW_DOWN("inline_slow_down"),
+    PASSENGER_POSTED("posted.passenger"),
+    DRIVER_POSTED("posted.driver"),
+    POST_FAILED("posted.failed"),
+    MATCHES_FOR_DRIVER("matches.for_driver"),
+    MATCHES_FOR_PASSENGER("matches.for_passenger"),
+    MATCH_DRIVER("matches.driver", RideFields.NAMES),
+    MATCH_PASSENGER("matches.passenger", RideFields.NAMES),
+    POST_DRIVER("post.driver", RideFields.NAMES),
+    POST_PASSENGER("post.passenger", RideFields.NAMES),
+    POST_EXPIRED("post.expired"),
+    WATCH_USAGE("watch.usage"),
+    WATCH_INVALID_WINDOW("watch.invalid_window"),
+    WATCH_LIMIT("watch.limit"),
+    WATCH_ADDED("watch.added", Subscriptions.Subscription.NAMES),
+    WATCH_LIST("watch.list"),
+    WATCH_ITEM("watch.item", Subscriptions.Subscription.NAMES),
+    WATCH_REMOVED("watch.removed"),
+    WATCH_ALERT("watch.alert"),
+    SEARCH_USAGE("search.usage"),
+    SEARCH_RESULTS("search.results"),
+    SEARCH_NONE("search.none"),
+    SEARCH_TITLE("search.title", RideFields.NAMES),
+    SEARCH_DRIVER("search.driver", RideFields.NAMES),
+    SEARCH_PASSENGER("search.passenger", RideFields.NAMES);
+
+    private final String key;
+    private final String[] fieldNames;
+
+    MessageKey(String key, String... fieldNames) {
+        this.key = key;
+        this.fieldNames = fieldNames;
+    }
+
+    public String key() {
+        return key;
+    }
+
+    String[] fieldNames() {
+        return fieldNames;
+    }
+}
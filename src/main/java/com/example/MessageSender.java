@@ -0,0 +1,329 @@
+package com.example;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.telegram.telegrambots.meta.api.methods.BotApiMethod;
+import org.telegram.telegrambots.meta.bots.AbsSender;
+import org.telegram.telegrambots.meta.exceptions.TelegramApiException;
+import org.telegram.telegrambots.meta.exceptions.TelegramApiRequestException;
+
+import java.io.Serializable;
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Non-blocking outbound pipeline on top of {@link AbsSender#executeAsync}.
+ * <p>
+ * Sends are spread over lanes by target chat. A lane has at most one request in flight
+ * and starts the next one from the completion callback of the previous, so replies to
+ * one chat arrive in order while different chats are sent concurrently. Channel posts
+ * and bulk notifications have lanes of their own, so a send held back by a channel's much
+ * lower rate limit, or by its lower priority, never delays replies sharing its lane.
+ * Transient failures (network errors, 5xx, 429) are retried with exponential backoff; a
+ * 429 instead waits out the {@code retry_after} Telegram asked for. While a send waits
+ * for its retry, its lane goes on with other chats, and later sends to the same chat wait
+ * behind it. Every call is released through the {@link SendScheduler}, which keeps it
+ * within Telegram's rate limits. The total number of queued and in-flight sends is
+ * bounded; callers only wait when that bound is reached, never on network I/O. Results
+ * are completed on a thread of their own, so a callback that queues another send and
+ * waits for room never holds up the HTTP client threads whose calls make that room. Each
+ * API call's round-trip time and outcome is recorded in {@link Metrics} by method.
+ */
+public class MessageSender {
+    private static final Logger logger = LoggerFactory.getLogger(MessageSender.class);
+
+    private static final long BASE_BACKOFF_MILLIS = 250;
+    private static final long MAX_BACKOFF_MILLIS = 30_000;
+    private static final ConcurrentHashMap<String, CallMetrics> callMetrics = new ConcurrentHashMap<>();
+    private static final LongAdder dropped = Metrics.getDefault()
+            .counter("ridebot_telegram_sends_failed_total", "Sends given up after their last attempt");
+
+    private final AbsSender bot;
+    private final SendScheduler scheduler;
+    // By priority; replies get laneCount lanes, the others an eighth as many
+    private final Lane[][] lanes = new Lane[SendScheduler.Priority.values().length][];
+    private final Semaphore capacity;
+    // Sends queued, in flight or running their completion callbacks
+    private final AtomicInteger unfinished = new AtomicInteger();
+    private final int maxAttempts;
+    private final ScheduledExecutorService retryScheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread thread = new Thread(r, "outbound-retry");
+        thread.setDaemon(true);
+        return thread;
+    });
+    private final ExecutorService callbacks = Executors.newSingleThreadExecutor(r -> {
+        Thread thread = new Thread(r, "outbound-callbacks");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    public MessageSender(AbsSender bot, SendScheduler scheduler, int laneCount, int queueCapacity, int maxAttempts) {
+        this.bot = bot;
+        this.scheduler = scheduler;
+        this.capacity = new Semaphore(queueCapacity);
+        this.maxAttempts = maxAttempts;
+        for (SendScheduler.Priority priority : SendScheduler.Priority.values()) {
+            Lane[] forPriority = new Lane[priority == SendScheduler.Priority.INTERACTIVE ? laneCount : Math.max(1, laneCount / 8)];
+            for (int i = 0; i < forPriority.length; i++) {
+                forPriority[i] = new Lane();
+            }
+            lanes[priority.ordinal()] = forPriority;
+        }
+    }
+
+    /**
+     * Queues an interactive reply for delivery to {@code chatId}. The returned future
+     * completes with the API result, or exceptionally once retries are exhausted.
+     */
+    public <T extends Serializable> CompletableFuture<T> send(String chatId, BotApiMethod<T> method) {
+        return send(chatId, method, SendScheduler.Priority.INTERACTIVE);
+    }
+
+    /**
+     * Queues a channel post; these yield to interactive replies when the budget is short.
+     */
+    public <T extends Serializable> CompletableFuture<T> broadcast(String chatId, BotApiMethod<T> method) {
+        return send(chatId, method, SendScheduler.Priority.BROADCAST);
+    }
+
+    /**
+     * Queues a notification the user did not just ask for; these only use the budget left
+     * over by replies and channel posts.
+     */
+    public <T extends Serializable> CompletableFuture<T> bulk(String chatId, BotApiMethod<T> method) {
+        return send(chatId, method, SendScheduler.Priority.BULK);
+    }
+
+    private <T extends Serializable> CompletableFuture<T> send(String chatId, BotApiMethod<T> method,
+                                                               SendScheduler.Priority priority) {
+        CompletableFuture<T> result = new CompletableFuture<>();
+        try {
+            capacity.acquire();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            result.completeExceptionally(e);
+            return result;
+        }
+        unfinished.incrementAndGet();
+        Lane[] candidates = lanes[priority.ordinal()];
+        Lane lane = candidates[(chatId.hashCode() & Integer.MAX_VALUE) % candidates.length];
+        lane.enqueue(new Pending<>(chatId, priority, method, result));
+        return result;
+    }
+
+    /**
+     * Returns the number of sends not finished yet. A send counts until the callbacks on
+     * its result have run, so sends those callbacks queue in turn are never missed by a
+     * caller waiting for this to reach zero.
+     */
+    public int pending() {
+        return unfinished.get();
+    }
+
+    public void shutdown() {
+        retryScheduler.shutdownNow();
+        callbacks.shutdown();
+    }
+
+    private static boolean isTransient(Throwable error) {
+        if (error instanceof TelegramApiRequestException) {
+            Integer code = ((TelegramApiRequestException) error).getErrorCode();
+            return code == null || code == 0 || code == 429 || code >= 500;
+        }
+        return error instanceof TelegramApiException;
+    }
+
+    private static long retryAfterMillis(Throwable error) {
+        if (error instanceof TelegramApiRequestException) {
+            TelegramApiRequestException requestError = (TelegramApiRequestException) error;
+            if (requestError.getParameters() != null && requestError.getParameters().getRetryAfter() != null) {
+                return TimeUnit.SECONDS.toMillis(requestError.getParameters().getRetryAfter());
+            }
+        }
+        return -1;
+    }
+
+    private static long backoffMillis(int attempt) {
+        return Math.min(MAX_BACKOFF_MILLIS, BASE_BACKOFF_MILLIS << Math.min(attempt - 1, 16));
+    }
+
+    private static final class CallMetrics {
+        final LatencyHistogram roundTrip;
+        final LongAdder ok;
+        final LongAdder failed;
+        final LongAdder rateLimited;
+
+        CallMetrics(String method) {
+            Metrics metrics = Metrics.getDefault();
+            this.roundTrip = metrics.histogram("ridebot_telegram_request_seconds",
+                    "Round-trip time of Bot API calls", "method", method);
+            String help = "Bot API call attempts by outcome";
+            this.ok = metrics.counter("ridebot_telegram_requests_total", help, "method", method, "outcome", "ok");
+            this.failed = metrics.counter("ridebot_telegram_requests_total", help, "method", method, "outcome", "error");
+            this.rateLimited = metrics.counter("ridebot_telegram_requests_total", help, "method", method, "outcome", "rate_limited");
+        }
+    }
+
+    private static final class Pending<T extends Serializable> {
+        final String chatId;
+        final SendScheduler.Priority priority;
+        final BotApiMethod<T> method;
+        final CompletableFuture<T> result;
+        int attempts;
+
+        Pending(String chatId, SendScheduler.Priority priority, BotApiMethod<T> method, CompletableFuture<T> result) {
+            this.chatId = chatId;
+            this.priority = priority;
+            this.method = method;
+            this.result = result;
+        }
+    }
+
+    private final class Lane {
+        private final ArrayDeque<Pending<?>> queue = new ArrayDeque<>();
+        // Chats waiting out a retry, with the sends queued for them meanwhile
+        private final Map<String, ArrayDeque<Pending<?>>> held = new HashMap<>();
+        private boolean busy;
+
+        void enqueue(Pending<?> pending) {
+            synchronized (this) {
+                ArrayDeque<Pending<?>> waiting = held.get(pending.chatId);
+                if (waiting != null) {
+                    waiting.add(pending);
+                    return;
+                }
+                if (busy) {
+                    queue.add(pending);
+                    return;
+                }
+                busy = true;
+            }
+            start(pending);
+        }
+
+        private void next() {
+            Pending<?> pending;
+            synchronized (this) {
+                pending = queue.poll();
+                if (pending == null) {
+                    busy = false;
+                    return;
+                }
+            }
+            start(pending);
+        }
+
+        // Sets the chat's sends aside until the failed one is retried, and goes on with
+        // the other chats meanwhile.
+        private void hold(Pending<?> failed, long delayMillis) {
+            synchronized (this) {
+                ArrayDeque<Pending<?>> waiting = new ArrayDeque<>();
+                for (Iterator<Pending<?>> queued = queue.iterator(); queued.hasNext(); ) {
+                    Pending<?> pending = queued.next();
+                    if (pending.chatId.equals(failed.chatId)) {
+                        waiting.add(pending);
+                        queued.remove();
+                    }
+                }
+                held.put(failed.chatId, waiting);
+            }
+            retryScheduler.schedule(() -> resume(failed), delayMillis, TimeUnit.MILLISECONDS);
+            next();
+        }
+
+        // Puts the retried send and the ones held behind it at the head of the queue.
+        private void resume(Pending<?> failed) {
+            synchronized (this) {
+                ArrayDeque<Pending<?>> waiting = held.remove(failed.chatId);
+                for (Iterator<Pending<?>> last = waiting.descendingIterator(); last.hasNext(); ) {
+                    queue.addFirst(last.next());
+                }
+                if (busy) {
+                    queue.addFirst(failed);
+                    return;
+                }
+                busy = true;
+            }
+            start(failed);
+        }
+
+        private <T extends Serializable> void start(Pending<T> pending) {
+            scheduler.submit(pending.chatId, pending.priority, () -> execute(pending));
+        }
+
+        private <T extends Serializable> void execute(Pending<T> pending) {
+            pending.attempts++;
+            CallMetrics metrics = callMetrics.computeIfAbsent(pending.method.getMethod(), CallMetrics::new);
+            long start = System.nanoTime();
+            CompletableFuture<T> call;
+            try {
+                call = bot.executeAsync(pending.method);
+            } catch (TelegramApiException e) {
+                call = new CompletableFuture<>();
+                call.completeExceptionally(e);
+            }
+            call.whenComplete((value, error) -> {
+                metrics.roundTrip.recordSince(start);
+                if (error == null) {
+                    metrics.ok.increment();
+                    finish(pending, value, null);
+                    return;
+                }
+                Throwable cause = error instanceof CompletionException && error.getCause() != null ? error.getCause() : error;
+                long retryAfter = retryAfterMillis(cause);
+                (retryAfter >= 0 ? metrics.rateLimited : metrics.failed).increment();
+                if (pending.attempts < maxAttempts && isTransient(cause)) {
+                    if (retryAfter >= 0) {
+                        logger.warn("Rate limited sending {} to {}, retrying after {} ms",
+                                pending.method.getMethod(), pending.chatId, retryAfter);
+                        scheduler.backOff(pending.chatId, retryAfter);
+                        hold(pending, retryAfter);
+                        return;
+                    }
+                    long delay = backoffMillis(pending.attempts);
+                    logger.warn("Send {} failed (attempt {}), retrying in {} ms: {}",
+                            pending.method.getMethod(), pending.attempts, delay, cause.getMessage());
+                    hold(pending, delay);
+                } else {
+                    dropped.increment();
+                    finish(pending, null, cause);
+                }
+            });
+        }
+
+        private <T extends Serializable> void finish(Pending<T> pending, T value, Throwable error) {
+            capacity.release();
+            next();
+            Runnable complete = () -> {
+                try {
+                    if (error == null) {
+                        pending.result.complete(value);
+                    } else {
+                        pending.result.completeExceptionally(error);
+                    }
+                } finally {
+                    unfinished.decrementAndGet();
+                }
+            };
+            try {
+                callbacks.execute(complete);
+            } catch (RejectedExecutionException e) {
+                // Shut down; nothing is left to wait for room
+                complete.run();
+            }
+        }
+    }
+}
@@ -0,0 +1,119 @@
+package com.example;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * A message text compiled once into alternating literal segments and field slots.
+ * <p>
+ * Placeholders are written {@code {name}} and resolved against the field names given at
+ * compile time; a doubled opening brace produces a literal one. Rendering walks the
+ * segments and asks a {@link Fields} source to append each value straight into a
+ * per-thread builder, so a render allocates only the resulting String.
+ */
+public final class MessageTemplate {
+    private static final int POOLED_CAPACITY = 1024;
+    private static final int MAX_POOLED_CAPACITY = 16 * 1024;
+    private static final ThreadLocal<StringBuilder> BUILDERS =
+            ThreadLocal.withInitial(() -> new StringBuilder(POOLED_CAPACITY));
+
+    /**
+     * Supplies the value of a field slot by appending it to the output.
+     */
+    public interface Fields {
+        void appendField(int field, StringBuilder out);
+    }
+
+    private final String[] literals;
+    private final int[] fields;
+    private final int sizeHint;
+    private final String constant;
+
+    private MessageTemplate(String[] literals, int[] fields) {
+        this.literals = literals;
+        this.fields = fields;
+        int length = 0;
+        for (String literal : literals) {
+            length += literal.length();
+        }
+        this.sizeHint = length + fields.length * 16;
+        this.constant = fields.length == 0 ? literals[0] : null;
+    }
+
+    /**
+     * Compiles a pattern whose placeholders must all be among {@code fieldNames}; a
+     * placeholder's slot is the index of its name in that array.
+     */
+    public static MessageTemplate compile(String pattern, String... fieldNames) {
+        List<String> literals = new ArrayList<>();
+        int[] fields = new int[8];
+        int fieldCount = 0;
+        StringBuilder literal = new StringBuilder();
+        int i = 0;
+        while (i < pattern.length()) {
+            char c = pattern.charAt(i);
+            if (c != '{') {
+                literal.append(c);
+                i++;
+                continue;
+            }
+            if (pattern.startsWith("{{", i)) {
+                literal.append('{');
+                i += 2;
+                continue;
+            }
+            int end = pattern.indexOf('}', i);
+            if (end < 0) {
+                throw new IllegalArgumentException("Unclosed placeholder at " + i + " in: " + pattern);
+            }
+            String name = pattern.substring(i + 1, end).trim();
+            int field = Arrays.asList(fieldNames).indexOf(name);
+            if (field < 0) {
+                throw new IllegalArgumentException("Unknown placeholder {" + name + "} in: " + pattern);
+            }
+            if (fieldCount == fields.length) {
+                fields = Arrays.copyOf(fields, fieldCount * 2);
+            }
+            fields[fieldCount++] = field;
+            literals.add(literal.toString());
+            literal.setLength(0);
+            i = end + 1;
+        }
+        literals.add(literal.toString());
+        return new MessageTemplate(literals.toArray(new String[0]), Arrays.copyOf(fields, fieldCount));
+    }
+
+    /**
+     * Returns the text of a template without placeholders.
+     */
+    public String text() {
+        if (constant == null) {
+            throw new IllegalStateException("Template has placeholders and needs field values");
+        }
+        return constant;
+    }
+
+    public String render(Fields values) {
+        if (constant != null) {
+            return constant;
+        }
+        StringBuilder out = BUILDERS.get();
+        out.setLength(0);
+        out.ensureCapacity(sizeHint);
+        renderTo(out, values);
+        String text = out.toString();
+        if (out.capacity() > MAX_POOLED_CAPACITY) {
+            BUILDERS.set(new StringBuilder(POOLED_CAPACITY));
+        }
+        return text;
+    }
+
+    public void renderTo(StringBuilder out, Fields values) {
+        out.append(literals[0]);
+        for (int i = 0; i < fields.length; i++) {
+            values.appendField(fields[i], out);
+            out.append(literals[i + 1]);
+        }
+    }
+}
@@ -0,0 +1,114 @@
+package com.example;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Locale;
+import java.util.Properties;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * The compiled message templates of one language.
+ * <p>
+ * English texts are read from {@code messages.properties} and compiled when the class is
+ * loaded; a missing or malformed entry fails startup. Another language is loaded from
+ * {@code messages_<language>.properties} the first time a user with that Telegram
+ * language code shows up. Entries it does not translate, and languages without a file,
+ * fall back to English. Templates are looked up by {@link MessageKey} ordinal.
+ */
+public final class Messages {
+    public static final String DEFAULT_LANGUAGE = "en";
+
+    private static final Messages DEFAULT = load(DEFAULT_LANGUAGE, "messages.properties", null);
+    private static final ConcurrentHashMap<String, Messages> BY_LANGUAGE = new ConcurrentHashMap<>();
+
+    static {
+        BY_LANGUAGE.put(DEFAULT_LANGUAGE, DEFAULT);
+    }
+
+    private final String language;
+    private final MessageTemplate[] templates;
+
+    private Messages(String language, MessageTemplate[] templates) {
+        this.language = language;
+        this.templates = templates;
+    }
+
+    public static Messages getDefault() {
+        return DEFAULT;
+    }
+
+    /**
+     * Returns the templates for a Telegram {@code language_code} such as {@code de} or
+     * {@code pt-br}; only the primary subtag is used.
+     */
+    public static Messages forLanguage(String languageCode) {
+        String language = primaryLanguage(languageCode);
+        if (language == null) {
+            return DEFAULT;
+        }
+        Messages messages = BY_LANGUAGE.get(language);
+        return messages != null ? messages : BY_LANGUAGE.computeIfAbsent(language,
+                code -> load(code, "messages_" + code + ".properties", DEFAULT));
+    }
+
+    public String getLanguage() {
+        return language;
+    }
+
+    public MessageTemplate get(MessageKey key) {
+        return templates[key.ordinal()];
+    }
+
+    public String text(MessageKey key) {
+        return templates[key.ordinal()].text();
+    }
+
+    public String render(MessageKey key, MessageTemplate.Fields fields) {
+        return templates[key.ordinal()].render(fields);
+    }
+
+    private static String primaryLanguage(String languageCode) {
+        if (languageCode == null) {
+            return null;
+        }
+        int end = 0;
+        while (end < languageCode.length() && end < 4 && Character.isLetter(languageCode.charAt(end))) {
+            end++;
+        }
+        if (end < 2 || end > 3) {
+            return null;
+        }
+        return languageCode.substring(0, end).toLowerCase(Locale.ROOT);
+    }
+
+    private static Messages load(String language, String resource, Messages fallback) {
+        Properties properties = new Properties();
+        try (InputStream in = Messages.class.getClassLoader().getResourceAsStream(resource)) {
+            if (in == null) {
+                if (fallback == null) {
+                    throw new IllegalStateException("Missing message bundle " + resource);
+                }
+                return fallback;
+            }
+            properties.load(new InputStreamReader(in, StandardCharsets.UTF_8));
+        } catch (IOException e) {
+            throw new UncheckedIOException("Failed to read message bundle " + resource, e);
+        }
+        MessageKey[] keys = MessageKey.values();
+        MessageTemplate[] templates = new MessageTemplate[keys.length];
+        for (MessageKey key : keys) {
+            String pattern = properties.getProperty(key.key());
+            if (pattern != null) {
+                templates[key.ordinal()] = MessageTemplate.compile(pattern, key.fieldNames());
+            } else if (fallback != null) {
+                templates[key.ordinal()] = fallback.get(key);
+            } else {
+                throw new IllegalStateException("Missing message " + key.key() + " in " + resource);
+            }
+        }
+        return new Messages(language, templates);
+    }
+}
@@ -0,0 +1,152 @@
+package com.example;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.LongSupplier;
+
+/**
+ * Registry of the bot's counters, gauges and latency histograms, rendered in the
+ * Prometheus text format.
+ * <p>
+ * Metrics are registered once, by name and label pairs, and the returned instance is kept
+ * by the caller, so recording never touches the registry. Counters are {@link LongAdder}s
+ * and histograms {@link LatencyHistogram}s, both cheap under contention. Gauges and
+ * counters already kept elsewhere are read through a {@link LongSupplier} when scraped.
+ * Histograms are exported as summaries in seconds.
+ */
+public final class Metrics {
+    private static final Metrics DEFAULT = new Metrics();
+    private static final double[] QUANTILES = {0.5, 0.9, 0.99, 0.999};
+
+    private final Map<String, Family> families = new ConcurrentSkipListMap<>();
+
+    public static Metrics getDefault() {
+        return DEFAULT;
+    }
+
+    /**
+     * Returns the counter with the given name and {@code key, value} label pairs,
+     * registering it on first use.
+     */
+    public LongAdder counter(String name, String help, String... labels) {
+        return (LongAdder) family(name, help, Type.COUNTER).series.computeIfAbsent(labels(labels), key -> new LongAdder());
+    }
+
+    public LatencyHistogram histogram(String name, String help, String... labels) {
+        return (LatencyHistogram) family(name, help, Type.SUMMARY).series.computeIfAbsent(labels(labels), key -> new LatencyHistogram());
+    }
+
+    /**
+     * Registers a gauge read when scraped; registering the same series again replaces it.
+     */
+    public void gauge(String name, String help, LongSupplier value, String... labels) {
+        family(name, help, Type.GAUGE).series.put(labels(labels), value);
+    }
+
+    /**
+     * Registers a counter kept by someone else, read when scraped.
+     */
+    public void counter(String name, String help, LongSupplier value, String... labels) {
+        family(name, help, Type.COUNTER).series.put(labels(labels), value);
+    }
+
+    public String scrape() {
+        StringBuilder out = new StringBuilder(4096);
+        for (Map.Entry<String, Family> entry : families.entrySet()) {
+            entry.getValue().writeTo(entry.getKey(), out);
+        }
+        return out.toString();
+    }
+
+    private Family family(String name, String help, Type type) {
+        Family family = families.computeIfAbsent(name, key -> new Family(help, type));
+        if (family.type != type) {
+            throw new IllegalArgumentException("Metric " + name + " is already registered as a " + family.type.text);
+        }
+        return family;
+    }
+
+    // Renders label pairs once, at registration, as the {k="v",...} suffix of a series.
+    private static String labels(String... labels) {
+        if (labels.length % 2 != 0) {
+            throw new IllegalArgumentException("Labels must be key, value pairs");
+        }
+        if (labels.length == 0) {
+            return "";
+        }
+        StringBuilder out = new StringBuilder("{");
+        for (int i = 0; i < labels.length; i += 2) {
+            if (i > 0) {
+                out.append(',');
+            }
+            out.append(labels[i]).append("=\"");
+            String value = labels[i + 1];
+            for (int c = 0; c < value.length(); c++) {
+                char ch = value.charAt(c);
+                if (ch == '\\' || ch == '"') {
+                    out.append('\\').append(ch);
+                } else if (ch == '\n') {
+                    out.append("\\n");
+                } else {
+                    out.append(ch);
+                }
+            }
+            out.append('"');
+        }
+        return out.append('}').toString();
+    }
+
+    private enum Type {
+        COUNTER("counter"), GAUGE("gauge"), SUMMARY("summary");
+
+        final String text;
+
+        Type(String text) {
+            this.text = text;
+        }
+    }
+
+    private static final class Family {
+        final String help;
+        final Type type;
+        final Map<String, Object> series = new ConcurrentHashMap<>();
+
+        Family(String help, Type type) {
+            this.help = help;
+            this.type = type;
+        }
+
+        void writeTo(String name, StringBuilder out) {
+            out.append("# HELP ").append(name).append(' ').append(help).append('\n');
+            out.append("# TYPE ").append(name).append(' ').append(type.text).append('\n');
+            for (Map.Entry<String, Object> entry : series.entrySet()) {
+                String labels = entry.getKey();
+                Object metric = entry.getValue();
+                if (metric instanceof LongAdder) {
+                    out.append(name).append(labels).append(' ').append(((LongAdder) metric).sum()).append('\n');
+                } else if (metric instanceof LongSupplier) {
+                    out.append(name).append(labels).append(' ').append(((LongSupplier) metric).getAsLong()).append('\n');
+                } else {
+                    writeSummary(name, labels, (LatencyHistogram) metric, out);
+                }
+            }
+        }
+
+        private static void writeSummary(String name, String labels, LatencyHistogram histogram, StringBuilder out) {
+            double[] percentiles = new double[QUANTILES.length];
+            for (int i = 0; i < QUANTILES.length; i++) {
+                percentiles[i] = QUANTILES[i] * 100;
+            }
+            long[] values = histogram.percentiles(percentiles);
+            String prefix = labels.isEmpty() ? "{" : labels.substring(0, labels.length() - 1) + ",";
+            for (int i = 0; i < QUANTILES.length; i++) {
+                out.append(name).append(prefix).append("quantile=\"").append(QUANTILES[i]).append("\"} ")
+                        .append(values[i] / 1e9).append('\n');
+            }
+            out.append(name).append("_sum").append(labels).append(' ').append(histogram.sumNanos() / 1e9).append('\n');
+            out.append(name).append("_count").append(labels).append(' ').append(histogram.count()).append('\n');
+        }
+    }
+}
@@ -0,0 +1,144 @@
+package com.example;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.telegram.telegrambots.meta.api.methods.send.SendMessage;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Tells the watchers of a route about each new ride on it.
+ * <p>
+ * New rides are queued and fanned out on a thread of their own, so a route with tens of
+ * thousands of watchers never holds up update handling. The alert is rendered once per
+ * language for the whole batch of recipients, and each message goes to the
+ * {@link MessageSender} as a bulk send, which only uses rate limit budget that replies
+ * and channel posts leave over. At most {@code maxInFlight} alerts are queued in the
+ * sender at a time, so they cannot fill its queue either; the fan-out thread waits
+ * instead. When more rides arrive than can wait, the newest are not alerted.
+ */
+public class RideAlerts {
+    private static final Logger logger = LoggerFactory.getLogger(RideAlerts.class);
+
+    private final MessageSender sender;
+    private final Subscriptions subscriptions;
+    private final String botUsername;
+    private final BlockingQueue<RideDetails> rides;
+    private final Semaphore inFlight;
+    // Rides queued or being fanned out
+    private final AtomicInteger unfinished = new AtomicInteger();
+    private final Thread worker;
+    private volatile boolean running = true;
+
+    private final LongAdder sent;
+    private final LongAdder failed;
+    private final LongAdder dropped;
+
+    public RideAlerts(MessageSender sender, Subscriptions subscriptions, String botUsername,
+                      int queueCapacity, int maxInFlight) {
+        this.sender = sender;
+        this.subscriptions = subscriptions;
+        this.botUsername = botUsername;
+        this.rides = new ArrayBlockingQueue<>(queueCapacity);
+        this.inFlight = new Semaphore(maxInFlight);
+
+        Metrics metrics = Metrics.getDefault();
+        String help = "Ride alerts to route watchers by outcome";
+        this.sent = metrics.counter("ridebot_alerts_total", help, "outcome", "sent");
+        this.failed = metrics.counter("ridebot_alerts_total", help, "outcome", "failed");
+        this.dropped = metrics.counter("ridebot_alert_rides_dropped_total", "New rides not alerted because the queue was full");
+        metrics.gauge("ridebot_alert_queue_depth", "New rides waiting to be alerted", rides::size);
+        metrics.gauge("ridebot_subscriptions", "Route subscriptions", subscriptions::size);
+
+        this.worker = new Thread(this::run, "ride-alerts");
+        this.worker.setDaemon(true);
+        this.worker.start();
+    }
+
+    /**
+     * Queues a newly published ride for alerting its route's watchers.
+     */
+    public void rideAdded(RideDetails ride) {
+        unfinished.incrementAndGet();
+        if (!rides.offer(ride)) {
+            unfinished.decrementAndGet();
+            dropped.increment();
+        }
+    }
+
+    /**
+     * Returns the number of rides whose alerts are not all handed to the sender yet.
+     */
+    public int pending() {
+        return unfinished.get();
+    }
+
+    public void shutdown() {
+        running = false;
+        worker.interrupt();
+    }
+
+    /**
+     * Waits for the worker to stop after {@link #shutdown}, returning {@code false} if it
+     * is still running when the timeout passes.
+     */
+    public boolean awaitTermination(long timeout, TimeUnit unit) throws InterruptedException {
+        worker.join(Math.max(1, unit.toMillis(timeout)));
+        return !worker.isAlive();
+    }
+
+    private void run() {
+        while (running) {
+            RideDetails ride;
+            try {
+                ride = rides.take();
+            } catch (InterruptedException e) {
+                return;
+            }
+            try {
+                fanOut(ride);
+            } catch (InterruptedException e) {
+                return;
+            } catch (RuntimeException e) {
+                logger.error("Failed to alert watchers", e);
+            } finally {
+                unfinished.decrementAndGet();
+            }
+        }
+    }
+
+    private void fanOut(RideDetails ride) throws InterruptedException {
+        Subscriptions.Recipients recipients = subscriptions.match(ride);
+        Map<String, String> texts = new HashMap<>(4);
+        for (int i = 0; i < recipients.size; i++) {
+            long chatId = recipients.chatIds[i];
+            if (chatId == ride.getChatId()) {
+                continue;
+            }
+            String text = texts.computeIfAbsent(recipients.languages[i], language -> render(ride, language));
+            // Contacts are user input, so send as plain text rather than markdown.
+            SendMessage message = RideShareBot.createMessage(Long.toString(chatId), text);
+            message.setParseMode(null);
+            inFlight.acquire();
+            sender.bulk(message.getChatId(), message).whenComplete((posted, error) -> {
+                inFlight.release();
+                (error == null ? sent : failed).increment();
+            });
+        }
+    }
+
+    private String render(RideDetails ride, String language) {
+        Messages messages = Messages.forLanguage(language);
+        StringBuilder text = new StringBuilder(messages.text(MessageKey.WATCH_ALERT));
+        messages.get(ride.getType() == RideType.DRIVER ? MessageKey.POST_DRIVER : MessageKey.POST_PASSENGER)
+                .renderTo(text, new RideFields(ride, botUsername));
+        return text.toString();
+    }
+}
@@ -1,45 +1,105 @@
 package com.example;
 
+import java.time.LocalDate;
+import java.time.LocalTime;
+
+/**
+ * A ride request or offer. Cities are ids in the {@link CityDictionary}, the departure
+ * is a local wall-clock time in minutes since the epoch and the price is in cents, so a
+ * ride is a handful of primitives plus the free-text car model and contact.
+ */
 public class RideDetails {
-    private String type; // "driver" or "passenger"
-    private String cityA;
-    private String cityB;
-    private String dateTime;
+    public static final long NO_DEPARTURE = Long.MIN_VALUE;
+
+    private static final int MINUTES_PER_DAY = 24 * 60;
+
+    private long id;
+    private long chatId;
+    private RideType type;
+    private int cityA = CityDictionary.NONE;
+    private int cityB = CityDictionary.NONE;
+    private long departure = NO_DEPARTURE;
     private int numberOfPersons;
-    private double pricePerPerson;
+    private int priceCents;
     private String carModel;
     private String contactInfo;
 
-    public String getType() {
+    public long getId() {
+        return id;
+    }
+
+    public void setId(long id) {
+        this.id = id;
+    }
+
+    public long getChatId() {
+        return chatId;
+    }
+
+    public void setChatId(long chatId) {
+        this.chatId = chatId;
+    }
+
+    public RideType getType() {
         return type;
     }
 
-    public void setType(String type) {
+    public void setType(RideType type) {
         this.type = type;
     }
 
-    public String getCityA() {
+    public int getCityA() {
         return cityA;
     }
 
-    public void setCityA(String cityA) {
+    public void setCityA(int cityA) {
         this.cityA = cityA;
     }
 
-    public String getCityB() {
+    public void setCityA(String cityA) {
+        this.cityA = CityDictionary.getDefault().idOf(cityA);
+    }
+
+    public String getCityAName() {
+        return CityDictionary.getDefault().nameOf(cityA);
+    }
+
+    public int getCityB() {
         return cityB;
     }
 
-    public void setCityB(String cityB) {
+    public void setCityB(int cityB) {
         this.cityB = cityB;
     }
 
-    public String getDateTime() {
-        return dateTime;
+    public void setCityB(String cityB) {
+        this.cityB = CityDictionary.getDefault().idOf(cityB);
+    }
+
+    public String getCityBName() {
+        return CityDictionary.getDefault().nameOf(cityB);
+    }
+
+    public long getDeparture() {
+        return departure;
     }
 
-    public void setDateTime(String dateTime) {
-        this.dateTime = dateTime;
+    public void setDeparture(long departure) {
+        this.departure = departure;
+    }
+
+    public long getDepartureDay() {
+        return departure == NO_DEPARTURE ? NO_DEPARTURE : Math.floorDiv(departure, MINUTES_PER_DAY);
+    }
+
+    public void setDepartureDate(LocalDate date) {
+        long minute = departure == NO_DEPARTURE ? 0 : Math.floorMod(departure, MINUTES_PER_DAY);
+        this.departure = date.toEpochDay() * MINUTES_PER_DAY + minute;
+    }
+
+    public void setDepartureTime(LocalTime time) {
+        long day = departure == NO_DEPARTURE ? 0 : getDepartureDay();
+        this.departure = day * MINUTES_PER_DAY + time.getHour() * 60 + time.getMinute();
     }
 
     public int getNumberOfPersons() {
@@ -50,12 +110,12 @@ public class RideDetails {
         this.numberOfPersons = numberOfPersons;
     }
 
-    public double getPricePerPerson() {
-        return pricePerPerson;
+    public int getPriceCents() {
+        return priceCents;
     }
 
-    public void setPricePerPerson(double pricePerPerson) {
-        this.pricePerPerson = pricePerPerson;
+    public void setPriceCents(int priceCents) {
+        this.priceCents = priceCents;
     }
 
     public String getCarModel() {
@@ -73,4 +133,58 @@ public class RideDetails {
     public void setContactInfo(String contactInfo) {
         this.contactInfo = contactInfo;
     }
+
+    public String formatDate() {
+        return appendDate(new StringBuilder(10)).toString();
+    }
+
+    public String formatTime() {
+        return appendTime(new StringBuilder(5)).toString();
+    }
+
+    public String formatPrice() {
+        return appendPrice(new StringBuilder(8)).toString();
+    }
+
+    /**
+     * Appends the departure date as {@code dd.MM.yyyy}, or nothing if it is not set.
+     */
+    public StringBuilder appendDate(StringBuilder out) {
+        return departure == NO_DEPARTURE ? out : appendDate(out, getDepartureDay());
+    }
+
+    /**
+     * Appends a day, counted from the epoch, as {@code dd.MM.yyyy}.
+     */
+    public static StringBuilder appendDate(StringBuilder out, long epochDay) {
+        LocalDate date = LocalDate.ofEpochDay(epochDay);
+        appendTwoDigits(out, date.getDayOfMonth()).append('.');
+        appendTwoDigits(out, date.getMonthValue()).append('.');
+        return out.append(date.getYear());
+    }
+
+    /**
+     * Appends the departure time as {@code HH:mm}, or nothing if it is not set.
+     */
+    public StringBuilder appendTime(StringBuilder out) {
+        if (departure == NO_DEPARTURE) {
+            return out;
+        }
+        long minute = Math.floorMod(departure, MINUTES_PER_DAY);
+        appendTwoDigits(out, minute / 60).append(':');
+        return appendTwoDigits(out, minute % 60);
+    }
+
+    /**
+     * Appends the price in whole units, with two decimals only if there are cents.
+     */
+    public StringBuilder appendPrice(StringBuilder out) {
+        out.append(priceCents / 100);
+        int cents = priceCents % 100;
+        return cents == 0 ? out : appendTwoDigits(out.append('.'), cents);
+    }
+
+    private static StringBuilder appendTwoDigits(StringBuilder out, long value) {
+        return out.append((char) ('0' + value / 10)).append((char) ('0' + value % 10));
+    }
 }
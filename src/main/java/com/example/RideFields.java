@@ -0,0 +1,62 @@
+package com.example;
+
+/**
+ * Exposes a ride's fields to ride post and match templates, appending numbers, dates
+ * and prices directly instead of formatting them into intermediate Strings.
+ */
+public final class RideFields implements MessageTemplate.Fields {
+    static final String[] NAMES = {"from", "to", "date", "time", "persons", "price", "car", "contact", "bot"};
+
+    private static final int FROM = 0;
+    private static final int TO = 1;
+    private static final int DATE = 2;
+    private static final int TIME = 3;
+    private static final int PERSONS = 4;
+    private static final int PRICE = 5;
+    private static final int CAR = 6;
+    private static final int CONTACT = 7;
+    private static final int BOT = 8;
+
+    private final RideDetails ride;
+    private final String botUsername;
+
+    public RideFields(RideDetails ride, String botUsername) {
+        this.ride = ride;
+        this.botUsername = botUsername;
+    }
+
+    @Override
+    public void appendField(int field, StringBuilder out) {
+        switch (field) {
+            case FROM:
+                out.append(ride.getCityAName());
+                break;
+            case TO:
+                out.append(ride.getCityBName());
+                break;
+            case DATE:
+                ride.appendDate(out);
+                break;
+            case TIME:
+                ride.appendTime(out);
+                break;
+            case PERSONS:
+                out.append(ride.getNumberOfPersons());
+                break;
+            case PRICE:
+                ride.appendPrice(out);
+                break;
+            case CAR:
+                out.append(ride.getCarModel());
+                break;
+            case CONTACT:
+                out.append(ride.getContactInfo());
+                break;
+            case BOT:
+                out.append(botUsername);
+                break;
+            default:
+                throw new IllegalArgumentException("Unknown ride field " + field);
+        }
+    }
+}
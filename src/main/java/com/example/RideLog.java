@@ -0,0 +1,662 @@
+package com.example;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.zip.CRC32;
+
+/**
+ * Embedded, append-only persistence for conversation drafts, published rides and route
+ * subscriptions.
+ * <p>
+ * Every record is a full copy of the entity it describes, so replaying a record twice
+ * is harmless. Records are appended to a memory-mapped log file, {@code rides-<gen>.log},
+ * which is mapped in fixed-size chunks that records never straddle. Each record is
+ * framed as {@code [length][crc32][type][payload]}; a zero length marks the end of the
+ * log, and a bad checksum marks a torn tail. Once the log grows past its size limit,
+ * appends move to a new log generation and the live state is written to
+ * {@code rides.snapshot} in the same record format. Recovery loads the snapshot and then
+ * replays the log it names and any later one.
+ */
+public class RideLog {
+    private static final Logger logger = LoggerFactory.getLogger(RideLog.class);
+
+    private static final int CHUNK_SIZE = 16 * 1024 * 1024;
+    private static final int HEADER_SIZE = 8;
+    private static final int SKIP_TO_NEXT_CHUNK = -1;
+    private static final int SNAPSHOT_MAGIC = 0x52534231;
+    private static final int MAX_STRING_BYTES = 4096;
+    private static final int INTERN_SLOTS = 4096;
+    private static final int UNRESOLVED = Integer.MIN_VALUE;
+
+    // Types 1 and 3 held string-typed rides and are no longer written or read. Type 4
+    // held conversations without their last use; it is still read, as used at recovery.
+    private static final byte CLEARED = 2;
+    private static final byte UNTIMED_CONVERSATION = 4;
+    private static final byte PUBLISHED = 5;
+    private static final byte RETIRED = 6;
+    private static final byte WATCHED = 7;
+    private static final byte UNWATCHED = 8;
+    private static final byte CONVERSATION = 9;
+
+    private final File directory;
+    private final long compactThreshold;
+    private final ConversationStore conversations;
+    private final Map<Long, RideDetails> publishedRides;
+    private final Subscriptions subscriptions;
+    private final RecordEncoder encoder = new RecordEncoder();
+    private final CRC32 crc = new CRC32();
+    private final byte[] stringBytes = new byte[MAX_STRING_BYTES];
+    private final byte[][] internKeys = new byte[INTERN_SLOTS][];
+    private final String[] internValues = new String[INTERN_SLOTS];
+    private final int[] internCities = new int[INTERN_SLOTS];
+    // Held for a whole compaction, so compactions and close never overlap
+    private final Object compaction = new Object();
+    private final ExecutorService compactor = Executors.newSingleThreadExecutor(r -> {
+        Thread thread = new Thread(r, "ride-log-compactor");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    private long generation;
+    private RandomAccessFile file;
+    private MappedByteBuffer chunk;
+    private long chunkBase;
+    private boolean compactionPending;
+    private boolean closed;
+    private long maxRideId;
+    private long maxSubscriptionId;
+
+    public RideLog(File directory, long compactThreshold,
+                   ConversationStore conversations, Map<Long, RideDetails> publishedRides,
+                   Subscriptions subscriptions) {
+        this.directory = directory;
+        this.compactThreshold = compactThreshold;
+        this.conversations = conversations;
+        this.publishedRides = publishedRides;
+        this.subscriptions = subscriptions;
+    }
+
+    /**
+     * Rebuilds conversations and published rides from disk and opens the log for appends.
+     * Returns the highest ride id seen, so new ids can continue from it.
+     */
+    public synchronized long recover() throws IOException {
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IOException("Cannot create data directory " + directory);
+        }
+        long start = System.nanoTime();
+        Recovery recovery = new Recovery();
+        File snapshot = snapshotFile();
+        if (snapshot.exists()) {
+            try (RandomAccessFile in = new RandomAccessFile(snapshot, "r")) {
+                MappedByteBuffer buffer = in.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, in.length());
+                if (buffer.getInt() != SNAPSHOT_MAGIC) {
+                    throw new IOException("Corrupt snapshot " + snapshot);
+                }
+                generation = buffer.getLong();
+                replay(buffer, recovery);
+            }
+        }
+        deleteLogsBefore(generation);
+        // A later log exists if the process stopped before the snapshot naming it was written
+        while (logFile(generation + 1).exists()) {
+            try (RandomAccessFile in = new RandomAccessFile(logFile(generation), "r")) {
+                replayLog(in, recovery);
+            }
+            generation++;
+        }
+        file = new RandomAccessFile(logFile(generation), "rw");
+        mapChunkAt(replayLog(file, recovery));
+        logger.info("Recovered {} records ({} conversations, {} rides, {} subscriptions) in {} ms",
+                recovery.records, conversations.size(), publishedRides.size(), subscriptions.size(),
+                (System.nanoTime() - start) / 1_000_000);
+        maxRideId = recovery.maxRideId;
+        maxSubscriptionId = recovery.maxSubscriptionId;
+        return maxRideId;
+    }
+
+    public synchronized void appendConversation(Conversation conversation) {
+        if (encoder.conversation(conversation)) {
+            append();
+        }
+    }
+
+    public synchronized void appendCleared(long chatId) {
+        encoder.id(CLEARED, chatId);
+        append();
+    }
+
+    public synchronized void appendPublished(RideDetails details) {
+        maxRideId = Math.max(maxRideId, details.getId());
+        encoder.published(details);
+        append();
+    }
+
+    public synchronized void appendRetired(long rideId) {
+        encoder.id(RETIRED, rideId);
+        append();
+    }
+
+    public synchronized void appendWatched(Subscriptions.Subscription subscription) {
+        maxSubscriptionId = Math.max(maxSubscriptionId, subscription.getId());
+        encoder.watched(subscription);
+        append();
+    }
+
+    public synchronized void appendUnwatched(long subscriptionId) {
+        encoder.id(UNWATCHED, subscriptionId);
+        append();
+    }
+
+    /**
+     * Returns the highest subscription id recovered, so new ids can continue from it.
+     */
+    public synchronized long getMaxSubscriptionId() {
+        return maxSubscriptionId;
+    }
+
+    /**
+     * Flushes dirty pages of the current chunk to disk.
+     */
+    public synchronized void force() {
+        if (chunk != null) {
+            chunk.force();
+        }
+    }
+
+    /**
+     * Moves appends to a new log generation, then writes the live state to a fresh snapshot
+     * naming it. Appends only wait while the generations are swapped. The state is read
+     * after the swap, so every change is either in the snapshot or appended to the new log,
+     * and replaying full copies over a newer snapshot is harmless.
+     */
+    public void compact() throws IOException {
+        synchronized (compaction) {
+            try {
+                compactLive();
+            } finally {
+                synchronized (this) {
+                    compactionPending = false;
+                }
+            }
+        }
+    }
+
+    public void close() throws IOException {
+        compactor.shutdown();
+        synchronized (compaction) {
+            synchronized (this) {
+                closed = true;
+                force();
+                file.close();
+            }
+        }
+    }
+
+    private void compactLive() throws IOException {
+        long start = System.nanoTime();
+        long next;
+        long lastRideId;
+        long lastSubscriptionId;
+        synchronized (this) {
+            if (closed) {
+                return;
+            }
+            next = generation + 1;
+            RandomAccessFile previous = file;
+            file = new RandomAccessFile(logFile(next), "rw");
+            generation = next;
+            mapChunkAt(0);
+            previous.close();
+            lastRideId = maxRideId;
+            lastSubscriptionId = maxSubscriptionId;
+        }
+        RecordEncoder records = new RecordEncoder();
+        File tmp = new File(directory, "rides.snapshot.tmp");
+        try (FileOutputStream fileOut = new FileOutputStream(tmp);
+             DataOutputStream out = new DataOutputStream(new BufferedOutputStream(fileOut, 1 << 20))) {
+            out.writeInt(SNAPSHOT_MAGIC);
+            out.writeLong(next);
+            IOException[] failure = {null};
+            conversations.forEach(conversation -> {
+                if (failure[0] == null && records.conversation(conversation)) {
+                    failure[0] = records.writeTo(out);
+                }
+            });
+            for (RideDetails details : publishedRides.values()) {
+                if (failure[0] != null) {
+                    throw failure[0];
+                }
+                records.published(details);
+                failure[0] = records.writeTo(out);
+            }
+            if (failure[0] != null) {
+                throw failure[0];
+            }
+            // Keeps the highest subscription id once it is unwatched, so ids are never reused.
+            // Written first, so a live subscription with the highest id is added back after it
+            if (lastSubscriptionId > 0) {
+                records.id(UNWATCHED, lastSubscriptionId);
+                failure[0] = records.writeTo(out);
+            }
+            subscriptions.forEach(subscription -> {
+                if (failure[0] == null) {
+                    records.watched(subscription);
+                    failure[0] = records.writeTo(out);
+                }
+            });
+            if (failure[0] != null) {
+                throw failure[0];
+            }
+            // Keeps the highest ride id once that ride is retired, so ids are never reused
+            if (lastRideId > 0 && !publishedRides.containsKey(lastRideId)) {
+                records.id(RETIRED, lastRideId);
+                IOException error = records.writeTo(out);
+                if (error != null) {
+                    throw error;
+                }
+            }
+            out.writeInt(0);
+            out.flush();
+            fileOut.getFD().sync();
+        }
+        Files.move(tmp.toPath(), snapshotFile().toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        deleteLogsBefore(next);
+        logger.info("Compacted ride log to generation {} in {} ms", next, (System.nanoTime() - start) / 1_000_000);
+    }
+
+    private void append() {
+        int size = encoder.frame();
+        if (chunk.remaining() < size + 4) {
+            if (chunk.remaining() >= 4) {
+                chunk.putInt(SKIP_TO_NEXT_CHUNK);
+            }
+            mapChunkAt(chunkBase + CHUNK_SIZE);
+        }
+        chunk.put(encoder.buffer.array(), 0, size);
+        if (chunkBase + chunk.position() > compactThreshold && !compactionPending) {
+            compactionPending = true;
+            compactor.execute(() -> {
+                try {
+                    compact();
+                } catch (IOException e) {
+                    logger.error("Failed to compact ride log", e);
+                }
+            });
+        }
+    }
+
+    /**
+     * Replays a whole log file, chunk by chunk, and returns the offset its records end at.
+     */
+    private long replayLog(RandomAccessFile log, Recovery recovery) throws IOException {
+        long length = log.length();
+        for (long base = 0; base < length; base += CHUNK_SIZE) {
+            MappedByteBuffer buffer = log.getChannel().map(FileChannel.MapMode.READ_ONLY, base,
+                    Math.min(CHUNK_SIZE, length - base));
+            if (replay(buffer, recovery)) {
+                return base + buffer.position();
+            }
+        }
+        return length;
+    }
+
+    /**
+     * Applies every valid record in the buffer. Returns {@code true} once the end of the
+     * log is reached, leaving the buffer positioned there; {@code false} if the buffer
+     * was exhausted or asked to continue in the next chunk.
+     */
+    private boolean replay(ByteBuffer buffer, Recovery recovery) {
+        // Records are read in place, narrowing the limit to each one in turn
+        int limit = buffer.limit();
+        while (limit - buffer.position() >= HEADER_SIZE) {
+            int start = buffer.position();
+            int length = buffer.getInt();
+            if (length == SKIP_TO_NEXT_CHUNK) {
+                return false;
+            }
+            int checksum = buffer.getInt();
+            if (length <= 0 || length > buffer.remaining()) {
+                buffer.position(start);
+                return true;
+            }
+            int end = buffer.position() + length;
+            buffer.limit(end);
+            crc.reset();
+            crc.update(buffer);
+            if ((int) crc.getValue() != checksum) {
+                logger.warn("Ignoring torn record at offset {}", start);
+                buffer.limit(limit);
+                buffer.position(start);
+                return true;
+            }
+            buffer.position(start + HEADER_SIZE);
+            apply(buffer, recovery);
+            buffer.limit(limit);
+            buffer.position(end);
+            recovery.records++;
+        }
+        return false;
+    }
+
+    private void apply(ByteBuffer record, Recovery recovery) {
+        byte type = record.get();
+        switch (type) {
+            case UNTIMED_CONVERSATION:
+            case CONVERSATION:
+                long draftChatId = record.getLong();
+                long lastAccess = type == CONVERSATION ? record.getLong() : System.currentTimeMillis();
+                // Null for a draft that expired while the bot was down
+                Conversation conversation = conversations.restore(draftChatId, lastAccess);
+                if (conversation == null) {
+                    break;
+                }
+                conversation.setState(ConversationState.fromName(getString(record)));
+                if (record.get() == 0) {
+                    conversation.setDetails(null);
+                } else {
+                    // A chat's later drafts overwrite the one recovered so far in place
+                    RideDetails draft = conversation.getDetails();
+                    if (draft == null) {
+                        draft = new RideDetails();
+                        conversation.setDetails(draft);
+                    }
+                    readDetails(record, draft, true);
+                }
+                break;
+            case CLEARED:
+                conversations.remove(record.getLong());
+                break;
+            case PUBLISHED:
+                RideDetails details = new RideDetails();
+                readDetails(record, details, false);
+                publishedRides.put(details.getId(), details);
+                recovery.maxRideId = Math.max(recovery.maxRideId, details.getId());
+                break;
+            case RETIRED:
+                long rideId = record.getLong();
+                recovery.maxRideId = Math.max(recovery.maxRideId, rideId);
+                publishedRides.remove(rideId);
+                break;
+            case WATCHED:
+                long subscriptionId = record.getLong();
+                long chatId = record.getLong();
+                int from = getCity(record, false);
+                int to = getCity(record, false);
+                subscriptions.add(new Subscriptions.Subscription(subscriptionId, chatId, from, to,
+                        record.getLong(), record.getLong(), getString(record)));
+                recovery.maxSubscriptionId = Math.max(recovery.maxSubscriptionId, subscriptionId);
+                break;
+            case UNWATCHED:
+                subscriptionId = record.getLong();
+                recovery.maxSubscriptionId = Math.max(recovery.maxSubscriptionId, subscriptionId);
+                subscriptions.remove(subscriptionId);
+                break;
+            default:
+                logger.warn("Skipping unknown record type {}", type);
+        }
+    }
+
+    // Sets every field, so the details may be a reused instance. The cities of a draft
+    // get draft ids, so recovering a draft does not intern its cities for good.
+    private void readDetails(ByteBuffer record, RideDetails details, boolean draft) {
+        details.setId(record.getLong());
+        details.setChatId(record.getLong());
+        byte type = record.get();
+        details.setType(type < 0 ? null : RideType.values()[type]);
+        details.setCityA(getCity(record, draft));
+        details.setCityB(getCity(record, draft));
+        details.setDeparture(record.getLong());
+        details.setNumberOfPersons(record.getInt());
+        details.setPriceCents(record.getInt());
+        details.setCarModel(getString(record));
+        details.setContactInfo(getString(record));
+    }
+
+    // Cities, ride types and dates repeat across millions of records; handing out one
+    // shared String per distinct value keeps recovery allocation and live heap low.
+    private String getString(ByteBuffer record) {
+        int slot = intern(record);
+        return slot < 0 ? null : internValues[slot];
+    }
+
+    // The city's dictionary id is kept next to its shared name, so a repeated city costs
+    // no case-folded lookup key. A draft id kept there is looked up again for a ride.
+    private int getCity(ByteBuffer record, boolean draft) {
+        int slot = intern(record);
+        if (slot < 0) {
+            return CityDictionary.NONE;
+        }
+        int id = internCities[slot];
+        if (id == UNRESOLVED || !draft && CityDictionary.isDraft(id)) {
+            CityDictionary cities = CityDictionary.getDefault();
+            id = draft ? cities.draftIdOf(internValues[slot]) : cities.idOf(internValues[slot]);
+            internCities[slot] = id;
+        }
+        return id;
+    }
+
+    // Returns the intern slot holding the next string of the record, or -1 for null.
+    private int intern(ByteBuffer record) {
+        short length = record.getShort();
+        if (length < 0) {
+            return -1;
+        }
+        record.get(stringBytes, 0, length);
+        int hash = 1;
+        for (int i = 0; i < length; i++) {
+            hash = 31 * hash + stringBytes[i];
+        }
+        int slot = (hash ^ (hash >>> 16)) & (INTERN_SLOTS - 1);
+        byte[] key = internKeys[slot];
+        if (key != null && key.length == length && sameBytes(key, stringBytes, length)) {
+            return slot;
+        }
+        internKeys[slot] = Arrays.copyOf(stringBytes, length);
+        internValues[slot] = new String(stringBytes, 0, length, StandardCharsets.UTF_8);
+        internCities[slot] = UNRESOLVED;
+        return slot;
+    }
+
+    private static boolean sameBytes(byte[] a, byte[] b, int length) {
+        for (int i = 0; i < length; i++) {
+            if (a[i] != b[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private void mapChunkAt(long position) {
+        chunkBase = position - position % CHUNK_SIZE;
+        try {
+            chunk = file.getChannel().map(FileChannel.MapMode.READ_WRITE, chunkBase, CHUNK_SIZE);
+        } catch (IOException e) {
+            throw new IllegalStateException("Cannot map ride log at " + chunkBase, e);
+        }
+        chunk.position((int) (position - chunkBase));
+    }
+
+    private void deleteLogsBefore(long first) {
+        File[] logs = directory.listFiles((dir, name) -> name.startsWith("rides-") && name.endsWith(".log"));
+        if (logs == null) {
+            return;
+        }
+        for (File log : logs) {
+            String name = log.getName();
+            long logGeneration;
+            try {
+                logGeneration = Long.parseLong(name.substring("rides-".length(), name.length() - ".log".length()));
+            } catch (NumberFormatException e) {
+                continue;
+            }
+            if (logGeneration < first && !log.delete()) {
+                logger.warn("Could not delete stale log {}", log);
+            }
+        }
+    }
+
+    private File snapshotFile() {
+        return new File(directory, "rides.snapshot");
+    }
+
+    private File logFile(long generation) {
+        return new File(directory, "rides-" + generation + ".log");
+    }
+
+    /**
+     * Builds one framed record at a time. Appends and the compactor each use their own.
+     */
+    private static final class RecordEncoder {
+        final ByteBuffer buffer = ByteBuffer.allocate(HEADER_SIZE + 64 * 1024);
+        private final CRC32 crc = new CRC32();
+
+        // Reads the state once, since the snapshot reads conversations their shards may be
+        // changing. Returns false, encoding nothing, for a conversation without a state.
+        boolean conversation(Conversation conversation) {
+            ConversationState state = conversation.getState();
+            if (state == null) {
+                return false;
+            }
+            begin(CONVERSATION);
+            buffer.putLong(conversation.getChatId());
+            buffer.putLong(conversation.getLastAccess());
+            putString(state.name());
+            RideDetails details = conversation.getDetails();
+            buffer.put((byte) (details == null ? 0 : 1));
+            if (details != null) {
+                putDetails(details);
+            }
+            return true;
+        }
+
+        void published(RideDetails details) {
+            begin(PUBLISHED);
+            putDetails(details);
+        }
+
+        void watched(Subscriptions.Subscription subscription) {
+            begin(WATCHED);
+            buffer.putLong(subscription.getId());
+            buffer.putLong(subscription.getChatId());
+            putString(CityDictionary.getDefault().nameOf(subscription.getFrom()));
+            putString(CityDictionary.getDefault().nameOf(subscription.getTo()));
+            buffer.putLong(subscription.getFirstDay());
+            buffer.putLong(subscription.getLastDay());
+            putString(subscription.getLanguage());
+        }
+
+        void id(byte type, long id) {
+            begin(type);
+            buffer.putLong(id);
+        }
+
+        // Fills in the length and checksum header and returns the framed record size.
+        int frame() {
+            int size = buffer.position();
+            int length = size - HEADER_SIZE;
+            crc.reset();
+            crc.update(buffer.array(), HEADER_SIZE, length);
+            buffer.putInt(0, length);
+            buffer.putInt(4, (int) crc.getValue());
+            return size;
+        }
+
+        IOException writeTo(DataOutputStream out) {
+            try {
+                out.write(buffer.array(), 0, frame());
+                return null;
+            } catch (IOException e) {
+                return e;
+            }
+        }
+
+        private void begin(byte type) {
+            buffer.clear();
+            buffer.position(HEADER_SIZE);
+            buffer.put(type);
+        }
+
+        private void putDetails(RideDetails details) {
+            buffer.putLong(details.getId());
+            buffer.putLong(details.getChatId());
+            buffer.put((byte) (details.getType() == null ? -1 : details.getType().ordinal()));
+            putString(details.getCityAName());
+            putString(details.getCityBName());
+            buffer.putLong(details.getDeparture());
+            buffer.putInt(details.getNumberOfPersons());
+            buffer.putInt(details.getPriceCents());
+            putString(details.getCarModel());
+            putString(details.getContactInfo());
+        }
+
+        // Encodes UTF-8 straight into the record, the way String.getBytes would, but without
+        // a byte array per string. A string too long for the record is cut at a character.
+        private void putString(String value) {
+            if (value == null) {
+                buffer.putShort((short) -1);
+                return;
+            }
+            int start = buffer.position();
+            int end = start + 2 + MAX_STRING_BYTES;
+            buffer.position(start + 2);
+            for (int i = 0; i < value.length(); i++) {
+                char c = value.charAt(i);
+                int position = buffer.position();
+                if (c < 0x80) {
+                    if (position + 1 > end) {
+                        break;
+                    }
+                    buffer.put((byte) c);
+                } else if (c < 0x800) {
+                    if (position + 2 > end) {
+                        break;
+                    }
+                    buffer.put((byte) (0xc0 | c >> 6)).put((byte) (0x80 | c & 0x3f));
+                } else if (Character.isHighSurrogate(c) && i + 1 < value.length()
+                        && Character.isLowSurrogate(value.charAt(i + 1))) {
+                    if (position + 4 > end) {
+                        break;
+                    }
+                    int code = Character.toCodePoint(c, value.charAt(++i));
+                    buffer.put((byte) (0xf0 | code >> 18)).put((byte) (0x80 | code >> 12 & 0x3f))
+                            .put((byte) (0x80 | code >> 6 & 0x3f)).put((byte) (0x80 | code & 0x3f));
+                } else if (Character.isSurrogate(c)) {
+                    if (position + 1 > end) {
+                        break;
+                    }
+                    buffer.put((byte) '?');
+                } else {
+                    if (position + 3 > end) {
+                        break;
+                    }
+                    buffer.put((byte) (0xe0 | c >> 12)).put((byte) (0x80 | c >> 6 & 0x3f)).put((byte) (0x80 | c & 0x3f));
+                }
+            }
+            buffer.putShort(start, (short) (buffer.position() - start - 2));
+        }
+    }
+
+    private static final class Recovery {
+        long records;
+        long maxRideId;
+        long maxSubscriptionId;
+    }
+}
@@ -0,0 +1,168 @@
+package com.example;
+
+import java.util.Arrays;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * In-memory index that pairs passengers with drivers over published rides.
+ * <p>
+ * Rides are bucketed by (type, origin city, destination city, departure day); a bucket
+ * key packs all four into one {@code long}. Each bucket is a doubly linked chain of
+ * slots in parallel primitive arrays, so a ride costs a few dozen bytes and a lookup is
+ * a hash probe plus a walk over same-day rides on the route. A city id or day that does
+ * not fit its field of the key is not indexed, rather than sharing a bucket with the
+ * value it wraps to. Reads run concurrently; inserts and removals take the write lock.
+ */
+public class RideMatcher {
+    private static final int NONE = -1;
+    private static final int CITY_BITS = 21;
+    private static final int DAY_BITS = 21;
+    private static final long CITY_MASK = (1L << CITY_BITS) - 1;
+    private static final long DAY_MASK = (1L << DAY_BITS) - 1;
+
+    private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+    private final LongIntMap bucketHeads = new LongIntMap(1024, NONE);
+    private final LongIntMap slotsByRide = new LongIntMap(1024, NONE);
+
+    private long[] rideIds = new long[1024];
+    private long[] bucketKeys = new long[1024];
+    private int[] seats = new int[1024];
+    private int[] next = new int[1024];
+    private int[] prev = new int[1024];
+    private int freeHead = NONE;
+    private int highWater;
+
+    /**
+     * Indexes a published ride. Rides without both cities and a departure, or with a
+     * city id or departure day too large for the bucket key, are not indexed.
+     */
+    public boolean add(RideDetails ride) {
+        if (!indexable(ride)) {
+            return false;
+        }
+        lock.writeLock().lock();
+        try {
+            if (slotsByRide.get(ride.getId()) != NONE) {
+                return true;
+            }
+            long key = bucketKey(ride.getType() == RideType.DRIVER, ride.getCityA(), ride.getCityB(), ride.getDepartureDay());
+            int slot = allocate();
+            rideIds[slot] = ride.getId();
+            bucketKeys[slot] = key;
+            seats[slot] = ride.getNumberOfPersons();
+            int head = bucketHeads.get(key);
+            prev[slot] = NONE;
+            next[slot] = head;
+            if (head != NONE) {
+                prev[head] = slot;
+            }
+            bucketHeads.put(key, slot);
+            slotsByRide.put(ride.getId(), slot);
+            return true;
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    public boolean remove(long rideId) {
+        lock.writeLock().lock();
+        try {
+            int slot = slotsByRide.remove(rideId);
+            if (slot == NONE) {
+                return false;
+            }
+            unlink(slot);
+            return true;
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Finds rides of the opposite type on the same route and day that fit the request:
+     * drivers with at least as many free seats as the passenger needs, or passengers
+     * needing no more seats than the driver offers. Writes up to {@code out.length} ride
+     * ids into {@code out} and returns how many were found.
+     */
+    public int match(RideDetails request, long[] out) {
+        if (!indexable(request)) {
+            return 0;
+        }
+        boolean wantDrivers = request.getType() != RideType.DRIVER;
+        int persons = request.getNumberOfPersons();
+        long key = bucketKey(wantDrivers, request.getCityA(), request.getCityB(), request.getDepartureDay());
+        lock.readLock().lock();
+        try {
+            int found = 0;
+            for (int slot = bucketHeads.get(key);
+                 slot != NONE && found < out.length; slot = next[slot]) {
+                if (wantDrivers ? seats[slot] >= persons : seats[slot] <= persons) {
+                    out[found++] = rideIds[slot];
+                }
+            }
+            return found;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    public int size() {
+        lock.readLock().lock();
+        try {
+            return slotsByRide.size();
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    private static boolean indexable(RideDetails ride) {
+        return fits(ride.getCityA(), CITY_MASK) && fits(ride.getCityB(), CITY_MASK)
+                && fits(ride.getDepartureDay(), DAY_MASK) && ride.getType() != null;
+    }
+
+    // Also rejects CityDictionary.NONE and rides without a departure, which are negative
+    private static boolean fits(long value, long mask) {
+        return (value & ~mask) == 0;
+    }
+
+    private static long bucketKey(boolean driver, int from, int to, long day) {
+        return (driver ? 1L << 63 : 0L)
+                | (from & CITY_MASK) << (CITY_BITS + DAY_BITS)
+                | (to & CITY_MASK) << DAY_BITS
+                | (day & DAY_MASK);
+    }
+
+    private int allocate() {
+        if (freeHead != NONE) {
+            int slot = freeHead;
+            freeHead = next[slot];
+            return slot;
+        }
+        if (highWater == rideIds.length) {
+            int capacity = rideIds.length * 2;
+            rideIds = Arrays.copyOf(rideIds, capacity);
+            bucketKeys = Arrays.copyOf(bucketKeys, capacity);
+            seats = Arrays.copyOf(seats, capacity);
+            next = Arrays.copyOf(next, capacity);
+            prev = Arrays.copyOf(prev, capacity);
+        }
+        return highWater++;
+    }
+
+    private void unlink(int slot) {
+        long key = bucketKeys[slot];
+        if (prev[slot] != NONE) {
+            next[prev[slot]] = next[slot];
+        } else if (next[slot] != NONE) {
+            bucketHeads.put(key, next[slot]);
+        } else {
+            bucketHeads.remove(key);
+        }
+        if (next[slot] != NONE) {
+            prev[next[slot]] = prev[slot];
+        }
+        rideIds[slot] = 0;
+        next[slot] = freeHead;
+        freeHead = slot;
+    }
+}
@@ -0,0 +1,636 @@
+package com.example;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * In-memory search index over published rides, answering {@code /search} and inline
+ * queries.
+ * <p>
+ * Rides are stored column by column in primitive arrays, once per departure day, so a
+ * day is scanned as a few dense arrays rather than a map of objects. Posting lists of
+ * rides by origin and by destination city carry the city at the other end, so a route
+ * is narrowed down without touching the rides. A query resolves its city prefixes to
+ * city ids through a sorted index of name tokens and checks cities against bitmaps of
+ * those ids. It then takes whichever way is cheaper: the postings of its most selective
+ * end, or the days of its date range, skipping days whose most seats or lowest price
+ * cannot match. Results are ordered by departure and only as many are kept as the
+ * requested page needs. Days are visited in order and the scan stops once the page is
+ * filled, so an unrestricted query, or one whose prefixes match most cities, reads a day
+ * or two rather than every ride; a broad query that matches almost nothing still reads
+ * its whole date range. Removing a ride moves the last entry of its day and of its
+ * postings into the gap, so nothing needs compacting. Reads run concurrently; inserts
+ * and removals take the write lock.
+ */
+public class RideSearch {
+    private static final int NONE = -1;
+    private static final int MINUTES_PER_DAY = 24 * 60;
+    // How many rides of a day block can be scanned in the time of looking up one ride's
+    // columns by slot, which is a cache miss each
+    private static final int RANDOM_READ_COST = 4;
+
+    private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+    private final LongIntMap slotsByRide = new LongIntMap(1024, NONE);
+    // Origin postings carry each ride's destination, destination postings its origin
+    private final Postings byFrom = new Postings();
+    private final Postings byTo = new Postings();
+    private final TreeMap<Long, Day> days = new TreeMap<>();
+
+    // Columns by slot, for rides found through their cities
+    private long[] rideIds = new long[1024];
+    private long[] departures = new long[1024];
+    private int[] fromCities = new int[1024];
+    private int[] toCities = new int[1024];
+    private int[] seats = new int[1024];
+    private int[] prices = new int[1024];
+    private int[] dayPositions = new int[1024];
+    private int[] freeSlots = new int[64];
+    private int freeCount;
+    private int highWater;
+
+    // Normalized name tokens of every city seen so far, each with the ids of its cities
+    private final TreeMap<String, int[]> citiesByToken = new TreeMap<>();
+    private String[][] tokensOfCity = new String[256][];
+
+    /**
+     * Indexes a published ride. Rides without both cities and a departure are not indexed.
+     */
+    public boolean add(RideDetails ride) {
+        if (ride.getCityA() == CityDictionary.NONE || ride.getCityB() == CityDictionary.NONE
+                || ride.getDeparture() == RideDetails.NO_DEPARTURE || ride.getType() == null) {
+            return false;
+        }
+        lock.writeLock().lock();
+        try {
+            if (slotsByRide.get(ride.getId()) != NONE) {
+                return true;
+            }
+            int slot = allocate();
+            rideIds[slot] = ride.getId();
+            departures[slot] = ride.getDeparture();
+            fromCities[slot] = ride.getCityA();
+            toCities[slot] = ride.getCityB();
+            seats[slot] = ride.getNumberOfPersons();
+            // Passengers do not name a price, so a price limit never excludes them
+            prices[slot] = ride.getType() == RideType.DRIVER ? ride.getPriceCents() : 0;
+            byFrom.add(ride.getCityA(), slot, ride.getCityB());
+            byTo.add(ride.getCityB(), slot, ride.getCityA());
+            dayPositions[slot] = days.computeIfAbsent(Math.floorDiv(ride.getDeparture(), MINUTES_PER_DAY), day -> new Day())
+                    .add(slot, rideIds[slot], departures[slot], fromCities[slot], toCities[slot], seats[slot], prices[slot]);
+            slotsByRide.put(ride.getId(), slot);
+            addCity(ride.getCityA());
+            addCity(ride.getCityB());
+            return true;
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    public boolean remove(long rideId) {
+        lock.writeLock().lock();
+        try {
+            int slot = slotsByRide.remove(rideId);
+            if (slot == NONE) {
+                return false;
+            }
+            byFrom.remove(fromCities[slot], slot);
+            byTo.remove(toCities[slot], slot);
+            long dayKey = Math.floorDiv(departures[slot], MINUTES_PER_DAY);
+            Day day = days.get(dayKey);
+            int moved = day.remove(dayPositions[slot]);
+            if (moved != NONE) {
+                dayPositions[moved] = dayPositions[slot];
+            }
+            if (day.size == 0) {
+                days.remove(dayKey);
+            }
+            rideIds[slot] = 0;
+            if (freeCount == freeSlots.length) {
+                freeSlots = Arrays.copyOf(freeSlots, freeCount * 2);
+            }
+            freeSlots[freeCount++] = slot;
+            return true;
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Finds the rides matching the query that depart no earlier than {@code today}, in
+     * order of departure, skips {@code offset} of them and writes the following ones into
+     * {@code out}. Returns the number of matches counted, which stops at
+     * {@code offset + out.length + 1}: a result larger than {@code offset + out.length}
+     * means there is a further page.
+     */
+    public int search(Query query, long today, int offset, long[] out) {
+        long firstDay = Math.max(query.firstDay, today);
+        long lastDay = query.lastDay;
+        if (lastDay < firstDay) {
+            return 0;
+        }
+        TopRides top = new TopRides(offset + out.length + 1);
+        lock.readLock().lock();
+        try {
+            int[] fromIds = query.from == null ? null : citiesMatching(query.from);
+            int[] toIds = query.to == null ? null : citiesMatching(query.to);
+            if ((fromIds != null && fromIds.length == 0) || (toIds != null && toIds.length == 0)) {
+                return 0;
+            }
+            long[] from = fromIds == null ? null : bitmap(fromIds);
+            long[] to = toIds == null ? null : bitmap(toIds);
+            long fromCost = fromIds == null ? Long.MAX_VALUE : byFrom.size(fromIds);
+            long toCost = toIds == null ? Long.MAX_VALUE : byTo.size(toIds);
+            boolean byOrigin = fromCost <= toCost;
+            long cityCost = Math.min(fromCost, toCost);
+            // Without the other city to check in the postings, every entry is looked up
+            long cityWork = (byOrigin ? to : from) == null ? cityCost * RANDOM_READ_COST : cityCost;
+            if (cityCost == Long.MAX_VALUE
+                    || dayCost(firstDay, lastDay, fromCost, toCost, top.capacity, cityWork) < cityWork) {
+                for (Day day : days.subMap(firstDay, true, lastDay, true).values()) {
+                    // A day without enough seats or a low enough price is skipped whole
+                    if (day.maxSeats < query.minSeats || day.minPrice > query.maxPriceCents) {
+                        continue;
+                    }
+                    scan(day, query, from, to, top);
+                    // Later days only hold later departures
+                    if (top.size == top.capacity) {
+                        break;
+                    }
+                }
+            } else {
+                long firstMinute = firstDay * MINUTES_PER_DAY;
+                long lastMinute = lastDay >= Long.MAX_VALUE / MINUTES_PER_DAY
+                        ? Long.MAX_VALUE : (lastDay + 1) * MINUTES_PER_DAY - 1;
+                Postings postings = byOrigin ? byFrom : byTo;
+                for (int city : byOrigin ? fromIds : toIds) {
+                    int list = postings.list(city);
+                    if (list != NONE) {
+                        scan(postings, list, byOrigin ? to : from, query, firstMinute, lastMinute, top);
+                    }
+                }
+            }
+            int found = 0;
+            for (int i = offset; i < top.size && found < out.length; i++) {
+                out[found++] = rideIds[top.slots[i]];
+            }
+            return top.size;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    public int size() {
+        lock.readLock().lock();
+        try {
+            return slotsByRide.size();
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    private static void scan(Day day, Query query, long[] from, long[] to, TopRides top) {
+        for (int i = 0; i < day.size; i++) {
+            if (day.seats[i] < query.minSeats || day.prices[i] > query.maxPriceCents
+                    || (from != null && !contains(from, day.fromCities[i]))
+                    || (to != null && !contains(to, day.toCities[i]))) {
+                continue;
+            }
+            top.offer(day.slots[i], day.departures[i], day.rideIds[i]);
+        }
+    }
+
+    private void scan(Postings postings, int list, long[] otherCities, Query query,
+                      long firstMinute, long lastMinute, TopRides top) {
+        int[] slots = postings.slots[list];
+        int[] others = postings.others[list];
+        for (int i = 0; i < postings.sizes[list]; i++) {
+            if (otherCities != null && !contains(otherCities, others[i])) {
+                continue;
+            }
+            int slot = slots[i];
+            long departure = departures[slot];
+            if (departure < firstMinute || departure > lastMinute
+                    || seats[slot] < query.minSeats || prices[slot] > query.maxPriceCents) {
+                continue;
+            }
+            top.offer(slot, departure, rideIds[slot]);
+        }
+    }
+
+    private static long[] bitmap(int[] cities) {
+        long[] bits = new long[(cities[cities.length - 1] >>> 6) + 1];
+        for (int city : cities) {
+            bits[city >>> 6] |= 1L << city;
+        }
+        return bits;
+    }
+
+    private static boolean contains(long[] bits, int city) {
+        int word = city >>> 6;
+        return word < bits.length && (bits[word] & 1L << city) != 0;
+    }
+
+    // Rides a scan by day is expected to visit: until it has found a page, if origins and
+    // destinations are as selective among these rides as among all, or else the whole
+    // range. Rides in the range are counted only until they reach the work of scanning by city.
+    private long dayCost(long firstDay, long lastDay, long fromCost, long toCost, int wanted, long cityWork) {
+        double rides = Math.max(1, slotsByRide.size());
+        double selectivity = Math.min(1, fromCost / rides) * Math.min(1, toCost / rides);
+        long limit = (long) Math.min(cityWork, wanted / Math.max(selectivity, 1 / rides / rides));
+        long cost = 0;
+        for (Day day : days.subMap(firstDay, true, lastDay, true).values()) {
+            cost += day.size;
+            if (cost >= limit) {
+                return limit;
+            }
+        }
+        return cost;
+    }
+
+    /**
+     * Returns the sorted ids of the cities whose name has, for every token of the
+     * normalized text, a token starting with it.
+     */
+    private int[] citiesMatching(String text) {
+        String[] wanted = text.split(" ");
+        int[] cities = new int[16];
+        int count = 0;
+        String prefix = wanted[0];
+        for (Map.Entry<String, int[]> entry
+                : citiesByToken.subMap(prefix, true, prefix + Character.MAX_VALUE, false).entrySet()) {
+            for (int city : entry.getValue()) {
+                if (count == cities.length) {
+                    cities = Arrays.copyOf(cities, count * 2);
+                }
+                cities[count++] = city;
+            }
+        }
+        Arrays.sort(cities, 0, count);
+        int kept = 0;
+        for (int i = 0; i < count; i++) {
+            int city = cities[i];
+            if ((kept == 0 || cities[kept - 1] != city) && hasTokens(tokensOfCity[city], wanted)) {
+                cities[kept++] = city;
+            }
+        }
+        return Arrays.copyOf(cities, kept);
+    }
+
+    private static boolean hasTokens(String[] tokens, String[] wanted) {
+        for (int i = 1; i < wanted.length; i++) {
+            boolean found = false;
+            for (String token : tokens) {
+                if (token.startsWith(wanted[i])) {
+                    found = true;
+                    break;
+                }
+            }
+            if (!found) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private void addCity(int city) {
+        if (city >= tokensOfCity.length) {
+            tokensOfCity = Arrays.copyOf(tokensOfCity, Math.max(city + 1, tokensOfCity.length * 2));
+        }
+        if (tokensOfCity[city] != null) {
+            return;
+        }
+        String name = Gazetteer.normalize(CityDictionary.getDefault().nameOf(city));
+        String[] tokens = name.isEmpty() ? new String[0] : name.split(" ");
+        tokensOfCity[city] = tokens;
+        for (String token : tokens) {
+            int[] cities = citiesByToken.get(token);
+            if (cities == null) {
+                citiesByToken.put(token, new int[]{city});
+            } else if (cities[cities.length - 1] != city) {
+                int[] grown = Arrays.copyOf(cities, cities.length + 1);
+                grown[cities.length] = city;
+                citiesByToken.put(token, grown);
+            }
+        }
+    }
+
+    private int allocate() {
+        if (freeCount > 0) {
+            return freeSlots[--freeCount];
+        }
+        if (highWater == rideIds.length) {
+            int capacity = rideIds.length * 2;
+            rideIds = Arrays.copyOf(rideIds, capacity);
+            departures = Arrays.copyOf(departures, capacity);
+            fromCities = Arrays.copyOf(fromCities, capacity);
+            toCities = Arrays.copyOf(toCities, capacity);
+            seats = Arrays.copyOf(seats, capacity);
+            prices = Arrays.copyOf(prices, capacity);
+            dayPositions = Arrays.copyOf(dayPositions, capacity);
+        }
+        return highWater++;
+    }
+
+    /**
+     * A parsed search: optional origin and destination name prefixes, a range of
+     * departure days, a minimum number of persons and a maximum price.
+     */
+    public static final class Query {
+        private String from;
+        private String to;
+        private long firstDay = Long.MIN_VALUE;
+        private long lastDay = Long.MAX_VALUE;
+        private int minSeats;
+        private int maxPriceCents = Integer.MAX_VALUE;
+        private MessageKey error;
+
+        /**
+         * Parses comma-separated conditions in any order: a date, or two for a range;
+         * {@code 2+} for at least two persons; {@code <20} for at most 20 euro; anything
+         * else is the beginning of the origin's name, then of the destination's, where
+         * {@code *} stands for any city. Each word of a name matches the beginning of a
+         * word of the city's name. A query that fails to parse has an
+         * {@linkplain #getError() error} to reply with.
+         */
+        public static Query parse(String text) {
+            Query query = new Query();
+            int cities = 0;
+            int dates = 0;
+            for (String field : text.split(",")) {
+                String value = InputParser.trim(field);
+                if (value.isEmpty()) {
+                    continue;
+                }
+                char first = value.charAt(0);
+                if (first == '<') {
+                    InputParser.Result cents = InputParser.parsePrice(value.substring(value.startsWith("<=") ? 2 : 1));
+                    if (!cents.isValid()) {
+                        return query.fail(cents.getError());
+                    }
+                    query.maxPriceCents = (int) cents.getValue();
+                } else if (value.endsWith("+") && first >= '0' && first <= '9') {
+                    InputParser.Result persons = InputParser.parsePersons(value.substring(0, value.length() - 1));
+                    if (!persons.isValid()) {
+                        return query.fail(persons.getError());
+                    }
+                    query.minSeats = (int) persons.getValue();
+                } else if (first >= '0' && first <= '9') {
+                    InputParser.Result day = InputParser.parseDate(value);
+                    if (!day.isValid()) {
+                        return query.fail(day.getError());
+                    }
+                    if (dates == 2) {
+                        return query.fail(MessageKey.SEARCH_USAGE);
+                    }
+                    if (dates++ == 0) {
+                        query.firstDay = day.getValue();
+                        query.lastDay = day.getValue();
+                    } else {
+                        query.firstDay = Math.min(query.firstDay, day.getValue());
+                        query.lastDay = Math.max(query.lastDay, day.getValue());
+                    }
+                } else {
+                    String name = value.equals("*") ? null : Gazetteer.normalize(value).replace("|", "");
+                    if (cities == 2 || name != null && name.isEmpty()) {
+                        return query.fail(MessageKey.SEARCH_USAGE);
+                    }
+                    if (cities++ == 0) {
+                        query.from = name;
+                    } else {
+                        query.to = name;
+                    }
+                }
+            }
+            return cities + dates == 0 && query.minSeats == 0 && query.maxPriceCents == Integer.MAX_VALUE
+                    ? query.fail(MessageKey.SEARCH_USAGE) : query;
+        }
+
+        /**
+         * Reads a query written by {@link #encode(int)}, or returns {@code null}.
+         */
+        public static Query decode(String encoded) {
+            String[] parts = encoded.split("\\|", -1);
+            if (parts.length != 6) {
+                return null;
+            }
+            try {
+                Query query = new Query();
+                // Callback data comes back from the client, so names are folded as parse
+                // folds them, and one that folds to nothing makes the query unreadable
+                query.from = parts[0].isEmpty() ? null : Gazetteer.normalize(parts[0]);
+                query.to = parts[1].isEmpty() ? null : Gazetteer.normalize(parts[1]);
+                if (query.from != null && query.from.isEmpty() || query.to != null && query.to.isEmpty()) {
+                    return null;
+                }
+                query.firstDay = parts[2].isEmpty() ? Long.MIN_VALUE : Long.parseLong(parts[2], 36);
+                query.lastDay = parts[3].isEmpty() ? Long.MAX_VALUE : Long.parseLong(parts[3], 36);
+                query.minSeats = parts[4].isEmpty() ? 0 : Integer.parseInt(parts[4], 36);
+                query.maxPriceCents = parts[5].isEmpty() ? Integer.MAX_VALUE : Integer.parseInt(parts[5], 36);
+                return query;
+            } catch (NumberFormatException e) {
+                return null;
+            }
+        }
+
+        /**
+         * Writes the query compactly enough for a button's callback data. If it would
+         * take more than {@code maxBytes} in UTF-8, the city names are shortened, which
+         * only widens what they match.
+         */
+        public String encode(int maxBytes) {
+            String shortFrom = from == null ? "" : from;
+            String shortTo = to == null ? "" : to;
+            while (true) {
+                String encoded = shortFrom + '|' + shortTo
+                        + '|' + (firstDay == Long.MIN_VALUE ? "" : Long.toString(firstDay, 36))
+                        + '|' + (lastDay == Long.MAX_VALUE ? "" : Long.toString(lastDay, 36))
+                        + '|' + (minSeats == 0 ? "" : Integer.toString(minSeats, 36))
+                        + '|' + (maxPriceCents == Integer.MAX_VALUE ? "" : Integer.toString(maxPriceCents, 36));
+                if (encoded.getBytes(StandardCharsets.UTF_8).length <= maxBytes
+                        || shortFrom.length() <= 1 && shortTo.length() <= 1) {
+                    return encoded;
+                }
+                if (shortFrom.length() >= shortTo.length()) {
+                    shortFrom = shortFrom.substring(0, shortFrom.length() - 1).trim();
+                } else {
+                    shortTo = shortTo.substring(0, shortTo.length() - 1).trim();
+                }
+            }
+        }
+
+        /**
+         * Returns the message explaining why the query was rejected, or {@code null}.
+         */
+        public MessageKey getError() {
+            return error;
+        }
+
+        private Query fail(MessageKey key) {
+            error = key;
+            return this;
+        }
+    }
+
+    // The best rides so far by (departure, ride id), kept sorted; at most a few pages.
+    private static final class TopRides {
+        final int capacity;
+        final int[] slots;
+        final long[] departures;
+        final long[] rideIds;
+        int size;
+
+        TopRides(int capacity) {
+            this.capacity = capacity;
+            this.slots = new int[capacity];
+            this.departures = new long[capacity];
+            this.rideIds = new long[capacity];
+        }
+
+        void offer(int slot, long departure, long rideId) {
+            if (size == capacity && !before(departure, rideId, size - 1)) {
+                return;
+            }
+            int i = size == capacity ? size - 1 : size++;
+            for (; i > 0 && before(departure, rideId, i - 1); i--) {
+                slots[i] = slots[i - 1];
+                departures[i] = departures[i - 1];
+                rideIds[i] = rideIds[i - 1];
+            }
+            slots[i] = slot;
+            departures[i] = departure;
+            rideIds[i] = rideId;
+        }
+
+        private boolean before(long departure, long rideId, int i) {
+            return departure < departures[i] || departure == departures[i] && rideId < rideIds[i];
+        }
+    }
+
+    // The rides departing on one day, column by column. Removal moves the last ride into
+    // the gap, so a day is always scanned as a dense run of arrays. The most seats and
+    // lowest price ever added bound what the day can match; removals leave them as they are.
+    private static final class Day {
+        int size;
+        int maxSeats;
+        int minPrice = Integer.MAX_VALUE;
+        int[] slots = new int[16];
+        long[] rideIds = new long[16];
+        long[] departures = new long[16];
+        int[] fromCities = new int[16];
+        int[] toCities = new int[16];
+        int[] seats = new int[16];
+        int[] prices = new int[16];
+
+        /**
+         * Appends a ride and returns its position.
+         */
+        int add(int slot, long rideId, long departure, int from, int to, int persons, int price) {
+            if (size == slots.length) {
+                int capacity = size * 2;
+                slots = Arrays.copyOf(slots, capacity);
+                rideIds = Arrays.copyOf(rideIds, capacity);
+                departures = Arrays.copyOf(departures, capacity);
+                fromCities = Arrays.copyOf(fromCities, capacity);
+                toCities = Arrays.copyOf(toCities, capacity);
+                seats = Arrays.copyOf(seats, capacity);
+                prices = Arrays.copyOf(prices, capacity);
+            }
+            slots[size] = slot;
+            rideIds[size] = rideId;
+            departures[size] = departure;
+            fromCities[size] = from;
+            toCities[size] = to;
+            seats[size] = persons;
+            prices[size] = price;
+            maxSeats = Math.max(maxSeats, persons);
+            minPrice = Math.min(minPrice, price);
+            return size++;
+        }
+
+        /**
+         * Removes the ride at a position and returns the slot of the ride moved there, or
+         * {@code NONE} if it was the last one.
+         */
+        int remove(int position) {
+            int last = --size;
+            if (position == last) {
+                return NONE;
+            }
+            slots[position] = slots[last];
+            rideIds[position] = rideIds[last];
+            departures[position] = departures[last];
+            fromCities[position] = fromCities[last];
+            toCities[position] = toCities[last];
+            seats[position] = seats[last];
+            prices[position] = prices[last];
+            return slots[position];
+        }
+    }
+
+    // Slots by city, with the city at the ride's other end alongside, in growable arrays.
+    // Each slot is in one list per instance and remembers its position there, so removal
+    // moves the list's last entry into its place.
+    private static final class Postings {
+        private final LongIntMap lists = new LongIntMap(1024, NONE);
+        int[][] slots = new int[256][];
+        int[][] others = new int[256][];
+        int[] sizes = new int[256];
+        private int listCount;
+        private int[] positions = new int[1024];
+
+        void add(long key, int slot, int other) {
+            int list = lists.get(key);
+            if (list == NONE) {
+                if (listCount == slots.length) {
+                    slots = Arrays.copyOf(slots, listCount * 2);
+                    others = Arrays.copyOf(others, listCount * 2);
+                    sizes = Arrays.copyOf(sizes, listCount * 2);
+                }
+                list = listCount++;
+                slots[list] = new int[4];
+                others[list] = new int[4];
+                lists.put(key, list);
+            }
+            int size = sizes[list];
+            if (size == slots[list].length) {
+                slots[list] = Arrays.copyOf(slots[list], size * 2);
+                others[list] = Arrays.copyOf(others[list], size * 2);
+            }
+            slots[list][size] = slot;
+            others[list][size] = other;
+            if (slot >= positions.length) {
+                positions = Arrays.copyOf(positions, Math.max(slot + 1, positions.length * 2));
+            }
+            positions[slot] = size;
+            sizes[list] = size + 1;
+        }
+
+        void remove(long key, int slot) {
+            int list = lists.get(key);
+            int last = --sizes[list];
+            int position = positions[slot];
+            int moved = slots[list][last];
+            slots[list][position] = moved;
+            others[list][position] = others[list][last];
+            positions[moved] = position;
+        }
+
+        int list(long key) {
+            return lists.get(key);
+        }
+
+        long size(int[] keys) {
+            long size = 0;
+            for (int key : keys) {
+                int list = lists.get(key);
+                if (list != NONE) {
+                    size += sizes[list];
+                }
+            }
+            return size;
+        }
+    }
+}
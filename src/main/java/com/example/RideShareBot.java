@@ -1,33 +1,283 @@
 package com.example;
 
+import org.telegram.telegrambots.bots.DefaultBotOptions;
 import org.telegram.telegrambots.bots.TelegramLongPollingBot;
+import org.telegram.telegrambots.meta.api.methods.AnswerInlineQuery;
 import org.telegram.telegrambots.meta.api.methods.send.SendMessage;
 import org.telegram.telegrambots.meta.api.methods.updates.DeleteWebhook;
+import org.telegram.telegrambots.meta.api.methods.updatingmessages.EditMessageText;
+import org.telegram.telegrambots.meta.api.objects.Message;
 import org.telegram.telegrambots.meta.api.objects.Update;
+import org.telegram.telegrambots.meta.api.objects.User;
+import org.telegram.telegrambots.meta.api.objects.inlinequery.InlineQuery;
+import org.telegram.telegrambots.meta.api.objects.inlinequery.inputmessagecontent.InputTextMessageContent;
+import org.telegram.telegrambots.meta.api.objects.inlinequery.result.InlineQueryResult;
+import org.telegram.telegrambots.meta.api.objects.inlinequery.result.InlineQueryResultArticle;
 import org.telegram.telegrambots.meta.api.objects.replykeyboard.InlineKeyboardMarkup;
 import org.telegram.telegrambots.meta.api.objects.replykeyboard.buttons.InlineKeyboardButton;
 import org.telegram.telegrambots.meta.exceptions.TelegramApiException;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import java.nio.charset.StandardCharsets;
+import java.io.File;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.time.LocalDate;
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.time.ZoneOffset;
 import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.IntSupplier;
 
 public class RideShareBot extends TelegramLongPollingBot {
     private static final Logger logger = LoggerFactory.getLogger(RideShareBot.class);
+    private static final long RIDE_LOG_COMPACT_BYTES = 64L * 1024 * 1024;
+    private static final int STOP_WAIT_SECONDS = 3;
+    private static final int MAX_MATCHES = 10;
+    private static final int SEARCH_PAGE_SIZE = 5;
+    private static final int INLINE_PAGE_SIZE = 10;
+    // Further pages of a search are not offered beyond this many results
+    private static final int MAX_SEARCH_RESULTS = 100;
+    // Sent messages are logged at debug level, one in LOG_SAMPLE_RATE
+    private static final int LOG_SAMPLE_RATE = Math.max(1, envInt("LOG_SAMPLE_RATE", 100));
+    private static final ThreadLocal<ReplyTimer> replyTimers = ThreadLocal.withInitial(ReplyTimer::new);
+    private static final int DRAFT_TIMER = 0;
+    private static final int RIDE_TIMER = 1;
+    private static final int SUBSCRIPTION_TIMER = 2;
 
     private String name;
     private String token;
-    private final String channelUsername = "@ride_share_de";
     private final String botUsername = "@TakeWithBot";
 
-    private ThreadLocal<Update> updateEvent = new ThreadLocal<>();
-    private Map<Long, String> userStates = new HashMap<>();
-    private Map<Long, RideDetails> rideDetailsMap = new HashMap<>();
+    private final ConversationStore conversations =
+            new ConversationStore(TimeUnit.MINUTES.toMillis(envInt("DRAFT_TTL_MINUTES", 120)), 100_000);
+    private final Map<Long, RideDetails> publishedRides = new ConcurrentHashMap<>();
+    private final AtomicLong rideIds = new AtomicLong();
+    private final RideMatcher rideMatcher = new RideMatcher();
+    private final RideSearch rideSearch = new RideSearch();
+    private final Subscriptions subscriptions = new Subscriptions();
+    private final AtomicLong subscriptionIds = new AtomicLong();
+    // Departures are local wall-clock times in this zone
+    private final ZoneId zone = ZoneId.of(env("TIME_ZONE", "Europe/Berlin"));
+    private final ConversationFlow conversationFlow = ConversationFlow.standard(zone);
+    private final RideLog rideLog;
+    private final UpdateDispatcher dispatcher;
+    private final IngressGuard ingressGuard;
+    private final SendScheduler sendScheduler;
+    private final MessageSender sender;
+    private final ChannelRouter channelRouter;
+    private final ChannelPublisher channelPublisher;
+    private final RideAlerts rideAlerts;
+    private final LatencyHistogram[] replyLatency;
+    private final long rideExpiryGraceMillis = TimeUnit.MINUTES.toMillis(envInt("RIDE_EXPIRY_GRACE_MINUTES", 60));
+    private final TimerWheel timers;
+    private final LongAdder expiredDrafts;
+    private final LongAdder evictedDrafts;
+    private final LongAdder expiredRides;
+    private final LongAdder expiredSubscriptions;
+    private volatile ClusterNode cluster;
 
     public RideShareBot() {
+        this(new File(env("DATA_DIR", "data")));
+    }
+
+    /**
+     * Creates a bot keeping its ride log in {@code dataDir}, for several bots in one
+     * process such as the load generator.
+     */
+    RideShareBot(File dataDir) {
+        super(botOptions());
         this.name = System.getenv("BOT_NAME");
         this.token = System.getenv("BOT_TOKEN");
+        // CHANNEL_ROUTES like "AT=@ride_share_at,CH=@ride_share_ch" posts rides by country
+        this.channelRouter = new ChannelRouter(env("CHANNEL_USERNAME", "@ride_share_de"),
+                ChannelRouter.parseRoutes(env("CHANNEL_ROUTES", "")),
+                Gazetteer.loadAsync(Gazetteer.DEFAULT_RESOURCE));
+        // Cities typed into a draft keep their draft ids for as long as the draft can live
+        CityDictionary.getDefault().setDraftRetention(2 * conversations.getTtlMillis());
+        this.rideLog = new RideLog(dataDir, RIDE_LOG_COMPACT_BYTES, conversations, publishedRides, subscriptions);
+        try {
+            rideIds.set(rideLog.recover());
+        } catch (IOException e) {
+            throw new UncheckedIOException("Failed to recover ride log", e);
+        }
+        subscriptionIds.set(rideLog.getMaxSubscriptionId());
+        publishedRides.values().forEach(rideMatcher::add);
+        publishedRides.values().forEach(rideSearch::add);
+        this.dispatcher = new UpdateDispatcher(
+                envInt("DISPATCH_SHARDS", Runtime.getRuntime().availableProcessors() * 4),
+                envInt("DISPATCH_QUEUE_CAPACITY", 256),
+                this::onUpdateEventReceived);
+        this.ingressGuard = new IngressGuard(conversations, dispatcher,
+                envInt("INGRESS_CHAT_SLOTS", 65_536),
+                TimeUnit.SECONDS.toMillis(envInt("INGRESS_WINDOW_SECONDS", 10)),
+                envInt("INGRESS_MAX_PER_WINDOW", 20),
+                envInt("INGRESS_MAX_INLINE_PER_WINDOW", 100),
+                envInt("INGRESS_SEEN_UPDATES", 65_536));
+        this.sendScheduler = new SendScheduler(envInt("SEND_GLOBAL_PER_SECOND", 30), envInt("SEND_GLOBAL_BURST", 30));
+        this.sender = new MessageSender(this, sendScheduler,
+                envInt("SEND_LANES", 32),
+                envInt("SEND_QUEUE_CAPACITY", 4096),
+                envInt("SEND_MAX_ATTEMPTS", 5));
+        this.channelPublisher = new ChannelPublisher(sender, channelRouter,
+                Messages.forLanguage(env("CHANNEL_LANGUAGE", Messages.DEFAULT_LANGUAGE)), botUsername,
+                envInt("CHANNEL_BATCH_MILLIS", 2000),
+                TimeUnit.MINUTES.toMillis(envInt("CHANNEL_EDIT_WINDOW_MINUTES", 30)),
+                envInt("CHANNEL_MAX_RIDES_PER_POST", 8),
+                TimeUnit.HOURS.toMillis(envInt("CHANNEL_DEDUP_HOURS", 24)),
+                envInt("CHANNEL_DEDUP_CAPACITY", 65_536),
+                // CHANNEL_EXPIRED_POSTS=edit or delete changes the posts of departed rides
+                ChannelPublisher.ExpiredPosts.valueOf(env("CHANNEL_EXPIRED_POSTS", "keep").toUpperCase(Locale.ROOT)));
+        this.rideAlerts = new RideAlerts(sender, subscriptions, botUsername,
+                envInt("ALERT_QUEUE_CAPACITY", 1024),
+                envInt("ALERT_MAX_IN_FLIGHT", 256));
+        this.timers = new TimerWheel(envInt("TIMER_TICK_MILLIS", 1000), 3, this::onTimer);
+        conversations.forEach(conversation -> scheduleDraftExpiry(conversation.getChatId(), conversation));
+        publishedRides.values().forEach(this::scheduleRideExpiry);
+        subscriptions.forEach(this::scheduleSubscriptionExpiry);
+        String help = "Drafts, rides and subscriptions removed by their expiry timer";
+        this.expiredDrafts = Metrics.getDefault().counter("ridebot_expired_total", help, "kind", "draft");
+        this.expiredRides = Metrics.getDefault().counter("ridebot_expired_total", help, "kind", "ride");
+        this.expiredSubscriptions = Metrics.getDefault().counter("ridebot_expired_total", help, "kind", "subscription");
+        this.evictedDrafts = Metrics.getDefault().counter("ridebot_drafts_evicted_total",
+                "Drafts the conversation store dropped as idle or to make room, before their expiry timer");
+        // Logged, so a dropped draft does not come back on the next start
+        conversations.setEvictionListener(chatId -> {
+            rideLog.appendCleared(chatId);
+            timers.cancel(DRAFT_TIMER, chatId);
+            evictedDrafts.increment();
+        });
+        this.replyLatency = registerMetrics(Metrics.getDefault());
+    }
+
+    private LatencyHistogram[] registerMetrics(Metrics metrics) {
+        metrics.gauge("ridebot_active_conversations", "Conversations in progress", conversations::size);
+        metrics.gauge("ridebot_published_rides", "Rides published and kept for matching", publishedRides::size);
+        metrics.gauge("ridebot_dispatch_queue_depth", "Updates waiting for a dispatch shard", dispatcher::queueDepth);
+        metrics.gauge("ridebot_send_pending", "Sends queued or in flight", sender::pending);
+        metrics.gauge("ridebot_timers", "Draft, ride and subscription expiry timers scheduled", timers::size);
+        for (SendScheduler.Priority priority : SendScheduler.Priority.values()) {
+            metrics.gauge("ridebot_send_scheduler_queue_depth", "Sends waiting for a rate limit token",
+                    () -> sendScheduler.queueDepth(priority), "priority", priority.name().toLowerCase(Locale.ROOT));
+        }
+        metrics.counter("ridebot_rate_limited_total", "429 responses from Telegram", sendScheduler::rateLimitedCount);
+
+        // Index 0 is for chats without a conversation, then one per conversation state
+        ConversationState[] states = ConversationState.values();
+        LatencyHistogram[] latency = new LatencyHistogram[states.length + 1];
+        String help = "Time from receiving an update to its first reply being delivered, by conversation state";
+        latency[0] = metrics.histogram("ridebot_update_reply_seconds", help, "state", "none");
+        for (ConversationState state : states) {
+            latency[state.ordinal() + 1] = metrics.histogram("ridebot_update_reply_seconds", help,
+                    "state", state.name().toLowerCase(Locale.ROOT));
+        }
+        return latency;
+    }
+
+    private static DefaultBotOptions botOptions() {
+        DefaultBotOptions options = new DefaultBotOptions();
+        options.setMaxThreads(envInt("SEND_THREADS", 16));
+        // BOT_API_URL points the bot at a local Bot API server, up to and including "/bot"
+        options.setBaseUrl(env("BOT_API_URL", options.getBaseUrl()));
+        return options;
+    }
+
+    static String env(String name, String defaultValue) {
+        String value = System.getenv(name);
+        return value == null || value.isEmpty() ? defaultValue : value.trim();
+    }
+
+    static int envInt(String name, int defaultValue) {
+        return Integer.parseInt(env(name, String.valueOf(defaultValue)));
+    }
+
+    /**
+     * Makes this bot a node of a cluster of bot processes; it joins once the returned node
+     * is started. Updates should then enter through the node, which keeps only the
+     * conversations of chats this process owns, and ride ids come from the cluster. The
+     * bot's rate limits are split evenly between the members.
+     */
+    public ClusterNode attachCluster(String nodeId, StateBackend backend, String webhookPath, String secret) throws IOException {
+        backend.reserveRideIds(rideIds.get());
+        ClusterNode node = new ClusterNode(nodeId, backend, conversations, dispatcher, this::onUpdateReceived,
+                this::persist, this::indexRide, sendScheduler::setShares, webhookPath, secret);
+        this.cluster = node;
+        return node;
+    }
+
+    /**
+     * Finishes the work accepted before shutdown, once no more updates arrive: queued
+     * updates are handled, channel batches are posted without waiting out their window,
+     * and alerts and replies are sent, until nothing is left or the deadline passes.
+     * Expiry timers stop first; the next start schedules them again from the recovered
+     * state. Returns how many updates, channel batches, alerted rides and sends were left
+     * unfinished. Telegram was told of every queued update when it was queued, so one
+     * still queued at the deadline is not delivered again and is lost.
+     */
+    public int drain(long deadlineNanos) throws InterruptedException {
+        timers.shutdown();
+        awaitIdle(dispatcher::pending, deadlineNanos);
+        channelPublisher.flushPending();
+        awaitIdle(this::unfinished, deadlineNanos);
+        int lost = dispatcher.pending();
+        if (lost > 0) {
+            logger.warn("Losing {} updates already confirmed to Telegram but not handled by the drain deadline", lost);
+        }
+        return unfinished();
+    }
+
+    // Work only moves downstream, from updates to channel batches and alerts to sends, and
+    // is counted downstream before it is done upstream, so counting in this order cannot
+    // miss work in transit.
+    private int unfinished() {
+        return dispatcher.pending() + channelPublisher.pending() + rideAlerts.pending() + sender.pending();
+    }
+
+    private static void awaitIdle(IntSupplier unfinished, long deadlineNanos) throws InterruptedException {
+        while (unfinished.getAsInt() > 0 && System.nanoTime() - deadlineNanos < 0) {
+            Thread.sleep(10);
+        }
+    }
+
+    /**
+     * Stops the bot after {@link #drain}. A cluster node not stopped yet hands its
+     * conversations to the remaining nodes. The threads that change the bot's state, the dispatch shards, the
+     * expiry timers and the alert worker, are stopped and waited for. The conversations,
+     * published rides and subscriptions are then written to a fresh ride log snapshot, so
+     * the next start loads that one compact file instead of replaying every step of every
+     * form, and the remaining worker threads stop.
+     */
+    public void close() throws IOException {
+        ClusterNode node = cluster;
+        if (node != null) {
+            node.stop();
+        }
+        timers.shutdown();
+        dispatcher.shutdown();
+        rideAlerts.shutdown();
+        try {
+            boolean stopped = timers.awaitTermination(STOP_WAIT_SECONDS, TimeUnit.SECONDS);
+            stopped &= dispatcher.awaitTermination(STOP_WAIT_SECONDS, TimeUnit.SECONDS);
+            stopped &= rideAlerts.awaitTermination(STOP_WAIT_SECONDS, TimeUnit.SECONDS);
+            if (!stopped) {
+                logger.warn("Worker threads still running; their last changes may miss the snapshot");
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            logger.warn("Interrupted while waiting for worker threads to stop");
+        }
+        rideLog.compact();
+        rideLog.close();
+        channelPublisher.shutdown();
+        sender.shutdown();
+        sendScheduler.shutdown();
+        exe.shutdown();
     }
 
     @Override
@@ -51,8 +301,45 @@ public class RideShareBot extends TelegramLongPollingBot {
 
     @Override
     public final void onUpdateReceived(Update updateEvent) {
-        this.updateEvent.set(updateEvent);
-        onUpdateEventReceived(this.updateEvent.get());
+        switch (ingressGuard.admit(updateEvent)) {
+            case ACCEPT:
+                dispatcher.dispatch(updateEvent);
+                break;
+            case FLOODING:
+                warnFlooding(updateEvent);
+                break;
+            default:
+                break;
+        }
+    }
+
+    private void warnFlooding(Update update) {
+        // Inline queries come from any chat, where the bot cannot write; the answer to the
+        // query itself says so instead
+        if (update.hasInlineQuery()) {
+            answerSlowDown(update.getInlineQuery());
+            return;
+        }
+        User user = update.hasMessage() ? update.getMessage().getFrom()
+                : update.hasCallbackQuery() ? update.getCallbackQuery().getFrom() : null;
+        String chatId = Long.toString(UpdateDispatcher.chatIdOf(update));
+        sender.send(chatId, createMessage(chatId, messagesFor(user).text(MessageKey.SLOW_DOWN)));
+    }
+
+    /**
+     * Handles an update that arrived at {@code receivedNanos}, timing its first reply.
+     */
+    public void onUpdateEventReceived(Update updateEvent, long receivedNanos) {
+        Conversation conversation = conversations.peek(UpdateDispatcher.chatIdOf(updateEvent));
+        ConversationState state = conversation == null ? null : conversation.getState();
+        ReplyTimer timer = replyTimers.get();
+        timer.latency = replyLatency[state == null ? 0 : state.ordinal() + 1];
+        timer.receivedNanos = receivedNanos;
+        try {
+            onUpdateEventReceived(updateEvent);
+        } finally {
+            timer.latency = null;
+        }
     }
 
     public void onUpdateEventReceived(Update updateEvent) {
@@ -60,307 +347,514 @@ public class RideShareBot extends TelegramLongPollingBot {
             handleIncomingMessage(updateEvent);
         } else if (updateEvent.hasCallbackQuery()) {
             handleCallbackQuery(updateEvent);
+        } else if (updateEvent.hasInlineQuery()) {
+            handleInlineQuery(updateEvent.getInlineQuery());
         }
     }
 
     private void handleIncomingMessage(Update update) {
         String messageText = update.getMessage().getText();
         Long chatId = update.getMessage().getChatId();
+        Messages messages = messagesFor(update.getMessage().getFrom());
 
-        if (messageText.equals("/start")) {
-            sendWelcomeMessage(chatId);
+        // A deep link, such as the button of an inline answer, adds a parameter to /start
+        if (messageText.equals("/start") || messageText.startsWith("/start ")) {
+            sendWelcomeMessage(chatId, messages);
         } else if (messageText.equals("/disclaimer")) {
-            sendDisclaimer(chatId);
+            sendDisclaimer(chatId, messages);
+        } else if (messageText.equals("/watch") || messageText.startsWith("/watch ")) {
+            watch(chatId, messageText.substring("/watch".length()), update.getMessage().getFrom(), messages);
+        } else if (messageText.equals("/unwatch")) {
+            unwatch(chatId, messages);
+        } else if (messageText.equals("/search") || messageText.startsWith("/search ")) {
+            search(chatId, messageText.substring("/search".length()), messages);
         } else {
-            handleUserResponse(chatId, messageText);
+            handleUserResponse(chatId, messageText, messages);
+        }
+    }
+
+    // "/watch From, To, first day[, last day]" watches a route; without arguments it
+    // explains itself and lists the chat's subscriptions.
+    private void watch(long chatId, String arguments, User user, Messages messages) {
+        String[] parts = arguments.split(",");
+        if (parts.length < 3 || parts.length > 4) {
+            StringBuilder text = new StringBuilder(messages.text(MessageKey.WATCH_USAGE));
+            List<Subscriptions.Subscription> watched = subscriptions.of(chatId);
+            if (!watched.isEmpty()) {
+                text.append(messages.text(MessageKey.WATCH_LIST));
+                for (Subscriptions.Subscription subscription : watched) {
+                    messages.get(MessageKey.WATCH_ITEM).renderTo(text, subscription);
+                }
+            }
+            sendPlainText(chatId, text.toString());
+            return;
+        }
+        int from = CityDictionary.getDefault().idOf(parts[0]);
+        int to = CityDictionary.getDefault().idOf(parts[1]);
+        if (from == CityDictionary.NONE || to == CityDictionary.NONE) {
+            sendPlainText(chatId, messages.text(MessageKey.INVALID_CITY));
+            return;
+        }
+        InputParser.Result first = InputParser.parseDate(parts[2]);
+        InputParser.Result last = parts.length == 4 ? InputParser.parseDate(parts[3]) : first;
+        if (!first.isValid() || !last.isValid()) {
+            sendPlainText(chatId, messages.text(first.isValid() ? last.getError() : first.getError()));
+            return;
+        }
+        // Days already past cannot get new rides, so the window starts today at the earliest
+        long today = LocalDate.now(zone).toEpochDay();
+        long firstDay = Math.max(first.getValue(), today);
+        long lastDay = last.getValue();
+        if (lastDay < firstDay || lastDay - first.getValue() >= Subscriptions.MAX_DAYS) {
+            sendPlainText(chatId, messages.text(MessageKey.WATCH_INVALID_WINDOW));
+            return;
+        }
+        Subscriptions.Subscription subscription = new Subscriptions.Subscription(subscriptionIds.incrementAndGet(),
+                chatId, from, to, firstDay, lastDay, messagesFor(user).getLanguage());
+        if (!subscriptions.add(subscription)) {
+            sendPlainText(chatId, messages.text(MessageKey.WATCH_LIMIT));
+            return;
+        }
+        rideLog.appendWatched(subscription);
+        scheduleSubscriptionExpiry(subscription);
+        sendPlainText(chatId, messages.render(MessageKey.WATCH_ADDED, subscription));
+    }
+
+    private void unwatch(long chatId, Messages messages) {
+        for (Subscriptions.Subscription subscription : subscriptions.removeAll(chatId)) {
+            rideLog.appendUnwatched(subscription.getId());
+            timers.cancel(SUBSCRIPTION_TIMER, subscription.getId());
+        }
+        sendPlainText(chatId, messages.text(MessageKey.WATCH_REMOVED));
+    }
+
+    // "/search From, To, first day, last day, 2+, <20" with every part optional; without
+    // arguments it explains itself.
+    private void search(long chatId, String arguments, Messages messages) {
+        RideSearch.Query query = RideSearch.Query.parse(arguments);
+        if (query.getError() != null) {
+            sendPlainText(chatId, messages.text(query.getError()));
+            return;
+        }
+        Map<String, String> buttons = new LinkedHashMap<>();
+        SendMessage message = createMessage(Long.toString(chatId), searchPage(query, 0, messages, buttons), buttons);
+        // Contacts are user input, so send as plain text rather than markdown.
+        message.setParseMode(null);
+        send(message);
+    }
+
+    // Page buttons carry the offset and the encoded query, so turning a page needs no
+    // state kept per chat; it edits the results message in place.
+    private void turnSearchPage(long chatId, Integer messageId, String argument, Messages messages) {
+        int separator = argument == null ? -1 : argument.indexOf('|');
+        RideSearch.Query query = separator < 0 ? null : RideSearch.Query.decode(argument.substring(separator + 1));
+        int offset;
+        try {
+            offset = query == null ? -1 : Integer.parseInt(argument.substring(0, separator));
+        } catch (NumberFormatException e) {
+            offset = -1;
+        }
+        if (offset < 0 || offset >= MAX_SEARCH_RESULTS) {
+            return;
+        }
+        Map<String, String> buttons = new LinkedHashMap<>();
+        EditMessageText edit = new EditMessageText();
+        edit.setChatId(Long.toString(chatId));
+        edit.setMessageId(messageId);
+        edit.setText(searchPage(query, offset, messages, buttons));
+        if (!buttons.isEmpty()) {
+            edit.setReplyMarkup(keyboard(buttons));
         }
+        sender.send(edit.getChatId(), edit).whenComplete((edited, error) -> {
+            if (error != null) {
+                logger.error("Failed to show search page", error);
+            }
+        });
+    }
+
+    // Renders the results from offset on and adds buttons for the neighbouring pages.
+    private String searchPage(RideSearch.Query query, int offset, Messages messages, Map<String, String> buttons) {
+        long[] found = new long[SEARCH_PAGE_SIZE];
+        int matches = rideSearch.search(query, LocalDate.now(zone).toEpochDay(), offset, found);
+        if (matches <= offset) {
+            return messages.text(MessageKey.SEARCH_NONE);
+        }
+        StringBuilder text = new StringBuilder(messages.text(MessageKey.SEARCH_RESULTS));
+        for (int i = 0; i < Math.min(found.length, matches - offset); i++) {
+            RideDetails ride = publishedRides.get(found[i]);
+            if (ride != null) {
+                messages.get(ride.getType() == RideType.DRIVER ? MessageKey.MATCH_DRIVER : MessageKey.MATCH_PASSENGER)
+                        .renderTo(text, new RideFields(ride, botUsername));
+            }
+        }
+        int next = offset + SEARCH_PAGE_SIZE;
+        boolean hasNext = matches > next && next < MAX_SEARCH_RESULTS;
+        if (offset > 0 || hasNext) {
+            // Room for the action, an offset of up to two digits and its separator
+            String encoded = query.encode(CallbackAction.MAX_DATA_BYTES - CallbackAction.SEARCH_PAGE.data("").length() - 3);
+            if (offset > 0) {
+                buttons.put(messages.text(MessageKey.BUTTON_PREVIOUS_PAGE),
+                        CallbackAction.SEARCH_PAGE.data((offset - SEARCH_PAGE_SIZE) + "|" + encoded));
+            }
+            if (hasNext) {
+                buttons.put(messages.text(MessageKey.BUTTON_NEXT_PAGE),
+                        CallbackAction.SEARCH_PAGE.data(next + "|" + encoded));
+            }
+        }
+        return text.toString();
+    }
+
+    // Inline queries take the same conditions as /search; Telegram asks for further
+    // pages with the next_offset of the previous answer.
+    private void handleInlineQuery(InlineQuery inlineQuery) {
+        Messages messages = messagesFor(inlineQuery.getFrom());
+        RideSearch.Query query = RideSearch.Query.parse(inlineQuery.getQuery());
+        String requested = inlineQuery.getOffset();
+        int offset;
+        try {
+            offset = requested == null || requested.isEmpty() ? 0 : Integer.parseInt(requested);
+        } catch (NumberFormatException e) {
+            offset = -1;
+        }
+        List<InlineQueryResult> results = new ArrayList<>();
+        String nextOffset = "";
+        if (query.getError() == null && offset >= 0 && offset < MAX_SEARCH_RESULTS) {
+            long[] found = new long[INLINE_PAGE_SIZE];
+            int matches = rideSearch.search(query, LocalDate.now(zone).toEpochDay(), offset, found);
+            for (int i = 0; i < Math.min(found.length, matches - offset); i++) {
+                RideDetails ride = publishedRides.get(found[i]);
+                if (ride != null) {
+                    results.add(inlineResult(ride, messages));
+                }
+            }
+            int next = offset + INLINE_PAGE_SIZE;
+            if (matches > next && next < MAX_SEARCH_RESULTS) {
+                nextOffset = Integer.toString(next);
+            }
+        }
+        AnswerInlineQuery answer = new AnswerInlineQuery(inlineQuery.getId(), results);
+        answer.setNextOffset(nextOffset);
+        answer.setCacheTime(30);
+        String userId = inlineQuery.getFrom().getId().toString();
+        sender.send(userId, answer).whenComplete((answered, error) -> {
+            if (error != null) {
+                logger.error("Failed to answer inline query", error);
+            }
+        });
+    }
+
+    // An empty answer stops the client waiting; its button, which opens the chat with the
+    // bot, carries the explanation.
+    private void answerSlowDown(InlineQuery inlineQuery) {
+        AnswerInlineQuery answer = new AnswerInlineQuery(inlineQuery.getId(), new ArrayList<>());
+        answer.setCacheTime(0);
+        answer.setIsPersonal(true);
+        answer.setSwitchPmText(messagesFor(inlineQuery.getFrom()).text(MessageKey.INLINE_SLOW_DOWN));
+        answer.setSwitchPmParameter("search");
+        String userId = inlineQuery.getFrom().getId().toString();
+        sender.send(userId, answer).whenComplete((answered, error) -> {
+            if (error != null) {
+                logger.error("Failed to answer inline query", error);
+            }
+        });
+    }
+
+    // Choosing a result sends the ride as it was posted in the channel.
+    private InlineQueryResultArticle inlineResult(RideDetails ride, Messages messages) {
+        RideFields fields = new RideFields(ride, botUsername);
+        boolean driver = ride.getType() == RideType.DRIVER;
+        InputTextMessageContent content = new InputTextMessageContent();
+        content.setMessageText(messages.render(driver ? MessageKey.POST_DRIVER : MessageKey.POST_PASSENGER, fields));
+        InlineQueryResultArticle article = new InlineQueryResultArticle();
+        article.setId(Long.toString(ride.getId()));
+        article.setTitle(messages.render(MessageKey.SEARCH_TITLE, fields));
+        article.setDescription(messages.render(driver ? MessageKey.SEARCH_DRIVER : MessageKey.SEARCH_PASSENGER, fields));
+        article.setInputMessageContent(content);
+        return article;
+    }
+
+    private static Messages messagesFor(User user) {
+        return Messages.forLanguage(user == null ? null : user.getLanguageCode());
     }
 
 
     private void handleCallbackQuery(Update update) {
-        String callbackData = update.getCallbackQuery().getData();
+        CallbackAction action = CallbackAction.fromData(update.getCallbackQuery().getData());
         Long chatId = update.getCallbackQuery().getMessage().getChatId();
+        Messages messages = messagesFor(update.getCallbackQuery().getFrom());
+        if (action == null) {
+            return;
+        }
 
-        switch (callbackData) {
-            case "start_publication":
-                sendTextMessageAsync(chatId, "Do you need a ride or offer a ride?", getRideOptions());
-                userStates.put(chatId, "ride_option");
+        switch (action) {
+            case START_PUBLICATION:
+                sendTextMessageAsync(chatId, messages.text(MessageKey.ASK_RIDE_OPTION), getRideOptions(messages));
+                conversationFlow.begin(conversations.getOrCreate(chatId));
+                persist(chatId);
+                break;
+            case GO_TO_CHANNEL:
+                sendTextMessageAsync(chatId, messages.text(MessageKey.REDIRECTING_TO_CHANNEL));
+                openChannel(chatId, messages);
                 break;
-            case "go_to_channel":
-                sendTextMessageAsync(chatId, "Redirecting to the channel...");
-                openChannel(chatId);
+            case NEED_RIDE:
+                startRide(chatId, RideType.PASSENGER, messages);
                 break;
-            case "need_ride":
-                RideDetails passengerDetails = new RideDetails();
-                passengerDetails.setType("passenger");
-                rideDetailsMap.put(chatId, passengerDetails);
-                askForRideDetails(chatId);
-                userStates.put(chatId, "need_ride_from_city");
+            case OFFER_RIDE:
+                startRide(chatId, RideType.DRIVER, messages);
                 break;
-            case "offer_ride":
-                RideDetails driverDetails = new RideDetails();
-                driverDetails.setType("driver");
-                rideDetailsMap.put(chatId, driverDetails);
-                askForOfferDetails(chatId);
-                userStates.put(chatId, "offer_ride_from_city");
+            case SEARCH_PAGE:
+                turnSearchPage(chatId, update.getCallbackQuery().getMessage().getMessageId(),
+                        CallbackAction.argumentOf(update.getCallbackQuery().getData()), messages);
                 break;
         }
     }
 
-    private void handleUserResponse(Long chatId, String messageText) {
-        String state = userStates.get(chatId);
-        if (state == null) return;
+    private void startRide(Long chatId, RideType type, Messages messages) {
+        MessageKey prompt = conversationFlow.start(conversations.getOrCreate(chatId), type);
+        sendTextMessageAsync(chatId, messages.text(prompt));
+        persist(chatId);
+    }
 
-        RideDetails details = rideDetailsMap.getOrDefault(chatId, new RideDetails());
+    private void handleUserResponse(Long chatId, String messageText, Messages messages) {
+        Conversation conversation = conversations.get(chatId);
+        if (conversation == null || conversation.getState() == null) return;
 
-        try {
-            switch (state) {
-                case "ride_option":
-                    if (messageText.equalsIgnoreCase("need a ride")) {
-                        askForRideDetails(chatId);
-                        userStates.put(chatId, "need_ride_from_city");
-                    } else if (messageText.equalsIgnoreCase("offer a ride")) {
-                        askForOfferDetails(chatId);
-                        userStates.put(chatId, "offer_ride_from_city");
-                    }
-                    break;
-                case "need_ride_from_city":
-                    details.setCityA(messageText);
-                    sendTextMessageAsync(chatId, "To which city are you going?");
-                    userStates.put(chatId, "need_ride_to_city");
-                    break;
-                case "need_ride_to_city":
-                    details.setCityB(messageText);
-                    sendTextMessageAsync(chatId, "What is the date of departure?");
-                    userStates.put(chatId, "need_ride_departure_date");
-                    break;
-                case "need_ride_departure_date":
-                    details.setDateTime(messageText);
-                    sendTextMessageAsync(chatId, "At what time will you start your trip?");
-                    userStates.put(chatId, "need_ride_departure_time");
-                    break;
-                case "need_ride_departure_time":
-                    details.setDateTime(details.getDateTime() + " " + messageText);
-                    sendTextMessageAsync(chatId, "How many persons?");
-                    userStates.put(chatId, "need_ride_persons");
-                    break;
-                case "need_ride_persons":
-                    int numberOfPersons = Integer.parseInt(messageText);
-                    details.setNumberOfPersons(numberOfPersons);
-                    sendTextMessageAsync(chatId, "What is your contact information?");
-                    userStates.put(chatId, "need_ride_contact_info");
-                    break;
-                case "need_ride_contact_info":
-                    if (isValidContactInfo(messageText)) {
-                        details.setContactInfo(messageText);
-                        sendTextMessageAsync(chatId, "Thank you! Your ride request will be posted in the channel.");
-                        sendRideDetailsToChannel(details);
-                        userStates.remove(chatId);
-                        rideDetailsMap.put(chatId, details);
-                    } else {
-                        sendTextMessageAsync(chatId, "Please provide a valid contact (Telegram username starting with '@' or phone number).");
-                    }
-                    break;
-                case "offer_ride_from_city":
-                    details.setCityA(messageText);
-                    sendTextMessageAsync(chatId, "To which city are you going?");
-                    userStates.put(chatId, "offer_ride_to_city");
-                    break;
-                case "offer_ride_to_city":
-                    details.setCityB(messageText);
-                    sendTextMessageAsync(chatId, "What is the date of the ride?");
-                    userStates.put(chatId, "offer_ride_date");
-                    break;
-                case "offer_ride_date":
-                    details.setDateTime(messageText);
-                    sendTextMessageAsync(chatId, "What time will you start the ride?");
-                    userStates.put(chatId, "offer_ride_time");
-                    break;
-                case "offer_ride_time":
-                    details.setDateTime(details.getDateTime() + " " + messageText);
-                    sendTextMessageAsync(chatId, "How many persons can you take?");
-                    userStates.put(chatId, "offer_ride_persons");
-                    break;
-                case "offer_ride_persons":
-                    int offerRidePersons = Integer.parseInt(messageText);
-                    details.setNumberOfPersons(offerRidePersons);
-                    sendTextMessageAsync(chatId, "What is the price per person?");
-                    userStates.put(chatId, "offer_ride_price");
-                    break;
-                case "offer_ride_price":
-                    double price = Double.parseDouble(messageText);
-                    details.setPricePerPerson(price);
-                    sendTextMessageAsync(chatId, "What is the car model?");
-                    userStates.put(chatId, "offer_ride_car_model");
-                    break;
-                case "offer_ride_car_model":
-                    details.setCarModel(messageText);
-                    sendTextMessageAsync(chatId, "What is your contact information? (Please provide your Telegram @username or phone number)");
-                    userStates.put(chatId, "offer_ride_contact_info");
-                    break;
-                case "offer_ride_contact_info":
-                    if (isValidContactInfo(messageText)) {
-                        details.setContactInfo(messageText);
-                        sendTextMessageAsync(chatId, "Thank you for your offer! It's posted in our channel.");
-                        sendRideDetailsToChannel(details);
-                        userStates.remove(chatId);
-                        rideDetailsMap.put(chatId, details);
-                    } else {
-                        sendTextMessageAsync(chatId, "Please provide a valid contact (Telegram username starting with '@' or phone number).");
-                    }
-                    break;
+        MessageKey reply = conversationFlow.advance(conversation, messageText, messages);
+        if (reply != null) {
+            sendTextMessageAsync(chatId, messages.text(reply));
+        } else {
+            RideDetails details = conversation.getDetails();
+            // A completed ride keeps its cities for good
+            details.setCityA(CityDictionary.getDefault().keep(details.getCityA()));
+            details.setCityB(CityDictionary.getDefault().keep(details.getCityB()));
+            MessageKey completed = conversationFlow.completedMessage(details.getType());
+            // A repeated post of the same ride is answered as if posted, without reposting it
+            CompletableFuture<Integer> post = channelPublisher.findDuplicate(details);
+            if (post == null) {
+                publish(chatId, details);
+                post = channelPublisher.publish(details);
             }
-        } catch (NumberFormatException e) {
-            sendTextMessageAsync(chatId, "Please enter a valid number.");
+            post.whenComplete((posted, error) -> {
+                sendTextMessageAsync(chatId, messages.text(error == null ? completed : MessageKey.POST_FAILED));
+                sendMatches(chatId, details, messages);
+            });
+            conversations.remove(chatId);
         }
 
-        rideDetailsMap.put(chatId, details);
+        persist(chatId);
     }
 
-    private void sendWelcomeMessage(Long chatId) {
-        String welcomeText = "Welcome to RideShare Bot! You can use this bot to find or offer rides. Please note: By using this bot, you agree to our terms. We are not responsible for any actions or incidents that occur. Use at your own risk. Type /disclaimer for more info.";
-        sendTextMessageAsync(chatId, welcomeText, getStartOptions());
+    private void persist(long chatId) {
+        Conversation conversation = conversations.get(chatId);
+        scheduleDraftExpiry(chatId, conversation);
+        if (conversation == null) {
+            rideLog.appendCleared(chatId);
+        } else {
+            rideLog.appendConversation(conversation);
+        }
     }
 
-    private Map<String, String> getStartOptions() {
-        Map<String, String> options = new HashMap<>();
-        options.put("Find a ride", "go_to_channel");
-        options.put("Give a publication", "start_publication");
-        return options;
+    private void scheduleDraftExpiry(long chatId, Conversation conversation) {
+        if (conversation == null) {
+            timers.cancel(DRAFT_TIMER, chatId);
+        } else {
+            timers.schedule(DRAFT_TIMER, chatId, conversation.getLastAccess() + conversations.getTtlMillis());
+        }
     }
 
-    private Map<String, String> getRideOptions() {
-        Map<String, String> options = new HashMap<>();
-        options.put("Need a ride", "need_ride");
-        options.put("Offer a ride", "offer_ride");
-        return options;
+    // Rides are retired a grace period after departure; rides without one never expire.
+    private void scheduleRideExpiry(RideDetails details) {
+        if (details.getDeparture() != RideDetails.NO_DEPARTURE) {
+            long departure = LocalDateTime.ofEpochSecond(details.getDeparture() * 60, 0, ZoneOffset.UTC)
+                    .atZone(zone).toInstant().toEpochMilli();
+            timers.schedule(RIDE_TIMER, details.getId(), departure + rideExpiryGraceMillis);
+        }
     }
 
-    private void askForRideDetails(Long chatId) {
-        String text = "From which city are you going?";
-        sendTextMessageAsync(chatId, text);
-    }
-
-    private void askForOfferDetails(Long chatId) {
-        String text = "From which city are you going?";
-        sendTextMessageAsync(chatId, text);
-    }
-
-    private void sendRideDetailsToChannel(RideDetails details) {
-        String messageText;
-        if (details.getType().equals("driver")) {
-            String driver = "🕵🏼 I am a #Driver";
-            String fromCity = "🏢 From: #";
-            String toCity = "🏠 To: #";
-            String departureDate = "📅 Departure Date: ";
-            String departureTime = "⏰ Departure Time: ";
-            String numberOfPersons = "🙋🏻‍♂️ Number of Persons: ";
-            String price = "💵 Price: ";
-            String carModel = "🚙 Car Model: ";
-            String contactInfo = "📱 Contact Info: ";
-
-            messageText = driver + "\n" +
-                    fromCity + details.getCityA() + "\n" +
-                    toCity + details.getCityB() + "\n" +
-                    departureDate + details.getDateTime().split(" ")[0] + "\n" +
-                    departureTime + details.getDateTime().split(" ")[1] + "\n" +
-                    numberOfPersons + details.getNumberOfPersons() + "\n" +
-                    price + details.getPricePerPerson() + " euro\n" +
-                    carModel + details.getCarModel() + "\n" +
-                    contactInfo + details.getContactInfo() + "\n" +
-                    botUsername;
-        } else {
-            String passenger = "🙋🏻‍♂️ I am a #Passenger";
-            String fromCity = "🏢 From: #";
-            String toCity = "🏠 To: #";
-            String departureDate = "📅 Departure Date: ";
-            String departureTime = "⏰ Departure Time: ";
-            String numberOfPersons = "🙋🏻‍♂️ Number of Persons: ";
-            String contactInfo = "📱 Contact Info: ";
+    // A subscription ends with the last day of its window.
+    private void scheduleSubscriptionExpiry(Subscriptions.Subscription subscription) {
+        long end = LocalDate.ofEpochDay(subscription.getLastDay() + 1).atStartOfDay(zone).toInstant().toEpochMilli();
+        timers.schedule(SUBSCRIPTION_TIMER, subscription.getId(), end);
+    }
 
-            messageText = passenger + "\n" +
-                    fromCity + details.getCityA() + "\n" +
-                    toCity + details.getCityB() + "\n" +
-                    departureDate + details.getDateTime().split(" ")[0] + "\n" +
-                    departureTime + details.getDateTime().split(" ")[1] + "\n" +
-                    numberOfPersons + details.getNumberOfPersons() + "\n" +
-                    contactInfo + details.getContactInfo() + "\n" +
-                    botUsername;
+    private void onTimer(int kind, long key) {
+        if (kind == DRAFT_TIMER) {
+            // On the chat's shard, so an update of the chat cannot recreate the draft
+            // between its removal and the log record
+            dispatcher.execute(key, () -> expireDraft(key));
+        } else if (kind == SUBSCRIPTION_TIMER) {
+            if (subscriptions.remove(key) != null) {
+                rideLog.appendUnwatched(key);
+                expiredSubscriptions.increment();
+            }
+        } else if (publishedRides.remove(key) != null) {
+            rideMatcher.remove(key);
+            rideSearch.remove(key);
+            rideLog.appendRetired(key);
+            channelPublisher.retire(key);
+            expiredRides.increment();
+            ClusterNode node = cluster;
+            if (node != null) {
+                node.retireRide(key);
+            }
         }
-
-        sendTextMessageToChannel(messageText);
     }
 
-    private void sendTextMessageToChannel(String text) {
-        try {
-            SendMessage message = new SendMessage();
-            message.setChatId(channelUsername);
-            message.setText(new String(text.getBytes(), StandardCharsets.UTF_8));
-            execute(message);
-            logger.info("Sent message to channel: {}", message);
-        } catch (TelegramApiException e) {
-            logger.error("Failed to send message to channel", e);
+    // A draft used since the timer was set gets a new timer for its new idle time; one
+    // already gone was cleared when it went.
+    private void expireDraft(long chatId) {
+        long idleAt = conversations.removeIfIdle(chatId);
+        if (idleAt == ConversationStore.REMOVED) {
+            rideLog.appendCleared(chatId);
+            expiredDrafts.increment();
+        } else if (idleAt != ConversationStore.ABSENT) {
+            timers.schedule(DRAFT_TIMER, chatId, idleAt);
         }
     }
 
-    private void openChannel(Long chatId) {
-        try {
-            String url = "https://t.me/" + channelUsername.substring(1);
-            InlineKeyboardMarkup markup = new InlineKeyboardMarkup();
-            InlineKeyboardButton button = new InlineKeyboardButton();
-            button.setText("Go to Channel");
-            button.setUrl(url);
-            List<List<InlineKeyboardButton>> keyboard = new ArrayList<>();
-            keyboard.add(Collections.singletonList(button));
-            markup.setKeyboard(keyboard);
-
-            SendMessage message = new SendMessage();
-            message.setChatId(chatId.toString());
-            message.setText("Click the button below to go to the channel:");
-            message.setReplyMarkup(markup);
-
-            execute(message);
-        } catch (TelegramApiException e) {
-            logger.error("Failed to send channel link", e);
+    private void publish(long chatId, RideDetails details) {
+        ClusterNode node = cluster;
+        details.setId(node == null ? rideIds.incrementAndGet() : node.nextRideId());
+        details.setChatId(chatId);
+        publishedRides.put(details.getId(), details);
+        rideLog.appendPublished(details);
+        rideMatcher.add(details);
+        rideSearch.add(details);
+        scheduleRideExpiry(details);
+        rideAlerts.rideAdded(details);
+        if (node != null) {
+            node.publishRide(details);
         }
     }
 
-    public void sendTextMessageAsync(Long chatId, String text) {
-        try {
-            SendMessage message = createMessage(chatId.toString(), text);
-            execute(message);
-            logger.info("Sent message: {}", message);
-        } catch (TelegramApiException e) {
-            logger.error("Failed to send message", e);
+    // Rides published by other cluster nodes; our own come back through the cluster too.
+    private void indexRide(RideDetails details) {
+        if (publishedRides.putIfAbsent(details.getId(), details) == null) {
+            rideLog.appendPublished(details);
+            rideMatcher.add(details);
+            rideSearch.add(details);
+            scheduleRideExpiry(details);
+            rideAlerts.rideAdded(details);
         }
     }
 
-    public void sendTextMessageAsync(Long chatId, String text, Map<String, String> buttons) {
-        try {
-            SendMessage message = createMessage(chatId.toString(), text, buttons);
-            execute(message);
-            logger.info("Sent message: {}", message);
-        } catch (TelegramApiException e) {
-            logger.error("Failed to send message", e);
+    private void sendMatches(Long chatId, RideDetails details, Messages messages) {
+        long[] matches = new long[MAX_MATCHES];
+        int found = rideMatcher.match(details, matches);
+        if (found == 0) {
+            return;
         }
+        StringBuilder text = new StringBuilder(messages.text(details.getType() == RideType.DRIVER
+                ? MessageKey.MATCHES_FOR_DRIVER
+                : MessageKey.MATCHES_FOR_PASSENGER));
+        for (int i = 0; i < found; i++) {
+            RideDetails match = publishedRides.get(matches[i]);
+            if (match == null) {
+                continue;
+            }
+            messages.get(match.getType() == RideType.DRIVER ? MessageKey.MATCH_DRIVER : MessageKey.MATCH_PASSENGER)
+                    .renderTo(text, new RideFields(match, botUsername));
+        }
+        // Contacts are user input, so send as plain text rather than markdown.
+        SendMessage message = createMessage(chatId.toString(), text.toString());
+        message.setParseMode(null);
+        send(message);
+    }
+
+    private void sendWelcomeMessage(Long chatId, Messages messages) {
+        sendTextMessageAsync(chatId, messages.text(MessageKey.WELCOME), getStartOptions(messages));
+    }
+
+    private Map<String, String> getStartOptions(Messages messages) {
+        Map<String, String> options = new HashMap<>();
+        options.put(messages.text(MessageKey.BUTTON_FIND_RIDE), CallbackAction.GO_TO_CHANNEL.data());
+        options.put(messages.text(MessageKey.BUTTON_PUBLISH), CallbackAction.START_PUBLICATION.data());
+        return options;
+    }
+
+    private Map<String, String> getRideOptions(Messages messages) {
+        Map<String, String> options = new HashMap<>();
+        options.put(messages.text(MessageKey.BUTTON_NEED_RIDE), CallbackAction.NEED_RIDE.data());
+        options.put(messages.text(MessageKey.BUTTON_OFFER_RIDE), CallbackAction.OFFER_RIDE.data());
+        return options;
+    }
+
+    private void openChannel(Long chatId, Messages messages) {
+        String url = "https://t.me/" + channelRouter.getDefaultChannel().substring(1);
+        InlineKeyboardMarkup markup = new InlineKeyboardMarkup();
+        InlineKeyboardButton button = new InlineKeyboardButton();
+        button.setText(messages.text(MessageKey.BUTTON_GO_TO_CHANNEL));
+        button.setUrl(url);
+        List<List<InlineKeyboardButton>> keyboard = new ArrayList<>();
+        keyboard.add(Collections.singletonList(button));
+        markup.setKeyboard(keyboard);
+
+        SendMessage message = new SendMessage();
+        message.setChatId(chatId.toString());
+        message.setText(messages.text(MessageKey.CHANNEL_LINK));
+        message.setReplyMarkup(markup);
+
+        sender.send(message.getChatId(), message).whenComplete((sent, error) -> {
+            if (error != null) {
+                logger.error("Failed to send channel link", error);
+            }
+        });
     }
 
-    public SendMessage createMessage(String chatId, String text) {
+    // City names are user input, so send as plain text rather than markdown.
+    private void sendPlainText(long chatId, String text) {
+        SendMessage message = createMessage(Long.toString(chatId), text);
+        message.setParseMode(null);
+        send(message);
+    }
+
+    public CompletableFuture<Message> sendTextMessageAsync(Long chatId, String text) {
+        return send(createMessage(chatId.toString(), text));
+    }
+
+    public CompletableFuture<Message> sendTextMessageAsync(Long chatId, String text, Map<String, String> buttons) {
+        return send(createMessage(chatId.toString(), text, buttons));
+    }
+
+    private CompletableFuture<Message> send(SendMessage message) {
+        ReplyTimer timer = replyTimers.get();
+        LatencyHistogram latency = timer.latency;
+        long receivedNanos = timer.receivedNanos;
+        timer.latency = null;
+        return sender.send(message.getChatId(), message).whenComplete((sent, error) -> {
+            if (error != null) {
+                logger.error("Failed to send message", error);
+                return;
+            }
+            if (latency != null) {
+                latency.recordSince(receivedNanos);
+            }
+            if (logger.isDebugEnabled() && ThreadLocalRandom.current().nextInt(LOG_SAMPLE_RATE) == 0) {
+                logger.debug("Sent message {} to chat {}", sent.getMessageId(), message.getChatId());
+            }
+        });
+    }
+
+    public static SendMessage createMessage(String chatId, String text) {
         SendMessage message = new SendMessage();
-        message.setText(new String(text.getBytes(), StandardCharsets.UTF_8));
+        message.setText(text);
         message.setParseMode("markdown");
         message.setChatId(chatId);
         return message;
     }
 
-    public SendMessage createMessage(String chatId, String text, Map<String, String> buttons) {
+    public static SendMessage createMessage(String chatId, String text, Map<String, String> buttons) {
         SendMessage message = createMessage(chatId, text);
         if (buttons != null && !buttons.isEmpty())
             attachButtons(message, buttons);
         return message;
     }
 
-    private void attachButtons(SendMessage message, Map<String, String> buttons) {
+    static void attachButtons(SendMessage message, Map<String, String> buttons) {
+        message.setReplyMarkup(keyboard(buttons));
+    }
+
+    static InlineKeyboardMarkup keyboard(Map<String, String> buttons) {
         InlineKeyboardMarkup markup = new InlineKeyboardMarkup();
         List<List<InlineKeyboardButton>> keyboard = new ArrayList<>();
 
@@ -369,7 +863,7 @@ public class RideShareBot extends TelegramLongPollingBot {
             String buttonValue = entry.getValue();
 
             InlineKeyboardButton button = new InlineKeyboardButton();
-            button.setText(new String(buttonName.getBytes(), StandardCharsets.UTF_8));
+            button.setText(buttonName);
             button.setCallbackData(buttonValue);
 
             List<InlineKeyboardButton> row = new ArrayList<>();
@@ -378,21 +872,17 @@ public class RideShareBot extends TelegramLongPollingBot {
         }
 
         markup.setKeyboard(keyboard);
-        message.setReplyMarkup(markup);
+        return markup;
     }
 
-    private boolean isValidContactInfo(String contactInfo) {
-        return contactInfo.startsWith("@") || contactInfo.matches("\\+?[0-9]{10,13}");
+    private void sendDisclaimer(Long chatId, Messages messages) {
+        sendTextMessageAsync(chatId, messages.text(MessageKey.DISCLAIMER));
     }
 
-    private void sendDisclaimer(Long chatId) {
-        String disclaimerText = "Disclaimer & Privacy Policy:\n\n" +
-                "1. RideShare Bot acts as a platform to help people find or offer rides. We do not verify the identity of users or validate the information provided by them.\n" +
-                "2. You use this bot at your own risk. We are not responsible for any agreements made between users, incidents, accidents, or disputes that may arise.\n" +
-                "3. Your personal information (such as contact info) is shared only with users who engage with your ride posts. We do not store or process this data for any other purpose.\n" +
-                "4. Please ensure you follow your local laws and regulations regarding ride-sharing.\n\n" +
-                "By using this bot, you agree to the terms outlined above.";
-        sendTextMessageAsync(chatId, disclaimerText);
+    // The update a dispatch thread is handling; only its first reply is timed.
+    private static final class ReplyTimer {
+        LatencyHistogram latency;
+        long receivedNanos;
     }
 
 
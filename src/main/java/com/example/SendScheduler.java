@@ -0,0 +1,375 @@
+package com.example;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Paces every outbound Bot API call against Telegram's flood limits.
+ * <p>
+ * A call is released only when both the global token bucket and the bucket of its target
+ * chat have a token. Private chats, and groups or channels, have separate budgets. A 429
+ * response blocks the chat's bucket for the {@code retry_after} Telegram reported.
+ * Interactive replies are always considered before channel broadcasts, and both before
+ * bulk notifications, which also leave a quarter of the global burst unused so replies
+ * arriving meanwhile go out at once. Chats that have used up their budget wait apart
+ * from the others until their bucket refills, so releasing a call never looks at the
+ * chats that cannot send yet. All decisions are made on a single scheduler thread; the
+ * released action must not block.
+ * <p>
+ * Telegram's limits apply per bot token. When several processes share the token, each
+ * {@linkplain #setShares takes its share} of the global rate and of every group's and
+ * channel's rate; private chats each belong to one process and keep their full rate.
+ */
+public class SendScheduler {
+    private static final Logger logger = LoggerFactory.getLogger(SendScheduler.class);
+
+    public enum Priority {
+        INTERACTIVE,
+        BROADCAST,
+        BULK
+    }
+
+    private static final double PRIVATE_CHAT_PER_SECOND = 1.0;
+    private static final int PRIVATE_CHAT_BURST = 3;
+    private static final double GROUP_PER_SECOND = 20.0 / 60.0;
+    private static final int GROUP_BURST = 3;
+    private static final int MAX_TRACKED_CHATS = 10_000;
+    private static final LatencyHistogram waits = Metrics.getDefault()
+            .histogram("ridebot_send_scheduler_wait_seconds", "Time sends waited for a rate limit token");
+
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition changed = lock.newCondition();
+    private final TicketQueue interactive = new TicketQueue();
+    private final TicketQueue broadcast = new TicketQueue();
+    private final TicketQueue bulk = new TicketQueue();
+    private final double globalPerSecond;
+    private final int globalBurst;
+    private final TokenBucket global;
+    private int bulkReserve;
+    private int shares = 1;
+    // Evicted buckets were idle long enough to be full again, so dropping them is safe.
+    private final Map<String, TokenBucket> chatBuckets = new LinkedHashMap<String, TokenBucket>(256, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, TokenBucket> eldest) {
+            return size() > MAX_TRACKED_CHATS;
+        }
+    };
+
+    private final AtomicLong scheduled = new AtomicLong();
+    private final AtomicLong totalWaitNanos = new AtomicLong();
+    private final AtomicLong maxWaitNanos = new AtomicLong();
+    private final AtomicLong rateLimited = new AtomicLong();
+    private final Thread worker;
+    private volatile boolean running = true;
+
+    public SendScheduler(double globalPerSecond, int globalBurst) {
+        this.globalPerSecond = globalPerSecond;
+        this.globalBurst = globalBurst;
+        this.global = new TokenBucket(globalPerSecond, globalBurst);
+        this.bulkReserve = globalBurst / 4;
+        this.worker = new Thread(this::run, "send-scheduler");
+        this.worker.setDaemon(true);
+        this.worker.start();
+    }
+
+    public void submit(String chatId, Priority priority, Runnable action) {
+        Ticket ticket = new Ticket(chatId, action, System.nanoTime());
+        lock.lock();
+        try {
+            queueFor(priority).add(ticket);
+            changed.signal();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Blocks all sends to the chat for the given time, typically the {@code retry_after}
+     * of a 429 response.
+     */
+    public void backOff(String chatId, long millis) {
+        rateLimited.incrementAndGet();
+        lock.lock();
+        try {
+            bucketFor(chatId).blockFor(System.nanoTime(), TimeUnit.MILLISECONDS.toNanos(millis));
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Limits this process to its share of the rates Telegram allows the bot token, when
+     * the given number of processes send with it: the global rate and burst and the rate
+     * of each group and channel are divided by that number.
+     */
+    public void setShares(int processes) {
+        int share = Math.max(1, processes);
+        lock.lock();
+        try {
+            if (share == shares) {
+                return;
+            }
+            shares = share;
+            int burst = Math.max(1, globalBurst / share);
+            global.setRate(globalPerSecond / share, burst);
+            bulkReserve = burst / 4;
+            for (Map.Entry<String, TokenBucket> entry : chatBuckets.entrySet()) {
+                if (!isPrivateChat(entry.getKey())) {
+                    entry.getValue().setRate(GROUP_PER_SECOND / share, groupBurst());
+                }
+            }
+            changed.signal();
+        } finally {
+            lock.unlock();
+        }
+        logger.info("Sending at 1/{} of the bot's rate limits", share);
+    }
+
+    public int queueDepth(Priority priority) {
+        lock.lock();
+        try {
+            return queueFor(priority).size;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public long scheduledCount() {
+        return scheduled.get();
+    }
+
+    public long rateLimitedCount() {
+        return rateLimited.get();
+    }
+
+    public double averageWaitMillis() {
+        long count = scheduled.get();
+        return count == 0 ? 0 : totalWaitNanos.get() / (double) count / 1_000_000;
+    }
+
+    public double maxWaitMillis() {
+        return maxWaitNanos.get() / 1_000_000.0;
+    }
+
+    public void shutdown() {
+        running = false;
+        worker.interrupt();
+    }
+
+    private void run() {
+        while (running) {
+            Ticket ticket;
+            lock.lock();
+            try {
+                long now = System.nanoTime();
+                long[] wait = {Long.MAX_VALUE};
+                ticket = pollReady(interactive, now, wait, 0);
+                if (ticket == null) {
+                    ticket = pollReady(broadcast, now, wait, 0);
+                }
+                if (ticket == null) {
+                    ticket = pollReady(bulk, now, wait, bulkReserve);
+                }
+                if (ticket == null) {
+                    if (wait[0] == Long.MAX_VALUE) {
+                        changed.await();
+                    } else {
+                        changed.awaitNanos(wait[0]);
+                    }
+                    continue;
+                }
+            } catch (InterruptedException e) {
+                return;
+            } finally {
+                lock.unlock();
+            }
+            record(System.nanoTime() - ticket.enqueuedNanos);
+            try {
+                ticket.action.run();
+            } catch (RuntimeException e) {
+                logger.error("Scheduled send failed to start", e);
+            }
+        }
+    }
+
+    private TicketQueue queueFor(Priority priority) {
+        switch (priority) {
+            case INTERACTIVE:
+                return interactive;
+            case BROADCAST:
+                return broadcast;
+            default:
+                return bulk;
+        }
+    }
+
+    // Releases the next ticket of a chat that has a token, if the global bucket has one
+    // beyond the given reserve. A chat found without a token waits until its bucket
+    // refills; one that sent goes to the back of the ready chats, so chats take turns.
+    private Ticket pollReady(TicketQueue queue, long now, long[] wait, int reserve) {
+        if (queue.size == 0) {
+            return null;
+        }
+        long globalWait = global.nanosUntilAvailable(now, reserve + 1);
+        if (globalWait > 0) {
+            wait[0] = Math.min(wait[0], globalWait);
+            return null;
+        }
+        ChatTickets chat;
+        while ((chat = queue.waiting.peek()) != null && chat.readyAt - now <= 0) {
+            queue.ready.add(queue.waiting.poll());
+        }
+        while ((chat = queue.ready.poll()) != null) {
+            TokenBucket bucket = bucketFor(chat.chatId);
+            long chatWait = bucket.nanosUntilAvailable(now);
+            if (chatWait > 0) {
+                chat.readyAt = now + chatWait;
+                queue.waiting.add(chat);
+                continue;
+            }
+            bucket.take();
+            global.take();
+            Ticket ticket = chat.tickets.poll();
+            queue.size--;
+            if (chat.tickets.isEmpty()) {
+                queue.byChat.remove(chat.chatId);
+            } else {
+                queue.ready.add(chat);
+            }
+            return ticket;
+        }
+        chat = queue.waiting.peek();
+        if (chat != null) {
+            wait[0] = Math.min(wait[0], chat.readyAt - now);
+        }
+        return null;
+    }
+
+    private TokenBucket bucketFor(String chatId) {
+        TokenBucket bucket = chatBuckets.get(chatId);
+        if (bucket == null) {
+            bucket = isPrivateChat(chatId)
+                    ? new TokenBucket(PRIVATE_CHAT_PER_SECOND, PRIVATE_CHAT_BURST)
+                    : new TokenBucket(GROUP_PER_SECOND / shares, groupBurst());
+            chatBuckets.put(chatId, bucket);
+        }
+        return bucket;
+    }
+
+    private int groupBurst() {
+        return Math.max(1, GROUP_BURST / shares);
+    }
+
+    // Channel usernames start with '@', group and channel ids are negative.
+    private static boolean isPrivateChat(String chatId) {
+        return !chatId.isEmpty() && chatId.charAt(0) != '@' && chatId.charAt(0) != '-';
+    }
+
+    private void record(long waitNanos) {
+        waits.record(waitNanos);
+        scheduled.incrementAndGet();
+        totalWaitNanos.addAndGet(waitNanos);
+        long max;
+        while (waitNanos > (max = maxWaitNanos.get()) && !maxWaitNanos.compareAndSet(max, waitNanos)) {
+            // retry
+        }
+    }
+
+    private static final class Ticket {
+        final String chatId;
+        final Runnable action;
+        final long enqueuedNanos;
+
+        Ticket(String chatId, Runnable action, long enqueuedNanos) {
+            this.chatId = chatId;
+            this.action = action;
+            this.enqueuedNanos = enqueuedNanos;
+        }
+    }
+
+    // The tickets of one priority, grouped by chat. A chat is either ready, meaning its
+    // bucket may have a token, or waiting for the time its bucket will have one.
+    private static final class TicketQueue {
+        final Map<String, ChatTickets> byChat = new HashMap<>();
+        final ArrayDeque<ChatTickets> ready = new ArrayDeque<>();
+        final PriorityQueue<ChatTickets> waiting = new PriorityQueue<>(
+                (a, b) -> Long.signum(a.readyAt - b.readyAt));
+        int size;
+
+        void add(Ticket ticket) {
+            ChatTickets chat = byChat.get(ticket.chatId);
+            if (chat == null) {
+                chat = new ChatTickets(ticket.chatId);
+                byChat.put(ticket.chatId, chat);
+                ready.add(chat);
+            }
+            chat.tickets.add(ticket);
+            size++;
+        }
+    }
+
+    private static final class ChatTickets {
+        final String chatId;
+        final ArrayDeque<Ticket> tickets = new ArrayDeque<>();
+        long readyAt;
+
+        ChatTickets(String chatId) {
+            this.chatId = chatId;
+        }
+    }
+
+    private static final class TokenBucket {
+        private double tokensPerNano;
+        private int capacity;
+        private double tokens;
+        private long lastRefill;
+        private long blockedUntil;
+
+        TokenBucket(double perSecond, int capacity) {
+            this.tokensPerNano = perSecond / TimeUnit.SECONDS.toNanos(1);
+            this.capacity = capacity;
+            this.tokens = capacity;
+            this.lastRefill = System.nanoTime();
+            this.blockedUntil = lastRefill;
+        }
+
+        long nanosUntilAvailable(long now) {
+            return nanosUntilAvailable(now, 1);
+        }
+
+        long nanosUntilAvailable(long now, int needed) {
+            if (now - blockedUntil < 0) {
+                return blockedUntil - now;
+            }
+            tokens = Math.min(capacity, tokens + (now - lastRefill) * tokensPerNano);
+            lastRefill = now;
+            return tokens >= needed ? 0 : (long) ((needed - tokens) / tokensPerNano) + 1;
+        }
+
+        void take() {
+            tokens -= 1;
+        }
+
+        void setRate(double perSecond, int capacity) {
+            this.tokensPerNano = perSecond / TimeUnit.SECONDS.toNanos(1);
+            this.capacity = capacity;
+            this.tokens = Math.min(tokens, capacity);
+        }
+
+        void blockFor(long now, long nanos) {
+            blockedUntil = now + nanos;
+            tokens = 0;
+            lastRefill = blockedUntil;
+        }
+    }
+}
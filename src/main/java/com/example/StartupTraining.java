@@ -0,0 +1,138 @@
+package com.example;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.telegram.telegrambots.meta.api.methods.BotApiMethod;
+import org.telegram.telegrambots.meta.api.methods.send.SendMessage;
+import org.telegram.telegrambots.meta.api.methods.updates.GetUpdates;
+import org.telegram.telegrambots.meta.api.methods.updatingmessages.EditMessageText;
+import org.telegram.telegrambots.meta.api.objects.Update;
+import org.telegram.telegrambots.meta.exceptions.TelegramApiException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.Serializable;
+import java.lang.management.ManagementFactory;
+import java.nio.file.Files;
+import java.time.LocalDate;
+import java.time.format.DateTimeFormatter;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A short, offline run of the bot used to prepare fast startup builds.
+ * <p>
+ * It starts a bot on a temporary data directory, parses a {@code getUpdates} response
+ * holding a complete driver form, and feeds it through the normal update path. Bot API
+ * calls are answered locally, but are still serialized and their responses parsed as
+ * the real client does. That way the run loads the classes, resources and reflection
+ * that a real start needs before its first reply, which the {@code appcds} and
+ * {@code native} Maven profiles record. It logs the time from JVM start to the first
+ * reply and exits.
+ */
+public final class StartupTraining {
+    private static final Logger logger = LoggerFactory.getLogger(StartupTraining.class);
+
+    private static final long CHAT_ID = 1_000_001;
+    private static final String[] ANSWERS = {
+            "Berlin", "Hamburg", LocalDate.now().plusDays(30).format(DateTimeFormatter.ofPattern("dd.MM.yyyy")),
+            "9:30", "3", "15", "VW Golf", "@someone"
+    };
+    private static final String FROM = "\"from\":{\"id\":" + CHAT_ID
+            + ",\"is_bot\":false,\"first_name\":\"Training\",\"language_code\":\"de\"}";
+
+    private StartupTraining() {
+    }
+
+    public static void main(String[] args) throws IOException, TelegramApiException, InterruptedException {
+        long jvmStart = ManagementFactory.getRuntimeMXBean().getStartTime();
+        File dataDir = Files.createTempDirectory("rideshare-training").toFile();
+        List<Update> updates = new GetUpdates().deserializeResponse(updatesResponse());
+        CountDownLatch replies = new CountDownLatch(updates.size());
+        long[] firstReply = new long[1];
+
+        RideShareBot bot = new RideShareBot(dataDir) {
+            private final ObjectMapper mapper = new ObjectMapper();
+            private final AtomicInteger messageIds = new AtomicInteger();
+
+            @Override
+            public <T extends Serializable, Method extends BotApiMethod<T>> CompletableFuture<T> executeAsync(Method method) {
+                CompletableFuture<T> result = new CompletableFuture<>();
+                try {
+                    mapper.writeValueAsString(method);
+                    boolean message = method instanceof SendMessage || method instanceof EditMessageText;
+                    result.complete(method.deserializeResponse(message
+                            ? "{\"ok\":true,\"result\":{\"message_id\":" + messageIds.incrementAndGet()
+                            + ",\"date\":0,\"chat\":{\"id\":" + CHAT_ID + ",\"type\":\"private\"}}}"
+                            : "{\"ok\":true,\"result\":true}"));
+                } catch (IOException | TelegramApiException e) {
+                    result.completeExceptionally(e);
+                }
+                synchronized (firstReply) {
+                    if (firstReply[0] == 0) {
+                        firstReply[0] = System.currentTimeMillis();
+                    }
+                }
+                replies.countDown();
+                return result;
+            }
+        };
+        for (Update update : updates) {
+            bot.onUpdateReceived(update);
+        }
+        if (!replies.await(30, TimeUnit.SECONDS)) {
+            logger.warn("Training run got only {} of {} replies", updates.size() - replies.getCount(), updates.size());
+        }
+        logger.info("First reply {} ms after JVM start, peak RSS {}", firstReply[0] - jvmStart, peakResidentSize());
+        for (File file : dataDir.listFiles()) {
+            Files.delete(file.toPath());
+        }
+        Files.delete(dataDir.toPath());
+        System.exit(0);
+    }
+
+    // Linux reports the peak resident set size of the process in /proc; elsewhere it is unknown.
+    private static String peakResidentSize() {
+        try {
+            for (String line : Files.readAllLines(new File("/proc/self/status").toPath())) {
+                if (line.startsWith("VmHWM:")) {
+                    return line.substring("VmHWM:".length()).trim();
+                }
+            }
+        } catch (IOException e) {
+            // not Linux
+        }
+        return "unknown";
+    }
+
+    // A /start, the buttons of the publish and offer questions, then one answer per
+    // step; the German user makes the run load the translated messages too.
+    private static String updatesResponse() {
+        StringBuilder json = new StringBuilder("{\"ok\":true,\"result\":[");
+        int updateId = 1;
+        json.append(text(updateId++, "/start"));
+        json.append(',').append(callback(updateId++, CallbackAction.START_PUBLICATION));
+        json.append(',').append(callback(updateId++, CallbackAction.OFFER_RIDE));
+        for (String answer : ANSWERS) {
+            json.append(',').append(text(updateId++, answer));
+        }
+        return json.append("]}").toString();
+    }
+
+    private static String text(int updateId, String text) {
+        return "{\"update_id\":" + updateId + ",\"message\":{\"message_id\":" + updateId
+                + ",\"date\":0," + FROM + ",\"chat\":{\"id\":" + CHAT_ID + ",\"type\":\"private\"},"
+                + "\"text\":\"" + text + "\"}}";
+    }
+
+    private static String callback(int updateId, CallbackAction action) {
+        return "{\"update_id\":" + updateId + ",\"callback_query\":{\"id\":\"" + updateId + "\"," + FROM
+                + ",\"message\":{\"message_id\":" + updateId + ",\"date\":0,"
+                + "\"chat\":{\"id\":" + CHAT_ID + ",\"type\":\"private\"}},"
+                + "\"chat_instance\":\"1\",\"data\":\"" + action.data() + "\"}}";
+    }
+}
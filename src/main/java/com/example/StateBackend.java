@@ -0,0 +1,67 @@
+package com.example;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.List;
+
+/**
+ * What the nodes of a cluster share: who is a member, conversations parked while they
+ * move to a new owner, published rides and the ride id sequence. Everything else is
+ * owned by a single node. Values are opaque bytes encoded by {@link StateCodec}.
+ */
+public interface StateBackend extends Closeable {
+    /**
+     * Receives cluster events. Calls may come from a backend thread.
+     */
+    interface Listener {
+        void membersChanged(List<String> members);
+
+        void ridePublished(byte[] ride);
+    }
+
+    /**
+     * Adds the node to the cluster. The listener is then told the current members and
+     * every ride published so far and not retired, and from then on about every change. A
+     * ride may be told more than once.
+     */
+    void join(String nodeId, Listener listener) throws IOException;
+
+    /**
+     * Removes the node from the cluster; the remaining nodes are told.
+     */
+    void leave(String nodeId) throws IOException;
+
+    List<String> members() throws IOException;
+
+    /**
+     * Parks a conversation for the node that now owns the chat, replacing any parked one.
+     */
+    void handOff(long chatId, byte[] conversation) throws IOException;
+
+    /**
+     * Removes and returns the conversation parked for the chat, or {@code null}.
+     */
+    byte[] claim(long chatId) throws IOException;
+
+    /**
+     * Makes a ride visible to every node, including the publisher.
+     */
+    void publishRide(long rideId, byte[] ride) throws IOException;
+
+    /**
+     * Tells the backend a ride has expired, so nodes joining later need not be told about
+     * it. Every node retires the rides it knows; retiring a ride again does nothing.
+     */
+    void retireRide(long rideId) throws IOException;
+
+    /**
+     * Returns a cluster-wide unique ride id, greater than any id passed to
+     * {@link #reserveRideIds}.
+     */
+    long nextRideId() throws IOException;
+
+    /**
+     * Makes sure later ids are above {@code maxUsed}, e.g. the highest id a node recovered.
+     */
+    void reserveRideIds(long maxUsed) throws IOException;
+}
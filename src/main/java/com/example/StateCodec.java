@@ -0,0 +1,123 @@
+package com.example;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+
+/**
+ * Binary form of conversations and rides exchanged between cluster nodes. Cities travel
+ * by name, since every node interns them into its own {@link CityDictionary}.
+ */
+public final class StateCodec {
+    private static final byte VERSION = 2;
+
+    private StateCodec() {
+    }
+
+    public static byte[] encode(Conversation conversation) {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(128);
+        try (DataOutputStream out = new DataOutputStream(bytes)) {
+            out.writeByte(VERSION);
+            out.writeLong(conversation.getChatId());
+            out.writeLong(conversation.getLastAccess());
+            writeString(out, conversation.getState() == null ? null : conversation.getState().name());
+            RideDetails details = conversation.getDetails();
+            out.writeBoolean(details != null);
+            if (details != null) {
+                writeDetails(out, details);
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        return bytes.toByteArray();
+    }
+
+    /**
+     * Restores an encoded conversation into the store, replacing the chat's current one,
+     * as last used when it was encoded. Returns {@code null}, restoring nothing, if it has
+     * been idle past the store's TTL since.
+     */
+    public static Conversation decodeInto(byte[] encoded, ConversationStore store) throws IOException {
+        DataInputStream in = open(encoded);
+        Conversation conversation = store.restore(in.readLong(), in.readLong());
+        if (conversation == null) {
+            return null;
+        }
+        conversation.setState(ConversationState.fromName(readString(in)));
+        conversation.setDetails(in.readBoolean() ? readDetails(in, true) : null);
+        return conversation;
+    }
+
+    public static byte[] encode(RideDetails ride) {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(128);
+        try (DataOutputStream out = new DataOutputStream(bytes)) {
+            out.writeByte(VERSION);
+            writeDetails(out, ride);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        return bytes.toByteArray();
+    }
+
+    public static RideDetails decodeRide(byte[] encoded) throws IOException {
+        return readDetails(open(encoded), false);
+    }
+
+    private static DataInputStream open(byte[] encoded) throws IOException {
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(encoded));
+        byte version = in.readByte();
+        if (version != VERSION) {
+            throw new IOException("Unsupported state version " + version);
+        }
+        return in;
+    }
+
+    private static void writeDetails(DataOutputStream out, RideDetails details) throws IOException {
+        out.writeLong(details.getId());
+        out.writeLong(details.getChatId());
+        out.writeByte(details.getType() == null ? -1 : details.getType().ordinal());
+        writeString(out, details.getCityAName());
+        writeString(out, details.getCityBName());
+        out.writeLong(details.getDeparture());
+        out.writeInt(details.getNumberOfPersons());
+        out.writeInt(details.getPriceCents());
+        writeString(out, details.getCarModel());
+        writeString(out, details.getContactInfo());
+    }
+
+    // The cities of a draft get draft ids, as they did on the node that encoded it.
+    private static RideDetails readDetails(DataInputStream in, boolean draft) throws IOException {
+        RideDetails details = new RideDetails();
+        details.setId(in.readLong());
+        details.setChatId(in.readLong());
+        byte type = in.readByte();
+        details.setType(type < 0 ? null : RideType.values()[type]);
+        details.setCityA(cityId(readString(in), draft));
+        details.setCityB(cityId(readString(in), draft));
+        details.setDeparture(in.readLong());
+        details.setNumberOfPersons(in.readInt());
+        details.setPriceCents(in.readInt());
+        details.setCarModel(readString(in));
+        details.setContactInfo(readString(in));
+        return details;
+    }
+
+    private static int cityId(String name, boolean draft) {
+        CityDictionary cities = CityDictionary.getDefault();
+        return draft ? cities.draftIdOf(name) : cities.idOf(name);
+    }
+
+    private static void writeString(DataOutputStream out, String value) throws IOException {
+        out.writeBoolean(value != null);
+        if (value != null) {
+            out.writeUTF(value);
+        }
+    }
+
+    private static String readString(DataInputStream in) throws IOException {
+        return in.readBoolean() ? in.readUTF() : null;
+    }
+}
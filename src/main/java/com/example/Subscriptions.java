@@ -0,0 +1,336 @@
+package com.example;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.Consumer;
+
+/**
+ * Users watching a route for rides offered within a window of days.
+ * <p>
+ * The inverted index maps (origin, destination, day) to the watchers of that day, so
+ * finding who to alert about a new ride is one hash probe plus a walk over exactly the
+ * matching watchers, however many subscriptions exist in total. A subscription puts one
+ * entry in each day of its window; entries are chained per bucket in parallel primitive
+ * arrays, as in {@link RideMatcher}. A chat has at most one subscription per route, and
+ * watching the route again replaces it. Reads run concurrently; changes take the write
+ * lock.
+ */
+public class Subscriptions {
+    public static final int MAX_DAYS = 31;
+    public static final int MAX_PER_CHAT = 5;
+
+    private static final int NONE = -1;
+    private static final int CITY_BITS = 21;
+    private static final int DAY_BITS = 21;
+    private static final long CITY_MASK = (1L << CITY_BITS) - 1;
+    private static final long DAY_MASK = (1L << DAY_BITS) - 1;
+
+    /**
+     * A chat watching rides from one city to another departing between two days. It
+     * exposes its route and window to the {@code watch.*} templates.
+     */
+    public static final class Subscription implements MessageTemplate.Fields {
+        static final String[] NAMES = {"from", "to", "first", "last"};
+
+        private static final int FROM = 0;
+        private static final int TO = 1;
+        private static final int FIRST = 2;
+
+        private final long id;
+        private final long chatId;
+        private final int from;
+        private final int to;
+        private final long firstDay;
+        private final long lastDay;
+        private final String language;
+        private int[] entries;
+
+        public Subscription(long id, long chatId, int from, int to, long firstDay, long lastDay, String language) {
+            this.id = id;
+            this.chatId = chatId;
+            this.from = from;
+            this.to = to;
+            this.firstDay = firstDay;
+            this.lastDay = lastDay;
+            this.language = language;
+        }
+
+        public long getId() {
+            return id;
+        }
+
+        public long getChatId() {
+            return chatId;
+        }
+
+        public int getFrom() {
+            return from;
+        }
+
+        public int getTo() {
+            return to;
+        }
+
+        public long getFirstDay() {
+            return firstDay;
+        }
+
+        public long getLastDay() {
+            return lastDay;
+        }
+
+        public String getLanguage() {
+            return language;
+        }
+
+        @Override
+        public void appendField(int field, StringBuilder out) {
+            switch (field) {
+                case FROM:
+                    out.append(CityDictionary.getDefault().nameOf(from));
+                    break;
+                case TO:
+                    out.append(CityDictionary.getDefault().nameOf(to));
+                    break;
+                case FIRST:
+                    RideDetails.appendDate(out, firstDay);
+                    break;
+                default:
+                    RideDetails.appendDate(out, lastDay);
+                    break;
+            }
+        }
+    }
+
+    /**
+     * The watchers a ride should be sent to, with the language each of them reads.
+     */
+    public static final class Recipients {
+        public final long[] chatIds;
+        public final String[] languages;
+        public final int size;
+
+        Recipients(long[] chatIds, String[] languages, int size) {
+            this.chatIds = chatIds;
+            this.languages = languages;
+            this.size = size;
+        }
+    }
+
+    private static final Recipients NO_RECIPIENTS = new Recipients(new long[0], new String[0], 0);
+
+    private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+    private final Map<Long, Subscription> byId = new HashMap<>();
+    private final Map<Long, List<Subscription>> byChat = new HashMap<>();
+    private final LongIntMap bucketHeads = new LongIntMap(1024, NONE);
+
+    private long[] bucketKeys = new long[1024];
+    private Subscription[] owners = new Subscription[1024];
+    private int[] next = new int[1024];
+    private int[] prev = new int[1024];
+    private int freeHead = NONE;
+    private int highWater;
+
+    /**
+     * Adds a subscription, replacing the chat's subscription to the same route. Returns
+     * {@code false}, adding nothing, if the chat already watches {@value #MAX_PER_CHAT}
+     * other routes.
+     */
+    public boolean add(Subscription subscription) {
+        if (subscription.lastDay < subscription.firstDay || subscription.lastDay - subscription.firstDay >= MAX_DAYS) {
+            throw new IllegalArgumentException("A subscription spans 1 to " + MAX_DAYS + " days");
+        }
+        lock.writeLock().lock();
+        try {
+            List<Subscription> ofChat = byChat.getOrDefault(subscription.chatId, Collections.emptyList());
+            Subscription replaced = null;
+            for (Subscription existing : ofChat) {
+                if (existing.from == subscription.from && existing.to == subscription.to) {
+                    replaced = existing;
+                }
+            }
+            if (replaced == null && ofChat.size() >= MAX_PER_CHAT) {
+                return false;
+            }
+            if (replaced != null) {
+                unindex(replaced);
+            }
+            int days = (int) (subscription.lastDay - subscription.firstDay + 1);
+            subscription.entries = new int[days];
+            for (int i = 0; i < days; i++) {
+                subscription.entries[i] = link(subscription, bucketKey(subscription.from, subscription.to, subscription.firstDay + i));
+            }
+            byId.put(subscription.id, subscription);
+            byChat.computeIfAbsent(subscription.chatId, chat -> new ArrayList<>(1)).add(subscription);
+            return true;
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    public Subscription remove(long subscriptionId) {
+        lock.writeLock().lock();
+        try {
+            Subscription subscription = byId.get(subscriptionId);
+            if (subscription != null) {
+                unindex(subscription);
+            }
+            return subscription;
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Removes every subscription of the chat and returns them.
+     */
+    public List<Subscription> removeAll(long chatId) {
+        lock.writeLock().lock();
+        try {
+            List<Subscription> ofChat = byChat.get(chatId);
+            if (ofChat == null) {
+                return Collections.emptyList();
+            }
+            List<Subscription> removed = new ArrayList<>(ofChat);
+            for (Subscription subscription : removed) {
+                unindex(subscription);
+            }
+            return removed;
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    public List<Subscription> of(long chatId) {
+        lock.readLock().lock();
+        try {
+            List<Subscription> ofChat = byChat.get(chatId);
+            return ofChat == null ? Collections.emptyList() : new ArrayList<>(ofChat);
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Returns the chats watching the ride's route on its departure day.
+     */
+    public Recipients match(RideDetails ride) {
+        if (ride.getCityA() == CityDictionary.NONE || ride.getCityB() == CityDictionary.NONE
+                || ride.getDeparture() == RideDetails.NO_DEPARTURE) {
+            return NO_RECIPIENTS;
+        }
+        long key = bucketKey(ride.getCityA(), ride.getCityB(), ride.getDepartureDay());
+        lock.readLock().lock();
+        try {
+            int head = bucketHeads.get(key);
+            if (head == NONE) {
+                return NO_RECIPIENTS;
+            }
+            long[] chatIds = new long[16];
+            String[] languages = new String[16];
+            int size = 0;
+            for (int entry = head; entry != NONE; entry = next[entry]) {
+                if (size == chatIds.length) {
+                    chatIds = Arrays.copyOf(chatIds, size * 2);
+                    languages = Arrays.copyOf(languages, size * 2);
+                }
+                chatIds[size] = owners[entry].chatId;
+                languages[size++] = owners[entry].language;
+            }
+            return new Recipients(chatIds, languages, size);
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Visits every subscription, holding the read lock.
+     */
+    public void forEach(Consumer<Subscription> action) {
+        lock.readLock().lock();
+        try {
+            byId.values().forEach(action);
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    public int size() {
+        lock.readLock().lock();
+        try {
+            return byId.size();
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    private void unindex(Subscription subscription) {
+        for (int entry : subscription.entries) {
+            unlink(entry);
+        }
+        byId.remove(subscription.id);
+        List<Subscription> ofChat = byChat.get(subscription.chatId);
+        ofChat.remove(subscription);
+        if (ofChat.isEmpty()) {
+            byChat.remove(subscription.chatId);
+        }
+    }
+
+    private static long bucketKey(int from, int to, long day) {
+        return (from & CITY_MASK) << (CITY_BITS + DAY_BITS)
+                | (to & CITY_MASK) << DAY_BITS
+                | (day & DAY_MASK);
+    }
+
+    private int link(Subscription owner, long key) {
+        int entry = allocate();
+        bucketKeys[entry] = key;
+        owners[entry] = owner;
+        int head = bucketHeads.get(key);
+        prev[entry] = NONE;
+        next[entry] = head;
+        if (head != NONE) {
+            prev[head] = entry;
+        }
+        bucketHeads.put(key, entry);
+        return entry;
+    }
+
+    private int allocate() {
+        if (freeHead != NONE) {
+            int entry = freeHead;
+            freeHead = next[entry];
+            return entry;
+        }
+        if (highWater == owners.length) {
+            int capacity = owners.length * 2;
+            bucketKeys = Arrays.copyOf(bucketKeys, capacity);
+            owners = Arrays.copyOf(owners, capacity);
+            next = Arrays.copyOf(next, capacity);
+            prev = Arrays.copyOf(prev, capacity);
+        }
+        return highWater++;
+    }
+
+    private void unlink(int entry) {
+        long key = bucketKeys[entry];
+        if (prev[entry] != NONE) {
+            next[prev[entry]] = next[entry];
+        } else if (next[entry] != NONE) {
+            bucketHeads.put(key, next[entry]);
+        } else {
+            bucketHeads.remove(key);
+        }
+        if (next[entry] != NONE) {
+            prev[next[entry]] = prev[entry];
+        }
+        owners[entry] = null;
+        next[entry] = freeHead;
+        freeHead = entry;
+    }
+}
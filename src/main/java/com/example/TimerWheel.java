@@ -0,0 +1,249 @@
+package com.example;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Hierarchical timing wheel for large numbers of coarse timers, such as one per draft and
+ * per published ride.
+ * <p>
+ * A timer is identified by a kind and a {@code long} key, and scheduling one again moves
+ * it. Time advances in ticks. Level 0 has one slot per tick for the next
+ * {@value #SLOTS} ticks; each higher level has slots {@value #SLOTS} times as wide, and
+ * a slot is cascaded into the levels below once time reaches it. Scheduling, moving and
+ * cancelling are O(1); a tick costs the timers it fires or cascades. Timers live in
+ * parallel primitive arrays linked into per-slot lists, with one {@link LongIntMap} per
+ * kind to find them by key, so a timer costs a few dozen bytes and no object. A single
+ * daemon thread advances the wheel and calls the handler, outside the lock, for every
+ * timer that fired; the handler may schedule timers again.
+ */
+public class TimerWheel {
+    private static final Logger logger = LoggerFactory.getLogger(TimerWheel.class);
+
+    /**
+     * Called on the wheel's thread for every expired timer.
+     */
+    public interface Handler {
+        void expired(int kind, long key);
+    }
+
+    private static final int SLOT_BITS = 8;
+    static final int SLOTS = 1 << SLOT_BITS;
+    private static final int SLOT_MASK = SLOTS - 1;
+    private static final int LEVELS = 4;
+    private static final long MAX_DELAY_TICKS = (1L << (SLOT_BITS * LEVELS)) - 1;
+    private static final int NONE = -1;
+
+    private final long tickMillis;
+    private final long startMillis;
+    private final Handler handler;
+    private final LongIntMap[] timersByKey;
+    private final int[] slotHeads = new int[LEVELS * SLOTS];
+    private final Thread worker;
+    private volatile boolean running = true;
+
+    private long currentTick;
+    private long[] deadlines = new long[1024];
+    private long[] keys = new long[1024];
+    private byte[] kinds = new byte[1024];
+    private int[] slots = new int[1024];
+    private int[] next = new int[1024];
+    private int[] prev = new int[1024];
+    private int freeHead = NONE;
+    private int highWater;
+    private int size;
+
+    /**
+     * @param kinds the number of timer kinds, numbered from 0
+     */
+    public TimerWheel(long tickMillis, int kinds, Handler handler) {
+        if (kinds < 1 || kinds > Byte.MAX_VALUE) {
+            throw new IllegalArgumentException("Unsupported number of timer kinds: " + kinds);
+        }
+        this.tickMillis = tickMillis;
+        this.startMillis = System.currentTimeMillis();
+        this.handler = handler;
+        this.timersByKey = new LongIntMap[kinds];
+        for (int i = 0; i < kinds; i++) {
+            timersByKey[i] = new LongIntMap(1024, NONE);
+        }
+        Arrays.fill(slotHeads, NONE);
+        this.worker = new Thread(this::run, "timer-wheel");
+        this.worker.setDaemon(true);
+        this.worker.start();
+    }
+
+    /**
+     * Sets the timer of the given kind and key to fire at {@code deadlineMillis}, moving it
+     * if it is already scheduled. A deadline in the past fires on the next tick.
+     */
+    public synchronized void schedule(int kind, long key, long deadlineMillis) {
+        int timer = timersByKey[kind].get(key);
+        if (timer == NONE) {
+            timer = allocate();
+            keys[timer] = key;
+            kinds[timer] = (byte) kind;
+            timersByKey[kind].put(key, timer);
+            size++;
+        } else {
+            unlink(timer);
+        }
+        deadlines[timer] = Math.max(currentTick + 1, ceilDiv(deadlineMillis - startMillis, tickMillis));
+        link(timer);
+    }
+
+    public synchronized boolean cancel(int kind, long key) {
+        int timer = timersByKey[kind].remove(key);
+        if (timer == NONE) {
+            return false;
+        }
+        unlink(timer);
+        release(timer);
+        return true;
+    }
+
+    public synchronized int size() {
+        return size;
+    }
+
+    public void shutdown() {
+        running = false;
+        worker.interrupt();
+    }
+
+    /**
+     * Waits for the wheel's thread to stop after {@link #shutdown}, returning
+     * {@code false} if it is still running when the timeout passes.
+     */
+    public boolean awaitTermination(long timeout, TimeUnit unit) throws InterruptedException {
+        worker.join(Math.max(1, unit.toMillis(timeout)));
+        return !worker.isAlive();
+    }
+
+    private void run() {
+        long[] firedKeys = new long[64];
+        byte[] firedKinds = new byte[64];
+        while (running) {
+            long target = (System.currentTimeMillis() - startMillis) / tickMillis;
+            while (running) {
+                int fired;
+                synchronized (this) {
+                    if (currentTick >= target) {
+                        break;
+                    }
+                    currentTick++;
+                    cascade();
+                    int slot = (int) currentTick & SLOT_MASK;
+                    fired = 0;
+                    for (int timer = slotHeads[slot]; timer != NONE; timer = next[timer]) {
+                        if (fired == firedKeys.length) {
+                            firedKeys = Arrays.copyOf(firedKeys, fired * 2);
+                            firedKinds = Arrays.copyOf(firedKinds, fired * 2);
+                        }
+                        firedKeys[fired] = keys[timer];
+                        firedKinds[fired++] = kinds[timer];
+                    }
+                    for (int i = 0; i < fired; i++) {
+                        release(timersByKey[firedKinds[i]].remove(firedKeys[i]));
+                    }
+                    slotHeads[slot] = NONE;
+                }
+                for (int i = 0; i < fired; i++) {
+                    try {
+                        handler.expired(firedKinds[i], firedKeys[i]);
+                    } catch (RuntimeException e) {
+                        logger.error("Timer handler failed for kind {} key {}", firedKinds[i], firedKeys[i], e);
+                    }
+                }
+            }
+            long sleep = startMillis + (target + 1) * tickMillis - System.currentTimeMillis();
+            if (sleep > 0) {
+                try {
+                    Thread.sleep(sleep);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return;
+                }
+            }
+        }
+    }
+
+    // Entering a new slot of a level re-files its timers by their remaining delay, which
+    // puts them in a lower level or in the level 0 slot about to fire.
+    private void cascade() {
+        for (int level = 1; level < LEVELS; level++) {
+            if ((currentTick & ((1L << (SLOT_BITS * level)) - 1)) != 0) {
+                return;
+            }
+            int slot = level * SLOTS + ((int) (currentTick >>> (SLOT_BITS * level)) & SLOT_MASK);
+            int timer = slotHeads[slot];
+            slotHeads[slot] = NONE;
+            while (timer != NONE) {
+                int following = next[timer];
+                link(timer);
+                timer = following;
+            }
+        }
+    }
+
+    private void link(int timer) {
+        long deadline = deadlines[timer];
+        long delay = Math.min(deadline - currentTick, MAX_DELAY_TICKS);
+        int level = 0;
+        while (delay >= (1L << (SLOT_BITS * (level + 1)))) {
+            level++;
+        }
+        // Timers past the wheel's range wait in the top level and are re-filed each turn
+        long tick = level == LEVELS - 1 ? Math.min(deadline, currentTick + MAX_DELAY_TICKS) : deadline;
+        int slot = level * SLOTS + ((int) (tick >>> (SLOT_BITS * level)) & SLOT_MASK);
+        slots[timer] = slot;
+        prev[timer] = NONE;
+        next[timer] = slotHeads[slot];
+        if (slotHeads[slot] != NONE) {
+            prev[slotHeads[slot]] = timer;
+        }
+        slotHeads[slot] = timer;
+    }
+
+    private void unlink(int timer) {
+        if (prev[timer] != NONE) {
+            next[prev[timer]] = next[timer];
+        } else {
+            slotHeads[slots[timer]] = next[timer];
+        }
+        if (next[timer] != NONE) {
+            prev[next[timer]] = prev[timer];
+        }
+    }
+
+    private int allocate() {
+        if (freeHead != NONE) {
+            int timer = freeHead;
+            freeHead = next[timer];
+            return timer;
+        }
+        if (highWater == keys.length) {
+            int capacity = keys.length * 2;
+            deadlines = Arrays.copyOf(deadlines, capacity);
+            keys = Arrays.copyOf(keys, capacity);
+            kinds = Arrays.copyOf(kinds, capacity);
+            slots = Arrays.copyOf(slots, capacity);
+            next = Arrays.copyOf(next, capacity);
+            prev = Arrays.copyOf(prev, capacity);
+        }
+        return highWater++;
+    }
+
+    private void release(int timer) {
+        next[timer] = freeHead;
+        freeHead = timer;
+        size--;
+    }
+
+    private static long ceilDiv(long value, long divisor) {
+        return -Math.floorDiv(-value, divisor);
+    }
+}
@@ -0,0 +1,191 @@
+package com.example;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.telegram.telegrambots.meta.api.objects.Update;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Fans updates out over a fixed set of worker shards. Every update of a chat hashes to
+ * the same shard, so a user's messages are handled in order while different users run
+ * in parallel. Each shard has a bounded queue; when it is full {@link #dispatch} blocks
+ * the caller, which in turn stops the long-polling thread from fetching more updates.
+ * The handler is told when the update arrived, so it can measure latency including the
+ * time spent queued. Other work on a chat's state can be queued on the chat's shard too,
+ * so it never runs alongside the handling of one of the chat's updates.
+ */
+public class UpdateDispatcher {
+    private static final Logger logger = LoggerFactory.getLogger(UpdateDispatcher.class);
+
+    private static final LongAdder received = Metrics.getDefault()
+            .counter("ridebot_updates_total", "Updates received from Telegram");
+    private static final LongAdder failed = Metrics.getDefault()
+            .counter("ridebot_update_errors_total", "Updates whose handler threw");
+
+    private final Shard[] shards;
+    private final Handler handler;
+    private final int queueCapacity;
+    // Updates dispatched and not yet handled
+    private final AtomicInteger pending = new AtomicInteger();
+
+    public interface Handler {
+        void handle(Update update, long receivedNanos);
+    }
+
+    public UpdateDispatcher(int shardCount, int queueCapacity, Handler handler) {
+        this.handler = handler;
+        this.queueCapacity = queueCapacity;
+        this.shards = new Shard[shardCount];
+        for (int i = 0; i < shardCount; i++) {
+            shards[i] = new Shard(i, queueCapacity);
+            shards[i].start();
+        }
+    }
+
+    public void dispatch(Update update) {
+        received.increment();
+        enqueue(shards[shardIndex(chatIdOf(update))], new Received(update, null, System.nanoTime()));
+    }
+
+    /**
+     * Runs the task on the shard of the chat, after the chat's updates queued so far.
+     * Blocks like {@link #dispatch} while the shard's queue is full.
+     */
+    public void execute(long chatId, Runnable task) {
+        enqueue(shards[shardIndex(chatId)], new Received(null, task, System.nanoTime()));
+    }
+
+    private void enqueue(Shard shard, Received entry) {
+        pending.incrementAndGet();
+        if (!shard.queue.offer(entry)) {
+            logger.debug("Dispatch shard {} is full, applying backpressure", shard.index);
+            try {
+                shard.queue.put(entry);
+            } catch (InterruptedException e) {
+                pending.decrementAndGet();
+                Thread.currentThread().interrupt();
+                logger.warn("Interrupted while waiting for dispatch shard {}", shard.index);
+            }
+        }
+    }
+
+    /**
+     * Returns the number of updates queued or being handled.
+     */
+    public int pending() {
+        return pending.get();
+    }
+
+    public int queueDepth() {
+        int depth = 0;
+        for (Shard shard : shards) {
+            depth += shard.queue.size();
+        }
+        return depth;
+    }
+
+    /**
+     * Returns the number of updates waiting in the shard of the chat.
+     */
+    public int queueDepth(long chatId) {
+        return shards[shardIndex(chatId)].queue.size();
+    }
+
+    public int getQueueCapacity() {
+        return queueCapacity;
+    }
+
+    public void shutdown() {
+        for (Shard shard : shards) {
+            shard.interrupt();
+        }
+    }
+
+    /**
+     * Waits for the shards to stop after {@link #shutdown}, returning {@code false} if one
+     * is still running when the timeout passes.
+     */
+    public boolean awaitTermination(long timeout, TimeUnit unit) throws InterruptedException {
+        long deadline = System.nanoTime() + unit.toNanos(timeout);
+        for (Shard shard : shards) {
+            shard.join(Math.max(1, TimeUnit.NANOSECONDS.toMillis(deadline - System.nanoTime())));
+            if (shard.isAlive()) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private int shardIndex(long chatId) {
+        return (int) ((ConversationStore.mix(chatId) >>> 1) % shards.length);
+    }
+
+    static long chatIdOf(Update update) {
+        if (update.hasMessage()) {
+            return update.getMessage().getChatId();
+        } else if (update.hasCallbackQuery() && update.getCallbackQuery().getMessage() != null) {
+            return update.getCallbackQuery().getMessage().getChatId();
+        } else if (update.hasInlineQuery()) {
+            // The user's private chat with the bot has the user's id
+            return update.getInlineQuery().getFrom().getId();
+        }
+        return 0L;
+    }
+
+    private static final class Received {
+        final Update update;
+        final Runnable task;
+        final long nanos;
+
+        Received(Update update, Runnable task, long nanos) {
+            this.update = update;
+            this.task = task;
+            this.nanos = nanos;
+        }
+    }
+
+    private final class Shard extends Thread {
+        private final int index;
+        private final BlockingQueue<Received> queue;
+
+        Shard(int index, int queueCapacity) {
+            super("update-dispatch-" + index);
+            this.index = index;
+            this.queue = new ArrayBlockingQueue<>(queueCapacity);
+            setDaemon(true);
+        }
+
+        @Override
+        public void run() {
+            while (!isInterrupted()) {
+                Received entry;
+                try {
+                    entry = queue.take();
+                } catch (InterruptedException e) {
+                    return;
+                }
+                try {
+                    if (entry.task != null) {
+                        entry.task.run();
+                    } else {
+                        handler.handle(entry.update, entry.nanos);
+                    }
+                } catch (RuntimeException e) {
+                    if (entry.task != null) {
+                        logger.error("Task failed on dispatch shard {}", index, e);
+                    } else {
+                        failed.increment();
+                        logger.error("Failed to handle update {}", entry.update.getUpdateId(), e);
+                    }
+                } finally {
+                    pending.decrementAndGet();
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,189 @@
+package com.example;
+
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.databind.DeserializationFeature;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.ObjectReader;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.telegram.telegrambots.meta.api.objects.Update;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.util.Arrays;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
+
+/**
+ * Receives updates pushed by Telegram to the bot's webhook.
+ * <p>
+ * Runs on the JDK's built-in HTTP server, which multiplexes connections over a single NIO
+ * selector thread and hands complete requests to a small worker pool. A request is
+ * accepted only if its {@code X-Telegram-Bot-Api-Secret-Token} header matches the secret
+ * the webhook was registered with. The body is read into one buffer and Jackson binds the
+ * {@link Update} straight from its bytes, without decoding it to a String first. The
+ * update goes to the dispatch path before the response is sent, so when the dispatcher
+ * applies backpressure Telegram sees slower responses and holds back further updates.
+ */
+public class WebhookServer {
+    private static final Logger logger = LoggerFactory.getLogger(WebhookServer.class);
+
+    public static final String SECRET_HEADER = "X-Telegram-Bot-Api-Secret-Token";
+    private static final int MAX_BODY_BYTES = 1024 * 1024;
+    private static final int STOP_WAIT_SECONDS = 3;
+    private static final ObjectReader UPDATE_READER = new ObjectMapper()
+            .configure(DeserializationFeature.FAIL_ON_UNKNOWN_PROPERTIES, false)
+            .configure(JsonParser.Feature.INCLUDE_SOURCE_IN_LOCATION, false)
+            .readerFor(Update.class);
+    private static final ThreadLocal<byte[]> BODY_BUFFERS = ThreadLocal.withInitial(() -> new byte[16 * 1024]);
+
+    private final HttpServer server;
+    private final ExecutorService workers;
+    private final ExecutorService routing;
+    private final byte[] secret;
+    private final Consumer<Update> updates;
+    private final Consumer<Update> forwardedUpdates;
+
+    public WebhookServer(int port, String path, String secret, int threads, Consumer<Update> updates) throws IOException {
+        this(port, path, secret, threads, updates, updates);
+    }
+
+    /**
+     * @param secret           the webhook's secret token: 1-256 characters from {@code A-Z},
+     *                         {@code a-z}, {@code 0-9}, {@code _} and {@code -}
+     * @param updates          receives every accepted update, typically the bot's dispatch path
+     * @param forwardedUpdates receives updates another cluster node forwarded, marked by
+     *                         the {@link ClusterNode#FORWARDED_HEADER} header
+     */
+    public WebhookServer(int port, String path, String secret, int threads,
+                         Consumer<Update> updates, Consumer<Update> forwardedUpdates) throws IOException {
+        if (secret == null || !secret.matches("[A-Za-z0-9_-]{1,256}")) {
+            throw new IllegalArgumentException("Webhook secret must be 1-256 characters of A-Z, a-z, 0-9, _ and -");
+        }
+        this.secret = secret.getBytes(StandardCharsets.US_ASCII);
+        this.updates = updates;
+        this.forwardedUpdates = forwardedUpdates;
+        AtomicInteger threadIds = new AtomicInteger();
+        this.workers = Executors.newFixedThreadPool(threads, runnable -> {
+            Thread thread = new Thread(runnable, "webhook-" + threadIds.getAndIncrement());
+            thread.setDaemon(true);
+            return thread;
+        });
+        // Updates that may be forwarded to another node wait for it on their own threads;
+        // if they held the HTTP workers, two nodes forwarding to each other could each
+        // run out of workers to accept the other's forwarded updates.
+        this.routing = updates == forwardedUpdates ? null : Executors.newFixedThreadPool(threads, runnable -> {
+            Thread thread = new Thread(runnable, "webhook-route-" + threadIds.getAndIncrement());
+            thread.setDaemon(true);
+            return thread;
+        });
+        this.server = HttpServer.create(new InetSocketAddress(port), 0);
+        this.server.createContext(path, this::handle);
+        this.server.setExecutor(workers);
+    }
+
+    public void start() {
+        server.start();
+        logger.info("Webhook server listening on {}", server.getAddress());
+    }
+
+    /**
+     * Stops accepting updates, waiting a few seconds at most for the ones being received
+     * to be handed over. Telegram retries the updates it could not deliver.
+     */
+    public void stop() {
+        server.stop(1);
+        workers.shutdown();
+        if (routing != null) {
+            routing.shutdown();
+        }
+        try {
+            if (workers.awaitTermination(STOP_WAIT_SECONDS, TimeUnit.SECONDS) && routing != null) {
+                routing.awaitTermination(STOP_WAIT_SECONDS, TimeUnit.SECONDS);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void handle(HttpExchange exchange) throws IOException {
+        boolean handedOff = false;
+        try {
+            if (!"POST".equals(exchange.getRequestMethod())) {
+                exchange.sendResponseHeaders(405, -1);
+                return;
+            }
+            String token = exchange.getRequestHeaders().getFirst(SECRET_HEADER);
+            if (token == null || !MessageDigest.isEqual(secret, token.getBytes(StandardCharsets.US_ASCII))) {
+                logger.warn("Rejected webhook request from {} with a missing or wrong secret token", exchange.getRemoteAddress());
+                exchange.sendResponseHeaders(401, -1);
+                return;
+            }
+            byte[] body = BODY_BUFFERS.get();
+            int length = 0;
+            try (InputStream in = exchange.getRequestBody()) {
+                int read;
+                while ((read = in.read(body, length, body.length - length)) > 0) {
+                    length += read;
+                    if (length == body.length) {
+                        if (body.length == MAX_BODY_BYTES) {
+                            exchange.sendResponseHeaders(413, -1);
+                            return;
+                        }
+                        body = Arrays.copyOf(body, Math.min(body.length * 2, MAX_BODY_BYTES));
+                        BODY_BUFFERS.set(body);
+                    }
+                }
+            }
+            Update update;
+            try {
+                update = UPDATE_READER.readValue(body, 0, length);
+            } catch (IOException e) {
+                logger.warn("Rejected malformed webhook update: {}", e.getMessage());
+                exchange.sendResponseHeaders(400, -1);
+                return;
+            }
+            boolean forwarded = exchange.getRequestHeaders().getFirst(ClusterNode.FORWARDED_HEADER) != null;
+            if (forwarded || routing == null) {
+                handedOff = true;
+                deliver(exchange, forwarded ? forwardedUpdates : updates, update);
+            } else {
+                routing.execute(() -> deliver(exchange, updates, update));
+                handedOff = true;
+            }
+        } catch (RuntimeException e) {
+            logger.error("Failed to handle webhook update", e);
+            exchange.sendResponseHeaders(500, -1);
+        } finally {
+            if (!handedOff) {
+                exchange.close();
+            }
+        }
+    }
+
+    private static void deliver(HttpExchange exchange, Consumer<Update> consumer, Update update) {
+        try {
+            consumer.accept(update);
+            exchange.sendResponseHeaders(200, -1);
+        } catch (RuntimeException e) {
+            logger.error("Failed to handle webhook update", e);
+            try {
+                exchange.sendResponseHeaders(500, -1);
+            } catch (IOException ignored) {
+                // the client is gone
+            }
+        } catch (IOException e) {
+            logger.debug("Failed to answer webhook request: {}", e.getMessage());
+        } finally {
+            exchange.close();
+        }
+    }
+}
@@ -0,0 +1,268 @@
+package com.example;
+
+import org.junit.Test;
+
+import java.time.LocalDate;
+import java.util.Arrays;
+import java.util.List;
+import java.util.function.Function;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.fail;
+
+/**
+ * Walks the {@link ConversationFlow#standard() standard} transition table: every step
+ * with an answer it accepts and one it rejects, for every ride type, and both forms from
+ * start to completion.
+ */
+public class ConversationFlowTest {
+    private static final ConversationFlow FLOW = ConversationFlow.standard();
+    private static final Messages MESSAGES = Messages.getDefault();
+    private static final LocalDate DATE = LocalDate.now().plusDays(7);
+
+    /**
+     * One row per form step: an answer it accepts, the field that answer sets, and an
+     * answer it rejects with its message, or {@code null} if the step accepts anything.
+     */
+    private static final class Case {
+        final ConversationState state;
+        final String valid;
+        final Object stored;
+        final Function<RideDetails, Object> field;
+        final String invalid;
+        final MessageKey rejection;
+
+        Case(ConversationState state, String valid, Object stored, Function<RideDetails, Object> field,
+                String invalid, MessageKey rejection) {
+            this.state = state;
+            this.valid = valid;
+            this.stored = stored;
+            this.field = field;
+            this.invalid = invalid;
+            this.rejection = rejection;
+        }
+    }
+
+    private static final List<Case> CASES = Arrays.asList(
+            new Case(ConversationState.FROM_CITY, "Berlin", "Berlin", RideDetails::getCityAName,
+                    "#", MessageKey.INVALID_CITY),
+            new Case(ConversationState.TO_CITY, " #Hamburg ", "Hamburg", RideDetails::getCityBName,
+                    "", MessageKey.INVALID_CITY),
+            new Case(ConversationState.DEPARTURE_DATE, format(DATE), DATE.toEpochDay(), RideDetails::getDepartureDay,
+                    "next friday", MessageKey.INVALID_DATE),
+            new Case(ConversationState.DEPARTURE_TIME, "7:30", 7L * 60 + 30,
+                    details -> details.getDeparture() % (24 * 60),
+                    "25:61", MessageKey.INVALID_TIME_RANGE),
+            new Case(ConversationState.PERSONS, "3", 3, RideDetails::getNumberOfPersons,
+                    "two", MessageKey.INVALID_NUMBER),
+            new Case(ConversationState.PRICE, "12,50", 1250, RideDetails::getPriceCents,
+                    "free", MessageKey.INVALID_PRICE),
+            new Case(ConversationState.CAR_MODEL, "VW Golf", "VW Golf", RideDetails::getCarModel,
+                    null, null),
+            new Case(ConversationState.CONTACT_INFO, " @rider_one ", "@rider_one", RideDetails::getContactInfo,
+                    "call me", MessageKey.INVALID_CONTACT));
+
+    @Test
+    public void everyStateHasACase() {
+        for (ConversationState state : ConversationState.values()) {
+            if (state != ConversationState.RIDE_OPTION) {
+                assertNotNull("no case for " + state, caseFor(state));
+            }
+        }
+    }
+
+    @Test
+    public void beginAsksForTheRideType() {
+        Conversation conversation = new Conversation(1);
+        conversation.setState(ConversationState.CONTACT_INFO);
+        FLOW.begin(conversation);
+        assertSame(ConversationState.RIDE_OPTION, conversation.getState());
+        assertNotNull(conversation.getDetails());
+        assertNull(conversation.getDetails().getType());
+    }
+
+    @Test
+    public void startEntersTheFirstStepOfEachType() {
+        for (RideType type : RideType.values()) {
+            Conversation conversation = new Conversation(1);
+            MessageKey prompt = FLOW.start(conversation, type);
+            ConversationState first = FLOW.firstState(type);
+            assertSame(type + " state", first, conversation.getState());
+            assertSame(type + " prompt", FLOW.prompt(type, first), prompt);
+            assertSame(type, conversation.getDetails().getType());
+        }
+    }
+
+    @Test
+    public void rideOptionButtonsChooseTheType() {
+        for (RideType type : RideType.values()) {
+            Conversation conversation = new Conversation(1);
+            FLOW.begin(conversation);
+            MessageKey button = type == RideType.DRIVER ? MessageKey.BUTTON_OFFER_RIDE : MessageKey.BUTTON_NEED_RIDE;
+            MessageKey reply = FLOW.advance(conversation, MESSAGES.text(button).toUpperCase(), MESSAGES);
+            assertSame(type, conversation.getDetails().getType());
+            assertSame(FLOW.firstState(type), conversation.getState());
+            assertSame(FLOW.prompt(type, FLOW.firstState(type)), reply);
+        }
+    }
+
+    @Test
+    public void rideOptionRejectsOtherInput() {
+        Conversation conversation = new Conversation(1);
+        FLOW.begin(conversation);
+        assertSame(MessageKey.ASK_RIDE_OPTION, FLOW.advance(conversation, "maybe", MESSAGES));
+        assertSame(ConversationState.RIDE_OPTION, conversation.getState());
+        assertNull(conversation.getDetails().getType());
+    }
+
+    @Test
+    public void everyStepAcceptsAValidAnswer() {
+        for (RideType type : RideType.values()) {
+            for (Case step : CASES) {
+                String name = type + " " + step.state;
+                Conversation conversation = on(type, step.state);
+                ConversationState following = FLOW.nextState(type, step.state);
+                if (!visits(type, step.state)) {
+                    try {
+                        FLOW.advance(conversation, step.valid, MESSAGES);
+                        fail(name + " is not part of the flow but was accepted");
+                    } catch (IllegalStateException expected) {
+                        continue;
+                    }
+                }
+                MessageKey reply = FLOW.advance(conversation, step.valid, MESSAGES);
+                assertEquals(name + " stored", step.stored, step.field.apply(conversation.getDetails()));
+                if (following == null) {
+                    assertNull(name + " is last and completes the ride", reply);
+                    assertSame(name, step.state, conversation.getState());
+                } else {
+                    assertSame(name + " prompt", FLOW.prompt(type, following), reply);
+                    assertSame(name + " next state", following, conversation.getState());
+                }
+            }
+        }
+    }
+
+    @Test
+    public void everyStepRejectsAnInvalidAnswerWithoutChangingTheRide() {
+        for (RideType type : RideType.values()) {
+            for (Case step : CASES) {
+                if (step.invalid == null || !visits(type, step.state)) {
+                    continue;
+                }
+                String name = type + " " + step.state;
+                Conversation conversation = on(type, step.state);
+                List<Object> before = fields(conversation.getDetails());
+                assertSame(name, step.rejection, FLOW.advance(conversation, step.invalid, MESSAGES));
+                assertSame(name, step.state, conversation.getState());
+                assertEquals(name, before, fields(conversation.getDetails()));
+            }
+        }
+    }
+
+    @Test
+    public void dateStepRejectsPastDaysAndDaysTooFarAhead() {
+        LocalDate today = LocalDate.now();
+        LocalDate[] rejected = {today.minusDays(1), today.plusDays(ConversationFlow.MAX_DAYS_AHEAD + 1),
+                LocalDate.of(9999, 12, 31)};
+        MessageKey[] rejections = {MessageKey.INVALID_DATE_PAST, MessageKey.INVALID_DATE_TOO_FAR,
+                MessageKey.INVALID_DATE_TOO_FAR};
+        for (int i = 0; i < rejected.length; i++) {
+            Conversation conversation = on(RideType.DRIVER, ConversationState.DEPARTURE_DATE);
+            List<Object> before = fields(conversation.getDetails());
+            assertSame(rejected[i].toString(), rejections[i],
+                    FLOW.advance(conversation, format(rejected[i]), MESSAGES));
+            assertSame(ConversationState.DEPARTURE_DATE, conversation.getState());
+            assertEquals(before, fields(conversation.getDetails()));
+        }
+        for (LocalDate accepted : new LocalDate[] {today, today.plusDays(ConversationFlow.MAX_DAYS_AHEAD)}) {
+            Conversation conversation = on(RideType.DRIVER, ConversationState.DEPARTURE_DATE);
+            FLOW.advance(conversation, format(accepted), MESSAGES);
+            assertEquals(accepted.toEpochDay(), conversation.getDetails().getDepartureDay());
+        }
+    }
+
+    @Test
+    public void answeringEveryStepCompletesTheRide() {
+        for (RideType type : RideType.values()) {
+            Conversation conversation = new Conversation(1);
+            FLOW.start(conversation, type);
+            int steps = 0;
+            MessageKey reply;
+            do {
+                Case step = caseFor(conversation.getState());
+                reply = FLOW.advance(conversation, step.valid, MESSAGES);
+                steps++;
+            } while (reply != null && steps <= CASES.size());
+            assertNull(type + " never completed", reply);
+            RideDetails details = conversation.getDetails();
+            for (ConversationState state = FLOW.firstState(type); state != null; state = FLOW.nextState(type, state)) {
+                Case step = caseFor(state);
+                assertEquals(type + " " + state, step.stored, step.field.apply(details));
+            }
+            assertSame(type == RideType.DRIVER ? MessageKey.DRIVER_POSTED : MessageKey.PASSENGER_POSTED,
+                    FLOW.completedMessage(type));
+        }
+        assertEquals(6, count(RideType.PASSENGER));
+        assertEquals(8, count(RideType.DRIVER));
+    }
+
+    @Test
+    public void aStepWithoutARideTypeStartsOver() {
+        Conversation conversation = new Conversation(1);
+        conversation.setState(ConversationState.PERSONS);
+        assertSame(MessageKey.ASK_RIDE_OPTION, FLOW.advance(conversation, "3", MESSAGES));
+        assertSame(ConversationState.RIDE_OPTION, conversation.getState());
+    }
+
+    // A conversation of the given type standing on the given step, with every earlier
+    // step of the flow answered.
+    private static Conversation on(RideType type, ConversationState state) {
+        Conversation conversation = new Conversation(1);
+        FLOW.start(conversation, type);
+        for (ConversationState s = FLOW.firstState(type); s != null && s != state; s = FLOW.nextState(type, s)) {
+            FLOW.advance(conversation, caseFor(s).valid, MESSAGES);
+        }
+        conversation.setState(state);
+        return conversation;
+    }
+
+    private static String format(LocalDate date) {
+        return date.getDayOfMonth() + "." + date.getMonthValue() + "." + date.getYear();
+    }
+
+    private static boolean visits(RideType type, ConversationState state) {
+        for (ConversationState s = FLOW.firstState(type); s != null; s = FLOW.nextState(type, s)) {
+            if (s == state) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static int count(RideType type) {
+        int steps = 0;
+        for (ConversationState s = FLOW.firstState(type); s != null; s = FLOW.nextState(type, s)) {
+            steps++;
+        }
+        return steps;
+    }
+
+    private static Case caseFor(ConversationState state) {
+        for (Case step : CASES) {
+            if (step.state == state) {
+                return step;
+            }
+        }
+        return null;
+    }
+
+    private static List<Object> fields(RideDetails details) {
+        return Arrays.asList(details.getType(), details.getCityA(), details.getCityB(), details.getDeparture(),
+                details.getNumberOfPersons(), details.getPriceCents(), details.getCarModel(),
+                details.getContactInfo());
+    }
+}
@@ -0,0 +1,182 @@
+package com.example;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Checks {@link ConversationStore} against a plain map of what each chat should hold,
+ * with many threads writing at once, the way the dispatch shards drive it.
+ */
+public class ConversationStoreStressTest {
+    private static final long HOUR = TimeUnit.HOURS.toMillis(1);
+    private static final int THREADS = 16;
+    private static final int CHATS_PER_THREAD = 2_000;
+    private static final int OPERATIONS_PER_THREAD = 200_000;
+    private static final ConversationState[] STATES = ConversationState.values();
+
+    @Test
+    public void concurrentWritersLoseNoState() throws Exception {
+        ConversationStore store = new ConversationStore(HOUR, 1_000_000);
+        List<Map<Long, ConversationState>> expected = runWriters(store);
+
+        int total = 0;
+        for (Map<Long, ConversationState> chats : expected) {
+            total += chats.size();
+            for (Map.Entry<Long, ConversationState> chat : chats.entrySet()) {
+                Conversation conversation = store.get(chat.getKey());
+                assertNotNull("chat " + chat.getKey() + " was lost", conversation);
+                assertEquals(chat.getValue(), conversation.getState());
+            }
+        }
+        assertEquals(total, store.size());
+        assertEquals(total, countForEach(store));
+    }
+
+    @Test
+    public void everyConversationIsStoredUnderItsOwnChat() throws Exception {
+        ConversationStore store = new ConversationStore(HOUR, 1_000_000);
+        runWriters(store);
+        List<Conversation> visited = new ArrayList<>();
+        store.forEach(visited::add);
+        for (Conversation conversation : visited) {
+            assertSame(conversation, store.get(conversation.getChatId()));
+        }
+    }
+
+    @Test
+    public void evictionUnderConcurrentWritersKeepsSurvivorsIntact() throws Exception {
+        int maxConversations = 64 * 40;
+        ConversationStore store = new ConversationStore(HOUR, maxConversations);
+        List<Map<Long, ConversationState>> expected = runWriters(store);
+
+        // Which chats were evicted depends on timing, but every survivor must hold the
+        // state its writer last gave it, and no stripe may grow past its share.
+        assertTrue("store holds " + store.size(), store.size() <= maxConversations);
+        int survivors = 0;
+        for (Map<Long, ConversationState> chats : expected) {
+            for (Map.Entry<Long, ConversationState> chat : chats.entrySet()) {
+                Conversation conversation = store.get(chat.getKey());
+                if (conversation != null) {
+                    survivors++;
+                    assertEquals(chat.getValue(), conversation.getState());
+                }
+            }
+        }
+        assertEquals(store.size(), survivors);
+    }
+
+    @Test
+    public void idleConversationsAreEvicted() throws Exception {
+        ConversationStore store = new ConversationStore(50, 1_000_000);
+        for (long chatId = 1; chatId <= 1_000; chatId++) {
+            store.getOrCreate(chatId).setState(ConversationState.FROM_CITY);
+        }
+        assertEquals(1_000, store.size());
+        Thread.sleep(120);
+
+        assertNull(store.get(1));
+        assertEquals(ConversationStore.REMOVED, store.removeIfIdle(2));
+        assertEquals(ConversationStore.ABSENT, store.removeIfIdle(2));
+        assertEquals(ConversationStore.ABSENT, store.removeIfIdle(5_000));
+        assertEquals(998, store.evictIdle());
+        assertEquals(0, store.size());
+    }
+
+    @Test
+    public void removalKeepsProbeChainsIntact() {
+        // Few distinct keys in one store keep the tables dense, so most removals shift
+        // entries of longer probe chains back into the freed slot.
+        ConversationStore store = new ConversationStore(HOUR, 1_000_000);
+        Map<Long, Conversation> expected = new HashMap<>();
+        Random random = new Random(42);
+        for (int i = 0; i < 500_000; i++) {
+            long chatId = random.nextInt(5_000) - 2_500L;
+            if (random.nextInt(3) == 0) {
+                store.remove(chatId);
+                expected.remove(chatId);
+            } else {
+                Conversation conversation = store.getOrCreate(chatId);
+                Conversation previous = expected.put(chatId, conversation);
+                if (previous != null) {
+                    assertSame(previous, conversation);
+                }
+            }
+            if (i % 50_000 == 0) {
+                assertMatches(expected, store);
+            }
+        }
+        assertMatches(expected, store);
+    }
+
+    private static void assertMatches(Map<Long, Conversation> expected, ConversationStore store) {
+        assertEquals(expected.size(), store.size());
+        for (long chatId = -2_500; chatId < 2_500; chatId++) {
+            assertSame("chat " + chatId, expected.get(chatId), store.get(chatId));
+        }
+    }
+
+    /**
+     * Each writer owns a disjoint range of chats, as a dispatch shard does, and walks them
+     * through random steps, completions and restarts. Returns each writer's view of the
+     * state every chat it left behind should be in.
+     */
+    private static List<Map<Long, ConversationState>> runWriters(ConversationStore store) throws Exception {
+        ExecutorService pool = Executors.newFixedThreadPool(THREADS);
+        CountDownLatch start = new CountDownLatch(1);
+        List<Future<Map<Long, ConversationState>>> writers = new ArrayList<>();
+        for (int t = 0; t < THREADS; t++) {
+            long base = (long) t * CHATS_PER_THREAD;
+            int seed = t;
+            writers.add(pool.submit(() -> {
+                Map<Long, ConversationState> chats = new HashMap<>();
+                Random random = new Random(seed);
+                start.await();
+                for (int i = 0; i < OPERATIONS_PER_THREAD; i++) {
+                    long chatId = base + random.nextInt(CHATS_PER_THREAD);
+                    int operation = random.nextInt(10);
+                    if (operation == 0) {
+                        store.remove(chatId);
+                        chats.remove(chatId);
+                    } else if (operation == 1) {
+                        store.get(chatId);
+                    } else {
+                        Conversation conversation = store.getOrCreate(chatId);
+                        ConversationState state = STATES[random.nextInt(STATES.length)];
+                        conversation.setState(state);
+                        chats.put(chatId, state);
+                    }
+                }
+                return chats;
+            }));
+        }
+        start.countDown();
+        List<Map<Long, ConversationState>> expected = new ArrayList<>();
+        for (Future<Map<Long, ConversationState>> writer : writers) {
+            expected.add(writer.get(2, TimeUnit.MINUTES));
+        }
+        pool.shutdown();
+        return expected;
+    }
+
+    private static int countForEach(ConversationStore store) {
+        int[] count = new int[1];
+        store.forEach(conversation -> count[0]++);
+        return count[0];
+    }
+}
@@ -0,0 +1,304 @@
+package com.example;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.telegram.telegrambots.meta.api.methods.BotApiMethod;
+import org.telegram.telegrambots.meta.api.methods.send.SendMessage;
+import org.telegram.telegrambots.meta.api.objects.CallbackQuery;
+import org.telegram.telegrambots.meta.api.objects.Chat;
+import org.telegram.telegrambots.meta.api.objects.Message;
+import org.telegram.telegrambots.meta.api.objects.Update;
+import org.telegram.telegrambots.meta.api.objects.User;
+
+import java.io.File;
+import java.io.Serializable;
+import java.time.LocalDate;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.fail;
+
+/**
+ * Drives the whole bot, from {@link RideShareBot#onUpdateReceived} through the dispatch
+ * shards to the form handling, with many threads sending the updates of many users at
+ * once, then checks the drafts and published rides the bot logged against what each
+ * user's answers should have left behind.
+ */
+public class RideShareBotConcurrencyTest {
+    private static final int THREADS = 8;
+    private static final int CHATS_PER_THREAD = 40;
+    private static final String[] CITIES = {"Berlin", "Hamburg", "Leipzig", "Dresden", "Bremen", "Wien", "Basel"};
+    private static final ConversationFlow FLOW = ConversationFlow.standard();
+
+    private static final AtomicInteger updateIds = new AtomicInteger();
+    private static final AtomicInteger messageIds = new AtomicInteger();
+
+    @Rule
+    public final TemporaryFolder folder = new TemporaryFolder();
+
+    /**
+     * What one user sends, and the draft or ride that should be left once it is handled.
+     */
+    private static final class Script {
+        final long chatId;
+        final RideType type;
+        final List<Update> updates = new ArrayList<>();
+        String from;
+        String to;
+        // The step the abandoned draft waits at, or null once the ride is published
+        ConversationState waitingAt;
+
+        Script(long chatId, RideType type) {
+            this.chatId = chatId;
+            this.type = type;
+        }
+    }
+
+    /**
+     * The real bot with the Bot API answering every call at once, which counts the
+     * updates it finished handling per chat.
+     */
+    private static final class CountingBot extends RideShareBot {
+        final Map<Long, AtomicInteger> handled = new ConcurrentHashMap<>();
+
+        CountingBot(File dataDir) {
+            super(dataDir);
+        }
+
+        @Override
+        public void onUpdateEventReceived(Update updateEvent) {
+            super.onUpdateEventReceived(updateEvent);
+            handled.computeIfAbsent(UpdateDispatcher.chatIdOf(updateEvent), chatId -> new AtomicInteger())
+                    .incrementAndGet();
+        }
+
+        @Override
+        @SuppressWarnings("unchecked")
+        public <T extends Serializable, Method extends BotApiMethod<T>> CompletableFuture<T> executeAsync(Method method) {
+            if (!(method instanceof SendMessage)) {
+                return CompletableFuture.completedFuture(null);
+            }
+            SendMessage sent = (SendMessage) method;
+            Chat chat = new Chat();
+            chat.setType(sent.getChatId().startsWith("@") ? "channel" : "private");
+            Message message = new Message();
+            message.setMessageId(messageIds.incrementAndGet());
+            message.setChat(chat);
+            message.setText(sent.getText());
+            return CompletableFuture.completedFuture((T) message);
+        }
+
+        int handled(long chatId) {
+            AtomicInteger count = handled.get(chatId);
+            return count == null ? 0 : count.get();
+        }
+    }
+
+    @Test
+    public void concurrentUsersLoseNoDraftsOrRides() throws Exception {
+        File dataDir = folder.newFolder("data");
+        CountingBot bot = new CountingBot(dataDir);
+        List<List<Script>> scripts = new ArrayList<>();
+        for (int t = 0; t < THREADS; t++) {
+            List<Script> chats = new ArrayList<>();
+            for (int i = 0; i < CHATS_PER_THREAD; i++) {
+                chats.add(script(1_000L + t * CHATS_PER_THREAD + i));
+            }
+            scripts.add(chats);
+        }
+        try {
+            send(bot, scripts);
+        } finally {
+            bot.close();
+        }
+
+        ConversationStore drafts = new ConversationStore(TimeUnit.HOURS.toMillis(1), 100_000);
+        Map<Long, RideDetails> rides = new HashMap<>();
+        RideLog log = new RideLog(dataDir, Long.MAX_VALUE, drafts, rides, new Subscriptions());
+        log.recover();
+        log.close();
+        Map<Long, RideDetails> ridesByChat = new HashMap<>();
+        for (RideDetails ride : rides.values()) {
+            assertNull("chat " + ride.getChatId() + " published twice", ridesByChat.put(ride.getChatId(), ride));
+        }
+
+        int published = 0;
+        for (List<Script> chats : scripts) {
+            for (Script script : chats) {
+                Conversation draft = drafts.get(script.chatId);
+                RideDetails ride = ridesByChat.get(script.chatId);
+                if (script.waitingAt == null) {
+                    published++;
+                    assertNull("chat " + script.chatId + " kept its draft", draft);
+                    assertNotNull("chat " + script.chatId + " lost its ride", ride);
+                    assertEquals(script.type, ride.getType());
+                    assertEquals(script.from, ride.getCityAName());
+                    assertEquals(script.to, ride.getCityBName());
+                } else {
+                    assertNull("chat " + script.chatId + " published an unfinished ride", ride);
+                    assertNotNull("chat " + script.chatId + " lost its draft", draft);
+                    assertEquals(script.waitingAt, draft.getState());
+                    assertEquals(script.type, draft.getDetails().getType());
+                    if (script.from != null) {
+                        assertEquals(script.from, draft.getDetails().getCityAName());
+                    }
+                }
+            }
+        }
+        assertEquals(published, ridesByChat.size());
+    }
+
+    /**
+     * Each thread owns its chats, as a user owns theirs, and sends the next update of
+     * every one of them before waiting for those to be handled. Users so never get ahead
+     * of the bot's replies, which keeps the shard queues short enough that nothing is
+     * shed, while all threads still hit the bot at once.
+     */
+    private static void send(CountingBot bot, List<List<Script>> scripts) throws Exception {
+        ExecutorService pool = Executors.newFixedThreadPool(THREADS);
+        CountDownLatch start = new CountDownLatch(1);
+        List<Future<?>> senders = new ArrayList<>();
+        for (List<Script> chats : scripts) {
+            senders.add(pool.submit(() -> {
+                start.await();
+                for (int step = 0; ; step++) {
+                    boolean sent = false;
+                    for (Script script : chats) {
+                        if (step < script.updates.size()) {
+                            bot.onUpdateReceived(script.updates.get(step));
+                            sent = true;
+                        }
+                    }
+                    if (!sent) {
+                        return null;
+                    }
+                    long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(30);
+                    for (Script script : chats) {
+                        int expected = Math.min(step + 1, script.updates.size());
+                        while (bot.handled(script.chatId) < expected) {
+                            if (System.nanoTime() > deadline) {
+                                fail("chat " + script.chatId + " stuck at update " + expected);
+                            }
+                            Thread.sleep(1);
+                        }
+                    }
+                }
+            }));
+        }
+        start.countDown();
+        for (Future<?> sender : senders) {
+            sender.get(2, TimeUnit.MINUTES);
+        }
+        pool.shutdown();
+    }
+
+    /**
+     * Every fourth user abandons the form halfway, every fifth first types a city the bot
+     * rejects, and the rest fill it in.
+     */
+    private static Script script(long chatId) {
+        Random random = new Random(chatId);
+        Script script = new Script(chatId, random.nextBoolean() ? RideType.DRIVER : RideType.PASSENGER);
+        script.updates.add(callback(chatId, CallbackAction.START_PUBLICATION));
+        script.updates.add(callback(chatId,
+                script.type == RideType.DRIVER ? CallbackAction.OFFER_RIDE : CallbackAction.NEED_RIDE));
+        int answers = chatId % 4 == 0 ? random.nextInt(4) : Integer.MAX_VALUE;
+        ConversationState state = FLOW.firstState(script.type);
+        for (int answered = 0; state != null && answered < answers; answered++) {
+            if (state == ConversationState.FROM_CITY && chatId % 5 == 0) {
+                script.updates.add(text(chatId, "#"));
+            }
+            String answer = answer(state, chatId, random);
+            if (state == ConversationState.FROM_CITY) {
+                script.from = answer;
+            } else if (state == ConversationState.TO_CITY) {
+                script.to = answer;
+            }
+            script.updates.add(text(chatId, answer));
+            state = FLOW.nextState(script.type, state);
+        }
+        script.waitingAt = state;
+        return script;
+    }
+
+    private static String answer(ConversationState state, long chatId, Random random) {
+        switch (state) {
+            case FROM_CITY:
+            case TO_CITY:
+                return CITIES[random.nextInt(CITIES.length)];
+            case DEPARTURE_DATE:
+                LocalDate date = LocalDate.now().plusDays(1 + random.nextInt(30));
+                return date.getDayOfMonth() + "." + date.getMonthValue() + "." + date.getYear();
+            case DEPARTURE_TIME:
+                return random.nextInt(24) + ":30";
+            case PERSONS:
+                return Integer.toString(1 + random.nextInt(4));
+            case PRICE:
+                return (5 + random.nextInt(40)) + ",50";
+            case CAR_MODEL:
+                return "VW Golf";
+            case CONTACT_INFO:
+                // Unique per chat, so no ride is taken for a repost of another
+                return "@user" + chatId;
+            default:
+                throw new IllegalArgumentException("No answer for " + state);
+        }
+    }
+
+    private static Update text(long chatId, String text) {
+        Message message = message(chatId);
+        message.setFrom(user(chatId));
+        message.setText(text);
+        Update update = new Update();
+        update.setUpdateId(updateIds.incrementAndGet());
+        update.setMessage(message);
+        return update;
+    }
+
+    private static Update callback(long chatId, CallbackAction action) {
+        CallbackQuery query = new CallbackQuery();
+        query.setId(Integer.toString(updateIds.get()));
+        query.setFrom(user(chatId));
+        query.setMessage(message(chatId));
+        query.setData(action.data());
+        Update update = new Update();
+        update.setUpdateId(updateIds.incrementAndGet());
+        update.setCallbackQuery(query);
+        return update;
+    }
+
+    private static Message message(long chatId) {
+        Chat chat = new Chat();
+        chat.setId(chatId);
+        chat.setType("private");
+        Message message = new Message();
+        message.setMessageId(messageIds.incrementAndGet());
+        message.setDate((int) (System.currentTimeMillis() / 1000));
+        message.setChat(chat);
+        return message;
+    }
+
+    private static User user(long chatId) {
+        User user = new User();
+        user.setId(chatId);
+        user.setFirstName("User " + chatId);
+        user.setIsBot(false);
+        user.setLanguageCode("en");
+        return user;
+    }
+}